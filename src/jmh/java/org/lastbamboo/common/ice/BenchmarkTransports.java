@@ -0,0 +1,397 @@
+package org.lastbamboo.common.ice;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.BindException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.security.KeyStore;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.lastbamboo.common.ice.sim.EmulatedNat;
+import org.lastbamboo.common.ice.sim.EmulatedNetwork;
+import org.lastbamboo.common.ice.sim.LinkConditions;
+import org.lastbamboo.common.ice.sim.NatType;
+import org.lastbamboo.common.ice.stubs.IoSessionStub;
+import org.lastbamboo.common.offer.answer.OfferAnswer;
+import org.lastbamboo.common.offer.answer.OfferAnswerListener;
+
+import udt.UDTReceiver;
+
+/**
+ * Creates connected socket pairs for each kind of endpoint the library hands
+ * out once ICE has finished, for the transport benchmarks. UDP based
+ * endpoints are opened with the same factory code ICE uses, on made up
+ * sessions, and can run either directly over loopback or through an
+ * {@link EmulatedNat} with the link conditions of an {@link EmulatedNetwork}.
+ * <p>
+ * Transports are:
+ * <ul>
+ * <li>rawUdp -- {@link RawUdpSocketFactory}'s datagram wrapper</li>
+ * <li>udt -- {@link UdtSocketFactory}</li>
+ * <li>barchartUdt -- {@link BarchartUdtSocketFactory} without SSL</li>
+ * <li>barchartUdtSsl -- {@link BarchartUdtSocketFactory} with SSL, using the
+ * self signed test key in benchmark.jks</li>
+ * <li>tcp -- a plain socket, as {@link TcpOfferAnswer} creates with the
+ * default socket factory</li>
+ * </ul>
+ * Links are:
+ * <ul>
+ * <li>direct -- loopback with nothing in between</li>
+ * <li>lan -- through a full cone NAT adding 1 ms each way</li>
+ * <li>wan -- through a full cone NAT adding 40 +/- 5 ms each way and
+ * dropping 1% of packets</li>
+ * </ul>
+ * The emulator only carries UDP, so tcp is direct only. It also copies each
+ * packet through its own threads, which caps throughput well below
+ * loopback, so emulated results are for comparing transports with each
+ * other rather than with direct runs.
+ */
+final class BenchmarkTransports {
+
+    /**
+     * Test key store with a self signed key for localhost that never 
+     * expires in practice, checked in under src/test/resources.
+     */
+    private static final String KEY_STORE = "/benchmark.jks";
+
+    private static final String PASSWORD = "benchmark";
+
+    private BenchmarkTransports() {
+        // Only static methods.
+    }
+
+    /**
+     * Connects a client and a server socket for the specified transport.
+     *
+     * @param transport The transport.
+     * @param link The link between the two.
+     * @return The connected sockets.
+     * @throws Exception If we couldn't connect.
+     */
+    static Connection connect(final String transport, final String link)
+        throws Exception {
+        final LinkConditions conditions = conditions(link);
+        if (conditions != null && "tcp".equals(transport)) {
+            throw new IllegalArgumentException(
+                "The emulated network only carries UDP");
+        }
+        final Connection conn = new Connection();
+        final InetSocketAddress serverAddress;
+        final InetSocketAddress clientLocal;
+        final InetSocketAddress clientRemote;
+        final EmulatedNat nat;
+        if (conditions == null) {
+            final InetAddress loopback = InetAddress.getByName("127.0.0.1");
+            nat = null;
+            serverAddress = new InetSocketAddress(loopback, freePort(loopback));
+            clientLocal = new InetSocketAddress(loopback, freePort(loopback));
+            clientRemote = serverAddress;
+        } else {
+            conn.network = new EmulatedNetwork(0L);
+            nat = conn.network.newNat(NatType.FULL_CONE, conditions);
+            final InetAddress serverIp = conn.network.newPublicAddress();
+            serverAddress = new InetSocketAddress(serverIp, freePort(serverIp));
+            final InetAddress inside = nat.getInsideAddress();
+            clientLocal = new InetSocketAddress(inside, freePort(inside));
+            clientRemote = nat.shadow(serverAddress);
+        }
+
+        try {
+            if ("rawUdp".equals(transport)) {
+                connectRawUdp(conn, nat, serverAddress, clientLocal,
+                    clientRemote);
+            } else if ("udt".equals(transport)) {
+                UDTReceiver.connectionExpiryDisabled = true;
+                final UdtSocketFactory factory = new UdtSocketFactory();
+                final BlockingQueue<Socket> server =
+                    new LinkedBlockingQueue<Socket>();
+                startServer(new ServerOpener() {
+                    public void open() throws Exception {
+                        factory.openServerSocket(
+                            new Session(serverAddress, null), listener(server));
+                    }
+                }, serverAddress);
+                final BlockingQueue<Socket> client =
+                    new LinkedBlockingQueue<Socket>();
+                factory.openClientSocket(
+                    new Session(clientLocal, clientRemote), listener(client));
+                conn.client = take(client);
+                conn.server = take(server);
+            } else if ("barchartUdt".equals(transport) ||
+                "barchartUdtSsl".equals(transport)) {
+                final SocketFactory socketFactory;
+                if ("barchartUdtSsl".equals(transport)) {
+                    socketFactory = sslSocketFactory();
+                } else {
+                    socketFactory = SocketFactory.getDefault();
+                }
+                final BarchartUdtSocketFactory factory =
+                    new BarchartUdtSocketFactory(socketFactory);
+                final BlockingQueue<Socket> server =
+                    new LinkedBlockingQueue<Socket>();
+                startServer(new ServerOpener() {
+                    public void open() throws Exception {
+                        factory.openServerSocket(
+                            new Session(serverAddress, null), listener(server));
+                    }
+                }, serverAddress);
+                final BlockingQueue<Socket> client =
+                    new LinkedBlockingQueue<Socket>();
+                factory.openClientSocket(
+                    new Session(clientLocal, clientRemote), listener(client));
+                conn.client = take(client);
+                conn.server = take(server);
+            } else if ("tcp".equals(transport)) {
+                final ServerSocket ss = new ServerSocket();
+                ss.bind(serverAddress);
+                try {
+                    conn.client = SocketFactory.getDefault().createSocket();
+                    conn.client.connect(serverAddress);
+                    conn.server = ss.accept();
+                } finally {
+                    ss.close();
+                }
+            } else {
+                throw new IllegalArgumentException("Unknown transport: " +
+                    transport);
+            }
+        } catch (final Exception e) {
+            conn.close();
+            throw e;
+        }
+        return conn;
+    }
+
+    private static void connectRawUdp(final Connection conn,
+        final EmulatedNat nat, final InetSocketAddress serverAddress,
+        final InetSocketAddress clientLocal,
+        final InetSocketAddress clientRemote) throws Exception {
+        final SocketAddress serverRemote;
+        if (nat == null) {
+            serverRemote = clientLocal;
+        } else {
+            // The server side is connected to the client's public mapping,
+            // so we punch it first, as ICE would have.
+            final DatagramChannel punch = DatagramChannel.open();
+            try {
+                punch.socket().bind(clientLocal);
+                punch.send(ByteBuffer.wrap(new byte[1]), clientRemote);
+            } finally {
+                punch.close();
+            }
+            final long end = System.currentTimeMillis() + 5000;
+            while (nat.getMappedAddresses().isEmpty()) {
+                if (System.currentTimeMillis() > end) {
+                    throw new IOException("No mapping for " + clientLocal);
+                }
+                Thread.sleep(10);
+            }
+            serverRemote = nat.getMappedAddresses().iterator().next();
+        }
+        conn.server = RawUdpSocketFactory.newSocket(serverAddress,
+            serverRemote);
+        conn.client = RawUdpSocketFactory.newSocket(clientLocal, clientRemote);
+    }
+
+    private static LinkConditions conditions(final String link) {
+        if ("direct".equals(link)) {
+            return null;
+        } else if ("lan".equals(link)) {
+            return new LinkConditions(1, 0, 0.0);
+        } else if ("wan".equals(link)) {
+            return new LinkConditions(40, 5, 0.01);
+        }
+        throw new IllegalArgumentException("Unknown link: " + link);
+    }
+
+    /**
+     * Opens the server side on its own thread, since it blocks in accept,
+     * and waits for it to bind.
+     */
+    private static void startServer(final ServerOpener opener,
+        final InetSocketAddress address) throws Exception {
+        final AtomicReference<Exception> failure = 
+            new AtomicReference<Exception>();
+        final Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    opener.open();
+                } catch (final Exception e) {
+                    failure.set(e);
+                }
+            }
+        }, "Benchmark-Server-Opener");
+        thread.setDaemon(true);
+        thread.start();
+        final long end = System.currentTimeMillis() + 5000;
+        while (!isBound(address)) {
+            final Exception e = failure.get();
+            if (e != null) {
+                throw new IOException("Could not open server on " + 
+                    address, e);
+            }
+            if (System.currentTimeMillis() > end) {
+                throw new IOException("Server never bound to " + address);
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static boolean isBound(final InetSocketAddress address) {
+        try {
+            new DatagramSocket(address).close();
+            return false;
+        } catch (final BindException e) {
+            return true;
+        } catch (final IOException e) {
+            return false;
+        }
+    }
+
+    private static int freePort(final InetAddress address) throws IOException {
+        final DatagramSocket sock =
+            new DatagramSocket(new InetSocketAddress(address, 0));
+        try {
+            return sock.getLocalPort();
+        } finally {
+            sock.close();
+        }
+    }
+
+    private static Socket take(final BlockingQueue<Socket> queue)
+        throws Exception {
+        final Socket sock = queue.poll(30, TimeUnit.SECONDS);
+        if (sock == null) {
+            throw new IOException("Timed out waiting for socket");
+        }
+        return sock;
+    }
+
+    private static OfferAnswerListener<Socket> listener(
+        final BlockingQueue<Socket> queue) {
+        return new OfferAnswerListener<Socket>() {
+            public void onOfferAnswerFailed(final OfferAnswer offerAnswer) {
+                // We'll time out waiting for the socket.
+            }
+
+            public void onTcpSocket(final Socket sock) {
+                queue.offer(sock);
+            }
+
+            public void onUdpSocket(final Socket sock) {
+                queue.offer(sock);
+            }
+        };
+    }
+
+    /**
+     * Creates an SSL socket factory with the self signed test key in
+     * benchmark.jks, which both sides trust.
+     */
+    private static SSLSocketFactory sslSocketFactory() throws Exception {
+        final KeyStore keyStore = KeyStore.getInstance("JKS");
+        final InputStream in = 
+            BenchmarkTransports.class.getResourceAsStream(KEY_STORE);
+        if (in == null) {
+            throw new IOException("No " + KEY_STORE + " on the classpath");
+        }
+        try {
+            keyStore.load(in, PASSWORD.toCharArray());
+        } finally {
+            in.close();
+        }
+        final KeyManagerFactory kmf = KeyManagerFactory.getInstance(
+            KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, PASSWORD.toCharArray());
+        final TrustManagerFactory tmf = TrustManagerFactory.getInstance(
+            TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(keyStore);
+        final SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+        return context.getSocketFactory();
+    }
+
+    private interface ServerOpener {
+        void open() throws Exception;
+    }
+
+    /**
+     * Session with just the addresses the socket factories look at.
+     */
+    private static final class Session extends IoSessionStub {
+
+        private final SocketAddress local;
+
+        private final SocketAddress remote;
+
+        private Session(final SocketAddress local, final SocketAddress remote) {
+            this.local = local;
+            this.remote = remote;
+        }
+
+        @Override
+        public SocketAddress getLocalAddress() {
+            return local;
+        }
+
+        @Override
+        public SocketAddress getRemoteAddress() {
+            return remote;
+        }
+    }
+
+    /**
+     * A connected pair of sockets and whatever is carrying them.
+     */
+    static final class Connection {
+
+        private Socket client;
+
+        private Socket server;
+
+        private EmulatedNetwork network;
+
+        Socket getClient() {
+            return client;
+        }
+
+        Socket getServer() {
+            return server;
+        }
+
+        void close() {
+            close(client);
+            close(server);
+            if (network != null) {
+                network.close();
+            }
+        }
+
+        private static void close(final Socket sock) {
+            if (sock == null) {
+                return;
+            }
+            try {
+                sock.close();
+            } catch (final IOException e) {
+                // Nothing we can do.
+            }
+        }
+    }
+}
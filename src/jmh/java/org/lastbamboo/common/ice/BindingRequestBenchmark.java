@@ -0,0 +1,60 @@
+package org.lastbamboo.common.ice;
+
+import java.util.concurrent.TimeUnit;
+
+import org.littleshoot.stun.stack.message.BindingRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the server side of connectivity checks: an inbound Binding 
+ * Request going through {@link IceStunConnectivityCheckerImpl}, the 
+ * duplicate tracker, the role checker and the media stream's candidate and
+ * pair lookups. The agent is controlled and its event loop runs tasks 
+ * directly, so each operation covers the whole path on the calling thread.
+ * <p>
+ * See {@link BindingRequestFixture} for the request kinds. Run with:
+ * 
+ * <pre>
+ * mvn -Pjmh test-compile exec:exec -Djmh.args="BindingRequest -prof gc"
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BindingRequestBenchmark {
+
+    @Param({"duplicate", "fresh", "roleConflict", "useCandidate"})
+    public String kind;
+
+    /**
+     * The number of remote candidates, which sets the length of the 
+     * candidate and pair scans.
+     */
+    @Param({"1", "10", "40"})
+    public int remoteCandidates;
+
+    private BindingRequestFixture fixture;
+
+    @Setup
+    public void setUp() {
+        this.fixture = new BindingRequestFixture(remoteCandidates);
+    }
+
+    @Benchmark
+    public BindingRequest visitBindingRequest() {
+        return this.fixture.process(kind);
+    }
+}
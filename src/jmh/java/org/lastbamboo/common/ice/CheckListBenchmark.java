@@ -0,0 +1,153 @@
+package org.lastbamboo.common.ice;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.lastbamboo.common.ice.candidate.IceCandidate;
+import org.lastbamboo.common.ice.candidate.IceCandidatePair;
+import org.lastbamboo.common.ice.candidate.IceCandidatePairFactory;
+import org.lastbamboo.common.ice.candidate.IceCandidatePairFactoryImpl;
+import org.lastbamboo.common.ice.candidate.IceCandidatePairState;
+import org.lastbamboo.common.ice.stubs.IceUdpConnectorStub;
+import org.littleshoot.stun.stack.message.StunMessage;
+import org.littleshoot.stun.stack.transaction.StunTransactionTracker;
+import org.littleshoot.stun.stack.transaction.StunTransactionTrackerImpl;
+import org.littleshoot.util.Closure;
+import org.littleshoot.util.Predicate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for building and working with check lists: forming the list 
+ * from local and remote candidates (pairing, pruning and both sorts), 
+ * sorting pairs with their comparator, recomputing priorities after a role
+ * change and the scheduler's selection of the next pair to check. Run with
+ * the GC profiler to see allocation per operation:
+ * 
+ * <pre>
+ * mvn -Pjmh test-compile exec:exec -Djmh.args="CheckListBenchmark -prof gc"
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CheckListBenchmark {
+
+    @Param({"1", "5", "20"})
+    public int localCandidates;
+
+    @Param({"1", "10", "40"})
+    public int remoteCandidates;
+
+    @Param({"0.0", "0.5"})
+    public double ipv6Fraction;
+
+    private IceCandidatePairFactory pairFactory;
+
+    private List<IceCandidate> local;
+
+    private List<IceCandidate> remote;
+
+    private IceCheckList formed;
+
+    private List<IceCandidatePair> pairs;
+
+    private boolean controlling;
+
+    private final Predicate<IceCandidatePair> waiting = 
+        new StatePredicate(IceCandidatePairState.WAITING);
+
+    private final Predicate<IceCandidatePair> frozen = 
+        new StatePredicate(IceCandidatePairState.FROZEN);
+
+    @Setup
+    public void setUp() {
+        final StunTransactionTracker<StunMessage> tracker = 
+            new StunTransactionTrackerImpl();
+        this.pairFactory = new IceCandidatePairFactoryImpl(
+            new IceStunCheckerFactoryImpl(tracker), new IceUdpConnectorStub());
+        this.local = 
+            BenchmarkCandidates.local(localCandidates, ipv6Fraction, true);
+        this.remote = 
+            BenchmarkCandidates.remote(remoteCandidates, ipv6Fraction, false);
+        this.formed = new IceCheckListImpl(pairFactory, local);
+        this.formed.formCheckList(remote);
+        final List<IceCandidatePair> all = new ArrayList<IceCandidatePair>();
+        this.formed.executeOnPairs(new Closure<IceCandidatePair>() {
+            public void execute(final IceCandidatePair pair) {
+                all.add(pair);
+            }
+        });
+        this.pairs = all;
+    }
+
+    @Benchmark
+    public IceCheckList formCheckList() {
+        final IceCheckList checkList = new IceCheckListImpl(pairFactory, local);
+        checkList.formCheckList(remote);
+        return checkList;
+    }
+
+    @Benchmark
+    public List<IceCandidatePair> sortPairs() {
+        final List<IceCandidatePair> copy = 
+            new ArrayList<IceCandidatePair>(pairs);
+        Collections.sort(copy);
+        return copy;
+    }
+
+    @Benchmark
+    public IceCheckList recomputePairPriorities() {
+        controlling = !controlling;
+        formed.recomputePairPriorities(controlling);
+        return formed;
+    }
+
+    /**
+     * Mirrors the scheduler's search for the next pair: triggered pairs 
+     * first, then the top waiting pair, then the top frozen pair. Pair 
+     * states aren't changed, so every invocation does the same work.
+     * 
+     * @return The selected pair.
+     */
+    @Benchmark
+    public IceCandidatePair selectNextPair() {
+        final IceCandidatePair triggered = formed.removeTopTriggeredPair();
+        if (triggered != null) {
+            return triggered;
+        }
+        final IceCandidatePair waitingPair = formed.selectPair(waiting);
+        if (waitingPair != null) {
+            return waitingPair;
+        }
+        return formed.selectPair(frozen);
+    }
+
+    private static final class StatePredicate 
+        implements Predicate<IceCandidatePair> {
+
+        private final IceCandidatePairState state;
+
+        private StatePredicate(final IceCandidatePairState state) {
+            this.state = state;
+        }
+
+        public boolean evaluate(final IceCandidatePair pair) {
+            return pair.getState() == state;
+        }
+    }
+}
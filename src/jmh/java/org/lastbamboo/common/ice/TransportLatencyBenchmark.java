@@ -0,0 +1,110 @@
+package org.lastbamboo.common.ice;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks small message round trips over each of the transports from
+ * {@link BenchmarkTransports}. Each operation writes a 64 byte message on
+ * the client side and waits for the server side to echo it back, so the
+ * sampled times give the latency distribution. Raw UDP has no 
+ * retransmission, so a lost message stalls it for good -- only run it over
+ * links without loss. Run with:
+ * 
+ * <pre>
+ * mvn -Pjmh test-compile exec:exec -Djmh.args="TransportLatency"
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransportLatencyBenchmark {
+
+    private static final int MESSAGE_SIZE = 64;
+
+    @Param({"rawUdp", "udt", "barchartUdt", "barchartUdtSsl", "tcp"})
+    public String transport;
+
+    @Param({"direct"})
+    public String link;
+
+    private final byte[] message = new byte[MESSAGE_SIZE];
+
+    private final byte[] reply = new byte[MESSAGE_SIZE];
+
+    private BenchmarkTransports.Connection connection;
+
+    private OutputStream out;
+
+    private InputStream in;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        connection = BenchmarkTransports.connect(transport, link);
+        out = connection.getClient().getOutputStream();
+        in = connection.getClient().getInputStream();
+
+        final InputStream serverIn = connection.getServer().getInputStream();
+        final OutputStream serverOut = 
+            connection.getServer().getOutputStream();
+        final Thread echo = new Thread(new Runnable() {
+            public void run() {
+                final byte[] buf = new byte[MESSAGE_SIZE];
+                try {
+                    while (true) {
+                        final int read = serverIn.read(buf);
+                        if (read == -1) {
+                            return;
+                        }
+                        serverOut.write(buf, 0, read);
+                        serverOut.flush();
+                    }
+                } catch (final IOException e) {
+                    // The connection closed at the end of the trial.
+                }
+            }
+        }, "Benchmark-Echo");
+        echo.setDaemon(true);
+        echo.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        connection.close();
+    }
+
+    @Benchmark
+    public byte[] pingPong() throws IOException {
+        out.write(message);
+        out.flush();
+        int total = 0;
+        while (total < MESSAGE_SIZE) {
+            final int read = in.read(reply, total, MESSAGE_SIZE - total);
+            if (read == -1) {
+                throw new EOFException("Connection closed");
+            }
+            total += read;
+        }
+        return reply;
+    }
+}
@@ -0,0 +1,157 @@
+package org.lastbamboo.common.ice;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks bulk throughput over each of the transports from
+ * {@link BenchmarkTransports}. Each operation writes one chunk on the client
+ * side while a thread on the server side reads as fast as it can. Along
+ * with chunks per second, the run reports these rates per second:
+ * <ul>
+ * <li>sentBytes -- bytes written</li>
+ * <li>receivedBytes -- bytes read on the other side, which is lower than
+ * sentBytes for raw UDP when packets are dropped</li>
+ * <li>cpuNanos -- CPU time used by the whole process</li>
+ * </ul>
+ * CPU per GB is cpuNanos / receivedBytes * 2^30. Run with:
+ * 
+ * <pre>
+ * mvn -Pjmh test-compile exec:exec -Djmh.args="TransportThroughput"
+ * </pre>
+ * 
+ * and add <code>-p link=lan,wan -p transport=rawUdp,udt,barchartUdt</code>
+ * to go through the emulated network.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransportThroughputBenchmark {
+
+    @Param({"rawUdp", "udt", "barchartUdt", "barchartUdtSsl", "tcp"})
+    public String transport;
+
+    @Param({"direct"})
+    public String link;
+
+    @Param({"1024", "16384"})
+    public int chunkSize;
+
+    private final AtomicLong received = new AtomicLong();
+
+    private BenchmarkTransports.Connection connection;
+
+    private OutputStream out;
+
+    private byte[] chunk;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        connection = BenchmarkTransports.connect(transport, link);
+        out = connection.getClient().getOutputStream();
+        chunk = new byte[chunkSize];
+        new Random(0L).nextBytes(chunk);
+
+        final InputStream in = connection.getServer().getInputStream();
+        final Thread reader = new Thread(new Runnable() {
+            public void run() {
+                final byte[] buf = new byte[64 * 1024];
+                try {
+                    while (true) {
+                        final int read = in.read(buf);
+                        if (read == -1) {
+                            return;
+                        }
+                        received.addAndGet(read);
+                    }
+                } catch (final IOException e) {
+                    // The connection closed at the end of the trial.
+                }
+            }
+        }, "Benchmark-Reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        connection.close();
+    }
+
+    @Benchmark
+    public void bulk(final Counters counters) throws IOException {
+        out.write(chunk);
+        counters.sentBytes += chunk.length;
+        counters.sample(received.get());
+    }
+
+    /**
+     * Byte and CPU counters, reported as rates.
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+
+        public long sentBytes;
+
+        public long receivedBytes;
+
+        public long cpuNanos;
+
+        private long lastReceived;
+
+        private long lastCpu;
+
+        private final OperatingSystemMXBean os =
+            ManagementFactory.getOperatingSystemMXBean();
+
+        @Setup(Level.Iteration)
+        public void reset(final TransportThroughputBenchmark benchmark) {
+            sentBytes = 0L;
+            receivedBytes = 0L;
+            cpuNanos = 0L;
+            lastReceived = benchmark.received.get();
+            lastCpu = processCpuNanos();
+        }
+
+        private void sample(final long received) {
+            receivedBytes += received - lastReceived;
+            lastReceived = received;
+            final long cpu = processCpuNanos();
+            cpuNanos += cpu - lastCpu;
+            lastCpu = cpu;
+        }
+
+        private long processCpuNanos() {
+            if (os instanceof com.sun.management.OperatingSystemMXBean) {
+                return ((com.sun.management.OperatingSystemMXBean) os)
+                    .getProcessCpuTime();
+            }
+            return 0L;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package org.lastbamboo.common.ice.sdp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.lastbamboo.common.ice.candidate.IceCandidate;
+import org.lastbamboo.common.ice.candidate.IceTcpHostPassiveCandidate;
+import org.lastbamboo.common.ice.candidate.IceTcpRelayPassiveCandidate;
+import org.lastbamboo.common.ice.candidate.IceUdpHostCandidate;
+import org.lastbamboo.common.ice.candidate.IceUdpServerReflexiveCandidate;
+import org.littleshoot.mina.common.ByteBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for encoding candidates into SDP offers and decoding them
+ * again, the work done on the signaling path for every session. The offers
+ * vary in size and in their mix of host, server reflexive, TCP passive and
+ * relay candidates. Run with the GC profiler to see bytes allocated per 
+ * operation:
+ * 
+ * <pre>
+ * mvn -Pjmh test-compile exec:exec -Djmh.args="SdpCodec -prof gc"
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SdpCodecBenchmark {
+
+    @Param({"1", "4", "16"})
+    public int candidateCount;
+
+    /**
+     * The candidate types in the offer. "host" uses UDP host and TCP 
+     * passive host candidates, "reflexive" uses UDP server reflexive 
+     * candidates, "relay" uses TCP relay candidates and "mixed" cycles 
+     * through all of them.
+     */
+    @Param({"host", "reflexive", "relay", "mixed"})
+    public String mix;
+
+    private Collection<IceCandidate> candidates;
+
+    private byte[] sdp;
+
+    private final IceCandidateSdpDecoder decoder = 
+        new IceCandidateSdpDecoderImpl();
+
+    @Setup
+    public void setUp() throws IOException {
+        this.candidates = createCandidates(candidateCount, mix);
+        this.sdp = encode();
+        final Collection<IceCandidate> decoded = decode();
+        if (decoded.size() != candidates.size()) {
+            throw new IllegalStateException("Decoded " + decoded.size() + 
+                " of " + candidates.size() + " candidates");
+        }
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        final IceCandidateSdpEncoder encoder = 
+            new IceCandidateSdpEncoder("message", "http");
+        encoder.visitCandidates(candidates);
+        return encoder.getSdp();
+    }
+
+    @Benchmark
+    public Collection<IceCandidate> decode() throws IOException {
+        return decoder.decode(ByteBuffer.wrap(sdp), false);
+    }
+
+    private static Collection<IceCandidate> createCandidates(final int count,
+        final String mix) {
+        final List<IceCandidate> list = new ArrayList<IceCandidate>(count);
+        final InetAddress stunServer = address(35, 52, 3, 53);
+        final InetAddress related = address(10, 0, 0, 1);
+        for (int i = 0; i < count; i++) {
+            final InetSocketAddress host = 
+                new InetSocketAddress(address(192, 168, 1, i + 1), 4000 + i);
+            final InetSocketAddress pub = 
+                new InetSocketAddress(address(78, 2, 24, i + 1), 5000 + i);
+            final int type;
+            if ("host".equals(mix)) {
+                type = i % 2;
+            } else if ("reflexive".equals(mix)) {
+                type = 2;
+            } else if ("relay".equals(mix)) {
+                type = 3;
+            } else {
+                type = i % 4;
+            }
+            switch (type) {
+                case 0:
+                    list.add(new IceUdpHostCandidate(host, false));
+                    break;
+                case 1:
+                    list.add(new IceTcpHostPassiveCandidate(host, false));
+                    break;
+                case 2:
+                    list.add(new IceUdpServerReflexiveCandidate(pub, 
+                        new IceUdpHostCandidate(host, false), stunServer, 
+                        false));
+                    break;
+                default:
+                    list.add(new IceTcpRelayPassiveCandidate(pub, stunServer,
+                        related, 8768, false));
+                    break;
+            }
+        }
+        return list;
+    }
+
+    private static InetAddress address(final int a, final int b, 
+        final int c, final int d) {
+        try {
+            return InetAddress.getByAddress(
+                new byte[] {(byte) a, (byte) b, (byte) c, (byte) d});
+        } catch (final UnknownHostException e) {
+            throw new IllegalArgumentException("Bad address", e);
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package org.lastbamboo.common.ice;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectableChannel;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.lastbamboo.common.ice.channel.IceMtu;
+import org.lastbamboo.common.ice.executor.IceExecutorRole;
+import org.lastbamboo.common.ice.executor.IceExecutors;
+import org.lastbamboo.common.ice.jfr.IceFlightRecorder;
+import org.lastbamboo.common.ice.jfr.IceJfrEventType;
+import org.lastbamboo.common.ice.udt.UdtConnectListener;
+import org.lastbamboo.common.ice.udt.UdtProfile;
+import org.lastbamboo.common.ice.udt.UdtSelectorLoop;
+import org.lastbamboo.common.offer.answer.OfferAnswerListener;
+import org.littleshoot.mina.common.IoSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.barchart.udt.nio.SelectorProviderUDT;
+import com.barchart.udt.nio.ServerSocketChannelUDT;
+import com.barchart.udt.nio.SocketChannelUDT;
+
+/**
+ * Factory for UDT endpoints that hands out the barchart
+ * {@link SocketChannelUDT} rather than a blocking socket. As with
+ * {@link BarchartUdtSocketFactory}, the controlled agent accepts and the
+ * controlling agent connects on the port of the nominated pair. The channel
+ * is delivered connected and in non-blocking mode.
+ * <p>
+ * By default each connection blocks a pooled thread until it's up. In
+ * selector mode connections are established through a {@link UdtSelectorLoop}
+ * instead, so a single thread connects and accepts every channel, and
+ * applications can register the delivered channels with
+ * {@link #getLoop(SelectableChannel)} to service them from the same
+ * thread.
+ * <p>
+ * There's no SSL option here -- applications that want it should run an
+ * SSLEngine over the channel.
+ */
+public class BarchartUdtChannelFactory
+    implements UdpSocketFactory<SelectableChannel> {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final boolean selectorMode;
+
+    private final UdtSelectorLoop loop;
+
+    private final Map<SelectableChannel, UdtSelectorLoop> loops =
+        Collections.synchronizedMap(
+            new WeakHashMap<SelectableChannel, UdtSelectorLoop>());
+
+    /**
+     * Creates a new factory that blocks a pooled thread per connection.
+     */
+    public BarchartUdtChannelFactory() {
+        this(false);
+    }
+
+    /**
+     * Creates a new factory.
+     * 
+     * @param selectorMode Whether to establish connections through the
+     * shared {@link UdtSelectorLoop}s rather than blocking a thread each.
+     */
+    public BarchartUdtChannelFactory(final boolean selectorMode) {
+        this.selectorMode = selectorMode;
+        this.loop = null;
+    }
+
+    /**
+     * Creates a new factory that establishes all its connections through
+     * the specified selector loop.
+     * 
+     * @param loop The loop.
+     */
+    public BarchartUdtChannelFactory(final UdtSelectorLoop loop) {
+        if (loop == null) {
+            throw new NullPointerException("Null loop");
+        }
+        this.selectorMode = true;
+        this.loop = loop;
+    }
+
+    /**
+     * Accessor for the selector loop a channel from this factory was
+     * established on, for registering it to be serviced there.
+     * 
+     * @param channel A channel this factory delivered.
+     * @return The channel's loop, or <code>null</code> if it wasn't
+     * established in selector mode.
+     */
+    public UdtSelectorLoop getLoop(final SelectableChannel channel) {
+        return this.loops.get(channel);
+    }
+
+    @Override
+    public void newEndpoint(final IoSession session, final boolean controlling,
+            final OfferAnswerListener<SelectableChannel> channelListener,
+            final IceStunUdpPeer stunUdpPeer, final IceAgent iceAgent) {
+        log.info("Creating new Barchart UDT channel");
+        if (session == null) {
+            log.error("Null session: {}", session);
+            return;
+        }
+        // Read the MTU before releasing the session closes the agent.
+        final int mtu = 
+            IceMtu.forSession(session, iceAgent.getNominatedPairs());
+        final UdtProfile profile = 
+            BarchartUdtSocketFactory.profileFor(session, iceAgent, mtu);
+        BarchartUdtSocketFactory.releaseSession(session, controlling,
+            stunUdpPeer, iceAgent);
+
+        final InetSocketAddress local =
+            (InetSocketAddress) session.getLocalAddress();
+        final InetSocketAddress remote =
+            (InetSocketAddress) session.getRemoteAddress();
+        if (this.selectorMode) {
+            establish(local, remote, mtu, profile, controlling, 
+                channelListener, iceAgent);
+            return;
+        }
+        final Runnable runner = new Runnable() {
+            @Override
+            public void run() {
+                final Object event =
+                    IceFlightRecorder.begin(IceJfrEventType.UDT_HANDOFF);
+                SocketChannelUDT channel = null;
+                try {
+                    // The controlled agent starts its media stream first, so
+                    // it listens and the controlling agent connects.
+                    if (controlling) {
+                        channel = connect(local, remote, mtu, profile);
+                    } else {
+                        channel = accept(local, mtu, profile);
+                    }
+                    channel.configureBlocking(false);
+                } catch (final IOException e) {
+                    log.error("Barchart channel exception", e);
+                    close(channel);
+                    channel = null;
+                } finally {
+                    if (event != null) {
+                        IceFlightRecorder.commit(event,
+                            IceFlightRecorder.str(local),
+                            IceFlightRecorder.str(remote),
+                            controlling ? "channel-client" : "channel-server",
+                            Boolean.valueOf(channel != null));
+                    }
+                }
+                if (channel == null) {
+                    channelListener.onOfferAnswerFailed(iceAgent);
+                } else {
+                    channelListener.onUdpSocket(channel);
+                }
+            }
+        };
+        try {
+            IceExecutors.execute(IceExecutorRole.UDT_SOCKET, runner);
+        } catch (final RejectedExecutionException e) {
+            log.error("UDT socket pool saturated -- failing", e);
+            channelListener.onOfferAnswerFailed(iceAgent);
+        }
+    }
+
+    private void establish(final InetSocketAddress local,
+        final InetSocketAddress remote, final int mtu, 
+        final UdtProfile profile, final boolean controlling,
+        final OfferAnswerListener<SelectableChannel> channelListener,
+        final IceAgent iceAgent) {
+        final Object event =
+            IceFlightRecorder.begin(IceJfrEventType.UDT_HANDOFF);
+        final String mode = 
+            controlling ? "selector-client" : "selector-server";
+        final UdtSelectorLoop selectorLoop;
+        SelectableChannel channel = null;
+        try {
+            selectorLoop = 
+                this.loop == null ? UdtSelectorLoop.next() : this.loop;
+            // Binding doesn't block, so we can do it here and leave the rest
+            // to the loop.
+            if (controlling) {
+                final SocketChannelUDT sc = 
+                    SelectorProviderUDT.STREAM.openSocketChannel();
+                channel = sc;
+                BarchartUdtSocketFactory.setMtu(sc.socketUDT(), mtu);
+                profile.apply(sc.socketUDT());
+                sc.socket().bind(local);
+            } else {
+                final ServerSocketChannelUDT server =
+                    SelectorProviderUDT.STREAM.openServerSocketChannel();
+                channel = server;
+                BarchartUdtSocketFactory.setMtu(server.socketUDT(), mtu);
+                profile.apply(server.socketUDT());
+                server.socket().bind(local);
+            }
+        } catch (final IOException e) {
+            log.error("Barchart channel exception", e);
+            close(channel);
+            commitHandoff(event, local, remote, mode, false);
+            channelListener.onOfferAnswerFailed(iceAgent);
+            return;
+        }
+        final UdtConnectListener listener = new UdtConnectListener() {
+            @Override
+            public void onConnected(final SocketChannelUDT sc) {
+                commitHandoff(event, local, remote, mode, true);
+                loops.put(sc, selectorLoop);
+                // Get off the loop thread -- listeners may well block.
+                dispatch(new Runnable() {
+                    @Override
+                    public void run() {
+                        channelListener.onUdpSocket(sc);
+                    }
+                });
+            }
+
+            @Override
+            public void onConnectFailed(final IOException e) {
+                log.error("Barchart channel exception", e);
+                commitHandoff(event, local, remote, mode, false);
+                dispatch(new Runnable() {
+                    @Override
+                    public void run() {
+                        channelListener.onOfferAnswerFailed(iceAgent);
+                    }
+                });
+            }
+
+            private void dispatch(final Runnable runner) {
+                try {
+                    IceExecutors.execute(IceExecutorRole.UDT_SOCKET, runner);
+                } catch (final RejectedExecutionException e) {
+                    log.error("UDT socket pool saturated -- running inline",
+                        e);
+                    runner.run();
+                }
+            }
+        };
+        if (controlling) {
+            selectorLoop.connect((SocketChannelUDT) channel, remote, listener);
+        } else {
+            log.info("Accepting on {}", local);
+            selectorLoop.accept((ServerSocketChannelUDT) channel, listener);
+        }
+    }
+
+    private void commitHandoff(final Object event, 
+        final InetSocketAddress local, final InetSocketAddress remote,
+        final String mode, final boolean success) {
+        if (event != null) {
+            IceFlightRecorder.commit(event, IceFlightRecorder.str(local),
+                IceFlightRecorder.str(remote), mode, 
+                Boolean.valueOf(success));
+        }
+    }
+
+    private SocketChannelUDT connect(final InetSocketAddress local,
+        final InetSocketAddress remote, final int mtu, 
+        final UdtProfile profile) throws IOException {
+        final SocketChannelUDT channel =
+            SelectorProviderUDT.STREAM.openSocketChannel();
+        try {
+            BarchartUdtSocketFactory.setMtu(channel.socketUDT(), mtu);
+            profile.apply(channel.socketUDT());
+            channel.socket().bind(local);
+            log.info("About to connect to {}", remote);
+            channel.connect(remote);
+            return channel;
+        } catch (final IOException e) {
+            close(channel);
+            throw e;
+        }
+    }
+
+    private SocketChannelUDT accept(final InetSocketAddress local,
+        final int mtu, final UdtProfile profile) throws IOException {
+        final ServerSocketChannelUDT server =
+            SelectorProviderUDT.STREAM.openServerSocketChannel();
+        try {
+            BarchartUdtSocketFactory.setMtu(server.socketUDT(), mtu);
+            profile.apply(server.socketUDT());
+            server.socket().bind(local);
+            log.info("Accepting on {}", local);
+            return server.accept();
+        } finally {
+            // We only ever accept the single connection for the pair, and
+            // the accepted channel doesn't need the listener after that.
+            close(server);
+        }
+    }
+
+    private void close(final SelectableChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (final IOException e) {
+            log.info("Exception closing channel", e);
+        }
+    }
+}
@@ -2,17 +2,23 @@ package org.lastbamboo.common.ice;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.channels.DatagramChannel;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.net.SocketFactory;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 
+import org.lastbamboo.common.ice.candidate.IcePathStats;
+import org.lastbamboo.common.ice.channel.IceMtu;
+import org.lastbamboo.common.ice.clock.IceClocks;
+import org.lastbamboo.common.ice.executor.IceExecutorRole;
+import org.lastbamboo.common.ice.executor.IceExecutors;
+import org.lastbamboo.common.ice.jfr.IceFlightRecorder;
+import org.lastbamboo.common.ice.jfr.IceJfrEventType;
+import org.lastbamboo.common.ice.udt.UdtProfile;
+import org.lastbamboo.common.ice.udt.UdtProfiles;
 import org.lastbamboo.common.offer.answer.OfferAnswerListener;
 import org.lastbamboo.common.stun.server.StunServer;
 import org.littleshoot.mina.common.IoAcceptor;
@@ -22,6 +28,9 @@ import org.littleshoot.mina.transport.socket.nio.support.DatagramSessionImpl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.barchart.udt.ExceptionUDT;
+import com.barchart.udt.OptionUDT;
+import com.barchart.udt.SocketUDT;
 import com.barchart.udt.net.NetServerSocketUDT;
 
 /**
@@ -31,19 +40,6 @@ public class BarchartUdtSocketFactory implements UdpSocketFactory<Socket> {
 
     private final Logger log = LoggerFactory.getLogger(getClass());
 
-    private static final ExecutorService threadPool = 
-        Executors.newCachedThreadPool(new ThreadFactory() {
-            private volatile int count = 0;
-            
-            @Override
-            public Thread newThread(final Runnable r) {
-                final Thread t = new Thread(r, "UDT-Socket-Thread-"+count);
-                t.setDaemon(true);
-                count++;
-                return t;
-            }
-        });
-
     private final SocketFactory sslSocketFactory;
     
     public BarchartUdtSocketFactory(final SocketFactory sslSocketFactory) {
@@ -61,30 +57,11 @@ public class BarchartUdtSocketFactory implements UdpSocketFactory<Socket> {
             return;
         }
         
-        // Wait for a bit before we clear the decoders and such on that port -
-        // basically the client side may have sent a USE-CANDIDATE binding
-        // request for a pair that's still in the in progress state on the
-        // other end -- i.e. the server side hasn't verified the pair works
-        // for it. So the server side could still be doing STUN checks at that
-        // point, and we need to wait.
-        //
-        // We only do this on the controlling side due to an implementation
-        // detail of how we're using this -- basically using HTTP the client
-        // side always sends data before the server side (request -> response),
-        // so there's no chance the server side could start sending media data
-        // while we're still looking for STUN messages (the potential problem
-        // on the server side that this sleep solves).
-        if (controlling) {
-            final long sleepTime = 1200;
-            log.info("Client side sleeping for {} milliseconds", sleepTime);
-            try {
-                Thread.sleep(sleepTime);
-            } catch (final InterruptedException e) {
-                log.warn("Sleep interrupted?", e);
-            }
-        }
-
-        clear(session, stunUdpPeer, iceAgent);
+        // Read the MTU before releasing the session closes the agent.
+        final int mtu = 
+            IceMtu.forSession(session, iceAgent.getNominatedPairs());
+        final UdtProfile profile = profileFor(session, iceAgent, mtu);
+        releaseSession(session, controlling, stunUdpPeer, iceAgent);
         if (!controlling) {
             // The CONTROLLED agent is notified to start the media stream first
             // in the ICE process, so this is called before the other side
@@ -94,11 +71,18 @@ public class BarchartUdtSocketFactory implements UdpSocketFactory<Socket> {
             final Runnable clientRunner = new Runnable() {
                 @Override
                 public void run() {
+                    final Object event = 
+                        IceFlightRecorder.begin(IceJfrEventType.UDT_HANDOFF);
+                    boolean success = false;
                     try {
                         // openClientSocket(session, socketListener);
-                        openServerSocket(session, socketListener);
+                        openServerSocket(session, socketListener, mtu, 
+                            profile);
+                        success = true;
                     } catch (final Throwable t) {
                         log.error("Barchart socket exception", t);
+                    } finally {
+                        commitHandoff(event, session, "server", success);
                     }
                 }
             };
@@ -108,7 +92,7 @@ public class BarchartUdtSocketFactory implements UdpSocketFactory<Socket> {
             udtClientThread.setDaemon(true);
             udtClientThread.start();
             */
-            threadPool.execute(clientRunner);
+            execute(clientRunner, socketListener, iceAgent);
         } else {
             // This actually happens second in the ICE process -- the
             // controlled agent is notified to start sending media first!
@@ -121,11 +105,18 @@ public class BarchartUdtSocketFactory implements UdpSocketFactory<Socket> {
             final Runnable socketRunner = new Runnable() {
                 @Override
                 public void run() {
+                    final Object event = 
+                        IceFlightRecorder.begin(IceJfrEventType.UDT_HANDOFF);
+                    boolean success = false;
                     try {
                         // openServerSocket(session, socketListener);
-                        openClientSocket(session, socketListener);
+                        openClientSocket(session, socketListener, mtu, 
+                            profile);
+                        success = true;
                     } catch (final Throwable t) {
                         log.error("Barchart socket exception", t);
+                    } finally {
+                        commitHandoff(event, session, "client", success);
                     }
                 }
             };
@@ -135,12 +126,13 @@ public class BarchartUdtSocketFactory implements UdpSocketFactory<Socket> {
             serverThread.setDaemon(true);
             serverThread.start();
             */
-            threadPool.execute(socketRunner);
+            execute(socketRunner, socketListener, iceAgent);
         }
     }
 
     protected void openClientSocket(final IoSession session,
-        final OfferAnswerListener<Socket> socketListener) throws IOException {
+        final OfferAnswerListener<Socket> socketListener, final int mtu,
+        final UdtProfile profile) throws IOException {
         final InetSocketAddress local = 
             (InetSocketAddress) session.getLocalAddress();
         final InetSocketAddress remote = 
@@ -149,7 +141,9 @@ public class BarchartUdtSocketFactory implements UdpSocketFactory<Socket> {
         log.info("Session local was: {}", local);
         log.info("Binding to port: {}", local.getPort());
 
-        final Socket clientSocket = new NetSocketUDTWrapper();
+        final NetSocketUDTWrapper clientSocket = new NetSocketUDTWrapper();
+        setMtu(clientSocket.socketUDT(), mtu);
+        profile.apply(clientSocket.socketUDT());
         
         log.info("Binding to address and port");
         clientSocket.bind(new InetSocketAddress(local.getAddress(),
@@ -177,13 +171,17 @@ public class BarchartUdtSocketFactory implements UdpSocketFactory<Socket> {
     }
 
     protected void openServerSocket(final IoSession session,
-            final OfferAnswerListener<Socket> socketListener) throws IOException {
+            final OfferAnswerListener<Socket> socketListener, final int mtu,
+            final UdtProfile profile) throws IOException {
         final InetSocketAddress local = 
             (InetSocketAddress) session.getLocalAddress();
 
         log.info("Session local was: {}", local);
         log.info("Binding to port: {}", local.getPort());
-        final ServerSocket ss = new NetServerSocketUDT();
+        final NetServerSocketUDT ss = new NetServerSocketUDT();
+        // Accepted sockets inherit the option from the listening socket.
+        setMtu(ss.socketUDT(), mtu);
+        profile.apply(ss.socketUDT());
         ss.bind(new InetSocketAddress(local.getAddress(), local.getPort()));
         final Socket sock = ss.accept();
         
@@ -194,13 +192,80 @@ public class BarchartUdtSocketFactory implements UdpSocketFactory<Socket> {
                     sock.getPort(), true);
             sslSocket.setUseClientMode(false);
             sslSocket.startHandshake();
-            threadPool.execute(new RequestRunner(socketListener, sslSocket));
+            notifyListener(new RequestRunner(socketListener, sslSocket));
         } else {
-            threadPool.execute(new RequestRunner(socketListener, sock));
+            notifyListener(new RequestRunner(socketListener, sock));
         }
         
     }
 
+    /**
+     * Sizes UDT packets for the path MTU. UDT counts the IP and UDP headers
+     * in its segment size, so this is the MTU itself. This has to happen
+     * before connecting, since the two sides agree on it in the handshake.
+     * 
+     * @param socket The UDT socket.
+     * @param mtu The path MTU.
+     */
+    static void setMtu(final SocketUDT socket, final int mtu) {
+        try {
+            socket.setOption(OptionUDT.Maximum_Transfer_Unit, 
+                Integer.valueOf(mtu));
+        } catch (final ExceptionUDT e) {
+            LoggerFactory.getLogger(BarchartUdtSocketFactory.class).warn(
+                "Could not set UDT MTU to " + mtu, e);
+        }
+    }
+
+    /**
+     * Chooses the UDT options for the session of a nominated pair. Like the
+     * MTU, this has to happen before releasing the session closes the 
+     * agent.
+     * 
+     * @param session The session of the nominated pair.
+     * @param iceAgent The agent.
+     * @param mtu The path MTU.
+     * @return The profile.
+     */
+    static UdtProfile profileFor(final IoSession session, 
+        final IceAgent iceAgent, final int mtu) {
+        return UdtProfiles.select(iceAgent.getMediaStreamDesc(), 
+            IcePathStats.forSession(session, iceAgent.getNominatedPairs()),
+            mtu);
+    }
+
+    private void commitHandoff(final Object event, final IoSession session,
+        final String mode, final boolean success) {
+        if (event != null) {
+            IceFlightRecorder.commit(event, 
+                IceFlightRecorder.str(session.getLocalAddress()),
+                IceFlightRecorder.str(session.getRemoteAddress()), mode, 
+                Boolean.valueOf(success));
+        }
+    }
+
+    private void execute(final Runnable runner, 
+        final OfferAnswerListener<Socket> socketListener,
+        final IceAgent iceAgent) {
+        try {
+            IceExecutors.execute(IceExecutorRole.UDT_SOCKET, runner);
+        } catch (final RejectedExecutionException e) {
+            log.error("UDT socket pool saturated -- failing", e);
+            socketListener.onOfferAnswerFailed(iceAgent);
+        }
+    }
+
+    private void notifyListener(final RequestRunner runner) {
+        try {
+            IceExecutors.execute(IceExecutorRole.UDT_SOCKET, runner);
+        } catch (final RejectedExecutionException e) {
+            // We already have the socket, so just hand it off on this 
+            // thread.
+            log.info("UDT socket pool saturated -- notifying directly");
+            runner.run();
+        }
+    }
+
     private static class RequestRunner implements Runnable {
 
         private final Logger localLog = LoggerFactory.getLogger(getClass());
@@ -220,8 +285,51 @@ public class BarchartUdtSocketFactory implements UdpSocketFactory<Socket> {
         }
     }
 
-    private void clear(final IoSession session, 
+    /**
+     * Releases the UDP port of a nominated pair from MINA and the STUN
+     * server so a UDT socket or channel can bind to it, first giving the
+     * other side time to finish its checks if we're controlling.
+     * 
+     * @param session The session for the nominated pair.
+     * @param controlling Whether or not we're the controlling agent.
+     * @param stunUdpPeer The STUN UDP peer class.
+     * @param iceAgent The high level ICE agent.
+     */
+    static void releaseSession(final IoSession session, 
+        final boolean controlling, final IceStunUdpPeer stunUdpPeer,
+        final IceAgent iceAgent) {
+        final Logger log = 
+            LoggerFactory.getLogger(BarchartUdtSocketFactory.class);
+        // Wait for a bit before we clear the decoders and such on that port -
+        // basically the client side may have sent a USE-CANDIDATE binding
+        // request for a pair that's still in the in progress state on the
+        // other end -- i.e. the server side hasn't verified the pair works
+        // for it. So the server side could still be doing STUN checks at that
+        // point, and we need to wait.
+        //
+        // We only do this on the controlling side due to an implementation
+        // detail of how we're using this -- basically using HTTP the client
+        // side always sends data before the server side (request -> response),
+        // so there's no chance the server side could start sending media data
+        // while we're still looking for STUN messages (the potential problem
+        // on the server side that this sleep solves).
+        if (controlling) {
+            final long sleepTime = 1200;
+            log.info("Client side sleeping for {} milliseconds", sleepTime);
+            try {
+                IceClocks.get().sleep(sleepTime);
+            } catch (final InterruptedException e) {
+                log.warn("Sleep interrupted?", e);
+            }
+        }
+
+        clear(session, stunUdpPeer, iceAgent);
+    }
+
+    private static void clear(final IoSession session, 
         final IceStunUdpPeer stunUdpPeer, final IceAgent iceAgent) {
+        final Logger log = 
+            LoggerFactory.getLogger(BarchartUdtSocketFactory.class);
         log.info("Closing ICE agent");
         iceAgent.close();
         log.info("Clearing session: {}", session);
@@ -246,7 +354,7 @@ public class BarchartUdtSocketFactory implements UdpSocketFactory<Socket> {
             log.info("Open: "+dgChannel.isOpen());
             log.info("Connected: "+dgChannel.isConnected());
             log.info("Sleeping on channel to make sure it unbinds");
-            Thread.sleep(400);
+            IceClocks.get().sleep(400);
             log.info("Closed channel");
         } catch (final Exception e) {
             log.error("Error clearing session!!", e);
@@ -3,6 +3,7 @@ package org.lastbamboo.common.ice;
 import java.net.InetSocketAddress;
 import java.nio.channels.DatagramChannel;
 
+import org.lastbamboo.common.ice.clock.IceClocks;
 import org.lastbamboo.common.offer.answer.OfferAnswerListener;
 import org.lastbamboo.common.stun.server.StunServer;
 import org.littleshoot.mina.common.IoAcceptor;
@@ -49,7 +50,7 @@ public class EndpointFactory implements UdpSocketFactory<FiveTuple> {
             final long sleepTime = 1200;
             log.debug("Client side sleeping for {} milliseconds", sleepTime);
             try {
-                Thread.sleep(sleepTime);
+                IceClocks.get().sleep(sleepTime);
             } catch (final InterruptedException e) {
                 log.warn("Sleep interrupted?", e);
             }
@@ -95,7 +96,7 @@ public class EndpointFactory implements UdpSocketFactory<FiveTuple> {
             log.debug("Open: "+dgChannel.isOpen());
             log.debug("Connected: "+dgChannel.isConnected());
             log.debug("Sleeping on channel to make sure it unbinds");
-            Thread.sleep(400);
+            IceClocks.get().sleep(400);
             log.debug("Closed channel");
         } catch (final Exception e) {
             log.error("Error clearing session!!", e);
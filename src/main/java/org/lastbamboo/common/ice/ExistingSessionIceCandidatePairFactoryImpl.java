@@ -3,6 +3,7 @@ package org.lastbamboo.common.ice;
 import org.lastbamboo.common.ice.candidate.IceCandidate;
 import org.lastbamboo.common.ice.candidate.IceCandidatePair;
 import org.lastbamboo.common.ice.candidate.IceUdpCandidatePair;
+import org.lastbamboo.common.ice.trace.IceTraceBuffer;
 import org.littleshoot.mina.common.IoSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,6 +19,8 @@ public class ExistingSessionIceCandidatePairFactoryImpl
     
     private final IceStunCheckerFactory m_checkerFactory;
 
+    private final IceTraceBuffer m_trace;
+
     /**
      * Creates a new pair factory that uses an already-established session for
      * the pair.
@@ -27,7 +30,22 @@ public class ExistingSessionIceCandidatePairFactoryImpl
     public ExistingSessionIceCandidatePairFactoryImpl(
         final IceStunCheckerFactory checkerFactory)
         {
+        this(checkerFactory, IceTraceBuffer.DISABLED);
+        }
+
+    /**
+     * Creates a new pair factory that uses an already-established session for
+     * the pair and records pair events.
+     * 
+     * @param checkerFactory The class that performs STUN checks.
+     * @param trace The agent's trace buffer.
+     */
+    public ExistingSessionIceCandidatePairFactoryImpl(
+        final IceStunCheckerFactory checkerFactory, 
+        final IceTraceBuffer trace)
+        {
         m_checkerFactory = checkerFactory;
+        m_trace = trace;
         }
 
     public IceCandidatePair newUdpPair(final IceCandidate localCandidate,
@@ -38,7 +56,9 @@ public class ExistingSessionIceCandidatePairFactoryImpl
             m_log.error("No IO Session");
             throw new NullPointerException("Null IO Session");
             }
-        return new IceUdpCandidatePair(localCandidate, 
-            remoteCandidate, ioSession, this.m_checkerFactory);
+        final IceUdpCandidatePair pair = new IceUdpCandidatePair(
+            localCandidate, remoteCandidate, ioSession, this.m_checkerFactory);
+        pair.setTraceBuffer(this.m_trace);
+        return pair;
         }
     }
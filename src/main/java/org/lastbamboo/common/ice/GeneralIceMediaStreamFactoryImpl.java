@@ -145,13 +145,15 @@ public class GeneralIceMediaStreamFactoryImpl
         //udpConnector.addIoServiceListener(udpServiceListener);
 
         final IceCandidatePairFactory candidatePairFactory = 
-            new IceCandidatePairFactoryImpl(checkerFactory, udpConnector);
+            new IceCandidatePairFactoryImpl(checkerFactory, udpConnector,
+                iceAgent.getTraceBuffer());
         
         final IceCheckList checkList = 
             new IceCheckListImpl(candidatePairFactory, 
                 localCandidates);
         final ExistingSessionIceCandidatePairFactory existingSessionPairFactory =
-            new ExistingSessionIceCandidatePairFactoryImpl(checkerFactory);
+            new ExistingSessionIceCandidatePairFactoryImpl(checkerFactory,
+                iceAgent.getTraceBuffer());
         final IceCheckScheduler scheduler = 
             new IceCheckSchedulerImpl(iceAgent, stream, checkList,
                 existingSessionPairFactory);
@@ -4,6 +4,10 @@ import java.util.Collection;
 import java.util.Queue;
 
 import org.lastbamboo.common.ice.candidate.IceCandidatePair;
+import org.lastbamboo.common.ice.executor.IceEventLoop;
+import org.lastbamboo.common.ice.metrics.IceNegotiationTimer;
+import org.lastbamboo.common.ice.trace.IceTraceBuffer;
+import org.lastbamboo.common.offer.answer.IceMediaStreamDesc;
 
 /**
  * Interface for ICE agents. 
@@ -120,4 +124,37 @@ public interface IceAgent extends IceOfferAnswer {
      */
     boolean isClosed();
 
+    /**
+     * Accessor for the event loop this agent's state machine runs on. Events
+     * from I/O, timer and signaling threads that change agent state are 
+     * posted here.
+     * 
+     * @return The agent's event loop.
+     */
+    IceEventLoop getEventLoop();
+
+    /**
+     * Accessor for the timer collecting the phase latencies for this 
+     * agent's negotiation.
+     * 
+     * @return The negotiation timer.
+     */
+    IceNegotiationTimer getNegotiationTimer();
+
+    /**
+     * Accessor for the buffer of recent events for this agent, for 
+     * post-mortem debugging.
+     * 
+     * @return The trace buffer.
+     */
+    IceTraceBuffer getTraceBuffer();
+
+    /**
+     * Accessor for the description of the media stream this agent is 
+     * negotiating.
+     * 
+     * @return The media stream description.
+     */
+    IceMediaStreamDesc getMediaStreamDesc();
+
 }
@@ -2,21 +2,36 @@ package org.lastbamboo.common.ice;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Queue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.lastbamboo.common.ice.candidate.IceCandidate;
 import org.lastbamboo.common.ice.candidate.IceCandidatePair;
+import org.lastbamboo.common.ice.candidate.IceCandidateType;
+import org.lastbamboo.common.ice.executor.IceEventLoop;
+import org.lastbamboo.common.ice.executor.IceExecutorRole;
+import org.lastbamboo.common.ice.executor.IceExecutors;
+import org.lastbamboo.common.ice.management.IceAgentRegistry;
+import org.lastbamboo.common.ice.metrics.IceNegotiationTimer;
+import org.lastbamboo.common.ice.metrics.IcePhase;
 import org.lastbamboo.common.ice.sdp.IceCandidateSdpDecoder;
 import org.lastbamboo.common.ice.sdp.IceCandidateSdpDecoderImpl;
+import org.lastbamboo.common.ice.trace.IceTraceBuffer;
+import org.lastbamboo.common.ice.trace.IceTraceEvent;
 import org.lastbamboo.common.offer.answer.IceMediaStreamDesc;
+import org.lastbamboo.common.offer.answer.OfferAnswer;
 import org.lastbamboo.common.offer.answer.OfferAnswerListener;
 import org.littleshoot.mina.common.ByteBuffer;
 import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.stun.stack.message.attributes.ice.IceControllingAttribute;
+import org.littleshoot.stun.stack.message.attributes.ice.IcePriorityAttribute;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -28,6 +43,19 @@ public class IceAgentImpl implements IceAgent {
 
     private final Logger log = LoggerFactory.getLogger(getClass());
     
+    /**
+     * Whether to probe the path MTU of the pair we nominate, so endpoints 
+     * can size datagrams and UDT packets to the largest that fit.
+     */
+    private static final boolean PROBE_MTU = 
+        Boolean.getBoolean("ice.mtu.probe");
+
+    private static final int MTU_PROBE_NONE = 0;
+
+    private static final int MTU_PROBE_RUNNING = 1;
+
+    private static final int MTU_PROBE_DONE = 2;
+
     private volatile boolean controlling;
     
     /**
@@ -62,6 +90,25 @@ public class IceAgentImpl implements IceAgent {
 
     private final IceMediaStreamDesc iceMediaStreamDesc;
 
+    /**
+     * The loop all state changes for this agent run on.
+     */
+    private final IceEventLoop eventLoop = IceExecutors.nextEventLoop();
+
+    private final IceNegotiationTimer negotiationTimer = 
+        new IceNegotiationTimer();
+
+    private final IceTraceBuffer traceBuffer = IceTraceBuffer.newBuffer();
+
+    /**
+     * Whether we haven't probed the path MTU of a pair before nominating
+     * it, are probing it now, or are done. Valid pairs are processed on
+     * whatever thread reports them unless there's a real event loop, so
+     * this only changes through compareAndSet.
+     */
+    private final AtomicInteger mtuProbeState = 
+        new AtomicInteger(MTU_PROBE_NONE);
+
     /**
      * Creates a new ICE agent for an answerer. Passes the offer in the
      * constructor.
@@ -91,33 +138,111 @@ public class IceAgentImpl implements IceAgent {
         // Much of the action takes place as a result of the following call.
         // When this call completes, the TCP and UDP clients and servers
         // are both started, the candidates are gathered, etc.
+        final long gatherStart = IceNegotiationTimer.now();
         this.mediaStream = 
             mediaStreamFactory.newStream(this, iceMediaStreamDesc);
+        this.negotiationTimer.record(IcePhase.GATHER, gatherStart);
         this.stunUdpPeer = this.mediaStream.getStunUdpPeer();
         this.mediaStreams.add(this.mediaStream);
+        IceAgentRegistry.register(this);
     }
 
     private void setIceState(final IceState state) {
         this.iceState.set(state);
+        this.traceBuffer.record(IceTraceEvent.ICE_STATE, null, state);
         if (state == IceState.COMPLETED) {
             final IceCandidatePair pair = getNominatedPair();
             final IoSession session = pair.getIoSession();
-            if (this.iceMediaStreamDesc.isReliable()) {
-                this.reliableUdpSocketFactory.newEndpoint(session, isControlling(),
-                    this.offerAnswerListener, this.stunUdpPeer, this);
+            final String candidateTypes = IceNegotiationTimer.candidateTypes(
+                pair.getLocalCandidate().getType(), 
+                pair.getRemoteCandidate().getType());
+            final Runnable endpointRunner = new Runnable() {
+                @Override
+                public void run() {
+                    newEndpoint(session, candidateTypes);
+                }
+            };
+            if (this.eventLoop.inEventLoop()) {
+                // Creating the endpoint can block for quite a while, so we
+                // keep it off the event loop shared with other agents.
+                try {
+                    IceExecutors.execute(IceExecutorRole.UDT_SOCKET, 
+                        endpointRunner);
+                } catch (final RejectedExecutionException e) {
+                    log.warn("Could not create endpoint", e);
+                    close();
+                    this.offerAnswerListener.onOfferAnswerFailed(this);
+                }
             } else {
-                // TODO: This should clearly link to an unreliable version.
-                this.unreliableUdpSocketFactory.newEndpoint(session, 
-                    isControlling(), this.offerAnswerListener, 
-                    this.stunUdpPeer, this);
+                endpointRunner.run();
             }
         } else if (state == IceState.FAILED) {
             log.debug("Got ICE failed.  Closing.");
+            if (log.isInfoEnabled()) {
+                log.info("ICE failed. Recent events:\n{}", 
+                    this.traceBuffer.dump());
+            }
+            this.negotiationTimer.onFailed();
             close();
             this.offerAnswerListener.onOfferAnswerFailed(this);
         }
     }
 
+    private void newEndpoint(final IoSession session, 
+        final String candidateTypes) {
+        final OfferAnswerListener listener = 
+            new TimedListener(this.offerAnswerListener, candidateTypes,
+                IceNegotiationTimer.now());
+        if (this.iceMediaStreamDesc.isReliable()) {
+            this.reliableUdpSocketFactory.newEndpoint(session, isControlling(),
+                listener, this.stunUdpPeer, this);
+        } else {
+            // TODO: This should clearly link to an unreliable version.
+            this.unreliableUdpSocketFactory.newEndpoint(session, 
+                isControlling(), listener, this.stunUdpPeer, this);
+        }
+    }
+
+    /**
+     * Records the socket handoff time along with all the other phases for 
+     * this negotiation before passing the socket on. Every UDP socket 
+     * factory hands its endpoint off through this, so this is also where 
+     * we time how long the factory took.
+     */
+    private final class TimedListener implements OfferAnswerListener {
+
+        private final OfferAnswerListener delegate;
+        private final String candidateTypes;
+        private final long endpointStart;
+
+        private TimedListener(final OfferAnswerListener delegate, 
+            final String candidateTypes, final long endpointStart) {
+            this.delegate = delegate;
+            this.candidateTypes = candidateTypes;
+            this.endpointStart = endpointStart;
+        }
+
+        public void onOfferAnswerFailed(final OfferAnswer offerAnswer) {
+            negotiationTimer.onFailed();
+            this.delegate.onOfferAnswerFailed(offerAnswer);
+        }
+
+        public void onTcpSocket(final Socket sock) {
+            negotiationTimer.record(IcePhase.ENDPOINT_SETUP, 
+                this.endpointStart);
+            negotiationTimer.onSocket("tcp", this.candidateTypes);
+            this.delegate.onTcpSocket(sock);
+        }
+
+        @SuppressWarnings("unchecked")
+        public void onUdpSocket(final Object sock) {
+            negotiationTimer.record(IcePhase.ENDPOINT_SETUP, 
+                this.endpointStart);
+            negotiationTimer.onSocket("udp", this.candidateTypes);
+            this.delegate.onUdpSocket(sock);
+        }
+    }
+
     public void checkValidPairsForAllComponents(
             final IceMediaStream mediaStream) {
         // See ICE section 7.1.2.2.3. This indicates the media stream has a
@@ -170,7 +295,15 @@ public class IceAgentImpl implements IceAgent {
     }
 
     public void processOffer(final ByteBuffer offer) {
-        processRemoteCandidates(offer);
+        // We copy the buffer since other offer/answers may read the same 
+        // buffer while we wait for the loop.
+        final ByteBuffer copy = offer.duplicate();
+        this.eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                processRemoteCandidates(copy);
+            }
+        });
     }
 
     public void processAnswer(final ByteBuffer answer) {
@@ -178,7 +311,13 @@ public class IceAgentImpl implements IceAgent {
             log.info("UDP ICE agent is already closed! Ignoring answer.");
             return;
         }
-        processRemoteCandidates(answer);
+        final ByteBuffer copy = answer.duplicate();
+        this.eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                processRemoteCandidates(copy);
+            }
+        });
     }
 
     private void processRemoteCandidates(final ByteBuffer encodedCandidates) {
@@ -201,8 +340,9 @@ public class IceAgentImpl implements IceAgent {
             return;
         }
 
-        // This should result in the stream entering either the Completed or
-        // the Failed state.
+        // This starts the connectivity checks and returns right away. The
+        // stream will eventually enter either the Completed or the Failed 
+        // state.
         try {
             this.mediaStream.establishStream(remoteCandidates);
         } catch (final RuntimeException e) {
@@ -217,6 +357,16 @@ public class IceAgentImpl implements IceAgent {
 
     public void onNominatedPair(final IceCandidatePair pair,
             final IceMediaStream mediaStream) {
+        this.eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                processNominatedPair(pair, mediaStream);
+            }
+        });
+    }
+
+    private void processNominatedPair(final IceCandidatePair pair,
+            final IceMediaStream mediaStream) {
         if (log.isDebugEnabled()) {
             log.debug("Received nominated pair on agent.  "
                     + "Controlling: {} pair: {}", isControlling(), pair);
@@ -230,6 +380,8 @@ public class IceAgentImpl implements IceAgent {
         // 8.1.2. Updating States
         final IceCheckListState state = mediaStream.getCheckListState();
         if (state == IceCheckListState.RUNNING) {
+            this.negotiationTimer.onNominated();
+            this.traceBuffer.record(IceTraceEvent.NOMINATED, pair, null);
             mediaStream.onNominated(pair);
             mediaStream.setCheckListState(IceCheckListState.COMPLETED);
             // Now handle the case where all check lists are completed.
@@ -290,6 +442,15 @@ public class IceAgentImpl implements IceAgent {
     }
 
     public void onValidPairs(final IceMediaStream mediaStream) {
+        this.eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                processValidPairs(mediaStream);
+            }
+        });
+    }
+
+    private void processValidPairs(final IceMediaStream mediaStream) {
         // 8.1.1.1. Regular Nomination -- we decide whether to continue our
         // checks or nominate now. We can nominate now through adding the
         // pair to the triggered check queue with the USE-CANDIDATE attribute.
@@ -319,6 +480,23 @@ public class IceAgentImpl implements IceAgent {
                 return;
             }
 
+            // We probe before nominating, while the other side is still 
+            // answering checks and before any application data flows on 
+            // the pair.
+            if (PROBE_MTU && pair.getLocalCandidate().isUdp()) {
+                if (this.mtuProbeState.compareAndSet(MTU_PROBE_NONE, 
+                    MTU_PROBE_RUNNING)) {
+                    probeThenNominate(pair, mediaStream);
+                    return;
+                }
+                if (this.mtuProbeState.get() == MTU_PROBE_RUNNING) {
+                    // The probe processes the valid pairs again when it's 
+                    // done.
+                    log.debug("Waiting on MTU probe before nominating");
+                    return;
+                }
+            }
+
             /*
              * if (mediaStream.hasHigherPriorityPendingPair(pair)) {
              * m_log.debug("We have higher priority pairs that haven't " +
@@ -333,6 +511,50 @@ public class IceAgentImpl implements IceAgent {
         }
     }
 
+    /**
+     * Probes the path MTU of a valid pair off the event loop, since it 
+     * blocks for up to a few seconds, and then goes back to nominating.
+     * 
+     * @param pair The pair we're about to nominate.
+     * @param mediaStream The media stream.
+     */
+    private void probeThenNominate(final IceCandidatePair pair,
+        final IceMediaStream mediaStream) {
+        final Runnable probe = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final long priority = 
+                        IcePriorityCalculator.calculatePriority(
+                            IceCandidateType.PEER_REFLEXIVE, 
+                            IceTransportProtocol.UDP);
+                    final int mtu = pair.probeMtu(
+                        new IcePriorityAttribute(priority), 
+                        new IceControllingAttribute(
+                            tieBreaker.toByteArray()));
+                    log.debug("Path MTU for pair we're nominating: {}", mtu);
+                } finally {
+                    eventLoop.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            mtuProbeState.compareAndSet(MTU_PROBE_RUNNING,
+                                MTU_PROBE_DONE);
+                            processValidPairs(mediaStream);
+                        }
+                    });
+                }
+            }
+        };
+        try {
+            IceExecutors.execute(IceExecutorRole.CHECK_SCHEDULER, probe);
+        } catch (final RejectedExecutionException e) {
+            log.info("Check pool saturated -- nominating without probing");
+            this.mtuProbeState.compareAndSet(MTU_PROBE_RUNNING, 
+                MTU_PROBE_DONE);
+            processValidPairs(mediaStream);
+        }
+    }
+
     private IceCandidatePair getNominatedPair() {
         final Queue<IceCandidatePair> pairs = getNominatedPairs();
 
@@ -352,6 +574,7 @@ public class IceAgentImpl implements IceAgent {
         }
 
         log.info("Closing ICE agent.");
+        IceAgentRegistry.unregister(this);
         // Close all the media streams.
         synchronized (this.mediaStreams) {
             for (final IceMediaStream stream : this.mediaStreams) {
@@ -361,6 +584,15 @@ public class IceAgentImpl implements IceAgent {
     }
 
     public void onNoMorePairs() {
+        this.eventLoop.execute(new Runnable() {
+            @Override
+            public void run() {
+                processNoMorePairs();
+            }
+        });
+    }
+
+    private void processNoMorePairs() {
         log.debug("No more pairs.");
         if (this.iceState.get() != IceState.COMPLETED
                 && this.iceState.get() != IceState.FAILED) {
@@ -392,4 +624,20 @@ public class IceAgentImpl implements IceAgent {
     public boolean isClosed() {
         return this.closed.get();
     }
+
+    public IceEventLoop getEventLoop() {
+        return this.eventLoop;
+    }
+
+    public IceNegotiationTimer getNegotiationTimer() {
+        return this.negotiationTimer;
+    }
+
+    public IceTraceBuffer getTraceBuffer() {
+        return this.traceBuffer;
+    }
+
+    public IceMediaStreamDesc getMediaStreamDesc() {
+        return this.iceMediaStreamDesc;
+    }
 }
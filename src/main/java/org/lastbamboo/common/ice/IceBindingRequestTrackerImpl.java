@@ -7,6 +7,7 @@ import java.util.LinkedHashSet;
 import java.util.Map;
 
 import org.apache.commons.id.uuid.UUID;
+import org.lastbamboo.common.ice.metrics.IceStunCounters;
 import org.littleshoot.stun.stack.message.BindingRequest;
 import org.littleshoot.stun.stack.message.StunMessage;
 
@@ -54,7 +55,13 @@ public class IceBindingRequestTrackerImpl implements IceBindingRequestTracker
 
     public boolean recentlyProcessed(final BindingRequest request)
         {
-        return this.m_transactionIds.contains(request.getTransactionId());
+        final boolean processed = 
+            this.m_transactionIds.contains(request.getTransactionId());
+        if (processed)
+            {
+            IceStunCounters.onDuplicateRequest();
+            }
+        return processed;
         }
 
     public void addResponse(final BindingRequest request, 
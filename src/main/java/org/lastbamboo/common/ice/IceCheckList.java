@@ -27,7 +27,36 @@ public interface IceCheckList
      */
     IceCheckListState getState();
 
+    /**
+     * Blocks until the check list is no longer running. 
+     * 
+     * @deprecated This holds the calling thread hostage for the entire 
+     * connectivity check process. Use 
+     * {@link #addListener(IceCheckListListener)} instead.
+     */
+    @Deprecated
     void check();
+
+    /**
+     * Adds a listener to notify when the check list leaves the RUNNING 
+     * state. If the check list is already done, the listener is notified 
+     * immediately on the calling thread.
+     * 
+     * @param listener The listener to add.
+     */
+    void addListener(IceCheckListListener listener);
+
+    /**
+     * Waits for up to the specified time for the check list to leave the
+     * RUNNING state.
+     * 
+     * @param timeoutMillis The maximum time to wait in milliseconds.
+     * @return The state of the check list when this method returns.
+     * @throws InterruptedException If the thread is interrupted while 
+     * waiting.
+     */
+    IceCheckListState awaitDone(long timeoutMillis) 
+        throws InterruptedException;
     
     /**
      * Returns whether or not this check list is considered "active" and should 
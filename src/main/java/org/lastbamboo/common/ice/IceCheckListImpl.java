@@ -13,6 +13,7 @@ import java.util.List;
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.lastbamboo.common.ice.candidate.IceCandidate;
 import org.lastbamboo.common.ice.candidate.IceCandidatePair;
@@ -29,6 +30,8 @@ import org.lastbamboo.common.ice.candidate.IceUdpHostCandidate;
 import org.lastbamboo.common.ice.candidate.IceUdpPeerReflexiveCandidate;
 import org.lastbamboo.common.ice.candidate.IceUdpRelayCandidate;
 import org.lastbamboo.common.ice.candidate.IceUdpServerReflexiveCandidate;
+import org.lastbamboo.common.ice.clock.IceClock;
+import org.lastbamboo.common.ice.clock.IceClocks;
 import org.lastbamboo.common.offer.answer.IceConfig;
 import org.littleshoot.util.Closure;
 import org.littleshoot.util.CollectionUtils;
@@ -68,6 +71,11 @@ public class IceCheckListImpl implements IceCheckList {
     private final Collection<IceCandidatePair> allPairs =
         new HashSet<IceCandidatePair>();
 
+    private final List<IceCheckListListener> m_listeners =
+        new CopyOnWriteArrayList<IceCheckListListener>();
+
+    private boolean m_listenersNotified = false;
+
     /**
      * Creates a new check list, starting with only local candidates.
      * 
@@ -96,17 +104,68 @@ public class IceCheckListImpl implements IceCheckList {
     public void setState(final IceCheckListState state) {
         if (this.m_state != IceCheckListState.COMPLETED) {
             this.m_state = state;
+            final boolean notify;
             synchronized (this) {
                 m_log.debug("State changed to: {}", state);
                 this.notifyAll();
+                notify = state != IceCheckListState.RUNNING && 
+                    !this.m_listenersNotified;
+                if (notify) {
+                    this.m_listenersNotified = true;
+                }
             }
+            
+            // Notify outside the lock since listeners can call back into
+            // the check list.
+            if (notify) {
+                for (final IceCheckListListener listener : this.m_listeners) {
+                    notifyListener(listener, state);
+                }
+            }
+        }
+    }
+
+    public void addListener(final IceCheckListListener listener) {
+        final boolean done;
+        synchronized (this) {
+            this.m_listeners.add(listener);
+            done = this.m_listenersNotified;
+        }
+        if (done) {
+            notifyListener(listener, this.m_state);
         }
     }
 
+    private void notifyListener(final IceCheckListListener listener,
+        final IceCheckListState state) {
+        try {
+            listener.onCheckListDone(this, state);
+        } catch (final Throwable t) {
+            m_log.warn("Error notifying check list listener", t);
+        }
+    }
+
+    public IceCheckListState awaitDone(final long timeoutMillis) 
+        throws InterruptedException {
+        final IceClock clock = IceClocks.get();
+        final long end = clock.currentTimeMillis() + timeoutMillis;
+        synchronized (this) {
+            while (this.m_state == IceCheckListState.RUNNING) {
+                final long remaining = end - clock.currentTimeMillis();
+                if (remaining <= 0L) {
+                    break;
+                }
+                clock.awaitMonitor(this, remaining);
+            }
+        }
+        return this.m_state;
+    }
+
     public IceCheckListState getState() {
         return this.m_state;
     }
 
+    @Deprecated
     public void check() {
         synchronized (this) {
             while (this.m_state == IceCheckListState.RUNNING) {
@@ -245,7 +304,9 @@ public class IceCheckListImpl implements IceCheckList {
         synchronized (this) {
             this.m_pairs.addAll(sorted);
             this.allPairs.addAll(sorted);
-            m_log.debug("Created pairs:\n" + this.m_pairs);
+            if (m_log.isDebugEnabled()) {
+                m_log.debug("Created pairs:\n" + this.m_pairs);
+            }
         }
 
         /*
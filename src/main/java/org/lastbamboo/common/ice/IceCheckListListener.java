@@ -0,0 +1,20 @@
+package org.lastbamboo.common.ice;
+
+/**
+ * Listener for the completion of ICE check lists. This allows callers to 
+ * react to the outcome of connectivity checks without blocking a thread 
+ * waiting on them.
+ */
+public interface IceCheckListListener {
+
+    /**
+     * Called once when the check list leaves the RUNNING state, either 
+     * because it's COMPLETED or because it's FAILED. This is called on 
+     * whatever thread changed the state, so implementations should not 
+     * block.
+     * 
+     * @param checkList The check list.
+     * @param state The new state of the check list.
+     */
+    void onCheckListDone(IceCheckList checkList, IceCheckListState state);
+}
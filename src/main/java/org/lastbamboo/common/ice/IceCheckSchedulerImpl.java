@@ -1,14 +1,20 @@
 package org.lastbamboo.common.ice;
 
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.lastbamboo.common.ice.candidate.IceCandidate;
 import org.lastbamboo.common.ice.candidate.IceCandidatePair;
 import org.lastbamboo.common.ice.candidate.IceCandidatePairState;
+import org.lastbamboo.common.ice.clock.IceClock;
+import org.lastbamboo.common.ice.clock.IceClocks;
+import org.lastbamboo.common.ice.clock.IceTimer;
+import org.lastbamboo.common.ice.executor.IceExecutorRole;
+import org.lastbamboo.common.ice.executor.IceExecutors;
+import org.lastbamboo.common.ice.jfr.IceFlightRecorder;
+import org.lastbamboo.common.ice.jfr.IceJfrEventType;
+import org.lastbamboo.common.ice.metrics.IceMetrics;
+import org.lastbamboo.common.ice.metrics.IceNegotiationTimer;
+import org.lastbamboo.common.ice.metrics.IcePhase;
 import org.littleshoot.util.Predicate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,29 +30,44 @@ public class IceCheckSchedulerImpl implements IceCheckScheduler {
     private final IceMediaStream m_mediaStream;
     private final IceAgent m_agent;
     private final ExistingSessionIceCandidatePairFactory m_existingSessionPairFactory;
+    private final IceClock m_clock;
     private volatile boolean m_queueEmpty = false;
-    private Timer m_timer;
+    private IceTimer m_timer;
     
     private final Object m_queueLock = new Object();
     
-    private static final ExecutorService threadPool = 
-        Executors.newCachedThreadPool(new ThreadFactory() {
-        private volatile int threadNumber = 0;
-        
-        @Override
-        public Thread newThread(final Runnable r) {
-            final Thread t = 
-                new Thread(r, "IceCheckSchedulerImpl-Timer-ThreadPool-"+threadNumber);
-            t.setDaemon(true);
-            threadNumber++;
-            return t;
-        }
-    });
+    /**
+     * Incremented each time a pair arrives after the queue ran dry, so a 
+     * pending check for whether we're out of pairs knows to stand down.
+     */
+    private int m_queueGeneration = 0;
+    
+    /**
+     * Timer for the waits after the queue runs dry. The check timer can't
+     * be used since it's cancelled when the queue runs dry, so we keep one
+     * of these for as long as checks are running rather than starting a 
+     * new timer for each wait.
+     */
+    private IceTimer m_noPairsTimer;
     
     private final String timerName;
 
     /**
-     * Creates a new scheduler for the specified pairs.
+     * Section 16.2 says this SHOULD be configurable and SHOULD have a 
+     * default value of 500 ms. That would make ICE take a long time, though,
+     * so we're more aggressive.
+     */
+    private static final int Ta_i = 500;
+
+    /**
+     * How long to wait for a triggered pair once we've run out of pairs 
+     * before giving up.
+     */
+    private static final long NO_PAIRS_WAIT = 10000;
+
+    /**
+     * Creates a new scheduler for the specified pairs using the installed
+     * clock.
      * 
      * @param agent The top-level ICE agent.
      * @param stream The media stream.
@@ -57,7 +78,26 @@ public class IceCheckSchedulerImpl implements IceCheckScheduler {
         final IceMediaStream stream,
         final IceCheckList checkList,
         final ExistingSessionIceCandidatePairFactory existingSessionPairFactory) {
+        this(agent, stream, checkList, existingSessionPairFactory, 
+            IceClocks.get());
+    }
+
+    /**
+     * Creates a new scheduler for the specified pairs.
+     * 
+     * @param agent The top-level ICE agent.
+     * @param stream The media stream.
+     * @param checkList The check list.
+     * @param clock The clock to pace checks with.
+     */
+    public IceCheckSchedulerImpl(
+        final IceAgent agent,
+        final IceMediaStream stream,
+        final IceCheckList checkList,
+        final ExistingSessionIceCandidatePairFactory existingSessionPairFactory,
+        final IceClock clock) {
         m_agent = agent;
+        m_clock = clock;
         m_mediaStream = stream;
         m_checkList = checkList;
         m_existingSessionPairFactory = existingSessionPairFactory;
@@ -68,67 +108,79 @@ public class IceCheckSchedulerImpl implements IceCheckScheduler {
             offererOrAnswerer = "ICE-Not-Controlling";
         }
         this.timerName = offererOrAnswerer+"-Timer";
-        this.m_timer = new Timer(this.timerName, true);
+        this.m_timer = clock.newTimer(this.timerName);
     }
 
     public void scheduleChecks() {
         m_log.debug("Scheduling checks...");
-        final TimerTask task = createTimerTask(m_timer);
+        final Runnable task = createTimerTask(m_timer);
         m_timer.schedule(task, 0L);
     }
 
-    private TimerTask createTimerTask(final Timer timer) {
-        return new TimerTask() {
-            @Override
+    private Runnable createTimerTask(final IceTimer timer) {
+        return new Runnable() {
             public void run() {
                 if (m_agent.isClosed()) {
                     m_log.debug("UDP agent is closed, not checking next pair");
                     return;
                 }
                 
-                // We offload this to a thread pool because the timer needs to
-                // run at exact times and can't be subject to anything blocking
-                // on its thread.
-                final Runnable runner = new Runnable() {
-                    @Override
-                    public void run() {
-                        m_log.debug("About to check pair...");
-                        try {
-                            checkPair(timer);
-                        } catch (final Throwable t) {
-                            m_log.warn("Caught throwable in check", t);
+                // Picking the pair changes check list state, so it happens on
+                // the agent's event loop. Only the check itself, which blocks
+                // on the STUN transaction, goes to the pool.
+                try {
+                    m_agent.getEventLoop().execute(new Runnable() {
+                        public void run() {
+                            try {
+                                checkPair(timer);
+                            } catch (final Throwable t) {
+                                m_log.warn("Caught throwable in check", t);
+                            }
                         }
-                    }
-                };
-                threadPool.submit(runner);
+                    });
+                } catch (final RejectedExecutionException e) {
+                    m_log.debug("Event loop shut down -- not checking pair");
+                    timer.cancel();
+                }
+            }
+        };
+    }
 
-                // This means there are no more pairs we know about, but we
-                // might get a triggered pair. We wait to see if we do
-                // before giving up.
+    private void scheduleNoPairsCheck(final IceTimer timer, 
+        final int generation) {
+        // The caller holds the queue lock.
+        if (m_noPairsTimer == null) {
+            m_noPairsTimer = m_clock.newTimer(timerName+"-No-Pairs");
+        }
+        m_noPairsTimer.schedule(new Runnable() {
+            public void run() {
                 synchronized (m_queueLock) {
-                    if (m_queueEmpty) {
-                        m_log.info("WAITING ON QUEUE - NO PAIRS");
-                        try {
-                            m_queueLock.wait(10000);
-                        } catch (final InterruptedException e) {
-                            // Won't happen.
-                        }
-
-                        // If the queue is still empty, we're done.
-                        if (m_queueEmpty) {
-                            timer.cancel();
-                            m_agent.onNoMorePairs();
-                        }
+                    // If the queue is still empty, we're done.
+                    if (m_queueEmpty && generation == m_queueGeneration) {
+                        cancelNoPairsTimer();
+                        timer.cancel();
+                        m_agent.onNoMorePairs();
+                    } else if (m_agent.isClosed() || 
+                        m_checkList.getState() != IceCheckListState.RUNNING) {
+                        cancelNoPairsTimer();
                     }
                 }
             }
-        };
+        }, NO_PAIRS_WAIT);
+    }
+    
+    private void cancelNoPairsTimer() {
+        // The caller holds the queue lock.
+        if (m_noPairsTimer != null) {
+            m_noPairsTimer.cancel();
+            m_noPairsTimer = null;
+        }
     }
 
-    private void checkPair(final Timer timer) {
+    private void checkPair(final IceTimer timer) {
         if (this.m_agent.isClosed()) {
             m_log.debug("ICE agent is closed");
-            timer.cancel();
+            stop(timer);
             return;
         }
         if (this.m_checkList.getState() == IceCheckListState.COMPLETED) {
@@ -136,18 +188,13 @@ public class IceCheckSchedulerImpl implements IceCheckScheduler {
             // This technically violates section 8.3. We should be continuing
             // to respond to checks and process any associated triggered
             // checks.
-            timer.cancel();
+            stop(timer);
             return;
         }
         
         // We create the new timer task here because the pair fetching and 
         // checking itself can take time that can throw the timer off.
-        final TimerTask task = createTimerTask(timer);
-
-        // Section 16.2 says this SHOULD be configurable and SHOULD have
-        // a default value of 500 ms. That would make ICE take a long
-        // time, though, so we're more aggressive.
-        final int Ta_i = 500;
+        final Runnable task = createTimerTask(timer);
 
         // TODO: The recommended formula for this is:
         // (stunPacketSize / rtpPacketSize) * rtpPtime;
@@ -164,16 +211,50 @@ public class IceCheckSchedulerImpl implements IceCheckScheduler {
         final IceCandidatePair activePair = getNextPair();
         if (activePair == null) {
             m_log.debug("No more active pairs...");
-            m_queueEmpty = true;
             timer.cancel();
-        } else {
-            m_log.debug("Scheduling new timer task...");
             
-            // We make the call to perform a check after scheduling the next
-            // timer task because the check itself could take time and throw
-            // off the timer.
+            // This means there are no more pairs we know about, but we
+            // might get a triggered pair. We wait to see if we do
+            // before giving up. The wait is scheduled rather than 
+            // blocking so it works in virtual time too.
+            synchronized (m_queueLock) {
+                m_queueEmpty = true;
+                m_log.info("WAITING ON QUEUE - NO PAIRS");
+                scheduleNoPairsCheck(timer, m_queueGeneration);
+            }
+        } else {
             m_log.debug("About to perform check on:{}", activePair);
-            performCheck(activePair);
+            
+            // We set the state here rather than on the pool so the next tick
+            // can't pick the same pair while this check is still running.
+            activePair.setState(IceCandidatePairState.IN_PROGRESS);
+            final Runnable runner = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        performCheck(activePair);
+                    } catch (final Throwable t) {
+                        m_log.warn("Caught throwable in check", t);
+                    }
+                }
+            };
+            try {
+                IceExecutors.submit(IceExecutorRole.CHECK_SCHEDULER, runner);
+            } catch (final RejectedExecutionException e) {
+                // The check pool is saturated. Put the pair at the front of
+                // the line so the next tick retries it rather than letting 
+                // checks for this stream stall.
+                m_log.info("Check pool saturated -- requeueing pair");
+                activePair.setState(IceCandidatePairState.WAITING);
+                this.m_checkList.addTriggeredPair(activePair);
+            }
+        }
+    }
+
+    private void stop(final IceTimer timer) {
+        timer.cancel();
+        synchronized (m_queueLock) {
+            cancelNoPairsTimer();
         }
     }
 
@@ -183,7 +264,20 @@ public class IceCheckSchedulerImpl implements IceCheckScheduler {
             new IceStunClientCandidateProcessor(m_agent, m_mediaStream, pair, 
                 this.m_existingSessionPairFactory);
 
+        final Object event = 
+            IceFlightRecorder.begin(IceJfrEventType.CONNECTIVITY_CHECK);
+        final long checkStart = IceNegotiationTimer.now();
         processor.processLocalCandidate(local);
+        IceMetrics.record(IcePhase.CONNECTIVITY_CHECK, 
+            local.isUdp() ? "udp" : "tcp",
+            IceNegotiationTimer.candidateTypes(local.getType(), 
+                pair.getRemoteCandidate().getType()), 
+            IceNegotiationTimer.now() - checkStart);
+        if (event != null) {
+            IceFlightRecorder.commit(event, IceFlightRecorder.str(local), 
+                IceFlightRecorder.str(pair.getRemoteCandidate()), 
+                IceFlightRecorder.str(pair.getState()));
+        }
     }
 
     private IceCandidatePair getNextPair() {
@@ -230,11 +324,11 @@ public class IceCheckSchedulerImpl implements IceCheckScheduler {
     public void onPair() {
         synchronized (m_queueLock) {
             if (m_queueEmpty) {
-                m_timer = new Timer(timerName+"-Restarted", true);
+                m_timer = m_clock.newTimer(timerName+"-Restarted");
                 m_queueEmpty = false;
+                m_queueGeneration++;
                 scheduleChecks();
             }
-            m_queueLock.notifyAll();
         }
     }
 }
@@ -0,0 +1,302 @@
+package org.lastbamboo.common.ice;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.lastbamboo.common.ice.clock.IceClock;
+import org.lastbamboo.common.ice.clock.IceClocks;
+import org.lastbamboo.common.ice.clock.IceTimer;
+import org.lastbamboo.common.offer.answer.OfferAnswer;
+import org.lastbamboo.common.offer.answer.OfferAnswerListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Enforces an {@link IceConnectPolicy} for a single offer/answer session.
+ * This sits between the direct TCP and UDP paths, the TURN relay path, and
+ * the caller's {@link OfferAnswerListener}. Once the remote candidates
+ * arrive, the relay path is started in parallel if no direct path has
+ * produced a socket within the relay head start, and the whole session is
+ * failed if nothing has produced a socket by the deadline. Sockets that
+ * turn up after the session has failed or been cancelled are closed.
+ * <p>
+ * Times are kept on the {@link IceClock} installed when the deadline is
+ * created.
+ *
+ * @param <T> The type of the UDP socket delivered to the listener.
+ */
+public class IceConnectDeadline<T> {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final IceClock clock = IceClocks.get();
+
+    private final IceConnectPolicy policy;
+
+    private final OfferAnswerListener<T> delegate;
+
+    private final AtomicBoolean started = new AtomicBoolean(false);
+
+    private final AtomicBoolean relayStarted = new AtomicBoolean(false);
+
+    private final AtomicBoolean directSucceeded = new AtomicBoolean(false);
+
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+
+    private final AtomicReference<Socket> relaySocket =
+        new AtomicReference<Socket>();
+
+    private final AtomicReference<IceOfferAnswer> relay =
+        new AtomicReference<IceOfferAnswer>();
+
+    /**
+     * The timer for the relay head start and the deadline, created when the
+     * clock starts and cancelled as soon as neither is needed.
+     */
+    private volatile IceTimer timer;
+
+    private final OfferAnswerListener<T> directListener =
+        new OfferAnswerListener<T>() {
+
+        public void onTcpSocket(final Socket sock) {
+            if (closeIfFinished(sock)) {
+                return;
+            }
+            onDirectSocket();
+            delegate.onTcpSocket(sock);
+        }
+
+        public void onUdpSocket(final T sock) {
+            if (closeIfFinished(sock)) {
+                return;
+            }
+            onDirectSocket();
+            delegate.onUdpSocket(sock);
+        }
+
+        public void onOfferAnswerFailed(final OfferAnswer offerAnswer) {
+            if (finished.get()) {
+                log.debug("Session already over -- ignoring direct failure");
+                return;
+            }
+            // A direct path has given up, so there's no reason to keep
+            // holding the relay back.
+            if (policy.hasRelayHeadStart()) {
+                log.debug("Direct path failed -- starting relay early");
+                startRelay();
+            }
+            delegate.onOfferAnswerFailed(offerAnswer);
+        }
+    };
+
+    private final OfferAnswerListener<T> relayListener =
+        new OfferAnswerListener<T>() {
+
+        public void onTcpSocket(final Socket sock) {
+            if (closeIfFinished(sock)) {
+                return;
+            }
+            if (directSucceeded.get() && policy.isReplaceRelayWithDirect()) {
+                log.debug("Direct path already won -- closing relay socket");
+                close(sock);
+                return;
+            }
+            relaySocket.set(sock);
+            cancelTimer();
+            delegate.onTcpSocket(sock);
+        }
+
+        public void onUdpSocket(final T sock) {
+            // The relay only ever produces TCP sockets, but pass anything
+            // else through untouched.
+            if (closeIfFinished(sock)) {
+                return;
+            }
+            cancelTimer();
+            delegate.onUdpSocket(sock);
+        }
+
+        public void onOfferAnswerFailed(final OfferAnswer offerAnswer) {
+            delegate.onOfferAnswerFailed(offerAnswer);
+        }
+    };
+
+    /**
+     * Creates a new deadline for a single session.
+     *
+     * @param policy The policy to enforce.
+     * @param delegate The listener to ultimately pass sockets and failures
+     * to.
+     */
+    public IceConnectDeadline(final IceConnectPolicy policy,
+        final OfferAnswerListener<T> delegate) {
+        this.policy = policy;
+        this.delegate = delegate;
+    }
+
+    /**
+     * Accessor for the listener the direct TCP and UDP paths should report
+     * to.
+     *
+     * @return The listener for direct paths.
+     */
+    public OfferAnswerListener<T> getDirectListener() {
+        return directListener;
+    }
+
+    /**
+     * Accessor for the listener the TURN relay path should report to.
+     *
+     * @return The listener for the relay path.
+     */
+    public OfferAnswerListener<T> getRelayListener() {
+        return relayListener;
+    }
+
+    /**
+     * Starts the clock once we have the remote candidates. Calling this more
+     * than once has no effect.
+     *
+     * @param session The top-level session to close if we hit the deadline.
+     * @param relayOfferAnswer The relay path to start after the head start,
+     * or <code>null</code> if this session doesn't use the relay.
+     */
+    public void start(final OfferAnswer session,
+        final IceOfferAnswer relayOfferAnswer) {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+        this.relay.set(relayOfferAnswer);
+        final boolean headStart = 
+            relayOfferAnswer != null && policy.hasRelayHeadStart();
+        if (!headStart && !policy.hasConnectDeadline()) {
+            return;
+        }
+        final IceTimer sessionTimer = 
+            clock.newTimer("ICE-Connect-Deadline-Timer");
+        this.timer = sessionTimer;
+        if (headStart) {
+            sessionTimer.schedule(new Runnable() {
+                public void run() {
+                    if (!hasSocket()) {
+                        log.info("No direct socket after {} ms -- starting relay",
+                            policy.getRelayHeadStartMillis());
+                        startRelay();
+                    }
+                }
+            }, policy.getRelayHeadStartMillis());
+        }
+        if (policy.hasConnectDeadline()) {
+            sessionTimer.schedule(new Runnable() {
+                public void run() {
+                    if (hasSocket()) {
+                        return;
+                    }
+                    if (!finished.compareAndSet(false, true)) {
+                        return;
+                    }
+                    log.info("No socket after {} ms -- giving up",
+                        policy.getConnectDeadlineMillis());
+                    sessionTimer.cancel();
+                    session.close();
+                    delegate.onOfferAnswerFailed(session);
+                }
+            }, policy.getConnectDeadlineMillis());
+        }
+        if (finished.get() || hasSocket()) {
+            // Something finished while we were setting up.
+            cancelTimer();
+        }
+    }
+
+    /**
+     * Starts the relay path if it hasn't already been started. This does
+     * nothing before the clock starts, since the relay can't connect until
+     * it has the remote candidates.
+     */
+    public void startRelay() {
+        final IceOfferAnswer oa = this.relay.get();
+        if (oa == null) {
+            return;
+        }
+        if (relayStarted.compareAndSet(false, true)) {
+            oa.useRelay();
+        }
+    }
+
+    /**
+     * Cancels any pending timers, typically because the session is closing.
+     */
+    public void cancel() {
+        finished.set(true);
+        cancelTimer();
+    }
+
+    /**
+     * Accessor for whether or not the relay path has been started.
+     *
+     * @return <code>true</code> if the relay has been started.
+     */
+    public boolean isRelayStarted() {
+        return relayStarted.get();
+    }
+
+    private boolean hasSocket() {
+        return directSucceeded.get() || relaySocket.get() != null;
+    }
+
+    private void onDirectSocket() {
+        directSucceeded.set(true);
+        cancelTimer();
+        if (policy.isReplaceRelayWithDirect()) {
+            final Socket relayed = relaySocket.getAndSet(null);
+            if (relayed != null) {
+                log.info("Replacing relay socket with direct socket");
+                close(relayed);
+            }
+        }
+    }
+
+    private void cancelTimer() {
+        final IceTimer t = timer;
+        if (t != null) {
+            t.cancel();
+        }
+    }
+
+    /**
+     * Closes a socket that arrived after the session failed or was 
+     * cancelled, since nobody is listening for it anymore.
+     * 
+     * @param sock The socket.
+     * @return <code>true</code> if the session was over and the socket was
+     * closed, otherwise <code>false</code>.
+     */
+    private boolean closeIfFinished(final Object sock) {
+        if (!finished.get()) {
+            return false;
+        }
+        log.info("Socket arrived after the session was over -- closing");
+        if (sock instanceof Socket) {
+            close((Socket) sock);
+        } else if (sock instanceof Closeable) {
+            try {
+                ((Closeable) sock).close();
+            } catch (final IOException e) {
+                log.info("Exception closing socket", e);
+            }
+        }
+        return true;
+    }
+
+    private void close(final Socket sock) {
+        try {
+            sock.close();
+        } catch (final IOException e) {
+            log.info("Exception closing socket", e);
+        }
+    }
+}
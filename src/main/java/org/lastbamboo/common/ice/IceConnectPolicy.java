@@ -0,0 +1,84 @@
+package org.lastbamboo.common.ice;
+
+/**
+ * Timing policy for a single ICE session covering how long we're willing to
+ * wait for any connection at all and how long the direct paths get before
+ * we start the TURN relay path in parallel.<p>
+ *
+ * A value of zero for either the deadline or the relay head start disables
+ * that part of the policy, which is the default and matches the historical
+ * behavior of only using the relay when {@link IceOfferAnswer#useRelay()} is
+ * called externally.
+ */
+public class IceConnectPolicy {
+
+    private final long connectDeadlineMillis;
+
+    private final long relayHeadStartMillis;
+
+    private final boolean replaceRelayWithDirect;
+
+    /**
+     * Creates a new policy with both the deadline and the relay head start
+     * disabled.
+     */
+    public IceConnectPolicy() {
+        this(0L, 0L, false);
+    }
+
+    /**
+     * Creates a new connect policy.
+     *
+     * @param connectDeadlineMillis The total time in milliseconds we'll wait
+     * for a socket on any path after receiving the remote candidates before
+     * closing the session and notifying the listener of failure, or zero for
+     * no deadline.
+     * @param relayHeadStartMillis The time in milliseconds the direct TCP
+     * and UDP paths have to produce a socket before we start the TURN relay
+     * path in parallel, or zero to only use the relay when told to.
+     * @param replaceRelayWithDirect Whether or not to close an already
+     * delivered relay socket when a direct path succeeds later on.
+     */
+    public IceConnectPolicy(final long connectDeadlineMillis,
+        final long relayHeadStartMillis, final boolean replaceRelayWithDirect) {
+        if (connectDeadlineMillis < 0L) {
+            throw new IllegalArgumentException("Negative deadline: "+
+                connectDeadlineMillis);
+        }
+        if (relayHeadStartMillis < 0L) {
+            throw new IllegalArgumentException("Negative head start: "+
+                relayHeadStartMillis);
+        }
+        this.connectDeadlineMillis = connectDeadlineMillis;
+        this.relayHeadStartMillis = relayHeadStartMillis;
+        this.replaceRelayWithDirect = replaceRelayWithDirect;
+    }
+
+    public long getConnectDeadlineMillis() {
+        return connectDeadlineMillis;
+    }
+
+    public long getRelayHeadStartMillis() {
+        return relayHeadStartMillis;
+    }
+
+    public boolean isReplaceRelayWithDirect() {
+        return replaceRelayWithDirect;
+    }
+
+    public boolean hasConnectDeadline() {
+        return this.connectDeadlineMillis > 0L;
+    }
+
+    public boolean hasRelayHeadStart() {
+        return this.relayHeadStartMillis > 0L;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() +
+            " deadline: " + connectDeadlineMillis +
+            " relay head start: " + relayHeadStartMillis +
+            " replace relay: " + replaceRelayWithDirect;
+    }
+}
@@ -3,11 +3,13 @@ package org.lastbamboo.common.ice;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.Collection;
+import java.util.Map;
 import java.util.Queue;
 
 import org.littleshoot.mina.common.IoServiceListener;
 import org.lastbamboo.common.ice.candidate.IceCandidate;
 import org.lastbamboo.common.ice.candidate.IceCandidatePair;
+import org.lastbamboo.common.ice.candidate.IceCandidatePairState;
 import org.littleshoot.stun.stack.message.BindingRequest;
 
 /**
@@ -170,6 +172,22 @@ public interface IceMediaStream extends IoServiceListener
      */
     IceCheckListState getCheckListState();
 
+    /**
+     * Adds a listener to notify when the check list for this stream either
+     * completes or fails.
+     * 
+     * @param listener The listener to add.
+     */
+    void addCheckListListener(IceCheckListListener listener);
+
+    /**
+     * Accessor for the number of pairs on the check list in each state.
+     * 
+     * @return The number of pairs in each state, omitting states with no
+     * pairs.
+     */
+    Map<IceCandidatePairState, Integer> getPairCountsByState();
+
     /**
      * Implements ICE section 7.1.2.3. Check List and Timer State Updates.
      */
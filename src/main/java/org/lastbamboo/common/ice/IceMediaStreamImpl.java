@@ -6,6 +6,7 @@ import java.net.SocketAddress;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -19,6 +20,8 @@ import org.lastbamboo.common.ice.candidate.IceCandidateGatherer;
 import org.lastbamboo.common.ice.candidate.IceCandidatePair;
 import org.lastbamboo.common.ice.candidate.IceCandidatePairState;
 import org.lastbamboo.common.ice.candidate.IceUdpPeerReflexiveCandidate;
+import org.lastbamboo.common.ice.metrics.IceNegotiationTimer;
+import org.lastbamboo.common.ice.metrics.IcePhase;
 import org.lastbamboo.common.ice.sdp.IceCandidateSdpEncoder;
 import org.lastbamboo.common.offer.answer.IceMediaStreamDesc;
 import org.littleshoot.stun.stack.message.BindingRequest;
@@ -109,17 +112,23 @@ public class IceMediaStreamImpl implements IceMediaStream {
             }
         }
 
+        final IceNegotiationTimer timer = m_iceAgent.getNegotiationTimer();
+        final long formStart = IceNegotiationTimer.now();
         m_checkList.formCheckList(remoteCandidates);
 
         processPairGroups();
+        timer.record(IcePhase.CHECK_LIST_FORMATION, formStart);
 
         if (this.m_closed) {
             m_log.info("Already closed - not scheduling checks!!");
             return;
         }
 
+        // We don't wait for the checks to finish here. The agent hears about
+        // the outcome through nominations and check list state changes, so
+        // the thread delivering the offer or answer is free to return.
+        timer.onChecksStarted();
         this.m_checkScheduler.scheduleChecks();
-        m_checkList.check();
     }
 
     public IceCandidate addRemotePeerReflexive(final BindingRequest request,
@@ -387,6 +396,7 @@ public class IceMediaStreamImpl implements IceMediaStream {
         synchronized (this.m_validPairs) {
             this.m_validPairs.add(pair);
         }
+        m_iceAgent.getNegotiationTimer().onFirstValidPair();
     }
     
     /**
@@ -443,6 +453,31 @@ public class IceMediaStreamImpl implements IceMediaStream {
         return this.m_checkList.getState();
     }
 
+    public void addCheckListListener(final IceCheckListListener listener) {
+        this.m_checkList.addListener(listener);
+    }
+
+    public Map<IceCandidatePairState, Integer> getPairCountsByState() {
+        final Map<IceCandidatePairState, Integer> counts = 
+            new EnumMap<IceCandidatePairState, Integer>(
+                IceCandidatePairState.class);
+        final IceCheckList checkList = this.m_checkList;
+        if (checkList == null) {
+            return counts;
+        }
+        final Closure<IceCandidatePair> closure = 
+            new Closure<IceCandidatePair>() {
+            public void execute(final IceCandidatePair pair) {
+                final IceCandidatePairState state = pair.getState();
+                final Integer count = counts.get(state);
+                counts.put(state, Integer.valueOf(
+                    count == null ? 1 : count.intValue() + 1));
+            }
+        };
+        checkList.executeOnPairs(closure);
+        return counts;
+    }
+
     public void setCheckListState(final IceCheckListState state) {
         this.m_checkList.setState(state);
         if (state == IceCheckListState.COMPLETED) {
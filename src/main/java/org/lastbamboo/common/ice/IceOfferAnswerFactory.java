@@ -40,6 +40,10 @@ public class IceOfferAnswerFactory<T> implements OfferAnswerFactory<T> {
 
     private final SocketFactory m_socketFactory;
 
+    private final IceConnectPolicy m_connectPolicy;
+
+    private final UdpSocketFactory<?> m_unreliableUdpSocketFactory;
+
     /**
      * Creates a new ICE agent factory. The factory maintains a reference to
      * the TCP TURN client because the client holds a persistent connection
@@ -64,6 +68,76 @@ public class IceOfferAnswerFactory<T> implements OfferAnswerFactory<T> {
             final CandidateProvider<InetSocketAddress> stunCandidateProvider, 
             final MappedTcpOffererServerPool offererServer,
             final SocketFactory socketFactory) {
+        this(mediaStreamFactory, udpSocketFactory, turnCandidateProvider,
+            answererServer, turnClientListener, stunCandidateProvider,
+            offererServer, socketFactory, new IceConnectPolicy());
+    }
+
+    /**
+     * Creates a new ICE agent factory with a policy bounding how long each
+     * session waits for direct connections before falling back to the relay
+     * and before giving up altogether.
+     * 
+     * @param mediaStreamFactory The factory for creating ICE media streams.
+     * @param udpSocketFactory Factory for creating reliable UDP sockets.
+     * @param answererServer The single router port-mapped server socket for
+     * when we're the answerer.
+     * @param stunCandidateProvider Provider for STUN servers.
+     * @param offererServer The pool of mapped servers to send from the
+     * offering side.
+     * @param connectPolicy The deadline and relay head start policy to apply
+     * to each session.
+     */
+    public IceOfferAnswerFactory(
+            final IceMediaStreamFactory mediaStreamFactory,
+            final UdpSocketFactory<T> udpSocketFactory,
+            final CandidateProvider<InetSocketAddress> turnCandidateProvider,
+            final MappedServerSocket answererServer,
+            final TurnClientListener turnClientListener, 
+            final CandidateProvider<InetSocketAddress> stunCandidateProvider, 
+            final MappedTcpOffererServerPool offererServer,
+            final SocketFactory socketFactory,
+            final IceConnectPolicy connectPolicy) {
+        this(mediaStreamFactory, udpSocketFactory, turnCandidateProvider,
+            answererServer, turnClientListener, stunCandidateProvider,
+            offererServer, socketFactory, connectPolicy, null);
+    }
+
+    /**
+     * Creates a new ICE agent factory that also controls the endpoints
+     * created for unreliable UDP streams. Pair this with 
+     * {@link RawUdpChannelFactory} and {@link BarchartUdtChannelFactory} to
+     * have every UDP path deliver selectable channels.
+     * 
+     * @param mediaStreamFactory The factory for creating ICE media streams.
+     * @param udpSocketFactory Factory for creating reliable UDP sockets.
+     * @param answererServer The single router port-mapped server socket for
+     * when we're the answerer.
+     * @param stunCandidateProvider Provider for STUN servers.
+     * @param offererServer The pool of mapped servers to send from the
+     * offering side.
+     * @param connectPolicy The deadline and relay head start policy to apply
+     * to each session.
+     * @param unreliableUdpSocketFactory Factory for creating unreliable UDP
+     * endpoints, or <code>null</code> for raw UDP sockets.
+     */
+    public IceOfferAnswerFactory(
+            final IceMediaStreamFactory mediaStreamFactory,
+            final UdpSocketFactory<T> udpSocketFactory,
+            final CandidateProvider<InetSocketAddress> turnCandidateProvider,
+            final MappedServerSocket answererServer,
+            final TurnClientListener turnClientListener, 
+            final CandidateProvider<InetSocketAddress> stunCandidateProvider, 
+            final MappedTcpOffererServerPool offererServer,
+            final SocketFactory socketFactory,
+            final IceConnectPolicy connectPolicy,
+            final UdpSocketFactory<T> unreliableUdpSocketFactory) {
+        if (unreliableUdpSocketFactory == null) {
+            this.m_unreliableUdpSocketFactory = new RawUdpSocketFactory();
+        } else {
+            this.m_unreliableUdpSocketFactory = unreliableUdpSocketFactory;
+        }
+        this.m_connectPolicy = connectPolicy;
         this.m_mediaStreamFactory = mediaStreamFactory;
         this.m_udpSocketFactory = udpSocketFactory;
         this.m_turnCandidateProvider = turnCandidateProvider;
@@ -96,13 +170,17 @@ public class IceOfferAnswerFactory<T> implements OfferAnswerFactory<T> {
             final OfferAnswerListener<T> offerAnswerListener,
             final IceMediaStreamDesc mediaDesc)
             throws OfferAnswerConnectException {
+        // The deadline sits between the individual paths and the caller's
+        // listener so it can tell direct sockets apart from relayed ones.
+        final IceConnectDeadline<T> deadline = 
+            new IceConnectDeadline<T>(m_connectPolicy, offerAnswerListener);
         final IceOfferAnswer turnOfferAnswer = newTurnOfferAnswer(controlling,
-                offerAnswerListener, mediaDesc);
+                deadline.getRelayListener(), mediaDesc);
         final IceOfferAnswer udp = newUdpOfferAnswer(controlling,
-                offerAnswerListener, mediaDesc);
+                deadline.getDirectListener(), mediaDesc);
 
-        final IceOfferAnswer tcp = 
-            newTcpOfferAnswer(offerAnswerListener, controlling,mediaDesc);
+        final IceOfferAnswer tcp = newTcpOfferAnswer(
+            deadline.getDirectListener(), controlling, mediaDesc);
 
         // We create a high-level class that starts a race between the TCP
         // and UDP connections. The TCP approach does not use ICE, instead
@@ -124,6 +202,7 @@ public class IceOfferAnswerFactory<T> implements OfferAnswerFactory<T> {
 
             @Override
             public void close() {
+                deadline.cancel();
                 if (tcp != null)
                     tcp.close();
                 if (turnOfferAnswer != null)
@@ -145,6 +224,7 @@ public class IceOfferAnswerFactory<T> implements OfferAnswerFactory<T> {
                 if (mediaDesc.isUdp() && udp != null) {
                     udp.processAnswer(answer.duplicate());
                 }
+                startDeadline();
             }
 
             @Override
@@ -159,9 +239,18 @@ public class IceOfferAnswerFactory<T> implements OfferAnswerFactory<T> {
                 if (mediaDesc.isUseRelay() && turnOfferAnswer != null) {
                     turnOfferAnswer.processOffer(offer);
                 }
+                startDeadline();
                 m_log.info("Done processing offer...");
             }
 
+            private void startDeadline() {
+                if (mediaDesc.isUseRelay()) {
+                    deadline.start(this, turnOfferAnswer);
+                } else {
+                    deadline.start(this, null);
+                }
+            }
+
             @Override
             public void closeTcp() {
                 if (tcp != null)
@@ -181,8 +270,10 @@ public class IceOfferAnswerFactory<T> implements OfferAnswerFactory<T> {
                 m_log.info("Sending use relay notification.");
                 if (tcp != null)
                     tcp.useRelay();
-                if (turnOfferAnswer != null)
-                    turnOfferAnswer.useRelay();
+                // The deadline only starts the relay once it has the remote
+                // candidates, and keeps track of it so the head start timer
+                // doesn't start it again.
+                deadline.startRelay();
             }
         };
     }
@@ -209,7 +300,7 @@ public class IceOfferAnswerFactory<T> implements OfferAnswerFactory<T> {
                 m_log.info("Creating UDP offer answer...");
                 return new IceAgentImpl(this.m_mediaStreamFactory, controlling,
                         offerAnswerListener, this.m_udpSocketFactory,
-                        new RawUdpSocketFactory(), mediaDesc);
+                        this.m_unreliableUdpSocketFactory, mediaDesc);
             } catch (final IceUdpConnectException e) {
                 throw new OfferAnswerConnectException(
                         "Could not create UDP connection", e);
@@ -1,7 +1,10 @@
 package org.lastbamboo.common.ice;
 
+import org.lastbamboo.common.ice.clock.IceClock;
+import org.lastbamboo.common.ice.trace.IceTraceBuffer;
 import org.littleshoot.stun.stack.message.BindingRequest;
 import org.littleshoot.stun.stack.message.StunMessage;
+import org.littleshoot.stun.stack.message.attributes.StunAttribute;
 
 /**
  * Interface for classes that perform ICE connectivity checks using STUN. 
@@ -36,4 +39,44 @@ public interface IceStunChecker
      */
     void close();
 
+    /**
+     * Sets where to record retransmissions for the current transaction.
+     * 
+     * @param trace The trace buffer.
+     * @param subject What to record the events against, typically the pair.
+     */
+    void setTrace(IceTraceBuffer trace, Object subject);
+
+    /**
+     * Finds the largest datagram that gets through to the remote side by
+     * sending Binding Requests padded to different sizes and seeing which
+     * ones get answered. Call this only after a successful check.
+     * 
+     * @param priority The PRIORITY attribute to include in each request.
+     * @param role The ICE-CONTROLLING or ICE-CONTROLLED attribute to 
+     * include in each request.
+     * @return The path MTU in bytes, or -1 if even the smallest probe went
+     * unanswered, for example because the remote side doesn't accept 
+     * padded requests.
+     */
+    int probeMtu(StunAttribute priority, StunAttribute role);
+
+    /**
+     * Accessor for the number of times the Binding Request of the last 
+     * transaction went out, counting retransmissions. Reliable transports
+     * send each request once.
+     * 
+     * @return The number of requests sent, or 0 if none were.
+     */
+    int getRequestCount();
+
+    /**
+     * Accessor for the clock the checker times its retransmissions and 
+     * waits for responses on. Anything timing a transaction from outside
+     * should use the same clock.
+     * 
+     * @return The checker's clock.
+     */
+    IceClock getClock();
+
     }
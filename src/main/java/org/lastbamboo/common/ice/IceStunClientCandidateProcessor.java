@@ -17,6 +17,7 @@ import org.lastbamboo.common.ice.candidate.IceUdpHostCandidate;
 import org.lastbamboo.common.ice.candidate.IceUdpPeerReflexiveCandidate;
 import org.lastbamboo.common.ice.candidate.IceUdpRelayCandidate;
 import org.lastbamboo.common.ice.candidate.IceUdpServerReflexiveCandidate;
+import org.lastbamboo.common.ice.trace.IceTraceEvent;
 import org.littleshoot.stun.stack.message.BindingErrorResponse;
 import org.littleshoot.stun.stack.message.BindingRequest;
 import org.littleshoot.stun.stack.message.BindingSuccessResponse;
@@ -138,6 +139,24 @@ public class IceStunClientCandidateProcessor
         
         final StunMessage response = this.m_pair.check(request, rto);
         
+        // The check above blocks waiting for the response, so it doesn't run
+        // on the agent's event loop, but processing the result changes 
+        // agent state and does.
+        m_iceAgent.getEventLoop().execute(new Runnable()
+            {
+            public void run()
+                {
+                processResponse(response, localCandidate, remoteCandidate,
+                    isControlling, includedUseCandidate, requestPriority);
+                }
+            });
+        }
+    
+    private void processResponse(final StunMessage response, 
+        final IceCandidate localCandidate, final IceCandidate remoteCandidate,
+        final boolean isControlling, final boolean includedUseCandidate,
+        final long requestPriority)
+        {
         final StunMessageVisitor<IceCandidate> visitor = 
             new StunMessageVisitorAdapter<IceCandidate>()
             {
@@ -229,6 +248,9 @@ public class IceStunClientCandidateProcessor
                     {
                     m_iceAgent.setControlling(false);
                     }
+                m_iceAgent.getTraceBuffer().record(
+                    IceTraceEvent.ROLE_CONFLICT, m_pair, 
+                    Boolean.valueOf(!isControlling));
                 
                 // As stated in ICE 17 section 7.1.2.1. Failure Cases:
                 // "the agent MUST enqueue the candidate pair whose check
@@ -8,6 +8,9 @@ import org.apache.commons.id.uuid.UUID;
 import org.lastbamboo.common.ice.candidate.IceCandidate;
 import org.lastbamboo.common.ice.candidate.IceCandidatePair;
 import org.lastbamboo.common.ice.candidate.IceCandidatePairState;
+import org.lastbamboo.common.ice.jfr.IceFlightRecorder;
+import org.lastbamboo.common.ice.jfr.IceJfrEventType;
+import org.lastbamboo.common.ice.metrics.IceStunCounters;
 import org.lastbamboo.common.stun.client.StunClientMessageVisitor;
 import org.littleshoot.stun.stack.message.BindingErrorResponse;
 import org.littleshoot.stun.stack.message.BindingRequest;
@@ -72,7 +75,8 @@ public final class IceStunConnectivityCheckerImpl<T>
         m_ioSession = session;
         m_bindingRequestTracker = bindingRequestTracker;
         m_candidatePairFactory = 
-            new ExistingSessionIceCandidatePairFactoryImpl(checkerFactory);
+            new ExistingSessionIceCandidatePairFactoryImpl(checkerFactory, 
+                agent.getTraceBuffer());
         }
 
     @Override
@@ -83,6 +87,38 @@ public final class IceStunConnectivityCheckerImpl<T>
             m_log.info("Ignoring binding request for closed session");
             return null;
         }
+        
+        // We're on a MINA I/O thread here, so hand the request off to the
+        // agent's event loop where all the agent's state changes happen.
+        // The event covers the time waiting on the loop as well.
+        final Object event = 
+            IceFlightRecorder.begin(IceJfrEventType.BINDING_REQUEST);
+        this.m_agent.getEventLoop().execute(new Runnable()
+            {
+            public void run()
+                {
+                final boolean duplicate = processBindingRequest(request);
+                if (event != null)
+                    {
+                    IceFlightRecorder.commit(event, 
+                        IceFlightRecorder.str(m_ioSession.getLocalAddress()),
+                        IceFlightRecorder.str(m_ioSession.getRemoteAddress()),
+                        Boolean.valueOf(duplicate));
+                    }
+                }
+            });
+        return null;
+        }
+    
+    /**
+     * Processes a Binding Request from the remote agent.
+     * 
+     * @param request The request.
+     * @return <code>true</code> if the request was a duplicate of one we've
+     * already processed.
+     */
+    private boolean processBindingRequest(final BindingRequest request)
+        {
         // This is not standard.  Most STUN implementations will implement
         // transaction state machines and will therefore filter out duplicate
         // Binding Requests.  This is not required, however, so we add this
@@ -100,13 +136,14 @@ public final class IceStunConnectivityCheckerImpl<T>
                 // we send requests multiple times: UDP packets can get 
                 // dropped!!
                 m_log.info("Writing same response again");
+                IceStunCounters.onResentResponse();
                 this.m_ioSession.write(response);
                 }
             else 
                 {
                 m_log.warn("Received dup request before mapping response?");
                 }
-            return null;
+            return true;
             }
         this.m_bindingRequestTracker.add(request);
         
@@ -116,7 +153,7 @@ public final class IceStunConnectivityCheckerImpl<T>
         if (fromOurselves(this.m_agent, request))
             {
             m_log.error("Received a request from us on: {}", this.m_ioSession);
-            return null;
+            return false;
             }
         m_log.debug("Not from ourselves...");
         // We need to check ICE controlling and controlled roles for conflicts.
@@ -142,7 +179,7 @@ public final class IceStunConnectivityCheckerImpl<T>
             m_log.debug("Processing no role conflict...");
             processNoRoleConflict(request);
             }
-        return null;
+        return false;
         }
 
     /**
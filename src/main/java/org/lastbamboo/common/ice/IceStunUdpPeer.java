@@ -7,6 +7,10 @@ import java.net.InetSocketAddress;
 import org.littleshoot.mina.common.IoHandler;
 import org.littleshoot.mina.common.IoServiceListener;
 import org.littleshoot.mina.filter.codec.ProtocolCodecFactory;
+import org.lastbamboo.common.ice.metrics.IceMetricKey;
+import org.lastbamboo.common.ice.metrics.IceMetrics;
+import org.lastbamboo.common.ice.metrics.IceNegotiationTimer;
+import org.lastbamboo.common.ice.metrics.IcePhase;
 import org.lastbamboo.common.stun.client.StunClient;
 import org.lastbamboo.common.stun.client.UdpStunClient;
 import org.lastbamboo.common.stun.server.StunServer;
@@ -78,9 +82,12 @@ public class IceStunUdpPeer implements StunClient, StunServer
         // client and server checks.
         this.m_stunClient = new UdpStunClient(transactionTracker, ioHandler,
                 stunServerCandidateProvider);
+        final long srflxStart = IceNegotiationTimer.now();
         this.m_stunClient.connect();
         this.m_serverReflexiveAddress = this.m_stunClient
                 .getServerReflexiveAddress();
+        IceMetrics.record(IcePhase.SRFLX_RTT, "udp", IceMetricKey.ALL, 
+            IceNegotiationTimer.now() - srflxStart);
         if (this.m_serverReflexiveAddress == null) {
             final String msg = "Could not get server reflexive address.  "
                     + "Did STUN server respond??";
@@ -6,10 +6,18 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.management.ObjectName;
 import javax.net.ServerSocketFactory;
 
 import org.apache.commons.io.IOExceptionWithCause;
+import org.lastbamboo.common.ice.executor.IceExecutorRole;
+import org.lastbamboo.common.ice.executor.IceExecutors;
+import org.lastbamboo.common.ice.management.IceManagement;
+import org.lastbamboo.common.ice.management.IceServerSocketPoolMXBean;
 import org.lastbamboo.common.portmapping.NatPmpService;
 import org.lastbamboo.common.portmapping.PortMappingProtocol;
 import org.lastbamboo.common.portmapping.UpnpService;
@@ -29,7 +37,8 @@ import org.slf4j.LoggerFactory;
  * This class is useful to avoid continually opening and closing server sockets
  * and to avoid constant UPnP and NAP-PMP churn.
  */
-public class MappedTcpOffererServerPool {
+public class MappedTcpOffererServerPool 
+    implements IceServerSocketPoolMXBean {
 
     private final Logger log = LoggerFactory.getLogger(getClass());
     
@@ -42,6 +51,12 @@ public class MappedTcpOffererServerPool {
 
     private final ServerSocketFactory serverSocketFactory;
 
+    private final AtomicLong poolMisses = new AtomicLong();
+
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    private final ObjectName mbeanName;
+
     /**
      * Creates a new mapped server for the answerer.
      * 
@@ -74,10 +89,38 @@ public class MappedTcpOffererServerPool {
                 }
             }
         };
-        final Thread t = 
-            new Thread(runner, "Mapped-Offerer-Server-Socket-Creation-Thread");
-        t.setDaemon(true);
-        t.start();
+        try {
+            IceExecutors.execute(IceExecutorRole.SERVER_SOCKET_POOL, runner);
+        } catch (final RejectedExecutionException e) {
+            // Not fatal -- server sockets are created on demand anyway.
+            log.warn("Could not pre-create server sockets", e);
+        }
+        this.mbeanName = IceManagement.registerServerSocketPool(this);
+    }
+
+    /**
+     * Closes all the pooled server sockets and unregisters the pool's 
+     * management bean. Server sockets added after this are closed right
+     * away.
+     */
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        IceManagement.unregister(this.mbeanName);
+        synchronized (servers) {
+            while (!servers.isEmpty()) {
+                close(servers.remove());
+            }
+        }
+    }
+
+    private void close(final PortMappedServerSocket ss) {
+        try {
+            ss.getServerSocket().close();
+        } catch (final IOException e) {
+            log.debug("Exception closing server socket", e);
+        }
     }
 
     /**
@@ -87,6 +130,7 @@ public class MappedTcpOffererServerPool {
     public PortMappedServerSocket serverSocket() throws IOException {
         synchronized (servers) {
             if (servers.isEmpty()) {
+                poolMisses.incrementAndGet();
                 return randomPortServer();
             }
             else {
@@ -97,6 +141,11 @@ public class MappedTcpOffererServerPool {
 
     public void addServerSocket(final PortMappedServerSocket ss) {
         synchronized (servers) {
+            if (closed.get()) {
+                log.debug("Pool closed -- closing server socket");
+                close(ss);
+                return;
+            }
             // This guards against bugs in external code that might add
             // the same server socket twice.
             if (servers.contains(ss)) {
@@ -109,6 +158,14 @@ public class MappedTcpOffererServerPool {
         }
     }
 
+    public int getPooledServerSockets() {
+        return servers.size();
+    }
+
+    public long getPoolMisses() {
+        return poolMisses.get();
+    }
+
     private PortMappedServerSocket randomPortServer() throws IOException {
         IOException ioe = null;
         final InetAddress lh = NetworkUtils.getLocalHost();
@@ -0,0 +1,57 @@
+package org.lastbamboo.common.ice;
+
+import java.io.IOException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+
+import org.lastbamboo.common.offer.answer.OfferAnswerListener;
+import org.littleshoot.mina.common.IoSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Factory for raw UDP endpoints that hands out the {@link DatagramChannel}
+ * itself rather than wrapping it in a {@link java.net.Socket}. The channel
+ * is bound to the local address of the nominated pair, connected to the
+ * remote address and switched to non-blocking mode, ready to register with
+ * a selector.
+ */
+public class RawUdpChannelFactory 
+    implements UdpSocketFactory<SelectableChannel> {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    @Override
+    public void newEndpoint(final IoSession session, final boolean controlling,
+            final OfferAnswerListener<SelectableChannel> channelListener,
+            final IceStunUdpPeer stunUdpPeer, final IceAgent iceAgent) {
+        log.info("Creating new raw UDP channel");
+        if (session == null) {
+            log.error("Null session: {}", session);
+            return;
+        }
+        stunUdpPeer.close();
+        
+        final DatagramChannel dc;
+        try {
+            dc = RawUdpSocketFactory.newChannel(session.getLocalAddress(), 
+                session.getRemoteAddress());
+        } catch (final IOException e) {
+            log.info("Could not create raw UDP channel", e);
+            channelListener.onOfferAnswerFailed(iceAgent);
+            return;
+        }
+        try {
+            dc.configureBlocking(false);
+        } catch (final IOException e) {
+            log.info("Could not switch raw UDP channel to non-blocking", e);
+            try {
+                dc.close();
+            } catch (final IOException ioe) {
+            }
+            channelListener.onOfferAnswerFailed(iceAgent);
+            return;
+        }
+        channelListener.onUdpSocket(dc);
+    }
+}
@@ -0,0 +1,81 @@
+package org.lastbamboo.common.ice;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
+
+import org.lastbamboo.common.ice.channel.DatagramChannelEndpoint;
+import org.lastbamboo.common.ice.channel.FecDatagramEndpoint;
+import org.lastbamboo.common.ice.channel.IceDatagramEndpoint;
+import org.lastbamboo.common.ice.channel.IceMtu;
+import org.lastbamboo.common.offer.answer.OfferAnswerListener;
+import org.littleshoot.mina.common.IoSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Factory for raw UDP endpoints that keep message boundaries, delivering an
+ * {@link IceDatagramEndpoint} sized for the path MTU rather than a stream 
+ * socket. The endpoint starts in blocking mode -- switch its channel to 
+ * non-blocking mode to drive it from a selector.
+ */
+public class RawUdpEndpointFactory 
+    implements UdpSocketFactory<IceDatagramEndpoint> {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final int fecDataShards;
+
+    private final int fecParityShards;
+
+    /**
+     * Creates a new factory for endpoints without forward error correction.
+     */
+    public RawUdpEndpointFactory() {
+        this(0, 0);
+    }
+
+    /**
+     * Creates a new factory for endpoints with forward error correction,
+     * delivered as a {@link FecDatagramEndpoint} when it's turned on. The
+     * other side must use the same settings.
+     *
+     * @param fecDataShards The number of messages in each FEC group.
+     * @param fecParityShards The number of parity datagrams for each group,
+     * or zero to turn FEC off.
+     */
+    public RawUdpEndpointFactory(final int fecDataShards,
+        final int fecParityShards) {
+        this.fecDataShards = fecDataShards;
+        this.fecParityShards = fecParityShards;
+    }
+
+    @Override
+    public void newEndpoint(final IoSession session, final boolean controlling,
+            final OfferAnswerListener<IceDatagramEndpoint> endpointListener,
+            final IceStunUdpPeer stunUdpPeer, final IceAgent iceAgent) {
+        log.info("Creating new raw UDP datagram endpoint");
+        if (session == null) {
+            log.error("Null session: {}", session);
+            return;
+        }
+        stunUdpPeer.close();
+        
+        final SocketAddress local = session.getLocalAddress();
+        final DatagramChannel dc;
+        try {
+            dc = RawUdpSocketFactory.newChannel(local, 
+                session.getRemoteAddress());
+        } catch (final IOException e) {
+            log.info("Could not create raw UDP endpoint", e);
+            endpointListener.onOfferAnswerFailed(iceAgent);
+            return;
+        }
+        final int mtu = 
+            IceMtu.forSession(session, iceAgent.getNominatedPairs());
+        log.debug("Using MTU of {} for {}", mtu, session);
+        endpointListener.onUdpSocket(RawUdpSocketFactory.withFec(
+            new DatagramChannelEndpoint(dc, mtu), this.fecDataShards,
+            this.fecParityShards));
+    }
+}
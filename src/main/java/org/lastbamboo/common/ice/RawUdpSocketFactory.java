@@ -4,12 +4,16 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 
+import org.lastbamboo.common.ice.channel.DatagramChannelEndpoint;
+import org.lastbamboo.common.ice.channel.FecDatagramEndpoint;
+import org.lastbamboo.common.ice.channel.IceDatagramEndpoint;
+import org.lastbamboo.common.ice.channel.IceMtu;
 import org.lastbamboo.common.offer.answer.OfferAnswerListener;
 import org.littleshoot.mina.common.IoSession;
-import org.littleshoot.util.ByteBufferUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -25,6 +29,34 @@ public class RawUdpSocketFactory implements UdpSocketFactory<Socket> {
 
     private final Logger log = LoggerFactory.getLogger(getClass());
 
+    private final int fecDataShards;
+
+    private final int fecParityShards;
+
+    /**
+     * Creates a new factory for sockets without forward error correction.
+     */
+    public RawUdpSocketFactory() {
+        this(0, 0);
+    }
+
+    /**
+     * Creates a new factory for sockets that add forward error correction
+     * to what they send, trading bandwidth for fewer losses without
+     * retransmissions. The other side must use the same settings. Flushing
+     * the socket's output stream sends the parity for a partial group.
+     *
+     * @param fecDataShards The number of datagrams in each FEC group.
+     * @param fecParityShards The number of parity datagrams for each group,
+     * or zero to turn FEC off.
+     * @see FecDatagramEndpoint
+     */
+    public RawUdpSocketFactory(final int fecDataShards,
+        final int fecParityShards) {
+        this.fecDataShards = fecDataShards;
+        this.fecParityShards = fecParityShards;
+    }
+
     @Override
     public void newEndpoint(final IoSession session, final boolean controlling,
             final OfferAnswerListener<Socket> socketListener,
@@ -36,60 +68,149 @@ public class RawUdpSocketFactory implements UdpSocketFactory<Socket> {
         }
         stunUdpPeer.close();
         
-        DatagramChannel dc;
         try {
-            dc = DatagramChannel.open();
-            dc.configureBlocking(true);
-            dc.socket().bind(session.getLocalAddress());
-            dc.connect(session.getRemoteAddress());
-            
-            final Socket sock = new DatagramSocketWrapper(dc);
-            socketListener.onUdpSocket(sock);
+            final DatagramChannel dc = newChannel(session.getLocalAddress(), 
+                session.getRemoteAddress());
+            final IceDatagramEndpoint endpoint = withFec(
+                new DatagramChannelEndpoint(dc, 
+                    IceMtu.forSession(session, iceAgent.getNominatedPairs())),
+                this.fecDataShards, this.fecParityShards);
+            socketListener.onUdpSocket(new DatagramSocketWrapper(endpoint));
         } catch (final IOException e) {
             log.info("Could not create raw UDP socket", e);
         }
 
     }
+
+    /**
+     * Creates a raw UDP "socket" bound to the local address and connected
+     * to the remote address.
+     * 
+     * @param local The local address to bind to.
+     * @param remote The remote address to send to and receive from.
+     * @return The socket.
+     * @throws IOException If we can't bind or connect.
+     */
+    static Socket newSocket(final SocketAddress local, 
+        final SocketAddress remote) throws IOException {
+        return newSocket(local, remote, IceMtu.forLocalAddress(local));
+    }
+
+    /**
+     * Creates a raw UDP "socket" that writes datagrams sized for the
+     * specified path MTU.
+     * 
+     * @param local The local address to bind to.
+     * @param remote The remote address to send to and receive from.
+     * @param mtu The path MTU.
+     * @return The socket.
+     * @throws IOException If we can't bind or connect.
+     */
+    static Socket newSocket(final SocketAddress local, 
+        final SocketAddress remote, final int mtu) throws IOException {
+        final DatagramChannel dc = newChannel(local, remote);
+        return new DatagramSocketWrapper(new DatagramChannelEndpoint(dc, mtu));
+    }
+
+    /**
+     * Wraps the endpoint with forward error correction if it's turned on.
+     * 
+     * @param endpoint The endpoint.
+     * @param dataShards The number of datagrams in each FEC group.
+     * @param parityShards The number of parity datagrams for each group,
+     * or zero for no FEC.
+     * @return The endpoint to use.
+     */
+    static IceDatagramEndpoint withFec(final IceDatagramEndpoint endpoint,
+        final int dataShards, final int parityShards) {
+        if (parityShards <= 0) {
+            return endpoint;
+        }
+        return new FecDatagramEndpoint(endpoint, dataShards, parityShards);
+    }
+
+    /**
+     * Creates a blocking datagram channel bound to the local address and
+     * connected to the remote address.
+     * 
+     * @param local The local address to bind to.
+     * @param remote The remote address to send to and receive from.
+     * @return The channel.
+     * @throws IOException If we can't bind or connect.
+     */
+    static DatagramChannel newChannel(final SocketAddress local, 
+        final SocketAddress remote) throws IOException {
+        final DatagramChannel dc = DatagramChannel.open();
+        try {
+            dc.configureBlocking(true);
+            dc.socket().bind(local);
+            dc.connect(remote);
+            return dc;
+        } catch (final IOException e) {
+            dc.close();
+            throw e;
+        }
+    }
     
     private static final class DatagramSocketWrapper extends Socket {
         
-        private final DatagramChannel dc;
+        private final IceDatagramEndpoint endpoint;
 
-        private DatagramSocketWrapper(final DatagramChannel dc) {
-            this.dc = dc;
-            
+        private final InputStream in;
+
+        private final OutputStream out;
+
+        private DatagramSocketWrapper(final IceDatagramEndpoint endpoint) {
+            this.endpoint = endpoint;
+            this.in = new DatagramSocketInputStreamWrapper(endpoint);
+            this.out = new DatagramSocketOutputStreamWrapper(endpoint);
         }
         
         @Override 
         public InputStream getInputStream() {
-            return new DatagramSocketInputStreamWrapper(this.dc);
+            return this.in;
         }
+
         @Override
         public OutputStream getOutputStream() {
-            return new DatagramSocketOutputStreamWrapper(this.dc);
+            return this.out;
         }
         
         @Override 
         public synchronized void close() {
-            try {
-                this.dc.close();
-            } catch (final IOException e) {
-            }
+            this.endpoint.close();
         }
     }
     
+    /**
+     * Reads datagrams as a stream. Each read returns at most one datagram,
+     * and any part of it that doesn't fit is lost, so callers that care
+     * about message boundaries should use {@link IceDatagramEndpoint}.
+     */
     private static final class DatagramSocketInputStreamWrapper 
         extends InputStream {
 
-        private final DatagramChannel dc;
+        private final IceDatagramEndpoint endpoint;
 
-        public DatagramSocketInputStreamWrapper(final DatagramChannel dc) {
-            this.dc = dc;
+        private final byte[] single = new byte[1];
+
+        public DatagramSocketInputStreamWrapper(
+            final IceDatagramEndpoint endpoint) {
+            this.endpoint = endpoint;
         }
 
         @Override
         public int read() throws IOException {
-            return read(new byte[1]);
+            // Skip empty datagrams so we don't report them as the end of
+            // the stream.
+            int read;
+            do {
+                read = read(single, 0, 1);
+            } while (read == 0);
+            if (read == -1) {
+                return -1;
+            }
+            return single[0] & 0xff;
         }
         
         @Override 
@@ -100,18 +221,24 @@ public class RawUdpSocketFactory implements UdpSocketFactory<Socket> {
         @Override 
         public int read(final byte[] byteArray, final int offset, 
             final int length) throws IOException {
-            return this.dc.read(ByteBuffer.wrap(byteArray, offset, length));
+            return this.endpoint.receive(
+                ByteBuffer.wrap(byteArray, offset, length));
         }
         
     }
     
+    /**
+     * Writes a stream as datagrams of at most the endpoint's maximum 
+     * message size.
+     */
     private static final class DatagramSocketOutputStreamWrapper
         extends OutputStream {
 
-        private final DatagramChannel dc;
+        private final IceDatagramEndpoint endpoint;
 
-        public DatagramSocketOutputStreamWrapper(final DatagramChannel dc) {
-            this.dc = dc;
+        public DatagramSocketOutputStreamWrapper(
+            final IceDatagramEndpoint endpoint) {
+            this.endpoint = endpoint;
         }
 
         @Override
@@ -127,11 +254,23 @@ public class RawUdpSocketFactory implements UdpSocketFactory<Socket> {
         @Override
         public void write(final byte[] byteArray, final int offset, 
             final int length) throws IOException {
-            // Note that in blocking mode this call is guaranteed to write 
-            // "length" bytes.
-            final int mtu = 1450;
-            final ByteBuffer[] srcs = ByteBufferUtils.toArray(byteArray, mtu);
-            this.dc.write(srcs, offset, length);
+            // Note that in blocking mode each send is guaranteed to write 
+            // the whole datagram.
+            final int max = this.endpoint.getMaxMessageSize();
+            int sent = 0;
+            while (sent < length) {
+                final int size = Math.min(max, length - sent);
+                this.endpoint.send(
+                    ByteBuffer.wrap(byteArray, offset + sent, size));
+                sent += size;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (this.endpoint instanceof FecDatagramEndpoint) {
+                ((FecDatagramEndpoint) this.endpoint).flush();
+            }
         }
     }
 }
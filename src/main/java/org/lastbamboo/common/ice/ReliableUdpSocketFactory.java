@@ -0,0 +1,137 @@
+package org.lastbamboo.common.ice;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.lastbamboo.common.ice.channel.IceMtu;
+import org.lastbamboo.common.ice.executor.IceExecutorRole;
+import org.lastbamboo.common.ice.executor.IceExecutors;
+import org.lastbamboo.common.ice.reliable.ReliableConnectListener;
+import org.lastbamboo.common.ice.reliable.ReliableEventLoop;
+import org.lastbamboo.common.ice.reliable.ReliableSocket;
+import org.lastbamboo.common.offer.answer.OfferAnswerListener;
+import org.littleshoot.mina.common.IoSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Factory for reliable stream sockets that run over the nominated UDP pair
+ * in pure Java, with no native library and no threads per connection. The
+ * connections are driven by a shared {@link ReliableEventLoop}, which
+ * handles retransmission, SACK, pacing and CUBIC congestion control.
+ * <p>
+ * As with the UDT factories, the controlling agent starts the handshake,
+ * but it keeps retrying until the controlled side is listening, so neither
+ * side needs to wait for the other before creating its end.
+ */
+public class ReliableUdpSocketFactory implements UdpSocketFactory<Socket> {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final ReliableEventLoop loop;
+
+    /**
+     * Creates a new factory using the shared event loop.
+     */
+    public ReliableUdpSocketFactory() {
+        this(null);
+    }
+
+    /**
+     * Creates a new factory that runs its connections on the specified
+     * event loop.
+     *
+     * @param loop The loop, or <code>null</code> for the shared loop.
+     */
+    public ReliableUdpSocketFactory(final ReliableEventLoop loop) {
+        this.loop = loop;
+    }
+
+    @Override
+    public void newEndpoint(final IoSession session, final boolean controlling,
+            final OfferAnswerListener<Socket> socketListener,
+            final IceStunUdpPeer stunUdpPeer, final IceAgent iceAgent) {
+        log.info("Creating new reliable UDP socket");
+        if (session == null) {
+            log.error("Null session: {}", session);
+            return;
+        }
+        // Read the MTU before releasing the session closes the agent.
+        final int mtu =
+            IceMtu.forSession(session, iceAgent.getNominatedPairs());
+
+        // Releasing the session sleeps while the other side finishes its
+        // checks, so we do it off the caller's thread.
+        final Runnable opener = new Runnable() {
+            @Override
+            public void run() {
+                BarchartUdtSocketFactory.releaseSession(session, controlling,
+                    stunUdpPeer, iceAgent);
+                connect(session, controlling, mtu, socketListener, iceAgent);
+            }
+        };
+        try {
+            IceExecutors.execute(IceExecutorRole.RELIABLE_SOCKET, opener);
+        } catch (final RejectedExecutionException e) {
+            log.error("Reliable socket pool saturated", e);
+            iceAgent.close();
+            socketListener.onOfferAnswerFailed(iceAgent);
+        }
+    }
+
+    private void connect(final IoSession session, final boolean controlling,
+            final int mtu, final OfferAnswerListener<Socket> socketListener,
+            final IceAgent iceAgent) {
+        final SocketAddress local = session.getLocalAddress();
+        final SocketAddress remote = session.getRemoteAddress();
+        final DatagramChannel dc;
+        final ReliableEventLoop eventLoop;
+        try {
+            eventLoop =
+                this.loop == null ? ReliableEventLoop.getShared() : this.loop;
+            dc = RawUdpSocketFactory.newChannel(local, remote);
+        } catch (final IOException e) {
+            log.info("Could not create reliable UDP socket", e);
+            socketListener.onOfferAnswerFailed(iceAgent);
+            return;
+        }
+        eventLoop.connect(dc, controlling, mtu, new ReliableConnectListener() {
+            @Override
+            public void onConnected(final ReliableSocket sock) {
+                log.debug("Reliable connection established: {}", sock);
+                // Get off the loop thread -- listeners may well block.
+                dispatch(new Runnable() {
+                    @Override
+                    public void run() {
+                        socketListener.onUdpSocket(sock);
+                    }
+                });
+            }
+
+            @Override
+            public void onConnectFailed(final IOException e) {
+                log.info("Reliable handshake failed with " + remote, e);
+                dispatch(new Runnable() {
+                    @Override
+                    public void run() {
+                        socketListener.onOfferAnswerFailed(iceAgent);
+                    }
+                });
+            }
+
+            private void dispatch(final Runnable runner) {
+                try {
+                    IceExecutors.execute(IceExecutorRole.RELIABLE_SOCKET,
+                        runner);
+                } catch (final RejectedExecutionException e) {
+                    log.error("Reliable socket pool saturated -- running " +
+                        "inline", e);
+                    runner.run();
+                }
+            }
+        });
+    }
+}
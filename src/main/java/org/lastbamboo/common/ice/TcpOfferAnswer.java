@@ -8,9 +8,9 @@ import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import javax.net.SocketFactory;
@@ -21,6 +21,12 @@ import org.lastbamboo.common.ice.candidate.IceCandidate;
 import org.lastbamboo.common.ice.candidate.IceCandidateVisitor;
 import org.lastbamboo.common.ice.candidate.IceCandidateVisitorAdapter;
 import org.lastbamboo.common.ice.candidate.IceTcpHostPassiveCandidate;
+import org.lastbamboo.common.ice.executor.IceExecutorRole;
+import org.lastbamboo.common.ice.executor.IceExecutors;
+import org.lastbamboo.common.ice.jfr.IceFlightRecorder;
+import org.lastbamboo.common.ice.jfr.IceJfrEventType;
+import org.lastbamboo.common.ice.metrics.IceNegotiationTimer;
+import org.lastbamboo.common.ice.metrics.IcePhase;
 import org.lastbamboo.common.ice.sdp.IceCandidateSdpDecoder;
 import org.lastbamboo.common.ice.sdp.IceCandidateSdpDecoderImpl;
 import org.lastbamboo.common.offer.answer.OfferAnswer;
@@ -51,20 +57,19 @@ public class TcpOfferAnswer<T> implements IceOfferAnswer,
     private PortMappedServerSocket portMappedServerSocket;
     private final MappedServerSocket mappedServerSocket;
     private final SocketFactory socketFactory;
-    
-    
-    private static final ExecutorService tcpIceServerThreadPool = 
-        Executors.newCachedThreadPool(new ThreadFactory() {
-            private int count = 0;
-            @Override
-            public Thread newThread(Runnable r) {
-                final Thread t = new Thread(r, 
-                    "TCP-Ice-Server-Thread-" + hashCode() +"-"+count);
-                t.setDaemon(true);
-                count++;
-                return t;
-            }
-        });
+
+    private final IceNegotiationTimer negotiationTimer = 
+        new IceNegotiationTimer();
+
+    /**
+     * The accept and connect attempts that could still give us a socket,
+     * plus one while we're starting connects to the remote candidates.
+     */
+    private final AtomicInteger pendingAttempts = new AtomicInteger();
+
+    private volatile boolean candidatesProcessed;
+
+    private final AtomicBoolean failureReported = new AtomicBoolean(false);
 
     /**
      * Creates a new TCP {@link OfferAnswer} class for processing offers and
@@ -122,6 +127,8 @@ public class TcpOfferAnswer<T> implements IceOfferAnswer,
             } catch (final IOException e) {
                 log.info("Exception closing socket", e);
             }
+        } else {
+            this.negotiationTimer.onFailed();
         }
     }
 
@@ -146,10 +153,13 @@ public class TcpOfferAnswer<T> implements IceOfferAnswer,
             public void run() {
                 // We just accept the single socket on this port instead of
                 // the typical "while (true)".
+                final Object event = 
+                    IceFlightRecorder.begin(IceJfrEventType.TCP_ACCEPT);
+                Socket sock = null;
                 try {
                     log.info("Waiting for incoming socket on: {}",
                             socketAddress);
-                    final Socket sock = ss.accept();
+                    sock = ss.accept();
                     
                     // Just for debugging.
                     if (sock instanceof SSLSocket) {
@@ -163,7 +173,10 @@ public class TcpOfferAnswer<T> implements IceOfferAnswer,
                         sock.getRemoteSocketAddress() +"!! Controlling: {}",
                         controlling);
                     sock.setKeepAlive(true);
-                    onSocket(sock);
+                    // We can't tell which of our candidates the peer 
+                    // connected to, or what kind of address it came from.
+                    onSocket(sock, "tcp-accept", IceNegotiationTimer.
+                        candidateTypes(null, null));
                 } catch (final IOException e) {
                     // This could also be a socket timeout because we limit
                     // the length of time allowed on accept calls.
@@ -171,6 +184,14 @@ public class TcpOfferAnswer<T> implements IceOfferAnswer,
                         "happen when the client side connects first, and we " +
                         "simply return the socket back to the pool.", e);
                 } finally {
+                    attemptEnded();
+                    if (event != null) {
+                        IceFlightRecorder.commit(event, 
+                            IceFlightRecorder.str(socketAddress),
+                            sock == null ? null : IceFlightRecorder.str(
+                                sock.getRemoteSocketAddress()),
+                            Boolean.valueOf(sock != null));
+                    }
                     // Adding back server socket. Note this is fine to do no
                     // matter what actual processing happened with the socket
                     // just received, as that's just an independent Socket, 
@@ -179,7 +200,18 @@ public class TcpOfferAnswer<T> implements IceOfferAnswer,
                 }
             }
         };
-        tcpIceServerThreadPool.execute(serverRunner);
+        this.pendingAttempts.incrementAndGet();
+        try {
+            IceExecutors.execute(IceExecutorRole.TCP_ACCEPT, serverRunner);
+        } catch (final RejectedExecutionException e) {
+            // We're not going to accept on this server socket, so just hand
+            // it back. The remote side can still reach us through the
+            // candidates we connect to.
+            log.warn("Accept pool saturated -- not listening on {}", 
+                socketAddress);
+            offererServer.addServerSocket(portMappedServerSocket);
+            attemptEnded();
+        }
     }
 
     public byte[] generateAnswer() {
@@ -225,6 +257,12 @@ public class TcpOfferAnswer<T> implements IceOfferAnswer,
             return;
         }
 
+        this.negotiationTimer.onChecksStarted();
+
+        // Hold off reporting failure until we've started connecting to 
+        // every candidate, in case the first attempts fail right away.
+        this.pendingAttempts.incrementAndGet();
+
         // OK, we've got the candidates. We'll now parallelize connection
         // attempts to all of them, taking the first to succeed. Note there's
         // typically a single local network candidate that will only succeed
@@ -243,6 +281,8 @@ public class TcpOfferAnswer<T> implements IceOfferAnswer,
         for (final IceCandidate candidate : remoteCandidates) {
             candidate.accept(visitor);
         }
+        this.candidatesProcessed = true;
+        attemptEnded();
     }
 
     private Object connectToCandidate(final IceCandidate candidate) {
@@ -253,6 +293,9 @@ public class TcpOfferAnswer<T> implements IceOfferAnswer,
         final Runnable threadRunner = new Runnable() {
             @Override
             public void run() {
+                final Object event = 
+                    IceFlightRecorder.begin(IceJfrEventType.TCP_CONNECT);
+                boolean connected = false;
                 Socket sock = null;
                 try {
                     log.info("Connecting to: {}", candidate);
@@ -271,10 +314,21 @@ public class TcpOfferAnswer<T> implements IceOfferAnswer,
                     
                     log.info("Client socket connected to: {}", 
                         sock.getRemoteSocketAddress());
-                    onSocket(sock);
+                    connected = true;
+                    // The local side of an outgoing connection isn't one of
+                    // our candidates.
+                    onSocket(sock, "tcp-connect", IceNegotiationTimer.
+                        candidateTypes(null, candidate.getType()));
                     // Close this at the end in case it throws an exception.
                 } catch (final IOException e) {
                     log.info("IO Exception connecting to: "+candidate, e);
+                } finally {
+                    attemptEnded();
+                    if (event != null) {
+                        IceFlightRecorder.commit(event, IceFlightRecorder.str(
+                            candidate.getSocketAddress()), 
+                            Boolean.valueOf(connected));
+                    }
                 }
             }
         };
@@ -286,19 +340,49 @@ public class TcpOfferAnswer<T> implements IceOfferAnswer,
         connectorThread.start();
         */
         
-        tcpIceServerThreadPool.execute(threadRunner);
+        this.pendingAttempts.incrementAndGet();
+        try {
+            IceExecutors.execute(IceExecutorRole.TCP_CONNECT, threadRunner);
+        } catch (final RejectedExecutionException e) {
+            log.warn("Connect pool saturated -- not connecting to {}", 
+                candidate);
+            attemptEnded();
+        }
         return null;
     }
 
+    /**
+     * Called whenever an accept or connect attempt finishes, whether it 
+     * worked or not. Once nothing's left that could give us a socket and
+     * we don't have one, we tell the listener TCP has failed, so it's not
+     * left waiting.
+     */
+    private void attemptEnded() {
+        if (this.pendingAttempts.decrementAndGet() > 0 || 
+            !this.candidatesProcessed || this.socketRef.get() != null) {
+            return;
+        }
+        if (this.failureReported.compareAndSet(false, true)) {
+            log.info("Every TCP attempt failed");
+            this.offerAnswerListener.onOfferAnswerFailed(this);
+        }
+    }
+
     /**
      * Provides unified socket handler for both incoming and outgoing sockets.
      * This primarily checks to see if a socket has already been set, closing
      * the new one if so.
      * 
      * @param sock The socket to process;
+     * @param transport Whether the socket was accepted or connected, for
+     * recording the negotiation timings.
+     * @param candidateTypes The candidate types of the socket, for 
+     * recording the negotiation timings.
      */
-    private void onSocket(final Socket sock) {
+    private void onSocket(final Socket sock, final String transport,
+        final String candidateTypes) {
         if (socketRef.compareAndSet(null, sock)) {
+            this.negotiationTimer.onSocket(transport, candidateTypes);
             log.info("Notifying listener of TCP socket: {}", 
                 this.offerAnswerListener);
             this.offerAnswerListener.onTcpSocket(sock);
@@ -330,6 +414,7 @@ public class TcpOfferAnswer<T> implements IceOfferAnswer,
     }
 
     public Collection<? extends IceCandidate> gatherCandidates() {
+        final long gatherStart = IceNegotiationTimer.now();
         final Collection<IceCandidate> candidates = 
             new ArrayList<IceCandidate>(2);
 
@@ -380,6 +465,7 @@ public class TcpOfferAnswer<T> implements IceOfferAnswer,
             log.info("Not adding public candidate. PA: "+publicIp + 
                 " mapped: " + mappedServerSocket.isPortMapped());
         }
+        this.negotiationTimer.record(IcePhase.GATHER, gatherStart);
         return candidates;
     }
 
@@ -6,11 +6,16 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.lastbamboo.common.ice.candidate.IceCandidate;
 import org.lastbamboo.common.ice.candidate.IceCandidateVisitor;
 import org.lastbamboo.common.ice.candidate.IceCandidateVisitorAdapter;
 import org.lastbamboo.common.ice.candidate.IceTcpRelayPassiveCandidate;
+import org.lastbamboo.common.ice.executor.IceExecutorRole;
+import org.lastbamboo.common.ice.executor.IceExecutors;
 import org.lastbamboo.common.ice.sdp.IceCandidateSdpDecoder;
 import org.lastbamboo.common.ice.sdp.IceCandidateSdpDecoderImpl;
 import org.lastbamboo.common.offer.answer.OfferAnswerListener;
@@ -32,8 +37,16 @@ public class TcpTurnOfferAnswer implements IceOfferAnswer {
     private final Logger m_log = LoggerFactory.getLogger(getClass());
     private final TcpTurnClient m_turnClient;
     private final boolean m_controlling;
-    private ByteBuffer m_encodedCandidates;
+    private volatile ByteBuffer m_encodedCandidates;
     private final OfferAnswerListener m_offerAnswerListener;
+    private final AtomicBoolean m_relayUsed = new AtomicBoolean(false);
+
+    /**
+     * The relay connects still running, plus one while we're starting them.
+     */
+    private final AtomicInteger m_pendingConnects = new AtomicInteger();
+    private final AtomicBoolean m_connected = new AtomicBoolean(false);
+    private final AtomicBoolean m_failureReported = new AtomicBoolean(false);
 
     /**
      * Creates a new TURN offer/answer.
@@ -147,16 +160,29 @@ public class TcpTurnOfferAnswer implements IceOfferAnswer {
                 return null;
             }
         };
+        // Hold off reporting failure until we've started every connect.
+        m_pendingConnects.incrementAndGet();
         for (final IceCandidate candidate : remoteCandidates) {
             candidate.accept(visitor);
         }
+        connectEnded();
     }
 
     public void useRelay() {
         m_log.info("Using relay");
+        if (this.m_encodedCandidates == null) {
+            m_log.info("No remote candidates yet -- ignoring relay request");
+            return;
+        }
+        // The relay can be started both by a connect policy timer and by an
+        // explicit call, so make sure we only ever connect once.
+        if (!m_relayUsed.compareAndSet(false, true)) {
+            m_log.debug("Already using relay");
+            return;
+        }
         // We wait until here to process the TURN candidates. If there is a
         // relay candidate, we'll connect to it.
-        processRemoteCandidates(this.m_encodedCandidates);
+        processRemoteCandidates(this.m_encodedCandidates.duplicate());
     }
 
     private void connectToCandidate(final IceCandidate candidate) {
@@ -172,15 +198,36 @@ public class TcpTurnOfferAnswer implements IceOfferAnswer {
                     sock = new Socket();
                     sock.connect(candidate.getSocketAddress(), 20 * 1000);
                     m_log.info("Connected to: {}", candidate);
+                    m_connected.set(true);
                     m_offerAnswerListener.onTcpSocket(sock);
                 } catch (final IOException e) {
                     m_log.warn("Could not connect to relay?", e);
+                } finally {
+                    connectEnded();
                 }
             }
         };
-        final Thread connectorThread = new Thread(threadRunner,
-                "ICE-TCP-Connect-" + candidate);
-        connectorThread.setDaemon(true);
-        connectorThread.start();
+        m_pendingConnects.incrementAndGet();
+        try {
+            IceExecutors.execute(IceExecutorRole.TURN_CONNECT, threadRunner);
+        } catch (final RejectedExecutionException e) {
+            m_log.warn("Relay connect pool saturated -- not connecting to {}",
+                candidate);
+            connectEnded();
+        }
+    }
+
+    /**
+     * Called whenever a relay connect finishes, whether it worked or not, 
+     * telling the listener once every connect has failed.
+     */
+    private void connectEnded() {
+        if (m_pendingConnects.decrementAndGet() > 0 || m_connected.get()) {
+            return;
+        }
+        if (m_failureReported.compareAndSet(false, true)) {
+            m_log.info("Every relay connect failed");
+            m_offerAnswerListener.onOfferAnswerFailed(this);
+        }
     }
 }
@@ -4,10 +4,13 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.channels.DatagramChannel;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.RejectedExecutionException;
 
+import org.lastbamboo.common.ice.clock.IceClocks;
+import org.lastbamboo.common.ice.executor.IceExecutorRole;
+import org.lastbamboo.common.ice.executor.IceExecutors;
+import org.lastbamboo.common.ice.jfr.IceFlightRecorder;
+import org.lastbamboo.common.ice.jfr.IceJfrEventType;
 import org.lastbamboo.common.offer.answer.OfferAnswerListener;
 import org.lastbamboo.common.stun.server.StunServer;
 import org.littleshoot.mina.common.IoAcceptor;
@@ -29,18 +32,6 @@ public class UdtSocketFactory implements UdpSocketFactory<Socket> {
     
     private final Logger log = LoggerFactory.getLogger(getClass());
     
-    private final ExecutorService m_threadPool = 
-        Executors.newCachedThreadPool(new ThreadFactory() {
-            private int threadNumber = 0;
-            public Thread newThread(final Runnable r) {
-                final Thread t = 
-                    new Thread(r, "UDT-Socket-Accept-Thread-"+threadNumber);
-                t.setDaemon(true);
-                threadNumber++;
-                return t;
-            }
-        });
-    
     @Override
     public void newEndpoint(final IoSession session, final boolean controlling,
         final OfferAnswerListener<Socket> socketListener, 
@@ -67,7 +58,7 @@ public class UdtSocketFactory implements UdpSocketFactory<Socket> {
             final long sleepTime = 1200;
             log.info("Client side sleeping for {} milliseconds", sleepTime);
             try {
-                Thread.sleep(sleepTime);
+                IceClocks.get().sleep(sleepTime);
             } catch (final InterruptedException e) {
                 log.warn("Sleep interrupted?", e);
             }
@@ -83,19 +74,21 @@ public class UdtSocketFactory implements UdpSocketFactory<Socket> {
             log.debug("Creating UDT client socket on CONTROLLED agent.");
             final Runnable clientRunner = new Runnable() {
                 public void run() {
+                    final Object event = 
+                        IceFlightRecorder.begin(IceJfrEventType.UDT_HANDOFF);
+                    boolean success = false;
                     try {
                         // openClientSocket(session, socketListener);
                         openServerSocket(session, socketListener);
+                        success = true;
                     } catch (final Throwable t) {
                         log.error("Client socket exception", t);
+                    } finally {
+                        commitHandoff(event, session, "server", success);
                     }
                 }
             };
-
-            final Thread udtClientThread = new Thread(clientRunner,
-                    "UDT Client Thread");
-            udtClientThread.setDaemon(true);
-            udtClientThread.start();
+            execute(clientRunner, socketListener, iceAgent);
         } else {
             // This actually happens second in the ICE process -- the
             // controlled agent is notified to start sending media first!
@@ -107,18 +100,42 @@ public class UdtSocketFactory implements UdpSocketFactory<Socket> {
             // need to start a new thread.
             final Runnable serverRunner = new Runnable() {
                 public void run() {
+                    final Object event = 
+                        IceFlightRecorder.begin(IceJfrEventType.UDT_HANDOFF);
+                    boolean success = false;
                     try {
                         // openServerSocket(session, socketListener);
                         openClientSocket(session, socketListener);
+                        success = true;
                     } catch (final Throwable t) {
                         log.error("Server socket exception", t);
+                    } finally {
+                        commitHandoff(event, session, "client", success);
                     }
                 }
             };
-            final Thread serverThread = new Thread(serverRunner,
-                    "UDT Accepting Thread");
-            serverThread.setDaemon(true);
-            serverThread.start();
+            execute(serverRunner, socketListener, iceAgent);
+        }
+    }
+
+    private void commitHandoff(final Object event, final IoSession session,
+        final String mode, final boolean success) {
+        if (event != null) {
+            IceFlightRecorder.commit(event, 
+                IceFlightRecorder.str(session.getLocalAddress()),
+                IceFlightRecorder.str(session.getRemoteAddress()), mode, 
+                Boolean.valueOf(success));
+        }
+    }
+
+    private void execute(final Runnable runner, 
+        final OfferAnswerListener<Socket> socketListener,
+        final IceAgent iceAgent) {
+        try {
+            IceExecutors.execute(IceExecutorRole.UDT_SOCKET, runner);
+        } catch (final RejectedExecutionException e) {
+            log.error("UDT socket pool saturated -- failing", e);
+            socketListener.onOfferAnswerFailed(iceAgent);
         }
     }
 
@@ -160,7 +177,15 @@ public class UdtSocketFactory implements UdpSocketFactory<Socket> {
                 local.getPort());
 
         final UDTSocket sock = server.accept();
-        m_threadPool.execute(new RequestRunner(socketListener, sock));
+        final RequestRunner runner = new RequestRunner(socketListener, sock);
+        try {
+            IceExecutors.execute(IceExecutorRole.UDT_SOCKET, runner);
+        } catch (final RejectedExecutionException e) {
+            // We already have the socket, so just hand it off on this 
+            // thread.
+            log.info("UDT socket pool saturated -- notifying directly");
+            runner.run();
+        }
     }
 
     public static class RequestRunner implements Runnable {
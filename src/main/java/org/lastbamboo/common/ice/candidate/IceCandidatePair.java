@@ -3,6 +3,7 @@ package org.lastbamboo.common.ice.candidate;
 import org.littleshoot.mina.common.IoSession;
 import org.littleshoot.stun.stack.message.BindingRequest;
 import org.littleshoot.stun.stack.message.StunMessage;
+import org.littleshoot.stun.stack.message.attributes.StunAttribute;
 
 /**
  * Interface for a pair of ICE candidates.
@@ -124,6 +125,33 @@ public interface IceCandidatePair extends Comparable<IceCandidatePair>
 
     StunMessage check(BindingRequest request, long rto);
 
+    /**
+     * Probes the path MTU to the remote candidate with padded Binding 
+     * Requests over the connection from the last check, recording the 
+     * result on the pair. This blocks while the probes are outstanding.
+     * 
+     * @param priority The PRIORITY attribute to include in each request.
+     * @param role The ICE-CONTROLLING or ICE-CONTROLLED attribute to 
+     * include in each request.
+     * @return The path MTU in bytes, or -1 if it couldn't be determined.
+     */
+    int probeMtu(StunAttribute priority, StunAttribute role);
+
+    /**
+     * Accessor for the path MTU found by {@link #probeMtu}.
+     * 
+     * @return The path MTU in bytes, or -1 if it hasn't been probed.
+     */
+    int getMtu();
+
+    /**
+     * Accessor for the round trip time and loss the checks on this pair 
+     * have seen so far.
+     * 
+     * @return The path stats.
+     */
+    IcePathStats getPathStats();
+
     void close();
 
     IoSession getIoSession();
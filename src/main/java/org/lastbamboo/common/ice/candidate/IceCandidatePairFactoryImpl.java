@@ -1,6 +1,7 @@
 package org.lastbamboo.common.ice.candidate;
 
 import org.lastbamboo.common.ice.IceStunCheckerFactory;
+import org.lastbamboo.common.ice.trace.IceTraceBuffer;
 import org.lastbamboo.common.ice.transport.IceUdpConnector;
 
 /**
@@ -11,6 +12,7 @@ public class IceCandidatePairFactoryImpl implements IceCandidatePairFactory
     
     private final IceStunCheckerFactory m_checkerFactory;
     private final IceUdpConnector m_udpConnector;
+    private final IceTraceBuffer m_trace;
 
     /**
      * Creates a new pair factory.
@@ -22,14 +24,32 @@ public class IceCandidatePairFactoryImpl implements IceCandidatePairFactory
         final IceStunCheckerFactory checkerFactory,
         final IceUdpConnector udpConnector)
         {
+        this(checkerFactory, udpConnector, IceTraceBuffer.DISABLED);
+        }
+
+    /**
+     * Creates a new pair factory that records pair events.
+     * 
+     * @param checkerFactory The factory for creating connectivity checkers.
+     * @param udpConnector The class for creating UDP "connections" for pairs.
+     * @param trace The agent's trace buffer.
+     */
+    public IceCandidatePairFactoryImpl(
+        final IceStunCheckerFactory checkerFactory,
+        final IceUdpConnector udpConnector, final IceTraceBuffer trace)
+        {
         m_checkerFactory = checkerFactory;
         m_udpConnector = udpConnector;
+        m_trace = trace;
         }
 
     public IceCandidatePair newPair(final IceCandidate localCandidate,
         final IceCandidate remoteCandidate)
         {
-        return new IceUdpCandidatePair(localCandidate, remoteCandidate, 
-            this.m_checkerFactory, this.m_udpConnector);
+        final IceUdpCandidatePair pair = 
+            new IceUdpCandidatePair(localCandidate, remoteCandidate, 
+                this.m_checkerFactory, this.m_udpConnector);
+        pair.setTraceBuffer(this.m_trace);
+        return pair;
         }
     }
@@ -0,0 +1,95 @@
+package org.lastbamboo.common.ice.candidate;
+
+import java.util.Collection;
+
+import org.littleshoot.mina.common.IoSession;
+
+/**
+ * A snapshot of what the connectivity checks on a pair saw of its path:
+ * the smoothed round trip time of the Binding Requests that were answered
+ * first time, and how many requests went to checks that were never
+ * answered.
+ */
+public class IcePathStats {
+
+    /**
+     * Stats for a pair nothing is known about yet.
+     */
+    public static final IcePathStats UNKNOWN = new IcePathStats(-1L, 0L, 0L);
+
+    private final long rttMicros;
+
+    private final long requestsSent;
+
+    private final long requestsLost;
+
+    /**
+     * Creates a new snapshot.
+     *
+     * @param rttMicros The smoothed round trip time in microseconds, or -1
+     * if there's no sample yet.
+     * @param requestsSent The number of requests sent, counting
+     * retransmissions.
+     * @param requestsLost The number of those sent for checks that were
+     * never answered.
+     */
+    public IcePathStats(final long rttMicros, final long requestsSent,
+        final long requestsLost) {
+        this.rttMicros = rttMicros;
+        this.requestsSent = requestsSent;
+        this.requestsLost = requestsLost;
+    }
+
+    /**
+     * Finds the stats of the nominated pair with the specified session.
+     *
+     * @param session The session of the nominated pair.
+     * @param nominatedPairs The agent's nominated pairs.
+     * @return The pair's stats, or {@link #UNKNOWN} if there's no such pair.
+     */
+    public static IcePathStats forSession(final IoSession session,
+        final Collection<IceCandidatePair> nominatedPairs) {
+        if (nominatedPairs != null) {
+            for (final IceCandidatePair pair : nominatedPairs) {
+                if (pair.getIoSession() == session) {
+                    return pair.getPathStats();
+                }
+            }
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * Accessor for the smoothed round trip time.
+     *
+     * @return The round trip time in microseconds, or -1 if unknown.
+     */
+    public long getRttMicros() {
+        return rttMicros;
+    }
+
+    public long getRequestsSent() {
+        return requestsSent;
+    }
+
+    public long getRequestsLost() {
+        return requestsLost;
+    }
+
+    /**
+     * Accessor for the share of requests sent for checks that were never
+     * answered.
+     *
+     * @return The loss rate, from 0 to 1.
+     */
+    public double getLossRate() {
+        return requestsSent == 0 ? 0.0 : (double) requestsLost / requestsSent;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " [rttMicros=" + rttMicros
+            + ", requestsSent=" + requestsSent + ", requestsLost="
+            + requestsLost + "]";
+    }
+}
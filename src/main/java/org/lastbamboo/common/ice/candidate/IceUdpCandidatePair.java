@@ -5,11 +5,17 @@ import java.net.InetSocketAddress;
 import org.littleshoot.mina.common.IoSession;
 import org.lastbamboo.common.ice.IceStunChecker;
 import org.lastbamboo.common.ice.IceStunCheckerFactory;
+import org.lastbamboo.common.ice.clock.IceClock;
+import org.lastbamboo.common.ice.trace.IceTraceBuffer;
+import org.lastbamboo.common.ice.trace.IceTraceEvent;
 import org.lastbamboo.common.ice.transport.IceConnector;
+import org.littleshoot.stun.stack.message.BindingErrorResponse;
 import org.littleshoot.stun.stack.message.BindingRequest;
+import org.littleshoot.stun.stack.message.BindingSuccessResponse;
 import org.littleshoot.stun.stack.message.CanceledStunMessage;
 import org.littleshoot.stun.stack.message.ConnectErrorStunMessage;
 import org.littleshoot.stun.stack.message.StunMessage;
+import org.littleshoot.stun.stack.message.attributes.StunAttribute;
 import org.lastbamboo.common.turn.client.TurnStunMessageMapper;
 import org.littleshoot.util.NetworkUtils;
 import org.slf4j.Logger;
@@ -48,6 +54,18 @@ public class IceUdpCandidatePair implements IceCandidatePair {
     private volatile boolean m_transactionCanceled = false;
 
     private boolean m_nominateOnSuccess;
+
+    private volatile IceTraceBuffer m_trace = IceTraceBuffer.DISABLED;
+
+    private volatile int m_mtu = -1;
+
+    private final Object m_pathLock = new Object();
+
+    private long m_srttMicros = -1L;
+
+    private long m_requestsSent;
+
+    private long m_requestsLost;
     
     
     /**
@@ -115,13 +133,8 @@ public class IceUdpCandidatePair implements IceCandidatePair {
     }
 
     public StunMessage check(final BindingRequest request, final long rto) {
-        // We set the state here instead of in the check list scheduler
-        // because it's more precise and because the scheduler doesn't perform
-        // a subsequent check until after this check has executed, so it won't
-        // think a pair is waiting for frozen twice in a row (as opposed to
-        // in progress).
-        setState(IceCandidatePairState.IN_PROGRESS);
-
+        // The scheduler moves the pair to IN_PROGRESS on the agent's event
+        // loop before handing it to us, so this thread only does the I/O.
         final InetSocketAddress remoteAddress = this.m_remoteCandidate
                 .getSocketAddress();
         if (this.m_ioSession == null) {
@@ -163,12 +176,26 @@ public class IceUdpCandidatePair implements IceCandidatePair {
         m_log.debug("Creating new STUN checker...");
         this.m_currentStunChecker = this.m_stunCheckerFactory
                 .newChecker(this.m_ioSession);
+        this.m_currentStunChecker.setTrace(this.m_trace, this);
 
         // This check is necessary because it's possible for the transaction
         // to be canceled before the STUN checker has been constructed.
         if (!this.m_transactionCanceled) {
             m_log.debug("Writing request...");
-            return this.m_currentStunChecker.write(request, rto);
+            // Time the transaction on the checker's clock, since that's the
+            // clock it waits for the response on.
+            final IceClock clock = this.m_currentStunChecker.getClock();
+            final long start = clock.nanoTime();
+            this.m_trace.record(IceTraceEvent.REQUEST_SENT, this, null, rto);
+            final StunMessage response = 
+                this.m_currentStunChecker.write(request, rto);
+            final long elapsed = (clock.nanoTime() - start) / 1000L;
+            this.m_trace.record(IceTraceEvent.RESPONSE, this, response, 
+                elapsed);
+            recordPath(this.m_currentStunChecker.getRequestCount(), 
+                response instanceof BindingSuccessResponse || 
+                response instanceof BindingErrorResponse, elapsed);
+            return response;
         } else {
             // A single cancellation works for only one transaction, so reset
             // the canceled state here to false.
@@ -178,6 +205,74 @@ public class IceUdpCandidatePair implements IceCandidatePair {
         }
     }
 
+    public int probeMtu(final StunAttribute priority, 
+        final StunAttribute role) {
+        final IceStunChecker checker = this.m_currentStunChecker;
+        if (checker == null) {
+            m_log.debug("No checker to probe with");
+            return -1;
+        }
+        final int mtu = checker.probeMtu(priority, role);
+        this.m_trace.record(IceTraceEvent.MTU_PROBED, this, null, mtu);
+        if (mtu > 0) {
+            this.m_mtu = mtu;
+        }
+        return mtu;
+    }
+
+    public int getMtu() {
+        return this.m_mtu;
+    }
+
+    public IcePathStats getPathStats() {
+        synchronized (this.m_pathLock) {
+            return new IcePathStats(this.m_srttMicros, this.m_requestsSent,
+                this.m_requestsLost);
+        }
+    }
+
+    /**
+     * Records what a check saw of the path. Only requests answered first 
+     * time give round trip samples, since we can't tell which send a 
+     * response to a retransmitted request answers. For the same reason an 
+     * answered check counts no loss -- its early requests may just have 
+     * beaten the remote side's own checks. Only checks that were never 
+     * answered count their requests as lost, and only once the path has 
+     * answered at all -- before that they're just the remote side not being
+     * there yet.
+     */
+    private void recordPath(final int requests, final boolean answered,
+        final long elapsedMicros) {
+        if (requests <= 0) {
+            return;
+        }
+        synchronized (this.m_pathLock) {
+            if (answered) {
+                this.m_requestsSent += requests;
+                if (requests == 1) {
+                    if (this.m_srttMicros < 0) {
+                        this.m_srttMicros = elapsedMicros;
+                    } else {
+                        this.m_srttMicros += 
+                            (elapsedMicros - this.m_srttMicros) / 8;
+                    }
+                }
+            } else if (this.m_requestsSent > 0) {
+                this.m_requestsSent += requests;
+                this.m_requestsLost += requests;
+            }
+        }
+    }
+
+    /**
+     * Sets the buffer to record this pair's state changes and checks in.
+     * 
+     * @param trace The agent's trace buffer.
+     */
+    public void setTraceBuffer(final IceTraceBuffer trace) {
+        this.m_trace = trace;
+    }
+
     public void useCandidate() {
         this.m_useCandidate = true;
     }
@@ -227,6 +322,7 @@ public class IceUdpCandidatePair implements IceCandidatePair {
                     state);
         }
         this.m_state = state;
+        this.m_trace.record(IceTraceEvent.PAIR_STATE, this, state);
         if (state == IceCandidatePairState.FAILED) {
             m_log.debug("Setting state to failed, closing checker");
             close();
@@ -294,6 +390,11 @@ public class IceUdpCandidatePair implements IceCandidatePair {
         sb.append("\n");
         sb.append("nominated:           ");
         sb.append(this.m_nominated);
+        if (this.m_mtu > 0) {
+            sb.append("\n");
+            sb.append("mtu:                 ");
+            sb.append(this.m_mtu);
+        }
         return sb.toString();
     }
 
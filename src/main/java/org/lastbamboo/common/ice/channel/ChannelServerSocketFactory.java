@@ -0,0 +1,52 @@
+package org.lastbamboo.common.ice.channel;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+
+import javax.net.ServerSocketFactory;
+
+/**
+ * Server socket factory for server sockets with a
+ * {@link ServerSocketChannel} underneath them. Sockets they accept have
+ * channels too, so incoming TCP connections can be handed out as channels.
+ * Pass this to the offerer server pool in place of the default factory.
+ */
+public class ChannelServerSocketFactory extends ServerSocketFactory {
+
+    @Override
+    public ServerSocket createServerSocket() throws IOException {
+        return ServerSocketChannel.open().socket();
+    }
+
+    @Override
+    public ServerSocket createServerSocket(final int port) throws IOException {
+        return bind(new InetSocketAddress(port), 50);
+    }
+
+    @Override
+    public ServerSocket createServerSocket(final int port, final int backlog)
+        throws IOException {
+        return bind(new InetSocketAddress(port), backlog);
+    }
+
+    @Override
+    public ServerSocket createServerSocket(final int port, final int backlog,
+        final InetAddress ifAddress) throws IOException {
+        return bind(new InetSocketAddress(ifAddress, port), backlog);
+    }
+
+    private ServerSocket bind(final InetSocketAddress address,
+        final int backlog) throws IOException {
+        final ServerSocket ss = createServerSocket();
+        try {
+            ss.bind(address, backlog);
+            return ss;
+        } catch (final IOException e) {
+            ss.close();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package org.lastbamboo.common.ice.channel;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+
+import javax.net.SocketFactory;
+
+/**
+ * Socket factory for sockets with a {@link SocketChannel} underneath them,
+ * so TCP connections ICE makes can be handed out as channels. The sockets
+ * start in blocking mode and behave like any other socket until then.
+ */
+public class ChannelSocketFactory extends SocketFactory {
+
+    @Override
+    public Socket createSocket() throws IOException {
+        return SocketChannel.open().socket();
+    }
+
+    @Override
+    public Socket createSocket(final String host, final int port)
+        throws IOException {
+        return connect(new InetSocketAddress(host, port), null);
+    }
+
+    @Override
+    public Socket createSocket(final InetAddress host, final int port)
+        throws IOException {
+        return connect(new InetSocketAddress(host, port), null);
+    }
+
+    @Override
+    public Socket createSocket(final String host, final int port,
+        final InetAddress localHost, final int localPort) throws IOException {
+        return connect(new InetSocketAddress(host, port),
+            new InetSocketAddress(localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(final InetAddress address, final int port,
+        final InetAddress localAddress, final int localPort)
+        throws IOException {
+        return connect(new InetSocketAddress(address, port),
+            new InetSocketAddress(localAddress, localPort));
+    }
+
+    private Socket connect(final InetSocketAddress remote,
+        final InetSocketAddress local) throws IOException {
+        final Socket sock = createSocket();
+        try {
+            if (local != null) {
+                sock.bind(local);
+            }
+            sock.connect(remote);
+            return sock;
+        } catch (final IOException e) {
+            sock.close();
+            throw e;
+        }
+    }
+}
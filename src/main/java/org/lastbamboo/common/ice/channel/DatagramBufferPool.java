@@ -0,0 +1,74 @@
+package org.lastbamboo.common.ice.channel;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of direct buffers sized for datagrams, for use with
+ * {@link IceDatagramEndpoint}. Direct buffers are expensive to allocate and
+ * free, so datagram loops should take buffers from here and hand them back
+ * rather than allocating per message.
+ */
+public class DatagramBufferPool {
+
+    private final Queue<ByteBuffer> buffers =
+        new ConcurrentLinkedQueue<ByteBuffer>();
+
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    private final int bufferSize;
+
+    private final int maxPooled;
+
+    /**
+     * Creates a new pool.
+     *
+     * @param bufferSize The capacity of each buffer. Use the endpoint's
+     * maximum message size, or more to receive from peers with a larger MTU
+     * without truncating.
+     * @param maxPooled The most idle buffers to keep.
+     */
+    public DatagramBufferPool(final int bufferSize, final int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Takes a cleared buffer from the pool, allocating one if the pool is
+     * empty.
+     *
+     * @return The buffer.
+     */
+    public ByteBuffer acquire() {
+        final ByteBuffer buf = buffers.poll();
+        if (buf == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        pooled.decrementAndGet();
+        return buf;
+    }
+
+    /**
+     * Returns a buffer to the pool. Buffers of the wrong size and buffers
+     * beyond the pool's limit are left for the garbage collector.
+     *
+     * @param buf The buffer.
+     */
+    public void release(final ByteBuffer buf) {
+        if (buf.capacity() != bufferSize || !buf.isDirect()) {
+            return;
+        }
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        buf.clear();
+        buffers.offer(buf);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
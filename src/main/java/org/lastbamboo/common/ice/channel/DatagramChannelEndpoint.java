@@ -0,0 +1,132 @@
+package org.lastbamboo.common.ice.channel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link IceDatagramEndpoint} on a connected {@link DatagramChannel}.
+ */
+public class DatagramChannelEndpoint implements IceDatagramEndpoint {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final DatagramChannel channel;
+
+    private final int mtu;
+
+    private final int maxMessageSize;
+
+    /**
+     * Creates a new endpoint.
+     *
+     * @param channel The channel, which must already be connected.
+     * @param mtu The path MTU to size messages for.
+     */
+    public DatagramChannelEndpoint(final DatagramChannel channel,
+        final int mtu) {
+        if (!channel.isConnected()) {
+            throw new IllegalArgumentException("Channel not connected");
+        }
+        this.channel = channel;
+        this.mtu = mtu;
+        final InetSocketAddress remote = (InetSocketAddress)
+            channel.socket().getRemoteSocketAddress();
+        this.maxMessageSize = IceMtu.maxPayload(mtu, remote.getAddress());
+    }
+
+    public int send(final ByteBuffer message) throws IOException {
+        checkSize(message);
+        return channel.write(message);
+    }
+
+    public int send(final ByteBuffer[] messages, final int offset,
+        final int length) throws IOException {
+        checkBounds(messages.length, offset, length);
+        int sent = 0;
+        for (int i = offset; i < offset + length; i++) {
+            final ByteBuffer message = messages[i];
+            checkSize(message);
+            // Empty messages also write zero bytes, so only a non-empty one
+            // writing nothing means the socket buffer is full.
+            final int bytes = message.remaining();
+            if (channel.write(message) == 0 && bytes > 0) {
+                break;
+            }
+            sent++;
+        }
+        return sent;
+    }
+
+    public int receive(final ByteBuffer dst) throws IOException {
+        final int start = dst.position();
+        // We use receive rather than read because it tells an empty
+        // datagram apart from no datagram at all.
+        if (channel.receive(dst) == null) {
+            return -1;
+        }
+        return dst.position() - start;
+    }
+
+    public int receive(final ByteBuffer[] dsts, final int offset,
+        final int length) throws IOException {
+        checkBounds(dsts.length, offset, length);
+        int received = 0;
+        for (int i = offset; i < offset + length; i++) {
+            if (receive(dsts[i]) == -1) {
+                break;
+            }
+            received++;
+            if (channel.isBlocking()) {
+                // Anything more could block indefinitely.
+                break;
+            }
+        }
+        return received;
+    }
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    public int getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    public DatagramChannel getChannel() {
+        return channel;
+    }
+
+    public void close() {
+        try {
+            channel.close();
+        } catch (final IOException e) {
+            log.info("Exception closing channel", e);
+        }
+    }
+
+    private void checkSize(final ByteBuffer message) {
+        if (message.remaining() > maxMessageSize) {
+            throw new IllegalArgumentException("Message of " +
+                message.remaining() + " bytes is larger than the maximum " +
+                maxMessageSize + " for an MTU of " + mtu);
+        }
+    }
+
+    private static void checkBounds(final int arrayLength, final int offset,
+        final int length) {
+        if (offset < 0 || length < 0 || offset > arrayLength - length) {
+            throw new IndexOutOfBoundsException("offset: " + offset +
+                " length: " + length + " array length: " + arrayLength);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " " + channel + " mtu: " + mtu;
+    }
+}
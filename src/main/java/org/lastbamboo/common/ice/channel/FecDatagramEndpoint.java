@@ -0,0 +1,527 @@
+package org.lastbamboo.common.ice.channel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Adds forward error correction to a datagram endpoint, so lost messages
+ * can be rebuilt on the receiving side without waiting a round trip for a
+ * retransmission. Messages are sent in groups: each goes out immediately
+ * with a small header, and after every group of data messages we send the
+ * configured number of Reed-Solomon parity datagrams. Any lost messages in
+ * a group, up to the number of parity datagrams, are rebuilt as soon as
+ * enough of the group arrives. With one parity datagram this is the usual
+ * XOR scheme.
+ * <p>
+ * Received messages are delivered as they arrive, and rebuilt ones as soon
+ * as they're rebuilt, so they may arrive out of order -- as with any UDP.
+ * The overhead is parity / data in bandwidth plus eight bytes a message,
+ * and the gain depends on losses within a group being few and independent.
+ * <p>
+ * Traffic that pauses mid-group should call {@link #flush()} at the end of
+ * each burst, such as each media frame, so the last messages before the
+ * pause are protected too. Both sides must wrap their endpoints with the
+ * same group sizes -- datagrams from an endpoint without FEC are dropped.
+ */
+public class FecDatagramEndpoint implements IceDatagramEndpoint {
+
+    private static final byte DATA = (byte) 0xFD;
+
+    private static final byte PARITY = (byte) 0xFE;
+
+    /**
+     * Type, group size, parity count, index and a four byte group number.
+     */
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * The length prefix of a data shard, which lets us rebuild messages of
+     * different sizes from parity padded to the largest.
+     */
+    private static final int LENGTH_SIZE = 2;
+
+    /**
+     * How many recent groups we keep for recovery.
+     */
+    private static final int WINDOW = 16;
+
+    private final IceDatagramEndpoint endpoint;
+
+    private final int dataShards;
+
+    private final int parityShards;
+
+    private final int maxMessageSize;
+
+    private final int shardCapacity;
+
+    private final AtomicLong dataSent = new AtomicLong();
+
+    private final AtomicLong paritySent = new AtomicLong();
+
+    private final AtomicLong dataReceived = new AtomicLong();
+
+    private final AtomicLong parityReceived = new AtomicLong();
+
+    private final AtomicLong recovered = new AtomicLong();
+
+    private final AtomicLong lost = new AtomicLong();
+
+    // Send side, guarded by the send lock.
+
+    private final Object sendLock = new Object();
+
+    private final ByteBuffer sendBuffer;
+
+    private final byte[] shard;
+
+    private final byte[][] parity;
+
+    private int sendGroup;
+
+    private int sendCount;
+
+    private int sendShardLength;
+
+    // Receive side, guarded by the receive lock.
+
+    private final Object receiveLock = new Object();
+
+    private final ByteBuffer receiveBuffer;
+
+    private final Group[] groups = new Group[WINDOW];
+
+    private final int[] pending;
+
+    private int pendingHead;
+
+    private int pendingCount;
+
+    private int highestGroup;
+
+    private boolean haveGroup;
+
+    private final class Group {
+
+        private int id;
+
+        private boolean used;
+
+        private int count;
+
+        private int parityCount;
+
+        private int shardLength;
+
+        private int maxIndex;
+
+        private int received;
+
+        private int parityReceived;
+
+        private int rebuilt;
+
+        private final byte[][] shards =
+            new byte[dataShards + parityShards][shardCapacity];
+
+        private final int[] lengths = new int[dataShards + parityShards];
+
+        private final boolean[] present =
+            new boolean[dataShards + parityShards];
+
+        private void reset(final int groupId) {
+            this.id = groupId;
+            this.used = true;
+            this.count = -1;
+            this.parityCount = 0;
+            this.shardLength = -1;
+            this.maxIndex = -1;
+            this.received = 0;
+            this.parityReceived = 0;
+            this.rebuilt = 0;
+            Arrays.fill(this.present, false);
+        }
+    }
+
+    /**
+     * Creates a new FEC endpoint.
+     *
+     * @param endpoint The endpoint to send and receive on.
+     * @param dataShards The number of data messages in a group.
+     * @param parityShards The number of parity datagrams sent for each
+     * group, and so the most losses in a group we can recover from.
+     */
+    public FecDatagramEndpoint(final IceDatagramEndpoint endpoint,
+        final int dataShards, final int parityShards) {
+        if (dataShards < 1 || dataShards > ReedSolomonCode.MAX_DATA_SHARDS) {
+            throw new IllegalArgumentException("Bad data shards: " +
+                dataShards);
+        }
+        if (parityShards < 1 ||
+            parityShards > ReedSolomonCode.MAX_PARITY_SHARDS) {
+            throw new IllegalArgumentException("Bad parity shards: " +
+                parityShards);
+        }
+        this.endpoint = endpoint;
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        // Parity covers the length prefix as well as the message.
+        this.shardCapacity = endpoint.getMaxMessageSize() - HEADER_SIZE;
+        this.maxMessageSize = this.shardCapacity - LENGTH_SIZE;
+        this.sendBuffer = ByteBuffer.allocate(endpoint.getMaxMessageSize());
+        this.receiveBuffer =
+            ByteBuffer.allocate(endpoint.getMaxMessageSize());
+        this.shard = new byte[this.shardCapacity];
+        this.parity = new byte[parityShards][this.shardCapacity];
+        this.pending = new int[dataShards];
+        for (int i = 0; i < WINDOW; i++) {
+            this.groups[i] = new Group();
+        }
+    }
+
+    public int send(final ByteBuffer message) throws IOException {
+        final int length = message.remaining();
+        if (length > this.maxMessageSize) {
+            throw new IllegalArgumentException("Message of " + length +
+                " bytes is larger than the maximum " + this.maxMessageSize);
+        }
+        synchronized (this.sendLock) {
+            this.shard[0] = (byte) (length >>> 8);
+            this.shard[1] = (byte) length;
+            message.duplicate().get(this.shard, LENGTH_SIZE, length);
+
+            this.sendBuffer.clear();
+            header(this.sendBuffer, DATA, this.dataShards, this.sendCount);
+            this.sendBuffer.put(this.shard, LENGTH_SIZE, length);
+            this.sendBuffer.flip();
+            if (this.endpoint.send(this.sendBuffer) == 0) {
+                return 0;
+            }
+            message.position(message.limit());
+            this.dataSent.incrementAndGet();
+
+            final int shardLength = LENGTH_SIZE + length;
+            for (int i = 0; i < this.parityShards; i++) {
+                GaloisField.mulAdd(this.parity[i], this.shard,
+                    ReedSolomonCode.coefficient(i, this.sendCount),
+                    shardLength);
+            }
+            this.sendShardLength = Math.max(this.sendShardLength,
+                shardLength);
+            this.sendCount++;
+            if (this.sendCount == this.dataShards) {
+                sendParity();
+            }
+            return length;
+        }
+    }
+
+    public int send(final ByteBuffer[] messages, final int offset,
+        final int length) throws IOException {
+        int sent = 0;
+        for (int i = offset; i < offset + length; i++) {
+            final int bytes = messages[i].remaining();
+            if (send(messages[i]) == 0 && bytes > 0) {
+                break;
+            }
+            sent++;
+        }
+        return sent;
+    }
+
+    /**
+     * Sends the parity for the messages of the current group so far, and
+     * starts a new group. Call this at the end of each burst of messages.
+     *
+     * @throws IOException If there's an error sending.
+     */
+    public void flush() throws IOException {
+        synchronized (this.sendLock) {
+            if (this.sendCount > 0) {
+                sendParity();
+            }
+        }
+    }
+
+    private void sendParity() throws IOException {
+        try {
+            for (int i = 0; i < this.parityShards; i++) {
+                this.sendBuffer.clear();
+                // Parity tells the receiver how many data shards the group
+                // really had, since flushed groups can be short.
+                header(this.sendBuffer, PARITY, this.sendCount, i);
+                this.sendBuffer.put(this.parity[i], 0, this.sendShardLength);
+                this.sendBuffer.flip();
+                // Parity is best effort -- if the socket buffer is full we
+                // just go without.
+                if (this.endpoint.send(this.sendBuffer) > 0) {
+                    this.paritySent.incrementAndGet();
+                }
+            }
+        } finally {
+            for (int i = 0; i < this.parityShards; i++) {
+                Arrays.fill(this.parity[i], 0, this.sendShardLength,
+                    (byte) 0);
+            }
+            this.sendGroup++;
+            this.sendCount = 0;
+            this.sendShardLength = 0;
+        }
+    }
+
+    private void header(final ByteBuffer buf, final byte type,
+        final int count, final int index) {
+        buf.put(type);
+        buf.put((byte) count);
+        buf.put((byte) this.parityShards);
+        buf.put((byte) index);
+        buf.putInt(this.sendGroup);
+    }
+
+    public int receive(final ByteBuffer dst) throws IOException {
+        synchronized (this.receiveLock) {
+            while (true) {
+                if (this.pendingCount > 0) {
+                    return deliverPending(dst);
+                }
+                this.receiveBuffer.clear();
+                if (this.endpoint.receive(this.receiveBuffer) == -1) {
+                    return -1;
+                }
+                this.receiveBuffer.flip();
+                final int delivered = onDatagram(this.receiveBuffer, dst);
+                if (delivered >= 0) {
+                    return delivered;
+                }
+            }
+        }
+    }
+
+    public int receive(final ByteBuffer[] dsts, final int offset,
+        final int length) throws IOException {
+        int received = 0;
+        for (int i = offset; i < offset + length; i++) {
+            if (receive(dsts[i]) == -1) {
+                break;
+            }
+            received++;
+            if (getChannel().isBlocking()) {
+                break;
+            }
+        }
+        return received;
+    }
+
+    /**
+     * Handles a received datagram.
+     *
+     * @return The number of bytes delivered to the destination, or -1 if
+     * the datagram didn't carry a message for the application.
+     */
+    private int onDatagram(final ByteBuffer buf, final ByteBuffer dst) {
+        if (buf.remaining() < HEADER_SIZE) {
+            return -1;
+        }
+        final byte type = buf.get();
+        final int count = buf.get() & 0xff;
+        final int parityCount = buf.get() & 0xff;
+        final int index = buf.get() & 0xff;
+        final int groupId = buf.getInt();
+        if (type == DATA) {
+            final int length = buf.remaining();
+            final Group group = compatible(count, parityCount) ?
+                group(groupId) : null;
+            if (group != null && index < this.dataShards &&
+                group.present[index]) {
+                // Either a duplicate or a late arrival we already rebuilt
+                // and delivered.
+                return -1;
+            }
+            this.dataReceived.incrementAndGet();
+            if (group != null && index < this.dataShards) {
+                final byte[] data = group.shards[index];
+                data[0] = (byte) (length >>> 8);
+                data[1] = (byte) length;
+                buf.duplicate().get(data, LENGTH_SIZE, length);
+                group.lengths[index] = LENGTH_SIZE + length;
+                group.present[index] = true;
+                group.received++;
+                group.maxIndex = Math.max(group.maxIndex, index);
+                recover(group);
+            }
+            return copy(buf, dst);
+        }
+        if (type == PARITY) {
+            this.parityReceived.incrementAndGet();
+            if (!compatible(count, parityCount) || count == 0 ||
+                index >= this.parityShards ||
+                buf.remaining() > this.shardCapacity) {
+                return -1;
+            }
+            final Group group = group(groupId);
+            if (group == null || group.present[this.dataShards + index]) {
+                return -1;
+            }
+            final int length = buf.remaining();
+            if (group.shardLength != -1 && group.shardLength != length) {
+                return -1;
+            }
+            group.shardLength = length;
+            group.count = count;
+            group.parityCount = parityCount;
+            buf.get(group.shards[this.dataShards + index], 0, length);
+            group.present[this.dataShards + index] = true;
+            group.parityReceived++;
+            recover(group);
+        }
+        return -1;
+    }
+
+    private boolean compatible(final int count, final int parityCount) {
+        return count <= this.dataShards && parityCount == this.parityShards;
+    }
+
+    /**
+     * Finds the group for a packet, evicting older groups as new ones
+     * arrive.
+     *
+     * @return The group, or <code>null</code> if it's already too old.
+     */
+    private Group group(final int id) {
+        if (!this.haveGroup) {
+            this.haveGroup = true;
+            this.highestGroup = id;
+        }
+        if (id - this.highestGroup > 0) {
+            // Groups we skipped entirely were most likely lost entirely,
+            // barring reordering across whole groups. We can't know how
+            // many messages a flushed group had, so we count it as full,
+            // which makes the lost count an estimate.
+            final long skipped = id - this.highestGroup - 1L;
+            if (skipped > 0) {
+                this.lost.addAndGet(skipped * this.dataShards);
+            }
+            this.highestGroup = id;
+        } else if (this.highestGroup - id >= WINDOW) {
+            return null;
+        }
+        final Group group = this.groups[id & (WINDOW - 1)];
+        if (!group.used || group.id != id) {
+            if (group.used) {
+                retire(group);
+            }
+            group.reset(id);
+        }
+        return group;
+    }
+
+    private void retire(final Group group) {
+        final int count = group.count >= 0 ? group.count : group.maxIndex + 1;
+        final int missing = count - group.received - group.rebuilt;
+        if (missing > 0) {
+            this.lost.addAndGet(missing);
+        }
+    }
+
+    private void recover(final Group group) {
+        if (group.count < 0 || group.received + group.rebuilt >= group.count
+            || group.received + group.parityReceived < group.count) {
+            return;
+        }
+        // Data shards are shorter than the parity when their messages
+        // were, so pad them out first.
+        for (int j = 0; j < group.count; j++) {
+            if (group.present[j] && group.lengths[j] > group.shardLength) {
+                // Doesn't match the parity, so something's corrupt.
+                return;
+            }
+        }
+        for (int j = 0; j < group.count; j++) {
+            if (group.present[j]) {
+                Arrays.fill(group.shards[j], group.lengths[j],
+                    group.shardLength, (byte) 0);
+            }
+        }
+        final boolean[] before = group.present.clone();
+        if (!ReedSolomonCode.reconstruct(group.shards, group.present,
+            group.count, this.dataShards, group.parityCount,
+            group.shardLength)) {
+            return;
+        }
+        final int slot = group.id & (WINDOW - 1);
+        for (int j = 0; j < group.count; j++) {
+            if (before[j]) {
+                continue;
+            }
+            final byte[] data = group.shards[j];
+            final int length = ((data[0] & 0xff) << 8) | (data[1] & 0xff);
+            if (length > group.shardLength - LENGTH_SIZE) {
+                // Corrupt -- don't hand it out.
+                group.present[j] = false;
+                continue;
+            }
+            group.lengths[j] = LENGTH_SIZE + length;
+            group.rebuilt++;
+            this.recovered.incrementAndGet();
+            this.pending[(this.pendingHead + this.pendingCount) %
+                this.pending.length] = slot * 256 + j;
+            this.pendingCount++;
+        }
+    }
+
+    private int deliverPending(final ByteBuffer dst) {
+        final int entry = this.pending[this.pendingHead];
+        this.pendingHead = (this.pendingHead + 1) % this.pending.length;
+        this.pendingCount--;
+        final Group group = this.groups[entry / 256];
+        final int index = entry % 256;
+        final int length = group.lengths[index] - LENGTH_SIZE;
+        return copy(ByteBuffer.wrap(group.shards[index], LENGTH_SIZE, length),
+            dst);
+    }
+
+    private static int copy(final ByteBuffer src, final ByteBuffer dst) {
+        // As with a datagram, whatever doesn't fit is discarded.
+        final int n = Math.min(src.remaining(), dst.remaining());
+        final ByteBuffer slice = src.duplicate();
+        slice.limit(slice.position() + n);
+        dst.put(slice);
+        return n;
+    }
+
+    /**
+     * Accessor for a snapshot of the loss and recovery counters.
+     *
+     * @return The counters.
+     */
+    public FecStats getStats() {
+        return new FecStats(this.dataSent.get(), this.paritySent.get(),
+            this.dataReceived.get(), this.parityReceived.get(),
+            this.recovered.get(), this.lost.get());
+    }
+
+    public int getMtu() {
+        return this.endpoint.getMtu();
+    }
+
+    public int getMaxMessageSize() {
+        return this.maxMessageSize;
+    }
+
+    public DatagramChannel getChannel() {
+        return this.endpoint.getChannel();
+    }
+
+    public void close() {
+        this.endpoint.close();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " " + this.dataShards + "+" +
+            this.parityShards + " over " + this.endpoint;
+    }
+}
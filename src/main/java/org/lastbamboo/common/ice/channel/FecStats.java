@@ -0,0 +1,98 @@
+package org.lastbamboo.common.ice.channel;
+
+/**
+ * A snapshot of the forward error correction counters of a
+ * {@link FecDatagramEndpoint}.
+ */
+public class FecStats {
+
+    private final long dataSent;
+
+    private final long paritySent;
+
+    private final long dataReceived;
+
+    private final long parityReceived;
+
+    private final long recovered;
+
+    private final long lost;
+
+    /**
+     * Creates a new snapshot.
+     *
+     * @param dataSent The number of data messages sent.
+     * @param paritySent The number of parity datagrams sent.
+     * @param dataReceived The number of data messages received directly.
+     * @param parityReceived The number of parity datagrams received.
+     * @param recovered The number of lost data messages rebuilt from
+     * parity.
+     * @param lost An estimate of the number of data messages lost for
+     * good. Groups that vanish entirely count as full groups, so this can
+     * be high when flushed groups are lost.
+     */
+    public FecStats(final long dataSent, final long paritySent,
+        final long dataReceived, final long parityReceived,
+        final long recovered, final long lost) {
+        this.dataSent = dataSent;
+        this.paritySent = paritySent;
+        this.dataReceived = dataReceived;
+        this.parityReceived = parityReceived;
+        this.recovered = recovered;
+        this.lost = lost;
+    }
+
+    public long getDataSent() {
+        return dataSent;
+    }
+
+    public long getParitySent() {
+        return paritySent;
+    }
+
+    public long getDataReceived() {
+        return dataReceived;
+    }
+
+    public long getParityReceived() {
+        return parityReceived;
+    }
+
+    public long getRecovered() {
+        return recovered;
+    }
+
+    public long getLost() {
+        return lost;
+    }
+
+    /**
+     * Accessor for the share of data messages the network lost, before
+     * any were recovered.
+     *
+     * @return The raw loss rate, from 0 to 1.
+     */
+    public double getLossRate() {
+        final long total = dataReceived + recovered + lost;
+        return total == 0 ? 0.0 : (double) (recovered + lost) / total;
+    }
+
+    /**
+     * Accessor for the share of data messages we couldn't recover -- what
+     * the application actually sees.
+     *
+     * @return The residual loss rate, from 0 to 1.
+     */
+    public double getResidualLossRate() {
+        final long total = dataReceived + recovered + lost;
+        return total == 0 ? 0.0 : (double) lost / total;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " [dataSent=" + dataSent
+            + ", paritySent=" + paritySent + ", dataReceived=" + dataReceived
+            + ", parityReceived=" + parityReceived + ", recovered="
+            + recovered + ", lost=" + lost + "]";
+    }
+}
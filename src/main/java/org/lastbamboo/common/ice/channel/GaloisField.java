@@ -0,0 +1,78 @@
+package org.lastbamboo.common.ice.channel;
+
+/**
+ * Arithmetic in GF(2^8) with the polynomial x^8 + x^4 + x^3 + x^2 + 1, the
+ * field Reed-Solomon codes usually work in. Addition is XOR, and we keep a
+ * full multiplication table so coding a buffer is one table lookup per
+ * byte.
+ */
+final class GaloisField {
+
+    private static final int POLYNOMIAL = 0x11D;
+
+    private static final int[] EXP = new int[512];
+
+    private static final int[] LOG = new int[256];
+
+    private static final byte[][] MUL = new byte[256][256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= 256) {
+                x ^= POLYNOMIAL;
+            }
+        }
+        for (int i = 255; i < EXP.length; i++) {
+            EXP[i] = EXP[i - 255];
+        }
+        for (int a = 1; a < 256; a++) {
+            for (int b = 1; b < 256; b++) {
+                MUL[a][b] = (byte) EXP[LOG[a] + LOG[b]];
+            }
+        }
+    }
+
+    private GaloisField() {
+        // Only static methods.
+    }
+
+    static int mul(final int a, final int b) {
+        return MUL[a][b] & 0xff;
+    }
+
+    static int inv(final int a) {
+        if (a == 0) {
+            throw new ArithmeticException("Zero has no inverse");
+        }
+        return EXP[255 - LOG[a]];
+    }
+
+    /**
+     * Adds the source times the coefficient to the destination.
+     *
+     * @param dst The buffer to add to.
+     * @param src The buffer to multiply and add.
+     * @param coefficient The field element to multiply by.
+     * @param length The number of bytes.
+     */
+    static void mulAdd(final byte[] dst, final byte[] src,
+        final int coefficient, final int length) {
+        if (coefficient == 0) {
+            return;
+        }
+        if (coefficient == 1) {
+            for (int i = 0; i < length; i++) {
+                dst[i] ^= src[i];
+            }
+            return;
+        }
+        final byte[] row = MUL[coefficient];
+        for (int i = 0; i < length; i++) {
+            dst[i] ^= row[src[i] & 0xff];
+        }
+    }
+}
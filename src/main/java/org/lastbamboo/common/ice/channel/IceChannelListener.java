@@ -0,0 +1,61 @@
+package org.lastbamboo.common.ice.channel;
+
+import java.net.Socket;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+
+import org.lastbamboo.common.offer.answer.OfferAnswer;
+
+import com.barchart.udt.nio.SocketChannelUDT;
+
+/**
+ * Listener for the selectable channels ICE establishes, for applications
+ * that drive their connections from a selector or event loop rather than
+ * from a thread per socket. Every channel is connected and in non-blocking
+ * mode by the time it's delivered, and the listener owns it from then on.
+ * <p>
+ * Use {@link IceChannelListenerAdapter} to plug one of these in wherever an
+ * offer/answer listener is expected.
+ */
+public interface IceChannelListener {
+
+    /**
+     * Called when a direct TCP connection is established.
+     *
+     * @param channel The connected TCP channel.
+     */
+    void onTcpChannel(SocketChannel channel);
+
+    /**
+     * Called when ICE nominates an unreliable UDP pair. The channel is bound
+     * to the local address of the pair and connected to the remote one.
+     *
+     * @param channel The connected UDP channel.
+     */
+    void onUdpChannel(DatagramChannel channel);
+
+    /**
+     * Called when a reliable UDT connection is established on top of a
+     * nominated UDP pair.
+     *
+     * @param channel The connected UDT channel. Register it with a selector
+     * from the UDT selector provider, not the default one.
+     */
+    void onUdtChannel(SocketChannelUDT channel);
+
+    /**
+     * Called for connections that don't have a channel underneath them,
+     * such as SSL sockets, TURN relayed sockets, and sockets from socket
+     * factories that don't create channels.
+     *
+     * @param sock The connected socket.
+     */
+    void onSocket(Socket sock);
+
+    /**
+     * Called when the offer/answer exchange fails to produce a connection.
+     *
+     * @param offerAnswer The offer/answer that failed.
+     */
+    void onOfferAnswerFailed(OfferAnswer offerAnswer);
+}
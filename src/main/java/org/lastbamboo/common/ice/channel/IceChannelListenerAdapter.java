@@ -0,0 +1,97 @@
+package org.lastbamboo.common.ice.channel;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SocketChannel;
+
+import org.lastbamboo.common.offer.answer.OfferAnswer;
+import org.lastbamboo.common.offer.answer.OfferAnswerListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.barchart.udt.nio.SocketChannelUDT;
+
+/**
+ * Adapts an {@link IceChannelListener} to the offer/answer listener the ICE
+ * factories notify, switching each connection to non-blocking mode and
+ * dispatching it by channel type.
+ * <p>
+ * UDP endpoints arrive as channels when the offer/answer factory uses the
+ * channel endpoint factories. TCP connections always arrive as sockets, and
+ * we hand out the socket's channel when it has one, which is the case for
+ * sockets from {@link ChannelSocketFactory} and
+ * {@link ChannelServerSocketFactory}. Everything else goes to
+ * {@link IceChannelListener#onSocket(Socket)}.
+ */
+public class IceChannelListenerAdapter
+    implements OfferAnswerListener<SelectableChannel> {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final IceChannelListener channelListener;
+
+    /**
+     * Creates a new adapter.
+     *
+     * @param channelListener The listener to notify of channels.
+     */
+    public IceChannelListenerAdapter(
+        final IceChannelListener channelListener) {
+        this.channelListener = channelListener;
+    }
+
+    public void onTcpSocket(final Socket sock) {
+        // SSL sockets never report a channel, even when they're layered
+        // over a socket that has one.
+        final SocketChannel channel = sock.getChannel();
+        if (channel == null) {
+            channelListener.onSocket(sock);
+            return;
+        }
+        if (nonBlocking(channel)) {
+            channelListener.onTcpChannel(channel);
+        }
+    }
+
+    public void onUdpSocket(final SelectableChannel channel) {
+        if (!nonBlocking(channel)) {
+            return;
+        }
+        // UDT channels are also socket channels, so check for them first.
+        if (channel instanceof SocketChannelUDT) {
+            channelListener.onUdtChannel((SocketChannelUDT) channel);
+        } else if (channel instanceof DatagramChannel) {
+            channelListener.onUdpChannel((DatagramChannel) channel);
+        } else if (channel instanceof SocketChannel) {
+            channelListener.onTcpChannel((SocketChannel) channel);
+        } else {
+            log.warn("Unexpected channel type: {}", channel);
+            close(channel);
+        }
+    }
+
+    public void onOfferAnswerFailed(final OfferAnswer offerAnswer) {
+        channelListener.onOfferAnswerFailed(offerAnswer);
+    }
+
+    private boolean nonBlocking(final SelectableChannel channel) {
+        try {
+            channel.configureBlocking(false);
+            return true;
+        } catch (final IOException e) {
+            log.info("Could not switch channel to non-blocking mode", e);
+            close(channel);
+            return false;
+        }
+    }
+
+    private void close(final SelectableChannel channel) {
+        try {
+            channel.close();
+        } catch (final IOException e) {
+            log.info("Exception closing channel", e);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.lastbamboo.common.ice.channel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * A datagram endpoint on a nominated UDP pair that keeps message boundaries
+ * intact. Each send is exactly one datagram and each receive is exactly one
+ * datagram, and both work directly on caller-supplied buffers, so callers
+ * can use pooled direct buffers and never copy through the heap.
+ * <p>
+ * Whether calls block follows the blocking mode of the underlying channel.
+ */
+public interface IceDatagramEndpoint {
+
+    /**
+     * Sends the remaining bytes of the buffer as a single datagram. The JDK
+     * doesn't send empty datagrams on connected channels, so empty messages
+     * are silently dropped.
+     *
+     * @param message The message to send.
+     * @return The number of bytes sent, which is either all of them or, for
+     * a non-blocking channel without room in the socket buffer, zero.
+     * @throws IOException If there's an error sending.
+     * @throws IllegalArgumentException If the message is larger than
+     * {@link #getMaxMessageSize()}.
+     */
+    int send(ByteBuffer message) throws IOException;
+
+    /**
+     * Sends each buffer as its own datagram, stopping early if a
+     * non-blocking channel runs out of room.
+     *
+     * @param messages The messages to send.
+     * @param offset The index of the first message to send.
+     * @param length The number of messages to send.
+     * @return The number of messages sent.
+     * @throws IOException If there's an error sending.
+     * @throws IllegalArgumentException If a message is larger than
+     * {@link #getMaxMessageSize()}. Messages before it are still sent.
+     */
+    int send(ByteBuffer[] messages, int offset, int length)
+        throws IOException;
+
+    /**
+     * Receives a single datagram into the buffer. Any part of the datagram
+     * that doesn't fit in the remaining space is discarded, so buffers
+     * should have room for at least {@link #getMaxMessageSize()} bytes.
+     *
+     * @param dst The buffer to receive into.
+     * @return The number of bytes received, or -1 if a non-blocking channel
+     * has nothing to receive. Zero is a valid, empty datagram.
+     * @throws IOException If there's an error receiving.
+     */
+    int receive(ByteBuffer dst) throws IOException;
+
+    /**
+     * Receives up to one datagram into each buffer. A blocking channel
+     * blocks for the first datagram only, and a non-blocking one returns as
+     * soon as there's nothing more to receive.
+     *
+     * @param dsts The buffers to receive into.
+     * @param offset The index of the first buffer to use.
+     * @param length The number of buffers to use.
+     * @return The number of datagrams received, each in its own buffer.
+     * @throws IOException If there's an error receiving.
+     */
+    int receive(ByteBuffer[] dsts, int offset, int length) throws IOException;
+
+    /**
+     * Accessor for the path MTU this endpoint sizes messages for.
+     *
+     * @return The IP MTU in bytes.
+     */
+    int getMtu();
+
+    /**
+     * Accessor for the largest message that fits in a single unfragmented
+     * datagram on the path.
+     *
+     * @return The maximum message size in bytes.
+     */
+    int getMaxMessageSize();
+
+    /**
+     * Accessor for the underlying channel, for registering with a selector
+     * or changing its blocking mode.
+     *
+     * @return The channel.
+     */
+    DatagramChannel getChannel();
+
+    /**
+     * Closes the endpoint and its channel.
+     */
+    void close();
+}
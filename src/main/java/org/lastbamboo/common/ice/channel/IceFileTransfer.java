@@ -0,0 +1,264 @@
+package org.lastbamboo.common.ice.channel;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.SocketChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.barchart.udt.SocketUDT;
+import com.barchart.udt.net.NetSocketUDT;
+import com.barchart.udt.nio.SocketChannelUDT;
+
+/**
+ * Sends and receives files over the endpoints ICE hands out without
+ * copying the file through the Java heap where the endpoint allows it. UDT
+ * endpoints use UDT's native file transfer, which reads and writes the
+ * file from inside the library, and TCP endpoints with a channel use
+ * {@link FileChannel#transferTo} and {@link FileChannel#transferFrom}, which
+ * the kernel can do with sendfile and splice. Anything else, such as
+ * an SSL socket, falls back to copying through a buffer, so callers don't
+ * need to care which kind of endpoint they have.
+ * <p>
+ * All of these block until the whole range is transferred, so channels
+ * must be in blocking mode.
+ */
+public final class IceFileTransfer {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(IceFileTransfer.class);
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private IceFileTransfer() {
+        // Only static methods.
+    }
+
+    /**
+     * Accessor for whether transfers over a socket avoid copying through
+     * the heap.
+     *
+     * @param socket The socket.
+     * @return <code>true</code> if the socket transfers files without
+     * copying, otherwise <code>false</code>.
+     */
+    public static boolean isZeroCopy(final Socket socket) {
+        return socket instanceof NetSocketUDT || socket.getChannel() != null;
+    }
+
+    /**
+     * Sends part of a file over a socket.
+     *
+     * @param socket The connected socket.
+     * @param file The file to send.
+     * @param offset Where in the file to start.
+     * @param length The number of bytes to send.
+     * @return The number of bytes sent, which is always the length.
+     * @throws IOException If the file or the socket fails.
+     */
+    public static long sendFile(final Socket socket, final File file,
+        final long offset, final long length) throws IOException {
+        if (socket instanceof NetSocketUDT) {
+            return sendFile(((NetSocketUDT) socket).socketUDT(), file, offset,
+                length);
+        }
+        final SocketChannel channel = socket.getChannel();
+        if (channel != null) {
+            return sendFile(channel, file, offset, length);
+        }
+        LOG.debug("No zero copy path for {} -- copying", socket);
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(offset);
+            final OutputStream os = socket.getOutputStream();
+            final byte[] buf = new byte[COPY_BUFFER_SIZE];
+            long sent = 0;
+            while (sent < length) {
+                final int read = raf.read(buf, 0,
+                    (int) Math.min(buf.length, length - sent));
+                if (read == -1) {
+                    throw new EOFException("File ended after " + sent);
+                }
+                os.write(buf, 0, read);
+                sent += read;
+            }
+            os.flush();
+            return sent;
+        } finally {
+            close(raf);
+        }
+    }
+
+    /**
+     * Sends part of a file over a channel.
+     *
+     * @param channel The connected channel, in blocking mode.
+     * @param file The file to send.
+     * @param offset Where in the file to start.
+     * @param length The number of bytes to send.
+     * @return The number of bytes sent, which is always the length.
+     * @throws IOException If the file or the channel fails.
+     */
+    public static long sendFile(final SocketChannel channel, final File file,
+        final long offset, final long length) throws IOException {
+        if (!channel.isBlocking()) {
+            throw new IllegalBlockingModeException();
+        }
+        if (channel instanceof SocketChannelUDT) {
+            return sendFile(((SocketChannelUDT) channel).socketUDT(), file,
+                offset, length);
+        }
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel fc = raf.getChannel();
+            long sent = 0;
+            while (sent < length) {
+                final long n =
+                    fc.transferTo(offset + sent, length - sent, channel);
+                if (n <= 0) {
+                    // Only happens at the end of the file.
+                    throw new EOFException("File ended after " + sent);
+                }
+                sent += n;
+            }
+            return sent;
+        } finally {
+            close(raf);
+        }
+    }
+
+    /**
+     * Receives part of a file from a socket, writing it into the file at
+     * the specified offset.
+     *
+     * @param socket The connected socket.
+     * @param file The file to write to. It's created if it doesn't exist.
+     * @param offset Where in the file to start writing.
+     * @param length The number of bytes to receive.
+     * @return The number of bytes received, which is always the length.
+     * @throws IOException If the file or the socket fails, including if the
+     * other side closes the connection before sending everything.
+     */
+    public static long receiveFile(final Socket socket, final File file,
+        final long offset, final long length) throws IOException {
+        if (socket instanceof NetSocketUDT) {
+            return receiveFile(((NetSocketUDT) socket).socketUDT(), file,
+                offset, length);
+        }
+        final SocketChannel channel = socket.getChannel();
+        if (channel != null) {
+            return receiveFile(channel, file, offset, length);
+        }
+        LOG.debug("No zero copy path for {} -- copying", socket);
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(offset);
+            final InputStream is = socket.getInputStream();
+            final byte[] buf = new byte[COPY_BUFFER_SIZE];
+            long received = 0;
+            while (received < length) {
+                final int read = is.read(buf, 0,
+                    (int) Math.min(buf.length, length - received));
+                if (read == -1) {
+                    throw new EOFException("Connection closed after " +
+                        received);
+                }
+                raf.write(buf, 0, read);
+                received += read;
+            }
+            return received;
+        } finally {
+            close(raf);
+        }
+    }
+
+    /**
+     * Receives part of a file from a channel, writing it into the file at
+     * the specified offset.
+     *
+     * @param channel The connected channel, in blocking mode.
+     * @param file The file to write to. It's created if it doesn't exist.
+     * @param offset Where in the file to start writing.
+     * @param length The number of bytes to receive.
+     * @return The number of bytes received, which is always the length.
+     * @throws IOException If the file or the channel fails, including if
+     * the other side closes the connection before sending everything.
+     */
+    public static long receiveFile(final SocketChannel channel,
+        final File file, final long offset, final long length)
+        throws IOException {
+        if (!channel.isBlocking()) {
+            throw new IllegalBlockingModeException();
+        }
+        if (channel instanceof SocketChannelUDT) {
+            return receiveFile(((SocketChannelUDT) channel).socketUDT(), file,
+                offset, length);
+        }
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // transferFrom won't write past the end of the file.
+            if (raf.length() < offset) {
+                raf.setLength(offset);
+            }
+            final FileChannel fc = raf.getChannel();
+            long received = 0;
+            while (received < length) {
+                final long n = fc.transferFrom(channel, offset + received,
+                    length - received);
+                if (n <= 0) {
+                    // A blocking read only comes up empty at the end.
+                    throw new EOFException("Connection closed after " +
+                        received);
+                }
+                received += n;
+            }
+            return received;
+        } finally {
+            close(raf);
+        }
+    }
+
+    private static long sendFile(final SocketUDT socket, final File file,
+        final long offset, final long length) throws IOException {
+        long sent = 0;
+        while (sent < length) {
+            final long n =
+                socket.sendFile(file, offset + sent, length - sent);
+            if (n <= 0) {
+                throw new IOException("UDT sent nothing after " + sent);
+            }
+            sent += n;
+        }
+        return sent;
+    }
+
+    private static long receiveFile(final SocketUDT socket, final File file,
+        final long offset, final long length) throws IOException {
+        long received = 0;
+        while (received < length) {
+            final long n =
+                socket.receiveFile(file, offset + received, length - received);
+            if (n <= 0) {
+                throw new EOFException("Connection closed after " + received);
+            }
+            received += n;
+        }
+        return received;
+    }
+
+    private static void close(final RandomAccessFile raf) {
+        try {
+            raf.close();
+        } catch (final IOException e) {
+            LOG.debug("Exception closing file", e);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package org.lastbamboo.common.ice.channel;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.Collection;
+
+import org.lastbamboo.common.ice.candidate.IceCandidatePair;
+import org.littleshoot.mina.common.IoSession;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * MTU helpers for datagram endpoints. Sizes here are IP MTUs, so they
+ * include the IP and UDP headers that {@link #maxPayload(int, InetAddress)}
+ * takes back off.
+ */
+public final class IceMtu {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IceMtu.class);
+
+    /**
+     * The smallest MTU every IPv4 host must accept.
+     */
+    public static final int MIN_IPV4_MTU = 576;
+
+    /**
+     * The smallest MTU every IPv6 link must carry.
+     */
+    public static final int MIN_IPV6_MTU = 1280;
+
+    /**
+     * The Ethernet MTU, which is as much as we ever assume without probing.
+     */
+    public static final int ETHERNET_MTU = 1500;
+
+    private static final int IPV4_HEADER = 20;
+
+    private static final int IPV6_HEADER = 40;
+
+    private static final int UDP_HEADER = 8;
+
+    private IceMtu() {
+        // Only static methods.
+    }
+
+    /**
+     * Works out the MTU to start from for a path out of the specified local
+     * address. This is the MTU of the interface the address belongs to,
+     * capped at the Ethernet MTU since the path beyond the first hop is
+     * usually no better, and never less than the protocol minimum.
+     *
+     * @param local The local address of the path.
+     * @return The MTU to use until something better is known.
+     */
+    public static int forLocalAddress(final SocketAddress local) {
+        if (!(local instanceof InetSocketAddress)) {
+            return MIN_IPV4_MTU;
+        }
+        final InetAddress address = ((InetSocketAddress) local).getAddress();
+        final int floor = minimum(address);
+        if (address == null || address.isAnyLocalAddress()) {
+            return floor;
+        }
+        try {
+            final NetworkInterface ni =
+                NetworkInterface.getByInetAddress(address);
+            if (ni == null) {
+                return floor;
+            }
+            final int mtu = ni.getMTU();
+            if (mtu <= 0) {
+                return floor;
+            }
+            return Math.max(floor, Math.min(ETHERNET_MTU, mtu));
+        } catch (final SocketException e) {
+            LOG.debug("Could not read interface MTU for " + address, e);
+            return floor;
+        }
+    }
+
+    /**
+     * Works out the MTU for the session of a nominated pair, using the MTU
+     * probed during checks if there is one and otherwise falling back to
+     * {@link #forLocalAddress(SocketAddress)}.
+     *
+     * @param session The session of the nominated pair.
+     * @param nominatedPairs The agent's nominated pairs.
+     * @return The MTU to use.
+     */
+    public static int forSession(final IoSession session,
+        final Collection<IceCandidatePair> nominatedPairs) {
+        if (nominatedPairs != null) {
+            for (final IceCandidatePair pair : nominatedPairs) {
+                if (pair.getIoSession() == session && pair.getMtu() > 0) {
+                    return pair.getMtu();
+                }
+            }
+        }
+        return forLocalAddress(session.getLocalAddress());
+    }
+
+    /**
+     * Accessor for the smallest MTU the protocol of the address guarantees.
+     *
+     * @param address The address.
+     * @return The minimum MTU.
+     */
+    public static int minimum(final InetAddress address) {
+        return address instanceof Inet6Address ? MIN_IPV6_MTU : MIN_IPV4_MTU;
+    }
+
+    /**
+     * Converts an MTU to the largest UDP payload that fits in it without
+     * fragmenting.
+     *
+     * @param mtu The IP MTU.
+     * @param address An address on the path, for the IP header size.
+     * @return The largest payload in bytes.
+     */
+    public static int maxPayload(final int mtu, final InetAddress address) {
+        final int ip =
+            address instanceof Inet6Address ? IPV6_HEADER : IPV4_HEADER;
+        return mtu - ip - UDP_HEADER;
+    }
+}
@@ -0,0 +1,148 @@
+package org.lastbamboo.common.ice.channel;
+
+/**
+ * A systematic Reed-Solomon erasure code built from a Cauchy matrix. Data
+ * shards go out as they are, and parity shard i is the sum over the data
+ * shards j of shard j times 1 / (x_i + y_j), with x_i = 128 + i and
+ * y_j = j. Every square submatrix of a Cauchy matrix is invertible, so any
+ * n of the data and parity shards of a group of n recover the rest, and a
+ * group with fewer data shards than usual just uses fewer columns.
+ */
+final class ReedSolomonCode {
+
+    /**
+     * The most data shards in a group.
+     */
+    static final int MAX_DATA_SHARDS = 128;
+
+    /**
+     * The most parity shards in a group.
+     */
+    static final int MAX_PARITY_SHARDS = 127;
+
+    private ReedSolomonCode() {
+        // Only static methods.
+    }
+
+    /**
+     * Accessor for the coefficient a data shard is multiplied by in a
+     * parity shard.
+     *
+     * @param parityIndex The index of the parity shard.
+     * @param dataIndex The index of the data shard.
+     * @return The coefficient.
+     */
+    static int coefficient(final int parityIndex, final int dataIndex) {
+        return GaloisField.inv((MAX_DATA_SHARDS + parityIndex) ^ dataIndex);
+    }
+
+    /**
+     * Rebuilds missing data shards in place. Data shards live at indexes
+     * below the data slot count and parity shards above, and data shards
+     * must be zero padded out to the shard length.
+     *
+     * @param shards The shards of the group.
+     * @param present Which shards we have. Updated as we rebuild them.
+     * @param count The number of data shards in the group.
+     * @param dataSlots The index of the first parity shard.
+     * @param parityCount The number of parity shards in the group.
+     * @param length The shard length.
+     * @return <code>true</code> if every data shard is now present,
+     * otherwise <code>false</code> if there weren't enough shards.
+     */
+    static boolean reconstruct(final byte[][] shards, final boolean[] present,
+        final int count, final int dataSlots, final int parityCount,
+        final int length) {
+        final int[] rows = new int[count];
+        int n = 0;
+        for (int j = 0; j < count; j++) {
+            if (present[j]) {
+                rows[n++] = j;
+            }
+        }
+        if (n == count) {
+            return true;
+        }
+        for (int i = 0; i < parityCount && n < count; i++) {
+            if (present[dataSlots + i]) {
+                rows[n++] = dataSlots + i;
+            }
+        }
+        if (n < count) {
+            return false;
+        }
+
+        final int[][] matrix = new int[count][count];
+        for (int r = 0; r < count; r++) {
+            if (rows[r] < dataSlots) {
+                matrix[r][rows[r]] = 1;
+            } else {
+                for (int j = 0; j < count; j++) {
+                    matrix[r][j] = coefficient(rows[r] - dataSlots, j);
+                }
+            }
+        }
+        final int[][] inverse = invert(matrix);
+        for (int j = 0; j < count; j++) {
+            if (present[j]) {
+                continue;
+            }
+            final byte[] shard = shards[j];
+            for (int b = 0; b < length; b++) {
+                shard[b] = 0;
+            }
+            for (int r = 0; r < count; r++) {
+                GaloisField.mulAdd(shard, shards[rows[r]], inverse[j][r],
+                    length);
+            }
+            present[j] = true;
+        }
+        return true;
+    }
+
+    /**
+     * Inverts a matrix with Gauss-Jordan elimination.
+     */
+    private static int[][] invert(final int[][] matrix) {
+        final int n = matrix.length;
+        final int[][] a = new int[n][];
+        final int[][] inv = new int[n][n];
+        for (int i = 0; i < n; i++) {
+            a[i] = matrix[i].clone();
+            inv[i][i] = 1;
+        }
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            while (a[pivot][col] == 0) {
+                pivot++;
+                if (pivot == n) {
+                    throw new ArithmeticException("Singular matrix");
+                }
+            }
+            swap(a, col, pivot);
+            swap(inv, col, pivot);
+            final int scale = GaloisField.inv(a[col][col]);
+            for (int j = 0; j < n; j++) {
+                a[col][j] = GaloisField.mul(a[col][j], scale);
+                inv[col][j] = GaloisField.mul(inv[col][j], scale);
+            }
+            for (int row = 0; row < n; row++) {
+                final int factor = a[row][col];
+                if (row == col || factor == 0) {
+                    continue;
+                }
+                for (int j = 0; j < n; j++) {
+                    a[row][j] ^= GaloisField.mul(factor, a[col][j]);
+                    inv[row][j] ^= GaloisField.mul(factor, inv[col][j]);
+                }
+            }
+        }
+        return inv;
+    }
+
+    private static void swap(final int[][] m, final int i, final int j) {
+        final int[] tmp = m[i];
+        m[i] = m[j];
+        m[j] = tmp;
+    }
+}
@@ -0,0 +1,74 @@
+package org.lastbamboo.common.ice.clock;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Source of time for everything in ICE that paces, retransmits or times
+ * out. Code that would otherwise call {@link System#currentTimeMillis()},
+ * {@link Thread#sleep(long)}, {@link Object#wait(long)} or schedule on a
+ * {@link java.util.Timer} goes through the installed clock instead, so 
+ * tests can swap in a {@link VirtualIceClock} and run pacing and timeout
+ * policies in virtual time. See {@link IceClocks}.
+ */
+public interface IceClock {
+
+    /**
+     * Accessor for the current time.
+     * 
+     * @return The current time in milliseconds since the epoch.
+     */
+    long currentTimeMillis();
+
+    /**
+     * Accessor for a time value for measuring elapsed time.
+     * 
+     * @return The current time in nanoseconds from an arbitrary origin.
+     */
+    long nanoTime();
+
+    /**
+     * Blocks the calling thread for the specified time.
+     * 
+     * @param millis The time to sleep in milliseconds.
+     * @throws InterruptedException If the thread is interrupted.
+     */
+    void sleep(long millis) throws InterruptedException;
+
+    /**
+     * Waits on a condition for up to the specified time. The caller must 
+     * hold the lock the condition belongs to. As with 
+     * {@link Condition#await(long, java.util.concurrent.TimeUnit)}, the
+     * wait can end early for no reason, so callers should check what they're
+     * waiting for in a loop.
+     * 
+     * @param lock The lock the condition belongs to.
+     * @param condition The condition to wait on.
+     * @param millis The maximum time to wait in milliseconds.
+     * @return <code>false</code> if the time elapsed, otherwise 
+     * <code>true</code>.
+     * @throws InterruptedException If the thread is interrupted.
+     */
+    boolean await(Lock lock, Condition condition, long millis) 
+        throws InterruptedException;
+
+    /**
+     * Waits on an object's monitor for up to the specified time. The caller
+     * must hold the monitor. Unlike {@link Object#wait(long)}, a time of
+     * zero or less returns right away rather than waiting forever.
+     * 
+     * @param monitor The object to wait on.
+     * @param millis The maximum time to wait in milliseconds.
+     * @throws InterruptedException If the thread is interrupted.
+     */
+    void awaitMonitor(Object monitor, long millis) 
+        throws InterruptedException;
+
+    /**
+     * Creates a new timer that runs tasks at times on this clock.
+     * 
+     * @param name The name of the timer, used for its thread if it has one.
+     * @return The new timer.
+     */
+    IceTimer newTimer(String name);
+}
@@ -0,0 +1,45 @@
+package org.lastbamboo.common.ice.clock;
+
+/**
+ * Holder for the {@link IceClock} ICE uses. Classes pick up the clock when
+ * they're created, so a clock should be installed before creating the 
+ * agents that are meant to use it.
+ */
+public final class IceClocks {
+
+    private static final IceClock systemClock = new SystemIceClock();
+
+    private static volatile IceClock clock = systemClock;
+
+    private IceClocks() {
+        // Only static methods.
+    }
+
+    /**
+     * Accessor for the installed clock.
+     * 
+     * @return The installed clock.
+     */
+    public static IceClock get() {
+        return clock;
+    }
+
+    /**
+     * Installs the clock for ICE to use.
+     * 
+     * @param iceClock The clock to use.
+     */
+    public static void set(final IceClock iceClock) {
+        if (iceClock == null) {
+            throw new NullPointerException("Null clock");
+        }
+        clock = iceClock;
+    }
+
+    /**
+     * Goes back to using the system clock.
+     */
+    public static void reset() {
+        clock = systemClock;
+    }
+}
@@ -0,0 +1,24 @@
+package org.lastbamboo.common.ice.clock;
+
+/**
+ * Runs tasks after a delay on an {@link IceClock}. Like 
+ * {@link java.util.Timer}, tasks for a single timer run one at a time and
+ * a cancelled timer can't be used again.
+ */
+public interface IceTimer {
+
+    /**
+     * Schedules a task to run once after the specified delay.
+     * 
+     * @param task The task to run.
+     * @param delayMillis The delay in milliseconds.
+     * @throws IllegalStateException If the timer has been cancelled.
+     */
+    void schedule(Runnable task, long delayMillis);
+
+    /**
+     * Cancels the timer, discarding any tasks that haven't run yet. A task
+     * that's currently running is allowed to finish.
+     */
+    void cancel();
+}
@@ -0,0 +1,56 @@
+package org.lastbamboo.common.ice.clock;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * The default {@link IceClock}, backed by the system clock, real waits and
+ * daemon {@link Timer}s.
+ */
+public class SystemIceClock implements IceClock {
+
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    public void sleep(final long millis) throws InterruptedException {
+        Thread.sleep(millis);
+    }
+
+    public boolean await(final Lock lock, final Condition condition,
+        final long millis) throws InterruptedException {
+        return condition.await(millis, TimeUnit.MILLISECONDS);
+    }
+
+    public void awaitMonitor(final Object monitor, final long millis)
+        throws InterruptedException {
+        if (millis > 0L) {
+            monitor.wait(millis);
+        }
+    }
+
+    public IceTimer newTimer(final String name) {
+        final Timer timer = new Timer(name, true);
+        return new IceTimer() {
+            public void schedule(final Runnable task, final long delayMillis) {
+                timer.schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        task.run();
+                    }
+                }, delayMillis);
+            }
+
+            public void cancel() {
+                timer.cancel();
+            }
+        };
+    }
+}
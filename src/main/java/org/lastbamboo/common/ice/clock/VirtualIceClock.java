@@ -0,0 +1,303 @@
+package org.lastbamboo.common.ice.clock;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An {@link IceClock} that only moves when it's told to. Time starts at
+ * zero and moves forward with {@link #advance(long)} or
+ * {@link #advanceToNext()}, which run any timer tasks that come due on the
+ * calling thread, in deadline order, and wake threads whose sleeps and
+ * waits have expired. Nothing waits in real time, so a test can step an
+ * agent through seconds of retransmissions and timeouts in microseconds
+ * and see the same sequence of events every run.
+ * <p>
+ * A timer task that blocks waiting on this clock would block the thread
+ * that's advancing it, so timer tasks should hand blocking work off to
+ * other threads, as the ICE timers already do.
+ */
+public class VirtualIceClock implements IceClock {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final long epochMillis;
+
+    private final Object lock = new Object();
+
+    private final PriorityQueue<Deadline> deadlines =
+        new PriorityQueue<Deadline>();
+
+    private long nowNanos;
+
+    private long sequence;
+
+    private int waiters;
+
+    /**
+     * Creates a new virtual clock starting at the epoch.
+     */
+    public VirtualIceClock() {
+        this(0L);
+    }
+
+    /**
+     * Creates a new virtual clock.
+     *
+     * @param epochMillis The value {@link #currentTimeMillis()} starts at.
+     */
+    public VirtualIceClock(final long epochMillis) {
+        this.epochMillis = epochMillis;
+    }
+
+    public long currentTimeMillis() {
+        return epochMillis + TimeUnit.NANOSECONDS.toMillis(nanoTime());
+    }
+
+    public long nanoTime() {
+        synchronized (lock) {
+            return nowNanos;
+        }
+    }
+
+    public void sleep(final long millis) throws InterruptedException {
+        if (millis <= 0L) {
+            return;
+        }
+        synchronized (lock) {
+            final Deadline deadline = add(millis, new Runnable() {
+                public void run() {
+                    synchronized (lock) {
+                        lock.notifyAll();
+                    }
+                }
+            });
+            waiters++;
+            try {
+                while (nowNanos < deadline.nanos) {
+                    lock.wait();
+                }
+            } finally {
+                waiters--;
+                deadlines.remove(deadline);
+            }
+        }
+    }
+
+    public boolean await(final Lock conditionLock, final Condition condition,
+        final long millis) throws InterruptedException {
+        if (millis <= 0L) {
+            return false;
+        }
+        // The caller holds the condition's lock, so the wake up can't get in
+        // before we're waiting.
+        final Deadline deadline = addWaiter(millis, new Runnable() {
+            public void run() {
+                conditionLock.lock();
+                try {
+                    condition.signalAll();
+                } finally {
+                    conditionLock.unlock();
+                }
+            }
+        });
+        try {
+            condition.await();
+        } finally {
+            removeWaiter(deadline);
+        }
+        return nanoTime() < deadline.nanos;
+    }
+
+    public void awaitMonitor(final Object monitor, final long millis)
+        throws InterruptedException {
+        if (millis <= 0L) {
+            return;
+        }
+        final Deadline deadline = addWaiter(millis, new Runnable() {
+            public void run() {
+                synchronized (monitor) {
+                    monitor.notifyAll();
+                }
+            }
+        });
+        try {
+            monitor.wait();
+        } finally {
+            removeWaiter(deadline);
+        }
+    }
+
+    public IceTimer newTimer(final String name) {
+        return new VirtualTimer(name);
+    }
+
+    /**
+     * Moves the clock forward, running everything that comes due along the
+     * way.
+     *
+     * @param millis The time to move forward in milliseconds.
+     */
+    public void advance(final long millis) {
+        if (millis < 0L) {
+            throw new IllegalArgumentException("Can't go back in time");
+        }
+        final long target;
+        synchronized (lock) {
+            target = nowNanos + TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+        runUntil(target);
+    }
+
+    /**
+     * Moves the clock to the next pending timer task, sleep or wait and
+     * runs everything due at that time.
+     *
+     * @return <code>true</code> if there was anything pending, otherwise
+     * <code>false</code> and the clock doesn't move.
+     */
+    public boolean advanceToNext() {
+        final long target;
+        synchronized (lock) {
+            final Deadline next = deadlines.peek();
+            if (next == null) {
+                return false;
+            }
+            target = Math.max(nowNanos, next.nanos);
+        }
+        runUntil(target);
+        return true;
+    }
+
+    /**
+     * Accessor for the number of threads currently blocked in sleeps and
+     * waits on this clock. Tests use this to know when the code under test
+     * has caught up before moving the clock.
+     *
+     * @return The number of blocked threads.
+     */
+    public int getWaiterCount() {
+        synchronized (lock) {
+            return waiters;
+        }
+    }
+
+    /**
+     * Accessor for the number of timer tasks, sleeps and waits that haven't
+     * come due.
+     *
+     * @return The number of pending deadlines.
+     */
+    public int getPendingCount() {
+        synchronized (lock) {
+            return deadlines.size();
+        }
+    }
+
+    private void runUntil(final long target) {
+        while (true) {
+            final Deadline due;
+            synchronized (lock) {
+                final Deadline next = deadlines.peek();
+                if (next == null || next.nanos > target) {
+                    nowNanos = Math.max(nowNanos, target);
+                    lock.notifyAll();
+                    return;
+                }
+                due = deadlines.poll();
+                nowNanos = Math.max(nowNanos, due.nanos);
+            }
+            // We run this without holding our lock because waking a waiter
+            // takes the waiter's lock, and the waiter may be asking us the
+            // time while holding it.
+            try {
+                due.action.run();
+            } catch (final Throwable t) {
+                log.warn("Error running task at " + due.nanos, t);
+            }
+        }
+    }
+
+    private Deadline add(final long millis, final Runnable action) {
+        synchronized (lock) {
+            final Deadline deadline = new Deadline(
+                nowNanos + TimeUnit.MILLISECONDS.toNanos(millis), sequence++,
+                action);
+            deadlines.add(deadline);
+            return deadline;
+        }
+    }
+
+    private Deadline addWaiter(final long millis, final Runnable wakeUp) {
+        synchronized (lock) {
+            waiters++;
+            return add(millis, wakeUp);
+        }
+    }
+
+    private void removeWaiter(final Deadline deadline) {
+        synchronized (lock) {
+            waiters--;
+            deadlines.remove(deadline);
+        }
+    }
+
+    private static final class Deadline implements Comparable<Deadline> {
+
+        private final long nanos;
+
+        private final long sequence;
+
+        private final Runnable action;
+
+        private Deadline(final long nanos, final long sequence,
+            final Runnable action) {
+            this.nanos = nanos;
+            this.sequence = sequence;
+            this.action = action;
+        }
+
+        public int compareTo(final Deadline other) {
+            if (nanos != other.nanos) {
+                return nanos < other.nanos ? -1 : 1;
+            }
+            if (sequence != other.sequence) {
+                return sequence < other.sequence ? -1 : 1;
+            }
+            return 0;
+        }
+    }
+
+    private final class VirtualTimer implements IceTimer {
+
+        private final String name;
+
+        private volatile boolean cancelled;
+
+        private VirtualTimer(final String name) {
+            this.name = name;
+        }
+
+        public void schedule(final Runnable task, final long delayMillis) {
+            if (cancelled) {
+                throw new IllegalStateException("Timer already cancelled: " +
+                    name);
+            }
+            add(Math.max(0L, delayMillis), new Runnable() {
+                public void run() {
+                    if (!cancelled) {
+                        task.run();
+                    }
+                }
+            });
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+}
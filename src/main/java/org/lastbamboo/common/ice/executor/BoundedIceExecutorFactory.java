@@ -0,0 +1,28 @@
+package org.lastbamboo.common.ice.executor;
+
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Default {@link IceExecutorFactory} creating a bounded 
+ * {@link IceThreadPoolExecutor} per role. The defaults from 
+ * {@link IceExecutorRole} can be overridden with the system properties
+ * <code>ice.executor.&lt;role&gt;.maxThreads</code> and 
+ * <code>ice.executor.&lt;role&gt;.queueCapacity</code>, where the role is
+ * lower case, as in <code>ice.executor.tcp_connect.maxThreads</code>. A
+ * queue capacity of zero hands tasks straight to a thread, rejecting them 
+ * when every thread is busy.
+ */
+public class BoundedIceExecutorFactory implements IceExecutorFactory {
+
+    @Override
+    public ExecutorService newExecutor(final IceExecutorRole role) {
+        final String prefix = 
+            "ice.executor." + role.name().toLowerCase(Locale.US) + ".";
+        final int maxThreads = Math.max(1, Integer.getInteger(
+            prefix + "maxThreads", role.getDefaultMaxThreads()));
+        final int queueCapacity = Math.max(0, Integer.getInteger(
+            prefix + "queueCapacity", role.getDefaultQueueCapacity()));
+        return new IceThreadPoolExecutor(role, maxThreads, queueCapacity);
+    }
+}
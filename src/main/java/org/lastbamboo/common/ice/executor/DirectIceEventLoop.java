@@ -0,0 +1,23 @@
+package org.lastbamboo.common.ice.executor;
+
+/**
+ * {@link IceEventLoop} that runs tasks immediately on the calling thread. 
+ * This is the default and matches the historical behavior where agent 
+ * state is changed directly from timer, I/O and signaling threads.
+ */
+public class DirectIceEventLoop implements IceEventLoop {
+
+    @Override
+    public void execute(final Runnable command) {
+        command.run();
+    }
+
+    /**
+     * There is no dedicated loop thread, so this always returns 
+     * <code>false</code>.
+     */
+    @Override
+    public boolean inEventLoop() {
+        return false;
+    }
+}
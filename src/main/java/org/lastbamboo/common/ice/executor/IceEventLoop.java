@@ -0,0 +1,27 @@
+package org.lastbamboo.common.ice.executor;
+
+import java.util.concurrent.Executor;
+
+/**
+ * An executor that runs tasks one at a time, in the order they were 
+ * submitted. Each ICE agent is assigned a single loop, and the events that 
+ * drive its state machine are posted to it: signaling, incoming Binding 
+ * Requests, check responses and the scheduler's choice of which pair to 
+ * check next. Many agents can share a loop.
+ * <p>
+ * This serializes the agent's state changes but doesn't make the check list
+ * or media stream lock-free. The default {@link DirectIceEventLoop} still 
+ * runs events on whichever thread produced them, and readers such as the 
+ * socket factories and management beans look at pairs from their own 
+ * threads, so those classes keep their locks.
+ */
+public interface IceEventLoop extends Executor {
+
+    /**
+     * Returns whether or not the calling thread is this loop's thread. Tasks
+     * submitted from the loop's own thread run immediately.
+     * 
+     * @return <code>true</code> if the caller is running on this loop.
+     */
+    boolean inEventLoop();
+}
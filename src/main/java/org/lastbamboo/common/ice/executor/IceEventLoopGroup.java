@@ -0,0 +1,80 @@
+package org.lastbamboo.common.ice.executor;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of {@link SingleThreadIceEventLoop}s that agents are spread
+ * across round robin. A loop per core is generally the right size, as 
+ * nothing blocking should ever run on a loop.
+ */
+public class IceEventLoopGroup {
+
+    private final SingleThreadIceEventLoop[] loops;
+
+    private final AtomicInteger index = new AtomicInteger();
+
+    /**
+     * Creates a group with one loop per available processor.
+     */
+    public IceEventLoopGroup() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a group with the specified number of loops.
+     * 
+     * @param numLoops The number of loops.
+     */
+    public IceEventLoopGroup(final int numLoops) {
+        if (numLoops < 1) {
+            throw new IllegalArgumentException("Bad number of loops: " + 
+                numLoops);
+        }
+        this.loops = new SingleThreadIceEventLoop[numLoops];
+        for (int i = 0; i < numLoops; i++) {
+            this.loops[i] = new SingleThreadIceEventLoop("ICE-Event-Loop-" + i);
+        }
+    }
+
+    /**
+     * Accessor for the next loop to assign an agent to.
+     * 
+     * @return The next loop.
+     */
+    public IceEventLoop next() {
+        final int i = (index.getAndIncrement() & Integer.MAX_VALUE) % 
+            loops.length;
+        return loops[i];
+    }
+
+    /**
+     * Accessor for the number of loops in the group.
+     * 
+     * @return The number of loops.
+     */
+    public int size() {
+        return loops.length;
+    }
+
+    /**
+     * Accessor for the total number of tasks waiting across all loops.
+     * 
+     * @return The number of pending tasks.
+     */
+    public int getPendingTasks() {
+        int pending = 0;
+        for (final SingleThreadIceEventLoop loop : loops) {
+            pending += loop.getPendingTasks();
+        }
+        return pending;
+    }
+
+    /**
+     * Shuts down all the loops in the group.
+     */
+    public void shutdown() {
+        for (final SingleThreadIceEventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package org.lastbamboo.common.ice.executor;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Factory for the executors backing each {@link IceExecutorRole}. Install a
+ * custom implementation with {@link IceExecutors#setExecutorFactory} to size
+ * the pools for a particular deployment.
+ */
+public interface IceExecutorFactory {
+
+    /**
+     * Creates a new executor for the specified role. Implementations should
+     * be bounded and should reject rather than queue work without limit.
+     * 
+     * @param role The role the executor will serve.
+     * @return The new executor.
+     */
+    ExecutorService newExecutor(IceExecutorRole role);
+}
@@ -0,0 +1,106 @@
+package org.lastbamboo.common.ice.executor;
+
+/**
+ * The different kinds of background work ICE hands off to other threads.
+ * Each role gets its own pool so a storm of one kind of work can't starve
+ * the others.<p>
+ * 
+ * Roles whose tasks block for a whole accept, connect or handshake have no
+ * queue. A queued task would only start once another had finished, long 
+ * after the peer gave up on it, so we reject it straight away and the 
+ * caller reports the failure instead.
+ */
+public enum IceExecutorRole {
+
+    /**
+     * Connectivity checks fired by the check scheduler timers.
+     */
+    CHECK_SCHEDULER("ICE-Check", 64, 2048, false),
+
+    /**
+     * Accepting a single incoming socket on a pooled offerer server socket.
+     */
+    TCP_ACCEPT("ICE-TCP-Accept", 64, 0, false),
+
+    /**
+     * Outgoing connections to remote TCP host candidates.
+     */
+    TCP_CONNECT("ICE-TCP-Connect", 128, 0, false),
+
+    /**
+     * Outgoing connections to remote TURN relay candidates.
+     */
+    TURN_CONNECT("ICE-TURN-Connect", 32, 0, false),
+
+    /**
+     * Opening UDT sockets on top of nominated UDP pairs and handing them off
+     * to listeners. The barchart UDT accept and connect calls block inside
+     * native code.
+     */
+    UDT_SOCKET("ICE-UDT-Socket", 64, 0, true),
+
+    /**
+     * Releasing nominated UDP pairs for the pure Java reliable transport
+     * and handing its sockets off to listeners.
+     */
+    RELIABLE_SOCKET("ICE-Reliable-Socket", 64, 0, false),
+
+    /**
+     * Creating port-mapped server sockets for the offerer server pool.
+     */
+    SERVER_SOCKET_POOL("ICE-Server-Socket-Pool", 2, 64, false);
+
+    private final String threadNamePrefix;
+    private final int defaultMaxThreads;
+    private final int defaultQueueCapacity;
+    private final boolean blocksInNativeCode;
+
+    private IceExecutorRole(final String threadNamePrefix,
+        final int defaultMaxThreads, final int defaultQueueCapacity,
+        final boolean blocksInNativeCode) {
+        this.threadNamePrefix = threadNamePrefix;
+        this.defaultMaxThreads = defaultMaxThreads;
+        this.defaultQueueCapacity = defaultQueueCapacity;
+        this.blocksInNativeCode = blocksInNativeCode;
+    }
+
+    /**
+     * Accessor for the prefix to use for thread names in this role.
+     * 
+     * @return The thread name prefix.
+     */
+    public String getThreadNamePrefix() {
+        return threadNamePrefix;
+    }
+
+    /**
+     * Accessor for the default maximum number of threads for this role.
+     * 
+     * @return The default maximum number of threads.
+     */
+    public int getDefaultMaxThreads() {
+        return defaultMaxThreads;
+    }
+
+    /**
+     * Accessor for the default number of tasks that can wait for a thread
+     * before new tasks are rejected.
+     * 
+     * @return The default queue capacity, where zero means tasks are only
+     * accepted when a thread is free to run them.
+     */
+    public int getDefaultQueueCapacity() {
+        return defaultQueueCapacity;
+    }
+
+    /**
+     * Accessor for whether tasks in this role block inside native code. A
+     * virtual thread blocked in a JNI call pins its carrier thread, so these
+     * roles always get platform threads.
+     * 
+     * @return <code>true</code> if tasks block in native code.
+     */
+    public boolean isBlocksInNativeCode() {
+        return blocksInNativeCode;
+    }
+}
@@ -0,0 +1,79 @@
+package org.lastbamboo.common.ice.executor;
+
+/**
+ * Point in time snapshot of the state of the executor for a single role.
+ * Values that aren't available from a custom executor are reported as -1.
+ */
+public class IceExecutorStats {
+
+    private final IceExecutorRole role;
+    private final int poolSize;
+    private final int activeCount;
+    private final int maxThreads;
+    private final int queueDepth;
+    private final int peakQueueDepth;
+    private final int queueCapacity;
+    private final long completedTaskCount;
+    private final long rejectedTaskCount;
+
+    public IceExecutorStats(final IceExecutorRole role, final int poolSize,
+        final int activeCount, final int maxThreads, final int queueDepth,
+        final int peakQueueDepth, final int queueCapacity,
+        final long completedTaskCount, final long rejectedTaskCount) {
+        this.role = role;
+        this.poolSize = poolSize;
+        this.activeCount = activeCount;
+        this.maxThreads = maxThreads;
+        this.queueDepth = queueDepth;
+        this.peakQueueDepth = peakQueueDepth;
+        this.queueCapacity = queueCapacity;
+        this.completedTaskCount = completedTaskCount;
+        this.rejectedTaskCount = rejectedTaskCount;
+    }
+
+    public IceExecutorRole getRole() {
+        return role;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public int getActiveCount() {
+        return activeCount;
+    }
+
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public int getPeakQueueDepth() {
+        return peakQueueDepth;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public long getCompletedTaskCount() {
+        return completedTaskCount;
+    }
+
+    public long getRejectedTaskCount() {
+        return rejectedTaskCount;
+    }
+
+    @Override
+    public String toString() {
+        return role + " threads: " + poolSize + "/" + maxThreads + 
+            " active: " + activeCount + 
+            " queue: " + queueDepth + "/" + queueCapacity +
+            " peak queue: " + peakQueueDepth +
+            " completed: " + completedTaskCount + 
+            " rejected: " + rejectedTaskCount;
+    }
+}
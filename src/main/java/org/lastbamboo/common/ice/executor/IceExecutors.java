@@ -0,0 +1,252 @@
+package org.lastbamboo.common.ice.executor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Central registry of the executors used for all background ICE work. 
+ * Executors are created lazily, one per {@link IceExecutorRole}, using the
+ * installed {@link IceExecutorFactory}. Work submitted through this class
+ * that's rejected because a pool is saturated is counted per role and
+ * rethrown as a {@link RejectedExecutionException} so callers can clean up.
+ * <p>
+ * Setting the system property <code>ice.executor.virtual</code> to 
+ * <code>true</code> runs all roles on virtual threads when the JVM supports
+ * them. See {@link VirtualThreadIceExecutorFactory}.
+ */
+public final class IceExecutors {
+
+    private static final Logger LOG = 
+        LoggerFactory.getLogger(IceExecutors.class);
+
+    private static final Map<IceExecutorRole, ExecutorService> executors =
+        new EnumMap<IceExecutorRole, ExecutorService>(IceExecutorRole.class);
+
+    private static final Map<IceExecutorRole, AtomicLong> rejections =
+        new EnumMap<IceExecutorRole, AtomicLong>(IceExecutorRole.class);
+
+    static {
+        for (final IceExecutorRole role : IceExecutorRole.values()) {
+            rejections.put(role, new AtomicLong());
+        }
+    }
+
+    private static IceExecutorFactory factory = defaultFactory();
+
+    private static final IceEventLoop directLoop = new DirectIceEventLoop();
+
+    private static volatile IceEventLoopGroup eventLoopGroup = 
+        defaultEventLoopGroup();
+
+    private IceExecutors() {
+        // Only static methods.
+    }
+
+    private static IceExecutorFactory defaultFactory() {
+        if (Boolean.getBoolean("ice.executor.virtual")) {
+            if (VirtualThreadIceExecutorFactory.isSupported()) {
+                LOG.info("Using virtual threads for ICE executors");
+                return new VirtualThreadIceExecutorFactory();
+            }
+            LOG.warn("Virtual threads requested but not supported");
+        }
+        return new BoundedIceExecutorFactory();
+    }
+
+    private static IceEventLoopGroup defaultEventLoopGroup() {
+        final int loops = Integer.getInteger("ice.eventloop.threads", 0);
+        if (loops > 0) {
+            LOG.info("Using {} ICE event loops", loops);
+            return new IceEventLoopGroup(loops);
+        }
+        return null;
+    }
+
+    /**
+     * Installs the group of event loops agents are assigned to. Agents 
+     * created before this call keep the loop they were given. Passing
+     * <code>null</code> goes back to running agent events directly on the
+     * threads that produce them. This can also be configured with the
+     * <code>ice.eventloop.threads</code> system property.
+     * 
+     * @param group The group of event loops, or <code>null</code>.
+     */
+    public static void setEventLoopGroup(final IceEventLoopGroup group) {
+        eventLoopGroup = group;
+    }
+
+    /**
+     * Accessor for the installed group of event loops, if any.
+     * 
+     * @return The event loop group, or <code>null</code> if agent events
+     * run directly.
+     */
+    public static IceEventLoopGroup getEventLoopGroup() {
+        return eventLoopGroup;
+    }
+
+    /**
+     * Accessor for the event loop to assign to a new agent.
+     * 
+     * @return The next event loop from the installed group, or a loop that
+     * runs tasks directly if there's no group.
+     */
+    public static IceEventLoop nextEventLoop() {
+        final IceEventLoopGroup group = eventLoopGroup;
+        if (group == null) {
+            return directLoop;
+        }
+        return group.next();
+    }
+
+    /**
+     * Switches all roles that haven't yet created executors over to virtual
+     * threads if the JVM supports them.
+     * 
+     * @return <code>true</code> if virtual threads are supported and will be
+     * used, otherwise <code>false</code>.
+     */
+    public static boolean useVirtualThreads() {
+        if (!VirtualThreadIceExecutorFactory.isSupported()) {
+            LOG.warn("Virtual threads not supported on this JVM");
+            return false;
+        }
+        setExecutorFactory(new VirtualThreadIceExecutorFactory());
+        return true;
+    }
+
+    /**
+     * Installs the factory to use for creating executors. This should be
+     * called at startup before any ICE sessions are created, as executors
+     * that already exist are left alone.
+     * 
+     * @param executorFactory The factory to use.
+     */
+    public static synchronized void setExecutorFactory(
+        final IceExecutorFactory executorFactory) {
+        if (executorFactory == null) {
+            throw new NullPointerException("Null factory");
+        }
+        if (!executors.isEmpty()) {
+            LOG.warn("Executors already created for {} -- new factory only " +
+                "applies to other roles", executors.keySet());
+        }
+        factory = executorFactory;
+    }
+
+    /**
+     * Accessor for the executor for the specified role, creating it if
+     * necessary.
+     * 
+     * @param role The role.
+     * @return The executor for that role.
+     */
+    public static synchronized ExecutorService executor(
+        final IceExecutorRole role) {
+        ExecutorService exec = executors.get(role);
+        if (exec == null || exec.isShutdown()) {
+            exec = factory.newExecutor(role);
+            executors.put(role, exec);
+        }
+        return exec;
+    }
+
+    /**
+     * Executes the specified task in the pool for the specified role.
+     * 
+     * @param role The role.
+     * @param task The task to run.
+     * @throws RejectedExecutionException If the pool is saturated.
+     */
+    public static void execute(final IceExecutorRole role, 
+        final Runnable task) {
+        try {
+            executor(role).execute(task);
+        } catch (final RejectedExecutionException e) {
+            onRejected(role, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Submits the specified task to the pool for the specified role.
+     * 
+     * @param role The role.
+     * @param task The task to run.
+     * @return The {@link Future} for the task.
+     * @throws RejectedExecutionException If the pool is saturated.
+     */
+    public static Future<?> submit(final IceExecutorRole role, 
+        final Runnable task) {
+        try {
+            return executor(role).submit(task);
+        } catch (final RejectedExecutionException e) {
+            onRejected(role, e);
+            throw e;
+        }
+    }
+
+    private static void onRejected(final IceExecutorRole role,
+        final RejectedExecutionException e) {
+        final long count = rejections.get(role).incrementAndGet();
+        LOG.warn("Rejected {} task -- {} rejections so far", role, count);
+    }
+
+    /**
+     * Takes a snapshot of the state of the executor for the specified role.
+     * 
+     * @param role The role.
+     * @return The stats for the role.
+     */
+    public static IceExecutorStats stats(final IceExecutorRole role) {
+        final ExecutorService exec;
+        synchronized (IceExecutors.class) {
+            exec = executors.get(role);
+        }
+        final long rejected = rejections.get(role).get();
+        if (exec instanceof ThreadPoolExecutor) {
+            final ThreadPoolExecutor tpe = (ThreadPoolExecutor) exec;
+            final int peak;
+            final int capacity;
+            if (tpe instanceof IceThreadPoolExecutor) {
+                final IceThreadPoolExecutor ice = (IceThreadPoolExecutor) tpe;
+                peak = ice.getPeakQueueDepth();
+                capacity = ice.getQueueCapacity();
+            } else {
+                peak = -1;
+                capacity = tpe.getQueue().size() + 
+                    tpe.getQueue().remainingCapacity();
+            }
+            return new IceExecutorStats(role, tpe.getPoolSize(), 
+                tpe.getActiveCount(), tpe.getMaximumPoolSize(), 
+                tpe.getQueue().size(), peak, capacity, 
+                tpe.getCompletedTaskCount(), rejected);
+        }
+        return new IceExecutorStats(role, -1, -1, -1, -1, -1, -1, -1L, 
+            rejected);
+    }
+
+    /**
+     * Takes a snapshot of the executors for all roles.
+     * 
+     * @return The stats for all roles.
+     */
+    public static Collection<IceExecutorStats> stats() {
+        final Collection<IceExecutorStats> all = 
+            new ArrayList<IceExecutorStats>();
+        for (final IceExecutorRole role : IceExecutorRole.values()) {
+            all.add(stats(role));
+        }
+        return all;
+    }
+}
@@ -0,0 +1,81 @@
+package org.lastbamboo.common.ice.executor;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded thread pool with named daemon threads that keeps track of the
+ * deepest its queue has been. Idle threads time out so quiet roles don't
+ * hold on to threads.
+ */
+public class IceThreadPoolExecutor extends ThreadPoolExecutor {
+
+    private final IceExecutorRole role;
+    private final int queueCapacity;
+    private final AtomicInteger peakQueueDepth = new AtomicInteger();
+
+    /**
+     * Creates a new pool.
+     * 
+     * @param role The role of the pool, used for naming threads.
+     * @param maxThreads The maximum number of threads.
+     * @param queueCapacity The maximum number of queued tasks. With zero
+     * tasks are handed straight to an idle thread, and rejected if there 
+     * isn't one.
+     */
+    public IceThreadPoolExecutor(final IceExecutorRole role, 
+        final int maxThreads, final int queueCapacity) {
+        super(maxThreads, maxThreads, 30L, TimeUnit.SECONDS,
+            newQueue(queueCapacity),
+            new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread t = new Thread(r, 
+                        role.getThreadNamePrefix() + "-" + 
+                        count.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                }
+            }, new ThreadPoolExecutor.AbortPolicy());
+        this.role = role;
+        this.queueCapacity = queueCapacity;
+        allowCoreThreadTimeOut(true);
+    }
+
+    private static BlockingQueue<Runnable> newQueue(final int capacity) {
+        if (capacity == 0) {
+            return new SynchronousQueue<Runnable>();
+        }
+        return new LinkedBlockingQueue<Runnable>(capacity);
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        super.execute(command);
+        final int depth = getQueue().size();
+        while (true) {
+            final int peak = peakQueueDepth.get();
+            if (depth <= peak || peakQueueDepth.compareAndSet(peak, depth)) {
+                break;
+            }
+        }
+    }
+
+    public IceExecutorRole getRole() {
+        return role;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public int getPeakQueueDepth() {
+        return peakQueueDepth.get();
+    }
+}
@@ -0,0 +1,97 @@
+package org.lastbamboo.common.ice.executor;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link IceEventLoop} backed by a single daemon thread draining a queue of
+ * tasks. Tasks must not block, as they hold up every other agent on the 
+ * loop.
+ */
+public class SingleThreadIceEventLoop implements IceEventLoop {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final BlockingQueue<Runnable> tasks = 
+        new LinkedBlockingQueue<Runnable>();
+
+    private final Thread thread;
+
+    private volatile boolean shutdown = false;
+
+    /**
+     * Creates and starts a new loop.
+     * 
+     * @param name The name of the loop thread.
+     */
+    public SingleThreadIceEventLoop(final String name) {
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        if (inEventLoop()) {
+            command.run();
+            return;
+        }
+        if (shutdown) {
+            throw new RejectedExecutionException("Event loop shut down");
+        }
+        tasks.add(command);
+    }
+
+    @Override
+    public boolean inEventLoop() {
+        return Thread.currentThread() == this.thread;
+    }
+
+    /**
+     * Accessor for the number of tasks waiting to run.
+     * 
+     * @return The number of pending tasks.
+     */
+    public int getPendingTasks() {
+        return tasks.size();
+    }
+
+    /**
+     * Stops the loop once the tasks already submitted have run.
+     */
+    public void shutdown() {
+        this.shutdown = true;
+        // Wake up the loop in case it's idle.
+        tasks.add(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+    }
+
+    private void loop() {
+        while (!shutdown || !tasks.isEmpty()) {
+            final Runnable task;
+            try {
+                task = tasks.take();
+            } catch (final InterruptedException e) {
+                log.info("Event loop interrupted");
+                return;
+            }
+            try {
+                task.run();
+            } catch (final Throwable t) {
+                log.warn("Error running task on event loop", t);
+            }
+        }
+    }
+}
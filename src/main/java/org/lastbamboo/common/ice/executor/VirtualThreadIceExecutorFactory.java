@@ -0,0 +1,252 @@
+package org.lastbamboo.common.ice.executor;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link IceExecutorFactory} that runs every task on its own virtual thread.
+ * This lets the blocking accept, connect, handshake and STUN wait paths 
+ * stay simple while supporting far more concurrent negotiations than
+ * platform thread pools allow.<p>
+ * 
+ * Virtual threads are only available on newer JDKs, so everything is 
+ * looked up reflectively. Check {@link #isSupported()} before using this.
+ * Each role is still bounded by a maximum number of concurrent tasks,
+ * configurable with <code>ice.executor.virtual.maxConcurrent</code>, so 
+ * runaway work is rejected rather than exhausting sockets or memory.<p>
+ * 
+ * Roles that block in native code, such as {@link IceExecutorRole#UDT_SOCKET},
+ * still get a bounded platform thread pool from 
+ * {@link BoundedIceExecutorFactory}. The barchart UDT accept, connect and 
+ * receive calls block in JNI, and a virtual thread in a native call pins 
+ * its carrier for the whole call, so a handful of stalled UDT handshakes 
+ * would otherwise tie up every carrier and starve all other virtual 
+ * threads.
+ */
+public class VirtualThreadIceExecutorFactory implements IceExecutorFactory {
+
+    private static final Logger LOG = 
+        LoggerFactory.getLogger(VirtualThreadIceExecutorFactory.class);
+
+    private static final Method OF_VIRTUAL = lookup(Thread.class, "ofVirtual");
+
+    /**
+     * Whether we could actually start a virtual thread. On JDKs where they
+     * were still a preview feature the method exists but throws unless
+     * the JVM was started with previews enabled.
+     */
+    private static final boolean SUPPORTED = probe();
+
+    private static final int DEFAULT_MAX_CONCURRENT = 10000;
+
+    private final int maxConcurrent;
+
+    private final IceExecutorFactory nativeFactory = 
+        new BoundedIceExecutorFactory();
+
+    /**
+     * Creates a new factory using the default or system property concurrency
+     * limit.
+     */
+    public VirtualThreadIceExecutorFactory() {
+        this(Integer.getInteger("ice.executor.virtual.maxConcurrent", 
+            DEFAULT_MAX_CONCURRENT));
+    }
+
+    /**
+     * Creates a new factory.
+     * 
+     * @param maxConcurrent The maximum number of tasks that can run at once
+     * in each role.
+     */
+    public VirtualThreadIceExecutorFactory(final int maxConcurrent) {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException(
+                "Virtual threads not supported on this JVM");
+        }
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+    }
+
+    /**
+     * Returns whether or not the running JVM supports virtual threads.
+     * 
+     * @return <code>true</code> if virtual threads are supported.
+     */
+    public static boolean isSupported() {
+        return SUPPORTED;
+    }
+
+    @Override
+    public ExecutorService newExecutor(final IceExecutorRole role) {
+        if (role.isBlocksInNativeCode()) {
+            return nativeFactory.newExecutor(role);
+        }
+        final ThreadFactory threadFactory;
+        try {
+            threadFactory = newThreadFactory(role.getThreadNamePrefix());
+        } catch (final UnsupportedOperationException e) {
+            LOG.warn("No virtual threads for " + role + 
+                " -- using platform threads", e);
+            return nativeFactory.newExecutor(role);
+        }
+        return new VirtualThreadExecutor(threadFactory, maxConcurrent);
+    }
+
+    private static boolean probe() {
+        if (OF_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            final Thread thread = newThreadFactory("ICE-Probe").newThread(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                    }
+                });
+            thread.start();
+            thread.join();
+            return true;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (final RuntimeException e) {
+            // Includes the UnsupportedOperationException preview JDKs throw.
+            LOG.debug("Virtual threads not usable", e);
+            return false;
+        }
+    }
+
+    private static ThreadFactory newThreadFactory(final String prefix) {
+        try {
+            // Thread.ofVirtual().name(prefix, 0).factory()
+            final Object builder = OF_VIRTUAL.invoke(null);
+            final Class<?> builderClass = 
+                Class.forName("java.lang.Thread$Builder");
+            final Method name = 
+                builderClass.getMethod("name", String.class, long.class);
+            final Object named = 
+                name.invoke(builder, prefix + "-V-", 0L);
+            final Method factory = builderClass.getMethod("factory");
+            return (ThreadFactory) factory.invoke(named);
+        } catch (final Exception e) {
+            throw new UnsupportedOperationException(
+                "Could not create virtual thread factory", e);
+        }
+    }
+
+    private static Method lookup(final Class<?> clazz, final String name) {
+        try {
+            return clazz.getMethod(name);
+        } catch (final NoSuchMethodException e) {
+            return null;
+        } catch (final SecurityException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Executor starting a new thread from the factory for each task, with a
+     * cap on the number of tasks running at once.
+     */
+    private static final class VirtualThreadExecutor 
+        extends AbstractExecutorService {
+
+        private final ThreadFactory threadFactory;
+        private final Semaphore permits;
+        private final Object lock = new Object();
+        private volatile boolean shutdown = false;
+        private int running = 0;
+
+        private VirtualThreadExecutor(final ThreadFactory threadFactory,
+            final int maxConcurrent) {
+            this.threadFactory = threadFactory;
+            this.permits = new Semaphore(maxConcurrent);
+        }
+
+        @Override
+        public void execute(final Runnable command) {
+            if (shutdown) {
+                throw new RejectedExecutionException("Executor shut down");
+            }
+            if (!permits.tryAcquire()) {
+                throw new RejectedExecutionException("Too many tasks");
+            }
+            synchronized (lock) {
+                running++;
+            }
+            final Runnable wrapped = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        command.run();
+                    } finally {
+                        permits.release();
+                        synchronized (lock) {
+                            running--;
+                            lock.notifyAll();
+                        }
+                    }
+                }
+            };
+            try {
+                threadFactory.newThread(wrapped).start();
+            } catch (final RuntimeException e) {
+                permits.release();
+                synchronized (lock) {
+                    running--;
+                    lock.notifyAll();
+                }
+                throw new RejectedExecutionException("Could not start", e);
+            }
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            shutdown = true;
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            synchronized (lock) {
+                return shutdown && running == 0;
+            }
+        }
+
+        @Override
+        public boolean awaitTermination(final long timeout, 
+            final TimeUnit unit) throws InterruptedException {
+            final long deadline = System.nanoTime() + unit.toNanos(timeout);
+            synchronized (lock) {
+                while (!(shutdown && running == 0)) {
+                    final long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0L) {
+                        return false;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                }
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package org.lastbamboo.common.ice.jfr;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Emits JDK Flight Recorder events for ICE so negotiation latency can be
+ * lined up against GC pauses, thread parking and socket I/O in the same 
+ * recording. We still build for older JVMs, so the events are defined at
+ * runtime through <code>jdk.jfr.EventFactory</code> and everything here is
+ * a no-op when Flight Recorder isn't there or is turned off with the 
+ * <code>ice.jfr.disabled</code> system property.<p>
+ * 
+ * Usage follows the normal Flight Recorder pattern:
+ * 
+ * <pre>
+ * final Object event = IceFlightRecorder.begin(IceJfrEventType.TCP_CONNECT);
+ * ... do the work ...
+ * if (event != null) {
+ *     IceFlightRecorder.commit(event, remote, Boolean.TRUE);
+ * }
+ * </pre>
+ * 
+ * {@link #begin(IceJfrEventType)} returns <code>null</code> unless a 
+ * recording has the event enabled, so the cost when nobody is recording is
+ * a volatile read and a reflective call to check the event type.
+ */
+public final class IceFlightRecorder {
+
+    private static final Logger LOG = 
+        LoggerFactory.getLogger(IceFlightRecorder.class);
+
+    private static final Object[] factories = 
+        new Object[IceJfrEventType.values().length];
+
+    private static final Object[] eventTypes = 
+        new Object[IceJfrEventType.values().length];
+
+    private static Method newEvent;
+    private static Method isEnabled;
+    private static Method eventBegin;
+    private static Method eventEnd;
+    private static Method eventSet;
+    private static Method eventCommit;
+
+    private static final boolean available = init();
+
+    private IceFlightRecorder() {
+        // Only static methods.
+    }
+
+    /**
+     * Accessor for whether or not we're able to emit events on this JVM.
+     * 
+     * @return <code>true</code> if Flight Recorder events are available.
+     */
+    public static boolean isAvailable() {
+        return available;
+    }
+
+    /**
+     * Starts timing an event if any recording has it enabled.
+     * 
+     * @param type The type of event.
+     * @return The event to pass to {@link #commit(Object, Object...)}, or 
+     * <code>null</code> if nothing is recording the event.
+     */
+    public static Object begin(final IceJfrEventType type) {
+        if (!available) {
+            return null;
+        }
+        try {
+            final int index = type.ordinal();
+            if (!((Boolean) isEnabled.invoke(eventTypes[index])).booleanValue()) {
+                return null;
+            }
+            final Object event = newEvent.invoke(factories[index]);
+            eventBegin.invoke(event);
+            return event;
+        } catch (final Exception e) {
+            LOG.debug("Could not begin event", e);
+            return null;
+        }
+    }
+
+    /**
+     * Ends and commits an event.
+     * 
+     * @param event The event from {@link #begin(IceJfrEventType)}. This
+     * does nothing if it's <code>null</code>.
+     * @param values The field values, in the order given by the event type.
+     */
+    public static void commit(final Object event, final Object... values) {
+        if (event == null) {
+            return;
+        }
+        try {
+            eventEnd.invoke(event);
+            for (int i = 0; i < values.length; i++) {
+                eventSet.invoke(event, Integer.valueOf(i), values[i]);
+            }
+            eventCommit.invoke(event);
+        } catch (final Exception e) {
+            LOG.debug("Could not commit event", e);
+        }
+    }
+
+    /**
+     * Converts an address or other object to the string we record for it.
+     * 
+     * @param obj The object.
+     * @return The string, or <code>null</code> if the object is 
+     * <code>null</code>.
+     */
+    public static String str(final Object obj) {
+        return obj == null ? null : obj.toString();
+    }
+
+    private static boolean init() {
+        if (Boolean.getBoolean("ice.jfr.disabled")) {
+            return false;
+        }
+        try {
+            final Class<?> annotationElement = 
+                Class.forName("jdk.jfr.AnnotationElement");
+            final Constructor<?> annotationCtor = 
+                annotationElement.getConstructor(Class.class, Object.class);
+            final Class<?> nameClass = Class.forName("jdk.jfr.Name");
+            final Class<?> labelClass = Class.forName("jdk.jfr.Label");
+            final Class<?> categoryClass = Class.forName("jdk.jfr.Category");
+            final Class<?> valueDescriptor = 
+                Class.forName("jdk.jfr.ValueDescriptor");
+            final Constructor<?> valueCtor = valueDescriptor.getConstructor(
+                Class.class, String.class, List.class);
+            final Class<?> eventFactory = 
+                Class.forName("jdk.jfr.EventFactory");
+            final Method create = 
+                eventFactory.getMethod("create", List.class, List.class);
+            final Method getEventType = eventFactory.getMethod("getEventType");
+            final Class<?> eventType = Class.forName("jdk.jfr.EventType");
+            final Class<?> event = Class.forName("jdk.jfr.Event");
+
+            for (final IceJfrEventType type : IceJfrEventType.values()) {
+                final List<Object> annotations = new ArrayList<Object>();
+                annotations.add(annotationCtor.newInstance(nameClass, 
+                    type.getEventName()));
+                annotations.add(annotationCtor.newInstance(labelClass, 
+                    type.getLabel()));
+                annotations.add(annotationCtor.newInstance(categoryClass, 
+                    new String[] {"LittleShoot", "ICE"}));
+
+                final List<Object> fields = new ArrayList<Object>();
+                final String[] names = type.getFieldNames();
+                final Class<?>[] types = type.getFieldTypes();
+                for (int i = 0; i < names.length; i++) {
+                    final Object label = annotationCtor.newInstance(
+                        labelClass, capitalize(names[i]));
+                    fields.add(valueCtor.newInstance(types[i], names[i], 
+                        Arrays.asList(label)));
+                }
+                final Object factory = 
+                    create.invoke(null, annotations, fields);
+                factories[type.ordinal()] = factory;
+                eventTypes[type.ordinal()] = getEventType.invoke(factory);
+            }
+            newEvent = eventFactory.getMethod("newEvent");
+            isEnabled = eventType.getMethod("isEnabled");
+            eventBegin = event.getMethod("begin");
+            eventEnd = event.getMethod("end");
+            eventSet = event.getMethod("set", int.class, Object.class);
+            eventCommit = event.getMethod("commit");
+            LOG.debug("Flight Recorder events registered");
+            return true;
+        } catch (final ClassNotFoundException e) {
+            LOG.debug("No Flight Recorder on this JVM");
+            return false;
+        } catch (final Exception e) {
+            LOG.info("Could not register Flight Recorder events", e);
+            return false;
+        } catch (final LinkageError e) {
+            LOG.info("Could not register Flight Recorder events", e);
+            return false;
+        }
+    }
+
+    private static String capitalize(final String name) {
+        return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+}
@@ -0,0 +1,88 @@
+package org.lastbamboo.common.ice.jfr;
+
+/**
+ * The Flight Recorder events we emit, along with their fields. Values 
+ * passed to {@link IceFlightRecorder#commit(Object, Object...)} must match
+ * the order and types of the fields here.
+ */
+public enum IceJfrEventType {
+
+    /**
+     * A single connectivity check for a pair run by the check scheduler.
+     */
+    CONNECTIVITY_CHECK("ConnectivityCheck", "ICE Connectivity Check",
+        new String[] {"local", "remote", "state"},
+        new Class<?>[] {String.class, String.class, String.class}),
+
+    /**
+     * A UDP STUN Binding Request transaction, including retransmissions.
+     */
+    STUN_TRANSACTION("StunTransaction", "ICE STUN Transaction",
+        new String[] {"local", "remote", "requests", "outcome"},
+        new Class<?>[] {String.class, String.class, int.class, String.class}),
+
+    /**
+     * Processing of a Binding Request received from the remote agent.
+     */
+    BINDING_REQUEST("BindingRequest", "ICE Incoming Binding Request",
+        new String[] {"local", "remote", "duplicate"},
+        new Class<?>[] {String.class, String.class, boolean.class}),
+
+    /**
+     * An outgoing TCP connection attempt to a remote candidate.
+     */
+    TCP_CONNECT("TcpConnect", "ICE TCP Connect",
+        new String[] {"remote", "success"},
+        new Class<?>[] {String.class, boolean.class}),
+
+    /**
+     * Waiting for an incoming TCP connection on a pooled server socket.
+     */
+    TCP_ACCEPT("TcpAccept", "ICE TCP Accept",
+        new String[] {"local", "remote", "success"},
+        new Class<?>[] {String.class, String.class, boolean.class}),
+
+    /**
+     * Establishing the UDT socket over the nominated pair and handing it to
+     * the listener.
+     */
+    UDT_HANDOFF("UdtHandoff", "ICE UDT Handoff",
+        new String[] {"local", "remote", "mode", "success"},
+        new Class<?>[] {String.class, String.class, String.class, 
+            boolean.class});
+
+    private final String name;
+    private final String label;
+    private final String[] fieldNames;
+    private final Class<?>[] fieldTypes;
+
+    private IceJfrEventType(final String name, final String label,
+        final String[] fieldNames, final Class<?>[] fieldTypes) {
+        this.name = name;
+        this.label = label;
+        this.fieldNames = fieldNames;
+        this.fieldTypes = fieldTypes;
+    }
+
+    /**
+     * Accessor for the fully qualified event name as it appears in 
+     * recordings.
+     * 
+     * @return The event name.
+     */
+    public String getEventName() {
+        return "org.littleshoot.ice." + name;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    String[] getFieldNames() {
+        return fieldNames;
+    }
+
+    Class<?>[] getFieldTypes() {
+        return fieldTypes;
+    }
+}
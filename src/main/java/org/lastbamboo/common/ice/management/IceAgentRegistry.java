@@ -0,0 +1,53 @@
+package org.lastbamboo.common.ice.management;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.lastbamboo.common.ice.IceAgent;
+
+/**
+ * Keeps track of the live ICE agents in this JVM for management purposes.
+ * Agents are held weakly, so an agent that's never closed doesn't leak.
+ */
+public final class IceAgentRegistry {
+
+    private static final Map<IceAgent, Boolean> agents = 
+        Collections.synchronizedMap(new WeakHashMap<IceAgent, Boolean>());
+
+    private IceAgentRegistry() {
+        // Only static methods.
+    }
+
+    /**
+     * Adds a newly created agent.
+     * 
+     * @param agent The agent.
+     */
+    public static void register(final IceAgent agent) {
+        agents.put(agent, Boolean.TRUE);
+        IceManagement.register();
+    }
+
+    /**
+     * Removes an agent, typically because it's been closed.
+     * 
+     * @param agent The agent.
+     */
+    public static void unregister(final IceAgent agent) {
+        agents.remove(agent);
+    }
+
+    /**
+     * Accessor for a snapshot of the live agents.
+     * 
+     * @return The live agents.
+     */
+    public static Collection<IceAgent> getAgents() {
+        synchronized (agents) {
+            return new ArrayList<IceAgent>(agents.keySet());
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package org.lastbamboo.common.ice.management;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.lastbamboo.common.ice.IceAgent;
+import org.lastbamboo.common.ice.IceCheckListState;
+import org.lastbamboo.common.ice.IceMediaStream;
+import org.lastbamboo.common.ice.IceState;
+import org.lastbamboo.common.ice.candidate.IceCandidatePairState;
+
+/**
+ * Management bean reporting on the live ICE agents.
+ */
+public class IceAgents implements IceAgentsMXBean {
+
+    public int getAgentCount() {
+        return IceAgentRegistry.getAgents().size();
+    }
+
+    public Map<String, Integer> getAgentsByIceState() {
+        final Map<String, Integer> counts = new TreeMap<String, Integer>();
+        for (final IceAgent agent : IceAgentRegistry.getAgents()) {
+            increment(counts, String.valueOf(agent.getIceState()), 1);
+        }
+        return counts;
+    }
+
+    public Map<String, Integer> getCheckListsByState() {
+        final Map<String, Integer> counts = new TreeMap<String, Integer>();
+        for (final IceAgent agent : IceAgentRegistry.getAgents()) {
+            for (final IceMediaStream stream : agent.getMediaStreams()) {
+                increment(counts, String.valueOf(stream.getCheckListState()), 
+                    1);
+            }
+        }
+        return counts;
+    }
+
+    public Map<String, Integer> getPairsByState() {
+        final Map<String, Integer> counts = new TreeMap<String, Integer>();
+        for (final IceAgent agent : IceAgentRegistry.getAgents()) {
+            for (final IceMediaStream stream : agent.getMediaStreams()) {
+                addPairCounts(counts, stream);
+            }
+        }
+        return counts;
+    }
+
+    public List<String> getAgentDetails() {
+        final List<String> details = new ArrayList<String>();
+        for (final IceAgent agent : IceAgentRegistry.getAgents()) {
+            final IceState state = agent.getIceState();
+            final StringBuilder sb = new StringBuilder();
+            sb.append(agent.getClass().getSimpleName());
+            sb.append("@");
+            sb.append(Integer.toHexString(System.identityHashCode(agent)));
+            sb.append(" state: ");
+            sb.append(state);
+            sb.append(" controlling: ");
+            sb.append(agent.isControlling());
+            for (final IceMediaStream stream : agent.getMediaStreams()) {
+                final IceCheckListState listState = 
+                    stream.getCheckListState();
+                final Map<String, Integer> pairs = 
+                    new TreeMap<String, Integer>();
+                addPairCounts(pairs, stream);
+                sb.append(" check list: ");
+                sb.append(listState);
+                sb.append(" pairs: ");
+                sb.append(pairs);
+            }
+            details.add(sb.toString());
+        }
+        return details;
+    }
+
+    public List<String> dumpTraces() {
+        final List<String> traces = new ArrayList<String>();
+        for (final IceAgent agent : IceAgentRegistry.getAgents()) {
+            traces.add(agent.getClass().getSimpleName() + "@" + 
+                Integer.toHexString(System.identityHashCode(agent)) + "\n" +
+                agent.getTraceBuffer().dump());
+        }
+        return traces;
+    }
+
+    private static void addPairCounts(final Map<String, Integer> counts,
+        final IceMediaStream stream) {
+        final Map<IceCandidatePairState, Integer> pairs = 
+            stream.getPairCountsByState();
+        for (final Map.Entry<IceCandidatePairState, Integer> e : 
+            pairs.entrySet()) {
+            increment(counts, e.getKey().name(), e.getValue().intValue());
+        }
+    }
+
+    private static void increment(final Map<String, Integer> counts, 
+        final String key, final int delta) {
+        final Integer existing = counts.get(key);
+        counts.put(key, Integer.valueOf(
+            existing == null ? delta : existing.intValue() + delta));
+    }
+}
@@ -0,0 +1,55 @@
+package org.lastbamboo.common.ice.management;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Management interface for the live ICE agents in this JVM.
+ */
+public interface IceAgentsMXBean {
+
+    /**
+     * Accessor for the number of live agents.
+     * 
+     * @return The number of live agents.
+     */
+    int getAgentCount();
+
+    /**
+     * Accessor for the number of live agents in each ICE state.
+     * 
+     * @return The agent counts keyed by ICE state.
+     */
+    Map<String, Integer> getAgentsByIceState();
+
+    /**
+     * Accessor for the number of media stream check lists in each state
+     * across all live agents.
+     * 
+     * @return The check list counts keyed by check list state.
+     */
+    Map<String, Integer> getCheckListsByState();
+
+    /**
+     * Accessor for the number of candidate pairs in each state across all
+     * live agents.
+     * 
+     * @return The pair counts keyed by pair state.
+     */
+    Map<String, Integer> getPairsByState();
+
+    /**
+     * Accessor for a one line description of each live agent, including its
+     * ICE state, check list states and pair counts.
+     * 
+     * @return A description of each live agent.
+     */
+    List<String> getAgentDetails();
+
+    /**
+     * Formats the recent event trace of each live agent.
+     * 
+     * @return The trace of each live agent.
+     */
+    List<String> dumpTraces();
+}
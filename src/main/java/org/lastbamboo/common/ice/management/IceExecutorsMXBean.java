@@ -0,0 +1,54 @@
+package org.lastbamboo.common.ice.management;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Management interface for the ICE thread pools and event loops.
+ */
+public interface IceExecutorsMXBean {
+
+    /**
+     * Accessor for the number of tasks waiting in each pool's queue.
+     * 
+     * @return The queue depths keyed by executor role.
+     */
+    Map<String, Integer> getQueueDepths();
+
+    /**
+     * Accessor for the deepest each pool's queue has been.
+     * 
+     * @return The peak queue depths keyed by executor role.
+     */
+    Map<String, Integer> getPeakQueueDepths();
+
+    /**
+     * Accessor for the number of threads actively running tasks in each 
+     * pool.
+     * 
+     * @return The active thread counts keyed by executor role.
+     */
+    Map<String, Integer> getActiveThreads();
+
+    /**
+     * Accessor for the number of tasks each pool has rejected.
+     * 
+     * @return The rejected task counts keyed by executor role.
+     */
+    Map<String, Long> getRejectedTasks();
+
+    /**
+     * Accessor for the number of tasks waiting across all agent event 
+     * loops.
+     * 
+     * @return The number of pending event loop tasks.
+     */
+    int getEventLoopPendingTasks();
+
+    /**
+     * Accessor for a full description of each pool.
+     * 
+     * @return A description of each pool.
+     */
+    List<String> getExecutorDetails();
+}
@@ -0,0 +1,63 @@
+package org.lastbamboo.common.ice.management;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.lastbamboo.common.ice.executor.IceExecutorStats;
+import org.lastbamboo.common.ice.executor.IceExecutors;
+
+/**
+ * Management bean exposing the state of the shared ICE executors.
+ */
+public class IceExecutorsMonitor implements IceExecutorsMXBean {
+
+    public Map<String, Integer> getQueueDepths() {
+        final Map<String, Integer> depths = new TreeMap<String, Integer>();
+        for (final IceExecutorStats stats : IceExecutors.stats()) {
+            depths.put(stats.getRole().name(), 
+                Integer.valueOf(stats.getQueueDepth()));
+        }
+        return depths;
+    }
+
+    public Map<String, Integer> getPeakQueueDepths() {
+        final Map<String, Integer> depths = new TreeMap<String, Integer>();
+        for (final IceExecutorStats stats : IceExecutors.stats()) {
+            depths.put(stats.getRole().name(), 
+                Integer.valueOf(stats.getPeakQueueDepth()));
+        }
+        return depths;
+    }
+
+    public Map<String, Integer> getActiveThreads() {
+        final Map<String, Integer> active = new TreeMap<String, Integer>();
+        for (final IceExecutorStats stats : IceExecutors.stats()) {
+            active.put(stats.getRole().name(), 
+                Integer.valueOf(stats.getActiveCount()));
+        }
+        return active;
+    }
+
+    public Map<String, Long> getRejectedTasks() {
+        final Map<String, Long> rejected = new TreeMap<String, Long>();
+        for (final IceExecutorStats stats : IceExecutors.stats()) {
+            rejected.put(stats.getRole().name(), 
+                Long.valueOf(stats.getRejectedTaskCount()));
+        }
+        return rejected;
+    }
+
+    public int getEventLoopPendingTasks() {
+        return IceExecutors.getEventLoopGroup().getPendingTasks();
+    }
+
+    public List<String> getExecutorDetails() {
+        final List<String> details = new ArrayList<String>();
+        for (final IceExecutorStats stats : IceExecutors.stats()) {
+            details.add(stats.toString());
+        }
+        return details;
+    }
+}
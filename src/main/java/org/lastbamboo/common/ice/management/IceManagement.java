@@ -0,0 +1,113 @@
+package org.lastbamboo.common.ice.management;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registers the ICE management beans with the platform MBean server. The
+ * global beans are registered the first time an agent is created, so 
+ * operators see them in any process using ICE. Registration can be turned 
+ * off with the <code>ice.jmx.disabled</code> system property.
+ */
+public final class IceManagement {
+
+    private static final Logger LOG = 
+        LoggerFactory.getLogger(IceManagement.class);
+
+    /**
+     * The JMX domain all ICE beans are registered under.
+     */
+    public static final String DOMAIN = "org.littleshoot.ice";
+
+    private static final AtomicBoolean registered = new AtomicBoolean(false);
+
+    private static final AtomicInteger poolIds = new AtomicInteger(0);
+
+    private IceManagement() {
+        // Only static methods.
+    }
+
+    /**
+     * Registers the global beans if they're not already registered.
+     */
+    public static void register() {
+        if (!isEnabled() || !registered.compareAndSet(false, true)) {
+            return;
+        }
+        register(new IceAgents(), "Agents");
+        register(new IceStun(), "Stun");
+        register(new IceExecutorsMonitor(), "Executors");
+    }
+
+    /**
+     * Registers the bean for a server socket pool. Each pool gets its own
+     * name. The platform MBean server holds the pool until it's 
+     * unregistered, so pools must pass the returned name to 
+     * {@link #unregister(ObjectName)} when they're closed.
+     * 
+     * @param pool The pool.
+     * @return The name the pool was registered under, or <code>null</code>
+     * if it wasn't registered.
+     */
+    public static ObjectName registerServerSocketPool(
+        final IceServerSocketPoolMXBean pool) {
+        if (!isEnabled()) {
+            return null;
+        }
+        return register(pool, 
+            "ServerSocketPool,id=" + poolIds.incrementAndGet());
+    }
+
+    /**
+     * Unregisters a bean.
+     * 
+     * @param name The name the bean was registered under. This does nothing
+     * if it's <code>null</code>.
+     */
+    public static void unregister(final ObjectName name) {
+        if (name == null) {
+            return;
+        }
+        try {
+            final MBeanServer server = 
+                ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (final JMException e) {
+            LOG.warn("Could not unregister management bean: " + name, e);
+        } catch (final SecurityException e) {
+            LOG.warn("Not allowed to unregister management bean: " + name, e);
+        }
+    }
+
+    private static boolean isEnabled() {
+        return !Boolean.getBoolean("ice.jmx.disabled");
+    }
+
+    private static ObjectName register(final Object bean, final String type) {
+        try {
+            final MBeanServer server = 
+                ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = 
+                new ObjectName(DOMAIN + ":type=" + type);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(bean, name);
+                return name;
+            }
+        } catch (final JMException e) {
+            LOG.warn("Could not register management bean: " + type, e);
+        } catch (final SecurityException e) {
+            LOG.warn("Not allowed to register management bean: " + type, e);
+        }
+        return null;
+    }
+}
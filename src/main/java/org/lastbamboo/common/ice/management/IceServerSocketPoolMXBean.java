@@ -0,0 +1,23 @@
+package org.lastbamboo.common.ice.management;
+
+/**
+ * Management interface for a pool of port-mapped TCP server sockets.
+ */
+public interface IceServerSocketPoolMXBean {
+
+    /**
+     * Accessor for the number of server sockets sitting in the pool ready
+     * for use.
+     * 
+     * @return The number of pooled server sockets.
+     */
+    int getPooledServerSockets();
+
+    /**
+     * Accessor for the number of times the pool was empty and we had to 
+     * create a server socket on demand.
+     * 
+     * @return The number of pool misses.
+     */
+    long getPoolMisses();
+}
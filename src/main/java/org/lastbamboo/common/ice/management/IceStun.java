@@ -0,0 +1,29 @@
+package org.lastbamboo.common.ice.management;
+
+import org.lastbamboo.common.ice.metrics.IceStunCounters;
+
+/**
+ * Management bean exposing the global STUN counters.
+ */
+public class IceStun implements IceStunMXBean {
+
+    public long getInFlightTransactions() {
+        return IceStunCounters.getInFlightTransactions();
+    }
+
+    public long getTransactions() {
+        return IceStunCounters.getTransactions();
+    }
+
+    public long getRetransmissions() {
+        return IceStunCounters.getRetransmissions();
+    }
+
+    public long getDuplicateRequests() {
+        return IceStunCounters.getDuplicateRequests();
+    }
+
+    public long getResentResponses() {
+        return IceStunCounters.getResentResponses();
+    }
+}
@@ -0,0 +1,47 @@
+package org.lastbamboo.common.ice.management;
+
+/**
+ * Management interface for STUN connectivity check traffic.
+ */
+public interface IceStunMXBean {
+
+    /**
+     * Accessor for the number of Binding Request transactions we've sent 
+     * that are still waiting on a response.
+     * 
+     * @return The number of in-flight transactions.
+     */
+    long getInFlightTransactions();
+
+    /**
+     * Accessor for the total number of Binding Request transactions we've
+     * sent.
+     * 
+     * @return The total number of transactions.
+     */
+    long getTransactions();
+
+    /**
+     * Accessor for the number of times we've resent a Binding Request 
+     * because we hadn't yet received a response.
+     * 
+     * @return The number of retransmissions.
+     */
+    long getRetransmissions();
+
+    /**
+     * Accessor for the number of Binding Requests we've received for 
+     * transactions we'd already processed.
+     * 
+     * @return The number of duplicate requests.
+     */
+    long getDuplicateRequests();
+
+    /**
+     * Accessor for the number of times we've resent a cached response to a 
+     * duplicate request.
+     * 
+     * @return The number of resent responses.
+     */
+    long getResentResponses();
+}
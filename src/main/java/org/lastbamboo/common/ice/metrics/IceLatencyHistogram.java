@@ -0,0 +1,160 @@
+package org.lastbamboo.common.ice.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with log-linear buckets, in the spirit of 
+ * HdrHistogram. Values are recorded in microseconds. Each power of two is 
+ * split into {@value #SUB_BUCKETS} linear sub-buckets, giving a relative 
+ * error of about six percent across the whole range, and recording is a 
+ * single atomic increment plus a couple of rarely contended CAS loops for 
+ * the min and max.
+ */
+public class IceLatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The largest power of two we track, which is a bit over 12 days in 
+     * microseconds. Anything larger lands in the top bucket.
+     */
+    private static final int MAX_EXPONENT = 40;
+
+    private static final int BUCKETS = 
+        SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong totalCount = new AtomicLong();
+
+    private final AtomicLong totalMicros = new AtomicLong();
+
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+
+    private final AtomicLong max = new AtomicLong(0L);
+
+    /**
+     * Records a value in microseconds. Negative values are recorded as zero.
+     * 
+     * @param micros The value to record.
+     */
+    public void recordMicros(final long micros) {
+        final long value = Math.max(0L, micros);
+        counts.incrementAndGet(bucketIndex(value));
+        totalCount.incrementAndGet();
+        totalMicros.addAndGet(value);
+        long cur = min.get();
+        while (value < cur && !min.compareAndSet(cur, value)) {
+            cur = min.get();
+        }
+        cur = max.get();
+        while (value > cur && !max.compareAndSet(cur, value)) {
+            cur = max.get();
+        }
+    }
+
+    /**
+     * Records an elapsed time in nanoseconds.
+     * 
+     * @param nanos The elapsed time in nanoseconds.
+     */
+    public void recordNanos(final long nanos) {
+        recordMicros(nanos / 1000L);
+    }
+
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    public long getMinMicros() {
+        final long m = min.get();
+        return m == Long.MAX_VALUE ? 0L : m;
+    }
+
+    public long getMaxMicros() {
+        return max.get();
+    }
+
+    public double getMeanMicros() {
+        final long count = totalCount.get();
+        if (count == 0L) {
+            return 0.0;
+        }
+        return (double) totalMicros.get() / count;
+    }
+
+    /**
+     * Returns the value at the given percentile. The result is the highest
+     * value that falls in the same bucket as the percentile, so it's never
+     * below the true value and at most about six percent above it.
+     * 
+     * @param percentile The percentile, from 0 to 100.
+     * @return The value in microseconds at that percentile.
+     */
+    public long getValueAtPercentile(final double percentile) {
+        final long count = totalCount.get();
+        if (count == 0L) {
+            return 0L;
+        }
+        final double p = Math.min(100.0, Math.max(0.0, percentile));
+        final long target = Math.max(1L, (long) Math.ceil(p / 100.0 * count));
+        long seen = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(bucketUpperBound(i), getMaxMicros());
+            }
+        }
+        return getMaxMicros();
+    }
+
+    /**
+     * Clears all recorded values. Values recorded concurrently with a reset
+     * may or may not survive it.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0L);
+        }
+        totalCount.set(0L);
+        totalMicros.set(0L);
+        min.set(Long.MAX_VALUE);
+        max.set(0L);
+    }
+
+    static int bucketIndex(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        final int shift = exponent - SUB_BUCKET_BITS;
+        final int sub = (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+        return SUB_BUCKETS + shift * SUB_BUCKETS + sub;
+    }
+
+    static long bucketUpperBound(final int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        final int sub = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        final long lower = ((long) (SUB_BUCKETS + sub)) << shift;
+        return lower + (1L << shift) - 1L;
+    }
+
+    @Override
+    public String toString() {
+        return "count: " + getCount() + 
+            " min: " + getMinMicros() + 
+            " p50: " + getValueAtPercentile(50) + 
+            " p90: " + getValueAtPercentile(90) + 
+            " p99: " + getValueAtPercentile(99) + 
+            " max: " + getMaxMicros() + " (us)";
+    }
+}
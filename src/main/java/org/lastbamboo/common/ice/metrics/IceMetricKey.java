@@ -0,0 +1,78 @@
+package org.lastbamboo.common.ice.metrics;
+
+/**
+ * Key for a single latency histogram: the phase along with the transport
+ * and candidate types of the pair that won the negotiation.
+ */
+public final class IceMetricKey {
+
+    /**
+     * Used for the transport and candidate types of the aggregate histogram
+     * for each phase.
+     */
+    public static final String ALL = "all";
+
+    /**
+     * Used for the candidate types when we can't tell what type a candidate
+     * was, such as for the local side of an outgoing TCP connection.
+     */
+    public static final String UNKNOWN = "unknown";
+
+    /**
+     * Used for the transport of negotiations that never produced a socket.
+     * These are kept out of the aggregate histograms.
+     */
+    public static final String FAILED = "failed";
+
+    private final IcePhase phase;
+    private final String transport;
+    private final String candidateTypes;
+
+    public IceMetricKey(final IcePhase phase, final String transport,
+        final String candidateTypes) {
+        if (phase == null) {
+            throw new NullPointerException("Null phase");
+        }
+        this.phase = phase;
+        this.transport = transport == null ? ALL : transport;
+        this.candidateTypes = candidateTypes == null ? ALL : candidateTypes;
+    }
+
+    public IcePhase getPhase() {
+        return phase;
+    }
+
+    public String getTransport() {
+        return transport;
+    }
+
+    public String getCandidateTypes() {
+        return candidateTypes;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = phase.hashCode();
+        result = 31 * result + transport.hashCode();
+        result = 31 * result + candidateTypes.hashCode();
+        return result;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof IceMetricKey)) {
+            return false;
+        }
+        final IceMetricKey other = (IceMetricKey) obj;
+        return phase == other.phase && transport.equals(other.transport) &&
+            candidateTypes.equals(other.candidateTypes);
+    }
+
+    @Override
+    public String toString() {
+        return phase + "/" + transport + "/" + candidateTypes;
+    }
+}
@@ -0,0 +1,207 @@
+package org.lastbamboo.common.ice.metrics;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of the latency histograms for all ICE negotiations in this JVM.
+ * Every value is recorded both in the histogram for its specific transport
+ * and candidate types and in the aggregate histogram for its phase, except
+ * for failed negotiations, which are only recorded under the 
+ * {@link IceMetricKey#FAILED} transport.
+ */
+public final class IceMetrics {
+
+    private static final ConcurrentMap<IceMetricKey, IceLatencyHistogram> 
+        histograms = 
+            new ConcurrentHashMap<IceMetricKey, IceLatencyHistogram>();
+
+    private static volatile boolean enabled = 
+        !Boolean.getBoolean("ice.metrics.disabled");
+
+    /*
+     * Keys are immutable and outlive reset(), so we make each one once 
+     * rather than on every record. The transports and candidate types come
+     * from a small fixed set of labels, so these stay small.
+     */
+    private static final Map<IcePhase, IceMetricKey> aggregateKeys = 
+        phaseKeys(IceMetricKey.ALL);
+
+    private static final Map<IcePhase, IceMetricKey> failureKeys = 
+        phaseKeys(IceMetricKey.FAILED);
+
+    private static final 
+        Map<IcePhase, ConcurrentMap<String, ConcurrentMap<String, IceMetricKey>>>
+        keys = new EnumMap<IcePhase, 
+            ConcurrentMap<String, ConcurrentMap<String, IceMetricKey>>>(
+                IcePhase.class);
+
+    static {
+        for (final IcePhase phase : IcePhase.values()) {
+            keys.put(phase, 
+                new ConcurrentHashMap<String, 
+                    ConcurrentMap<String, IceMetricKey>>());
+        }
+    }
+
+    private IceMetrics() {
+        // Only static methods.
+    }
+
+    /**
+     * Turns recording on or off. Recording is on by default and can be 
+     * turned off at startup with the <code>ice.metrics.disabled</code> 
+     * system property.
+     * 
+     * @param on Whether or not to record.
+     */
+    public static void setEnabled(final boolean on) {
+        enabled = on;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Records an elapsed time.
+     * 
+     * @param phase The phase.
+     * @param transport The transport, such as "udp" or "tcp".
+     * @param candidateTypes The local and remote candidate types, such as
+     * "host/srflx".
+     * @param nanos The elapsed time in nanoseconds.
+     */
+    public static void record(final IcePhase phase, final String transport,
+        final String candidateTypes, final long nanos) {
+        if (!enabled) {
+            return;
+        }
+        histogram(aggregateKeys.get(phase)).recordNanos(nanos);
+        final String t = transport == null ? IceMetricKey.ALL : transport;
+        final String c = 
+            candidateTypes == null ? IceMetricKey.ALL : candidateTypes;
+        if (!IceMetricKey.ALL.equals(t) || !IceMetricKey.ALL.equals(c)) {
+            histogram(key(phase, t, c)).recordNanos(nanos);
+        }
+    }
+
+    /**
+     * Records an elapsed time for a negotiation that failed. This only goes
+     * in the failure histogram for the phase.
+     * 
+     * @param phase The phase.
+     * @param nanos The elapsed time in nanoseconds.
+     */
+    public static void recordFailure(final IcePhase phase, final long nanos) {
+        if (!enabled) {
+            return;
+        }
+        histogram(failureKeys.get(phase)).recordNanos(nanos);
+    }
+
+    private static IceMetricKey key(final IcePhase phase, 
+        final String transport, final String candidateTypes) {
+        final ConcurrentMap<String, ConcurrentMap<String, IceMetricKey>> 
+            byTransport = keys.get(phase);
+        ConcurrentMap<String, IceMetricKey> byTypes = 
+            byTransport.get(transport);
+        if (byTypes == null) {
+            final ConcurrentMap<String, IceMetricKey> created = 
+                new ConcurrentHashMap<String, IceMetricKey>();
+            byTypes = byTransport.putIfAbsent(transport, created);
+            if (byTypes == null) {
+                byTypes = created;
+            }
+        }
+        final IceMetricKey existing = byTypes.get(candidateTypes);
+        if (existing != null) {
+            return existing;
+        }
+        final IceMetricKey created = 
+            new IceMetricKey(phase, transport, candidateTypes);
+        final IceMetricKey raced = byTypes.putIfAbsent(candidateTypes, created);
+        return raced == null ? created : raced;
+    }
+
+    private static Map<IcePhase, IceMetricKey> phaseKeys(
+        final String transport) {
+        final Map<IcePhase, IceMetricKey> map = 
+            new EnumMap<IcePhase, IceMetricKey>(IcePhase.class);
+        for (final IcePhase phase : IcePhase.values()) {
+            map.put(phase, 
+                new IceMetricKey(phase, transport, IceMetricKey.ALL));
+        }
+        return map;
+    }
+
+    /**
+     * Accessor for the histogram for the given key, creating it if needed.
+     * 
+     * @param key The key.
+     * @return The histogram.
+     */
+    public static IceLatencyHistogram histogram(final IceMetricKey key) {
+        final IceLatencyHistogram existing = histograms.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        final IceLatencyHistogram created = new IceLatencyHistogram();
+        final IceLatencyHistogram raced = histograms.putIfAbsent(key, created);
+        return raced == null ? created : raced;
+    }
+
+    /**
+     * Accessor for the aggregate histogram for the given phase.
+     * 
+     * @param phase The phase.
+     * @return The aggregate histogram for all transports and candidate 
+     * types.
+     */
+    public static IceLatencyHistogram histogram(final IcePhase phase) {
+        return histogram(aggregateKeys.get(phase));
+    }
+
+    /**
+     * Accessor for all histograms.
+     * 
+     * @return A read-only view of all histograms.
+     */
+    public static Map<IceMetricKey, IceLatencyHistogram> getHistograms() {
+        return Collections.unmodifiableMap(histograms);
+    }
+
+    /**
+     * Clears all histograms.
+     */
+    public static void reset() {
+        histograms.clear();
+    }
+
+    /**
+     * Returns a human readable summary of all histograms.
+     * 
+     * @return The summary.
+     */
+    public static String summary() {
+        final Map<String, IceLatencyHistogram> sorted = 
+            new TreeMap<String, IceLatencyHistogram>();
+        for (final Map.Entry<IceMetricKey, IceLatencyHistogram> e : 
+            histograms.entrySet()) {
+            sorted.put(e.getKey().toString(), e.getValue());
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (final Map.Entry<String, IceLatencyHistogram> e : 
+            sorted.entrySet()) {
+            sb.append(e.getKey());
+            sb.append(": ");
+            sb.append(e.getValue());
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+}
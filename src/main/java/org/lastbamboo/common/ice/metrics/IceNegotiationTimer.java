@@ -0,0 +1,184 @@
+package org.lastbamboo.common.ice.metrics;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.lastbamboo.common.ice.candidate.IceCandidateType;
+import org.lastbamboo.common.ice.clock.IceClocks;
+
+/**
+ * Collects the phase timings for a single negotiation. We don't know the
+ * winning transport and candidate types until the end, so timings are held
+ * here and only recorded in {@link IceMetrics} once the negotiation 
+ * succeeds or fails.
+ */
+public class IceNegotiationTimer {
+
+    /**
+     * Transport label for negotiations that never produced a socket.
+     */
+    public static final String FAILED = IceMetricKey.FAILED;
+
+    private static final long UNSET = -1L;
+
+    /**
+     * Candidate type labels for every pair of types, indexed by ordinal 
+     * plus one with zero for unknown, so labelling a check doesn't build a
+     * string.
+     */
+    private static final String[][] LABELS = labels();
+
+    private final AtomicLongArray phaseNanos = 
+        new AtomicLongArray(IcePhase.values().length);
+
+    private final AtomicLong checksStarted = new AtomicLong(UNSET);
+
+    private final AtomicLong nominated = new AtomicLong(UNSET);
+
+    private final AtomicBoolean done = new AtomicBoolean(false);
+
+    public IceNegotiationTimer() {
+        for (int i = 0; i < phaseNanos.length(); i++) {
+            phaseNanos.set(i, UNSET);
+        }
+    }
+
+    /**
+     * Accessor for the current time in the units this timer uses.
+     * 
+     * @return The current time in nanoseconds.
+     */
+    public static long now() {
+        return IceClocks.get().nanoTime();
+    }
+
+    /**
+     * Records the time since the specified start for a phase. Only the first
+     * value for each phase counts.
+     * 
+     * @param phase The phase.
+     * @param startNanos When the phase started, from {@link #now()}.
+     */
+    public void record(final IcePhase phase, final long startNanos) {
+        phaseNanos.compareAndSet(phase.ordinal(), UNSET, 
+            Math.max(0L, now() - startNanos));
+    }
+
+    /**
+     * Called when connectivity checks are scheduled, which is when the 
+     * clock for the later phases starts.
+     */
+    public void onChecksStarted() {
+        checksStarted.compareAndSet(UNSET, now());
+    }
+
+    public void onFirstValidPair() {
+        final long start = checksStarted.get();
+        if (start != UNSET) {
+            record(IcePhase.FIRST_VALID_PAIR, start);
+        }
+    }
+
+    public void onNominated() {
+        final long start = checksStarted.get();
+        if (start != UNSET) {
+            record(IcePhase.NOMINATION, start);
+        }
+        nominated.compareAndSet(UNSET, now());
+    }
+
+    /**
+     * Called when the socket is handed off to the listener. This records
+     * all the collected phases.
+     * 
+     * @param transport The transport of the winning pair.
+     * @param candidateTypes The local and remote candidate types of the 
+     * winning pair.
+     */
+    public void onSocket(final String transport, final String candidateTypes) {
+        long start = nominated.get();
+        if (start == UNSET) {
+            start = checksStarted.get();
+        }
+        if (start != UNSET) {
+            record(IcePhase.SOCKET_HANDOFF, start);
+        }
+        flush(transport, candidateTypes);
+    }
+
+    /**
+     * Called when the negotiation fails. This records the phases we got 
+     * through under the {@link #FAILED} transport only, so failures don't
+     * skew the aggregate histograms.
+     */
+    public void onFailed() {
+        if (!done.compareAndSet(false, true)) {
+            return;
+        }
+        for (final IcePhase phase : IcePhase.values()) {
+            final long nanos = phaseNanos.get(phase.ordinal());
+            if (nanos != UNSET) {
+                IceMetrics.recordFailure(phase, nanos);
+            }
+        }
+    }
+
+    /**
+     * Accessor for the recorded time of a phase.
+     * 
+     * @param phase The phase.
+     * @return The time in nanoseconds, or -1 if the phase wasn't reached.
+     */
+    public long getPhaseNanos(final IcePhase phase) {
+        return phaseNanos.get(phase.ordinal());
+    }
+
+    private void flush(final String transport, final String candidateTypes) {
+        if (!done.compareAndSet(false, true)) {
+            return;
+        }
+        for (final IcePhase phase : IcePhase.values()) {
+            final long nanos = phaseNanos.get(phase.ordinal());
+            if (nanos != UNSET) {
+                IceMetrics.record(phase, transport, candidateTypes, nanos);
+            }
+        }
+    }
+
+    /**
+     * Creates the candidate types label for a pair of candidate types.
+     * 
+     * @param local The local candidate type, or <code>null</code> if it's
+     * not known.
+     * @param remote The remote candidate type, or <code>null</code> if it's
+     * not known.
+     * @return The label.
+     */
+    public static String candidateTypes(final IceCandidateType local, 
+        final IceCandidateType remote) {
+        return LABELS[index(local)][index(remote)];
+    }
+
+    private static int index(final IceCandidateType type) {
+        return type == null ? 0 : type.ordinal() + 1;
+    }
+
+    private static String[][] labels() {
+        final IceCandidateType[] types = IceCandidateType.values();
+        final String[][] labels = 
+            new String[types.length + 1][types.length + 1];
+        for (int i = 0; i <= types.length; i++) {
+            final IceCandidateType local = i == 0 ? null : types[i - 1];
+            for (int j = 0; j <= types.length; j++) {
+                final IceCandidateType remote = j == 0 ? null : types[j - 1];
+                labels[i][j] = toLabel(local) + "/" + toLabel(remote);
+            }
+        }
+        return labels;
+    }
+
+    private static String toLabel(final IceCandidateType type) {
+        return type == null ? IceMetricKey.UNKNOWN : type.toSdp();
+    }
+}
@@ -0,0 +1,56 @@
+package org.lastbamboo.common.ice.metrics;
+
+/**
+ * The phases of an ICE negotiation we keep latency histograms for.
+ */
+public enum IcePhase {
+
+    /**
+     * Time spent gathering local candidates.
+     */
+    GATHER,
+
+    /**
+     * Round trip to the STUN server to discover our server reflexive 
+     * address.
+     */
+    SRFLX_RTT,
+
+    /**
+     * Time spent pairing, sorting and pruning candidates into a check list
+     * once the remote candidates arrive.
+     */
+    CHECK_LIST_FORMATION,
+
+    /**
+     * Time from scheduling checks to the first valid pair.
+     */
+    FIRST_VALID_PAIR,
+
+    /**
+     * Time from scheduling checks to nomination of the pair we'll use.
+     */
+    NOMINATION,
+
+    /**
+     * Time from nomination to handing the socket off to the listener. For
+     * TCP, which has no nomination, this is the time from receiving the 
+     * remote candidates to handing off the socket.
+     */
+    SOCKET_HANDOFF,
+
+    /**
+     * Time the UDP socket factory takes to create the endpoint on the
+     * nominated pair and hand it to the listener. This is part of 
+     * {@link #SOCKET_HANDOFF}, broken out because it varies most between
+     * the factory implementations.
+     */
+    ENDPOINT_SETUP,
+
+    /**
+     * Duration of a single connectivity check transaction. Unlike the other
+     * phases, this is recorded for every check rather than once per 
+     * negotiation.
+     */
+    CONNECTIVITY_CHECK;
+}
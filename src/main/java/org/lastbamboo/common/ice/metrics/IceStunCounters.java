@@ -0,0 +1,64 @@
+package org.lastbamboo.common.ice.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Global counters for STUN connectivity check traffic.
+ */
+public final class IceStunCounters {
+
+    private static final AtomicLong inFlight = new AtomicLong();
+
+    private static final AtomicLong transactions = new AtomicLong();
+
+    private static final AtomicLong retransmissions = new AtomicLong();
+
+    private static final AtomicLong duplicateRequests = new AtomicLong();
+
+    private static final AtomicLong resentResponses = new AtomicLong();
+
+    private IceStunCounters() {
+        // Only static methods.
+    }
+
+    public static void onTransactionStarted() {
+        transactions.incrementAndGet();
+        inFlight.incrementAndGet();
+    }
+
+    public static void onTransactionFinished() {
+        inFlight.decrementAndGet();
+    }
+
+    public static void onRetransmission() {
+        retransmissions.incrementAndGet();
+    }
+
+    public static void onDuplicateRequest() {
+        duplicateRequests.incrementAndGet();
+    }
+
+    public static void onResentResponse() {
+        resentResponses.incrementAndGet();
+    }
+
+    public static long getInFlightTransactions() {
+        return inFlight.get();
+    }
+
+    public static long getTransactions() {
+        return transactions.get();
+    }
+
+    public static long getRetransmissions() {
+        return retransmissions.get();
+    }
+
+    public static long getDuplicateRequests() {
+        return duplicateRequests.get();
+    }
+
+    public static long getResentResponses() {
+        return resentResponses.get();
+    }
+}
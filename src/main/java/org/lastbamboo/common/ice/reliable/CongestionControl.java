@@ -0,0 +1,44 @@
+package org.lastbamboo.common.ice.reliable;
+
+/**
+ * Congestion control for a reliable connection. Implementations are only
+ * ever called from the connection's event loop thread.
+ */
+public interface CongestionControl {
+
+    /**
+     * Called when newly acknowledged data leaves the network.
+     *
+     * @param ackedBytes The number of bytes acknowledged.
+     * @param srttMicros The smoothed round trip time.
+     * @param nowNanos The current time.
+     */
+    void onAck(long ackedBytes, long srttMicros, long nowNanos);
+
+    /**
+     * Called once for each window in which we detect loss.
+     *
+     * @param nowNanos The current time.
+     */
+    void onLoss(long nowNanos);
+
+    /**
+     * Called when the retransmission timer expires.
+     */
+    void onTimeout();
+
+    /**
+     * Accessor for the congestion window.
+     *
+     * @return The number of bytes we may have in flight.
+     */
+    long getWindow();
+
+    /**
+     * Accessor for how far ahead of the window over one round trip the
+     * connection should pace, as a multiple of the window.
+     *
+     * @return The pacing gain.
+     */
+    double getPacingGain();
+}
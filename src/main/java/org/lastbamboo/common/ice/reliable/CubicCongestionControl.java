@@ -0,0 +1,122 @@
+package org.lastbamboo.common.ice.reliable;
+
+/**
+ * CUBIC congestion control, as in RFC 8312. After a loss the window grows
+ * along a cubic curve that flattens out around the window we had when we
+ * lost, which gets back up to speed quickly on long fat paths without
+ * hammering a bottleneck we've already found. We keep the TCP friendly
+ * region so we're never slower than Reno would be on short paths.
+ */
+public class CubicCongestionControl implements CongestionControl {
+
+    private static final double BETA = 0.7;
+
+    private static final double C = 0.4;
+
+    private static final int INITIAL_SEGMENTS = 10;
+
+    private static final int MIN_SEGMENTS = 2;
+
+    private final int mss;
+
+    private double cwnd;
+
+    private double ssthresh = Double.MAX_VALUE;
+
+    private double wMax;
+
+    private double lastWMax;
+
+    private double k;
+
+    private long epochStartNanos;
+
+    private double originWindow;
+
+    /**
+     * Creates a new CUBIC controller.
+     *
+     * @param mss The number of payload bytes in a full segment.
+     */
+    public CubicCongestionControl(final int mss) {
+        this.mss = mss;
+        this.cwnd = INITIAL_SEGMENTS;
+    }
+
+    public void onAck(final long ackedBytes, final long srttMicros,
+        final long nowNanos) {
+        final double acked = (double) ackedBytes / this.mss;
+        if (this.cwnd < this.ssthresh) {
+            this.cwnd += acked;
+            return;
+        }
+        if (this.epochStartNanos == 0L) {
+            this.epochStartNanos = nowNanos;
+            if (this.cwnd < this.wMax) {
+                this.k = Math.cbrt((this.wMax - this.cwnd) / C);
+                this.originWindow = this.wMax;
+            } else {
+                this.k = 0;
+                this.originWindow = this.cwnd;
+            }
+        }
+        final double rtt = Math.max(srttMicros, 1L) / 1000000.0;
+        final double t = (nowNanos - this.epochStartNanos) / 1000000000.0;
+        final double offset = t + rtt - this.k;
+        final double target =
+            this.originWindow + C * offset * offset * offset;
+
+        // The window Reno would have by now, so we never do worse than it.
+        final double reno = this.wMax * BETA
+            + (3 * (1 - BETA) / (1 + BETA)) * (t / rtt);
+
+        final double goal = Math.max(target, reno);
+        if (goal > this.cwnd) {
+            this.cwnd += (goal - this.cwnd) / this.cwnd * acked;
+        } else {
+            // Stay close to the plateau, but keep probing slowly.
+            this.cwnd += acked / (100 * this.cwnd);
+        }
+    }
+
+    public void onLoss(final long nowNanos) {
+        this.epochStartNanos = 0L;
+        // Fast convergence -- give up bandwidth to newer flows if we lost
+        // before reaching our previous maximum. RFC 8312 section 4.6 
+        // compares against the window at the last loss, not the reduced
+        // maximum.
+        if (this.cwnd < this.lastWMax) {
+            this.wMax = this.cwnd * (1 + BETA) / 2;
+        } else {
+            this.wMax = this.cwnd;
+        }
+        this.lastWMax = this.cwnd;
+        this.cwnd = Math.max(this.cwnd * BETA, MIN_SEGMENTS);
+        this.ssthresh = this.cwnd;
+    }
+
+    public void onTimeout() {
+        this.epochStartNanos = 0L;
+        this.wMax = this.cwnd;
+        this.lastWMax = this.cwnd;
+        this.ssthresh = Math.max(this.cwnd * BETA, MIN_SEGMENTS);
+        this.cwnd = 1;
+    }
+
+    public long getWindow() {
+        return (long) (this.cwnd * this.mss);
+    }
+
+    public double getPacingGain() {
+        // Slow start doubles every round trip, so the pacer has to keep up.
+        return this.cwnd < this.ssthresh ? 2.0 : 1.25;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " [cwnd=" + getWindow()
+            + ", ssthresh=" + (this.ssthresh == Double.MAX_VALUE ?
+                "inf" : String.valueOf((long) (this.ssthresh * this.mss)))
+            + "]";
+    }
+}
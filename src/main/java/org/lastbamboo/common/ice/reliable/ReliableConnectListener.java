@@ -0,0 +1,26 @@
+package org.lastbamboo.common.ice.reliable;
+
+import java.io.IOException;
+
+/**
+ * Listener for the outcome of a reliable connection handshake. Called from
+ * the event loop thread, so implementations should hand anything slow off
+ * to another thread.
+ */
+public interface ReliableConnectListener {
+
+    /**
+     * Called when the handshake completes.
+     *
+     * @param sock The connected socket.
+     */
+    void onConnected(ReliableSocket sock);
+
+    /**
+     * Called when the handshake fails or times out. The channel has been
+     * closed.
+     *
+     * @param e The reason for the failure.
+     */
+    void onConnectFailed(IOException e);
+}
@@ -0,0 +1,1307 @@
+package org.lastbamboo.common.ice.reliable;
+
+import java.io.IOException;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.lastbamboo.common.ice.clock.IceClock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A reliable, ordered byte stream over a connected datagram channel.
+ * <p>
+ * All protocol state belongs to the {@link ReliableEventLoop} thread, which
+ * reads datagrams, runs the timers and decides when to send. Application
+ * threads only ever touch the send and receive queues, under a lock, and
+ * wake the loop when they've changed something it cares about. That keeps
+ * a connection down to a few objects and no threads of its own, so a single
+ * loop can drive many of them.
+ * <p>
+ * Loss recovery is SACK based -- a segment is considered lost once three
+ * segments sent after it have arrived, or when the retransmission timer
+ * expires. Sends are paced over the round trip at a rate derived from the
+ * congestion window, rather than going out in bursts as acks come in.
+ */
+final class ReliableConnection {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(ReliableConnection.class);
+
+    /**
+     * The most segments either side will have outstanding. This needs to
+     * be a power of two.
+     */
+    static final int WINDOW_SEGMENTS = 2048;
+
+    private static final int MASK = WINDOW_SEGMENTS - 1;
+
+    private static final int DUP_THRESHOLD = 3;
+
+    private static final int MAX_READS = 64;
+
+    private static final int MAX_RTO_BACKOFF = 10;
+
+    private static final int SEND_BUFFER =
+        Integer.getInteger("ice.reliable.sndbuf", 1024 * 1024).intValue();
+
+    private static final long HANDSHAKE_TIMEOUT_NANOS =
+        TimeUnit.MILLISECONDS.toNanos(Integer.getInteger(
+            "ice.reliable.handshake.timeout", 15000).intValue());
+
+    private static final long INITIAL_SYN_NANOS =
+        TimeUnit.MILLISECONDS.toNanos(250);
+
+    private static final long MAX_SYN_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    private static final long DELAYED_ACK_NANOS =
+        TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static final long PACING_QUANTUM_NANOS =
+        TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final long KEEPALIVE_NANOS = TimeUnit.SECONDS.toNanos(15);
+
+    private static final long IDLE_TIMEOUT_NANOS =
+        TimeUnit.SECONDS.toNanos(60);
+
+    private static final long CLOSE_TIMEOUT_NANOS =
+        TimeUnit.SECONDS.toNanos(30);
+
+    /**
+     * Stands in for the peer's FIN in the receive ring. Data segments are
+     * never empty, so this can't be confused with one.
+     */
+    private static final byte[] FIN_MARKER = new byte[0];
+
+    private enum State {
+        SYN_SENT,
+        LISTEN,
+        ESTABLISHED,
+        CLOSED
+    }
+
+    private static final class Segment {
+
+        private final int seq;
+
+        private final byte[] data;
+
+        private final boolean fin;
+
+        private boolean inFlight;
+
+        private boolean sacked;
+
+        private boolean lost;
+
+        private int transmissions;
+
+        private Segment(final int seq, final byte[] data, final boolean fin) {
+            this.seq = seq;
+            this.data = data;
+            this.fin = fin;
+        }
+
+        private int size() {
+            return this.data == null ? 0 : this.data.length;
+        }
+    }
+
+    private final ReliableEventLoop loop;
+
+    private final DatagramChannel channel;
+
+    private final boolean initiator;
+
+    private final int mss;
+
+    private final ReliableConnectListener listener;
+
+    private final ReliablePacket packet = new ReliablePacket();
+
+    private final RttEstimator rtt = new RttEstimator();
+
+    private final CongestionControl cc;
+
+    private final ByteBuffer out;
+
+    private final ReliableSocket socket;
+
+    private SelectionKey key;
+
+    private State state;
+
+    private long handshakeDeadline;
+
+    private long synDeadline;
+
+    private long synInterval = INITIAL_SYN_NANOS;
+
+    private long lastReceiveNanos;
+
+    private long lastSendNanos;
+
+    private boolean writeBlocked;
+
+    // Send side.
+
+    private final Segment[] sendRing = new Segment[WINDOW_SEGMENTS];
+
+    private int sndUna;
+
+    private int sndNxt;
+
+    private int peerWindow = WINDOW_SEGMENTS;
+
+    private long inflightBytes;
+
+    private int lostCount;
+
+    private int lostScan;
+
+    private int lossScan;
+
+    private int highestSacked;
+
+    private boolean haveSacked;
+
+    private boolean inRecovery;
+
+    private int recoveryEnd;
+
+    private boolean rtoArmed;
+
+    private long rtoDeadline;
+
+    private boolean persistArmed;
+
+    private long persistDeadline;
+
+    /**
+     * Whether what we have in flight is a probe of the peer's shut window.
+     * The peer drops those until it has room, so their timeouts aren't 
+     * failures.
+     */
+    private boolean windowProbing;
+
+    private long nextSendNanos;
+
+    private boolean pacingBlocked;
+
+    private boolean finAcked;
+
+    private boolean closeArmed;
+
+    private long closeDeadline;
+
+    private long retransmits;
+
+    // Receive side.
+
+    private final byte[][] receiveRing = new byte[WINDOW_SEGMENTS][];
+
+    private int rcvNxt;
+
+    private int rcvHigh;
+
+    private int lastReceivedSeq;
+
+    private int echo;
+
+    private int ackPending;
+
+    private boolean ackNow;
+
+    private boolean ackTimerArmed;
+
+    private long ackDeadline;
+
+    private boolean peerFin;
+
+    // Shared with application threads, guarded by the lock.
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition readable = lock.newCondition();
+
+    private final Condition writable = lock.newCondition();
+
+    private final ArrayDeque<byte[]> sendQueue = new ArrayDeque<byte[]>();
+
+    private byte[] partial;
+
+    private int partialLength;
+
+    private int queuedBytes;
+
+    private boolean outputShutdown;
+
+    private boolean finQueued;
+
+    private final ArrayDeque<byte[]> receiveQueue = new ArrayDeque<byte[]>();
+
+    private int receiveOffset;
+
+    private boolean eof;
+
+    private boolean closed;
+
+    /**
+     * Whether we threw away data the application never read, either when it
+     * closed or because the peer kept sending afterwards. Only then does the
+     * peer need a reset -- a clean close mustn't cut off a peer that's still
+     * reading what we sent.
+     */
+    private boolean inputDiscarded;
+
+    private IOException failure;
+
+    private volatile int receiveQueued;
+
+    private volatile int lastAdvertised = WINDOW_SEGMENTS;
+
+    private volatile boolean windowUpdate;
+
+    private volatile boolean closeRequested;
+
+    /**
+     * Creates a new connection. It does nothing until it's registered with
+     * its loop.
+     *
+     * @param loop The loop that will drive the connection.
+     * @param channel The connected channel to run over.
+     * @param initiator Whether or not we send the SYN.
+     * @param mss The largest payload to put in a segment.
+     * @param out The loop's send buffer.
+     * @param listener The listener for the outcome of the handshake.
+     */
+    ReliableConnection(final ReliableEventLoop loop,
+        final DatagramChannel channel, final boolean initiator,
+        final int mss, final ByteBuffer out,
+        final ReliableConnectListener listener) {
+        this.loop = loop;
+        this.channel = channel;
+        this.initiator = initiator;
+        this.mss = mss;
+        this.out = out;
+        this.listener = listener;
+        this.cc = new CubicCongestionControl(mss);
+        this.partial = new byte[mss];
+        this.socket = new ReliableSocket(this,
+            channel.socket().getLocalSocketAddress(),
+            channel.socket().getRemoteSocketAddress());
+    }
+
+    /**
+     * Called on the loop thread once the channel is registered.
+     *
+     * @param selectionKey The channel's key.
+     * @param now The current time.
+     */
+    void start(final SelectionKey selectionKey, final long now) {
+        this.key = selectionKey;
+        this.lastReceiveNanos = now;
+        this.lastSendNanos = now;
+        this.handshakeDeadline = now + HANDSHAKE_TIMEOUT_NANOS;
+        this.synDeadline = now;
+        this.state = this.initiator ? State.SYN_SENT : State.LISTEN;
+    }
+
+    boolean isClosed() {
+        return this.state == State.CLOSED;
+    }
+
+    DatagramChannel getChannel() {
+        return this.channel;
+    }
+
+    int getMss() {
+        return this.mss;
+    }
+
+    /**
+     * Runs timers and sends whatever the windows allow.
+     *
+     * @param now The current time.
+     * @return When the connection next needs servicing, regardless of I/O.
+     */
+    long service(final long now) {
+        if (this.state == State.CLOSED) {
+            return Long.MAX_VALUE;
+        }
+        if (this.state == State.LISTEN || this.state == State.SYN_SENT) {
+            return serviceHandshake(now);
+        }
+        if (now - this.lastReceiveNanos >= IDLE_TIMEOUT_NANOS) {
+            fail(new SocketTimeoutException("Nothing from peer for " +
+                TimeUnit.NANOSECONDS.toSeconds(IDLE_TIMEOUT_NANOS) + "s"));
+            return Long.MAX_VALUE;
+        }
+        if (this.rtoArmed && now - this.rtoDeadline >= 0) {
+            onRetransmitTimeout(now);
+        }
+        if (!this.writeBlocked) {
+            sendData(now);
+            if (this.ackNow || this.windowUpdate ||
+                (this.ackTimerArmed && now - this.ackDeadline >= 0) ||
+                now - this.lastSendNanos >= KEEPALIVE_NANOS) {
+                sendAck(now);
+            }
+        }
+        if (this.closeRequested && serviceClose(now)) {
+            return Long.MAX_VALUE;
+        }
+        if (this.state == State.CLOSED) {
+            return Long.MAX_VALUE;
+        }
+
+        long next = Math.min(this.lastReceiveNanos + IDLE_TIMEOUT_NANOS,
+            this.lastSendNanos + KEEPALIVE_NANOS);
+        if (this.rtoArmed) {
+            next = Math.min(next, this.rtoDeadline);
+        }
+        if (this.ackTimerArmed) {
+            next = Math.min(next, this.ackDeadline);
+        }
+        if (this.persistArmed) {
+            next = Math.min(next, this.persistDeadline);
+        }
+        if (this.pacingBlocked) {
+            next = Math.min(next, this.nextSendNanos - PACING_QUANTUM_NANOS);
+        }
+        if (this.closeArmed) {
+            next = Math.min(next, this.closeDeadline);
+        }
+        return next;
+    }
+
+    private long serviceHandshake(final long now) {
+        if (now - this.handshakeDeadline >= 0) {
+            fail(new SocketTimeoutException("Reliable handshake timed out"));
+            return Long.MAX_VALUE;
+        }
+        if (this.state == State.LISTEN) {
+            return this.handshakeDeadline;
+        }
+        if (now - this.synDeadline >= 0 && !this.writeBlocked) {
+            sendControl(ReliablePacket.SYN, 0, now);
+            this.synDeadline = now + this.synInterval;
+            this.synInterval = Math.min(MAX_SYN_NANOS, this.synInterval * 2);
+        }
+        return Math.min(this.synDeadline, this.handshakeDeadline);
+    }
+
+    /**
+     * Reads whatever datagrams are waiting.
+     *
+     * @param in The loop's receive buffer.
+     * @param now The current time.
+     */
+    void onReadable(final ByteBuffer in, final long now) {
+        // Cap the reads so a busy connection can't starve the others.
+        for (int i = 0; i < MAX_READS && this.state != State.CLOSED; i++) {
+            in.clear();
+            final SocketAddress from;
+            try {
+                from = this.channel.receive(in);
+            } catch (final PortUnreachableException e) {
+                // The peer may not have bound the port yet.
+                LOG.debug("Port unreachable reading from peer");
+                continue;
+            } catch (final IOException e) {
+                fail(e);
+                return;
+            }
+            if (from == null) {
+                return;
+            }
+            in.flip();
+            if (!this.packet.decode(in)) {
+                LOG.debug("Dropping datagram that isn't ours from {}", from);
+                continue;
+            }
+            onPacket(in, now);
+        }
+    }
+
+    /**
+     * Called when the channel can take more datagrams after a send found
+     * the socket buffer full.
+     */
+    void onWritable() {
+        this.writeBlocked = false;
+        if (this.key.isValid()) {
+            this.key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void onPacket(final ByteBuffer in, final long now) {
+        this.lastReceiveNanos = now;
+        switch (this.packet.type) {
+            case ReliablePacket.SYN:
+                if (this.initiator) {
+                    return;
+                }
+                if (this.state == State.LISTEN) {
+                    this.echo = this.packet.tsVal;
+                    established();
+                }
+                // Repeat the SYN-ACK for retransmitted SYNs in case ours
+                // was lost.
+                sendControl(ReliablePacket.SYN_ACK, 0, now);
+                return;
+            case ReliablePacket.SYN_ACK:
+                if (this.state == State.SYN_SENT) {
+                    sampleRtt(this.packet.tsEcr, now);
+                    established();
+                }
+                return;
+            case ReliablePacket.RST:
+                if (this.state != State.LISTEN) {
+                    fail(new SocketException("Connection reset by peer"));
+                }
+                return;
+            default:
+                break;
+        }
+        if (this.state == State.SYN_SENT) {
+            // Our SYN got through but the SYN-ACK didn't -- the peer is
+            // already sending.
+            established();
+        } else if (this.state != State.ESTABLISHED) {
+            return;
+        }
+        onAck(now);
+        if (this.packet.type != ReliablePacket.ACK) {
+            onSegment(in, now);
+        }
+    }
+
+    private void established() {
+        LOG.debug("Reliable connection established with {}",
+            this.socket.getRemoteSocketAddress());
+        this.state = State.ESTABLISHED;
+        try {
+            this.listener.onConnected(this.socket);
+        } catch (final Throwable t) {
+            LOG.error("Listener threw on connect", t);
+        }
+    }
+
+    private void onAck(final long now) {
+        final ReliablePacket p = this.packet;
+        this.peerWindow = Math.min(WINDOW_SEGMENTS, Math.max(0, p.window));
+        if (this.peerWindow > 0) {
+            this.persistArmed = false;
+            if (this.windowProbing) {
+                // The peer is alive and has room again, so whatever 
+                // backing off our probes did is moot.
+                this.windowProbing = false;
+                this.rtt.resetBackoff();
+            }
+        }
+        if (ReliablePacket.before(p.ack, this.sndUna) ||
+            ReliablePacket.before(this.sndNxt, p.ack)) {
+            // Old or bogus.
+            return;
+        }
+        long acked = 0;
+        boolean advanced = false;
+        while (ReliablePacket.before(this.sndUna, p.ack)) {
+            final int index = this.sndUna & MASK;
+            final Segment seg = this.sendRing[index];
+            this.sendRing[index] = null;
+            this.sndUna++;
+            advanced = true;
+            if (seg == null) {
+                continue;
+            }
+            acked += delivered(seg);
+            if (seg.fin) {
+                this.finAcked = true;
+            }
+        }
+        for (int i = 0; i < p.sackCount; i++) {
+            int s = p.sackStart[i];
+            if (ReliablePacket.before(s, this.sndUna)) {
+                s = this.sndUna;
+            }
+            for (; ReliablePacket.before(s, p.sackEnd[i]) &&
+                ReliablePacket.before(s, this.sndNxt); s++) {
+                final Segment seg = this.sendRing[s & MASK];
+                if (seg == null || seg.sacked) {
+                    continue;
+                }
+                acked += delivered(seg);
+                // A sacked FIN doesn't finish the close -- there can still
+                // be holes below it only we can fill.
+                seg.sacked = true;
+                if (!this.haveSacked ||
+                    ReliablePacket.before(this.highestSacked, s)) {
+                    this.highestSacked = s;
+                    this.haveSacked = true;
+                }
+            }
+        }
+        if (this.haveSacked &&
+            ReliablePacket.before(this.highestSacked, this.sndUna)) {
+            this.haveSacked = false;
+        }
+        if (ReliablePacket.before(this.lostScan, this.sndUna)) {
+            this.lostScan = this.sndUna;
+        }
+        if (ReliablePacket.before(this.lossScan, this.sndUna)) {
+            this.lossScan = this.sndUna;
+        }
+
+        if (acked > 0) {
+            sampleRtt(p.tsEcr, now);
+            if (!this.inRecovery) {
+                this.cc.onAck(acked, this.rtt.getSrttMicros(), now);
+            }
+        }
+        detectLoss(now);
+        if (this.inRecovery &&
+            !ReliablePacket.before(this.sndUna, this.recoveryEnd)) {
+            this.inRecovery = false;
+        }
+        if (this.sndUna == this.sndNxt) {
+            this.rtoArmed = false;
+        } else if (advanced) {
+            armRto(now);
+        }
+    }
+
+    /**
+     * Takes a segment out of flight once the peer has it.
+     *
+     * @return The number of bytes newly delivered.
+     */
+    private long delivered(final Segment seg) {
+        if (seg.sacked) {
+            return 0;
+        }
+        if (seg.lost) {
+            seg.lost = false;
+            this.lostCount--;
+        }
+        if (seg.inFlight) {
+            seg.inFlight = false;
+            this.inflightBytes -= seg.size();
+        }
+        return Math.max(1, seg.size());
+    }
+
+    private void detectLoss(final long now) {
+        if (!this.haveSacked) {
+            return;
+        }
+        boolean lost = false;
+        // Early retransmit, as in RFC 5827 -- with only a few segments
+        // outstanding there can never be three sacked after a loss, so
+        // lower the threshold rather than waiting for the timer.
+        final int threshold = Math.max(1,
+            Math.min(DUP_THRESHOLD, this.sndNxt - this.sndUna - 1));
+        final int limit = this.highestSacked - threshold + 1;
+        for (; ReliablePacket.before(this.lossScan, limit); this.lossScan++) {
+            final Segment seg = this.sendRing[this.lossScan & MASK];
+            // Retransmissions only get recovered by the timer, since the
+            // segments sacked after them may have been sent before them.
+            if (seg == null || seg.sacked || seg.lost || !seg.inFlight ||
+                seg.transmissions > 1) {
+                continue;
+            }
+            markLost(seg);
+            lost = true;
+        }
+        if (lost && !this.inRecovery) {
+            this.inRecovery = true;
+            this.recoveryEnd = this.sndNxt;
+            this.cc.onLoss(now);
+        }
+    }
+
+    private void markLost(final Segment seg) {
+        seg.inFlight = false;
+        this.inflightBytes -= seg.size();
+        seg.lost = true;
+        this.lostCount++;
+        if (ReliablePacket.before(seg.seq, this.lostScan)) {
+            this.lostScan = seg.seq;
+        }
+    }
+
+    private void onRetransmitTimeout(final long now) {
+        // Unanswered window probes are expected while the peer's window is
+        // shut, and the idle timeout catches a peer that's gone entirely.
+        final boolean probe = this.windowProbing && this.peerWindow == 0;
+        if (!probe && this.rtt.getBackoff() >= MAX_RTO_BACKOFF) {
+            fail(new SocketTimeoutException("Retransmissions timed out"));
+            return;
+        }
+        this.rtt.backOff();
+        if (!probe) {
+            this.cc.onTimeout();
+        }
+        this.inRecovery = true;
+        this.recoveryEnd = this.sndNxt;
+        for (int s = this.sndUna; ReliablePacket.before(s, this.sndNxt); s++) {
+            final Segment seg = this.sendRing[s & MASK];
+            if (seg != null && seg.inFlight) {
+                markLost(seg);
+            }
+        }
+        this.lostScan = this.sndUna;
+        armRto(now);
+    }
+
+    private void armRto(final long now) {
+        this.rtoArmed = true;
+        this.rtoDeadline = now +
+            TimeUnit.MICROSECONDS.toNanos(this.rtt.getRtoMicros());
+    }
+
+    private void sampleRtt(final int tsEcr, final long now) {
+        if (tsEcr == 0) {
+            return;
+        }
+        final int sample = micros(now) - tsEcr;
+        if (sample > 0 && sample < 60000000) {
+            this.rtt.sample(sample);
+        }
+    }
+
+    private void onSegment(final ByteBuffer in, final long now) {
+        final int seq = this.packet.seq;
+        // Echo the latest transmission even for duplicates. Echoing an
+        // older one would count the sender's retransmission timeout in
+        // its RTT sample when our earlier ack was lost.
+        this.echo = this.packet.tsVal;
+        if (ReliablePacket.before(seq, this.rcvNxt)) {
+            // Our ack must have been lost.
+            this.ackNow = true;
+            return;
+        }
+        if (seq - this.rcvNxt >= WINDOW_SEGMENTS - this.receiveQueued) {
+            // Beyond the window -- probably a zero window probe.
+            this.ackNow = true;
+            return;
+        }
+        final int index = seq & MASK;
+        if (this.receiveRing[index] != null) {
+            this.ackNow = true;
+            return;
+        }
+        final byte[] data;
+        if (this.packet.type == ReliablePacket.FIN) {
+            data = FIN_MARKER;
+        } else {
+            if (!in.hasRemaining()) {
+                return;
+            }
+            data = new byte[in.remaining()];
+            in.get(data);
+        }
+        this.receiveRing[index] = data;
+        this.lastReceivedSeq = seq;
+        if (!ReliablePacket.before(seq, this.rcvHigh)) {
+            this.rcvHigh = seq + 1;
+        }
+        if (seq == this.rcvNxt) {
+            deliver();
+        }
+        this.ackPending++;
+        // Ack every other segment, and anything that leaves or fills a hole
+        // right away so the sender hears about it.
+        if (this.ackPending >= 2 || this.rcvNxt != this.rcvHigh ||
+            data == FIN_MARKER || seq != this.rcvNxt - 1) {
+            this.ackNow = true;
+        } else if (!this.ackTimerArmed) {
+            this.ackTimerArmed = true;
+            this.ackDeadline = now + DELAYED_ACK_NANOS;
+        }
+    }
+
+    private void deliver() {
+        this.lock.lock();
+        try {
+            while (true) {
+                final int index = this.rcvNxt & MASK;
+                final byte[] data = this.receiveRing[index];
+                if (data == null) {
+                    break;
+                }
+                this.receiveRing[index] = null;
+                this.rcvNxt++;
+                if (data == FIN_MARKER) {
+                    this.peerFin = true;
+                    this.eof = true;
+                } else if (!this.closed) {
+                    this.receiveQueue.add(data);
+                } else {
+                    this.inputDiscarded = true;
+                }
+            }
+            this.receiveQueued = this.receiveQueue.size();
+            this.readable.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void sendData(final long now) {
+        this.pacingBlocked = false;
+        while (!this.writeBlocked && this.state == State.ESTABLISHED) {
+            Segment seg = nextLost();
+            final int size = seg == null ? this.mss : seg.size();
+            if (this.inflightBytes > 0 &&
+                this.inflightBytes + size > this.cc.getWindow()) {
+                return;
+            }
+            if (this.nextSendNanos - now > PACING_QUANTUM_NANOS) {
+                this.pacingBlocked = true;
+                return;
+            }
+            if (seg == null) {
+                if (!peerWindowOpen(now)) {
+                    return;
+                }
+                seg = nextNew();
+                if (seg == null) {
+                    return;
+                }
+            } else {
+                this.retransmits++;
+            }
+            if (!transmit(seg, now)) {
+                return;
+            }
+            pace(seg.size() + ReliablePacket.HEADER_SIZE, now);
+        }
+    }
+
+    private Segment nextLost() {
+        if (this.lostCount == 0) {
+            return null;
+        }
+        for (; ReliablePacket.before(this.lostScan, this.sndNxt);
+            this.lostScan++) {
+            final Segment seg = this.sendRing[this.lostScan & MASK];
+            if (seg != null && seg.lost) {
+                return seg;
+            }
+        }
+        LOG.warn("Lost count out of sync: {}", this.lostCount);
+        this.lostCount = 0;
+        return null;
+    }
+
+    private boolean peerWindowOpen(final long now) {
+        final int outstanding = this.sndNxt - this.sndUna;
+        if (outstanding < this.peerWindow) {
+            return true;
+        }
+        if (this.peerWindow > 0 || outstanding > 0) {
+            return false;
+        }
+        // The peer's window is shut. Its update when it opens again could
+        // be lost, so probe it now and then with a segment it will ack.
+        if (!this.persistArmed) {
+            this.persistArmed = true;
+            this.persistDeadline = now +
+                TimeUnit.MICROSECONDS.toNanos(this.rtt.getRtoMicros());
+            return false;
+        }
+        if (now - this.persistDeadline < 0) {
+            return false;
+        }
+        this.persistArmed = false;
+        this.windowProbing = true;
+        return true;
+    }
+
+    private Segment nextNew() {
+        final byte[] data;
+        boolean fin = false;
+        this.lock.lock();
+        try {
+            byte[] next = this.sendQueue.poll();
+            if (next == null && this.partialLength > 0) {
+                next = Arrays.copyOf(this.partial, this.partialLength);
+                this.partialLength = 0;
+            }
+            if (next != null) {
+                this.queuedBytes -= next.length;
+                this.writable.signalAll();
+            } else if (this.outputShutdown && !this.finQueued) {
+                this.finQueued = true;
+                fin = true;
+            } else {
+                return null;
+            }
+            data = next;
+        } finally {
+            this.lock.unlock();
+        }
+        final Segment seg = new Segment(this.sndNxt, data, fin);
+        this.sendRing[this.sndNxt & MASK] = seg;
+        this.sndNxt++;
+        return seg;
+    }
+
+    private boolean transmit(final Segment seg, final long now) {
+        header(seg.fin ? ReliablePacket.FIN : ReliablePacket.DATA, seg.seq,
+            now);
+        if (seg.data != null) {
+            this.out.put(seg.data);
+        }
+        this.out.flip();
+        if (!write(now)) {
+            return false;
+        }
+        if (seg.lost) {
+            seg.lost = false;
+            this.lostCount--;
+        }
+        if (!seg.inFlight) {
+            seg.inFlight = true;
+            this.inflightBytes += seg.size();
+        }
+        seg.transmissions++;
+        if (!this.rtoArmed) {
+            armRto(now);
+        }
+        if (this.rcvNxt == this.rcvHigh) {
+            // The piggybacked ack says everything a separate one would.
+            clearAck();
+        }
+        return true;
+    }
+
+    private void pace(final int bytes, final long now) {
+        final long srtt = this.rtt.getSrttMicros();
+        if (srtt <= 0) {
+            return;
+        }
+        final double rate = this.cc.getPacingGain() * this.cc.getWindow()
+            * 1000000.0 / srtt;
+        final long interval = (long) (bytes * 1000000000.0 / rate);
+        this.nextSendNanos = Math.max(this.nextSendNanos, now) + interval;
+    }
+
+    private void sendAck(final long now) {
+        header(ReliablePacket.ACK, this.sndNxt, now);
+        addSacks();
+        this.packet.encode(this.out);
+        this.out.flip();
+        if (write(now)) {
+            clearAck();
+        }
+    }
+
+    private void clearAck() {
+        this.ackNow = false;
+        this.ackTimerArmed = false;
+        this.ackPending = 0;
+        this.windowUpdate = false;
+    }
+
+    /**
+     * Works out the SACK blocks for the next ack. The block holding the
+     * segment that just arrived goes first, as in RFC 2018, and the lowest
+     * blocks fill up the rest, since those are the holes the sender needs
+     * to fill first.
+     */
+    private void addSacks() {
+        final ReliablePacket p = this.packet;
+        p.sackCount = 0;
+        if (this.rcvNxt == this.rcvHigh) {
+            return;
+        }
+        int first = -1;
+        if (ReliablePacket.before(this.rcvNxt, this.lastReceivedSeq) &&
+            this.receiveRing[this.lastReceivedSeq & MASK] != null) {
+            first = runStart(this.lastReceivedSeq);
+            addSack(first, runEnd(this.lastReceivedSeq));
+        }
+        int s = this.rcvNxt + 1;
+        while (p.sackCount < ReliablePacket.MAX_SACK_BLOCKS &&
+            ReliablePacket.before(s, this.rcvHigh)) {
+            if (this.receiveRing[s & MASK] == null) {
+                s++;
+                continue;
+            }
+            final int end = runEnd(s);
+            if (s != first) {
+                addSack(s, end);
+            }
+            s = end;
+        }
+    }
+
+    private int runStart(final int seq) {
+        int s = seq;
+        while (ReliablePacket.before(this.rcvNxt, s - 1) &&
+            this.receiveRing[(s - 1) & MASK] != null) {
+            s--;
+        }
+        return s;
+    }
+
+    private int runEnd(final int seq) {
+        int s = seq + 1;
+        while (ReliablePacket.before(s, this.rcvHigh) &&
+            this.receiveRing[s & MASK] != null) {
+            s++;
+        }
+        return s;
+    }
+
+    private void addSack(final int start, final int end) {
+        final ReliablePacket p = this.packet;
+        p.sackStart[p.sackCount] = start;
+        p.sackEnd[p.sackCount] = end;
+        p.sackCount++;
+    }
+
+    private void sendControl(final byte type, final int seq, final long now) {
+        header(type, seq, now);
+        this.packet.encode(this.out);
+        this.out.flip();
+        write(now);
+    }
+
+    /**
+     * Fills in the header for the next packet. Data packets have their
+     * header written into the send buffer here, since they never carry
+     * SACK blocks -- other packets are encoded by the caller.
+     */
+    private void header(final byte type, final int seq, final long now) {
+        final ReliablePacket p = this.packet;
+        p.type = type;
+        p.seq = seq;
+        p.ack = this.rcvNxt;
+        p.window = Math.max(0, WINDOW_SEGMENTS - this.receiveQueued);
+        p.tsVal = micros(now);
+        p.tsEcr = this.echo;
+        p.sackCount = 0;
+        this.lastAdvertised = p.window;
+        this.out.clear();
+        if (type == ReliablePacket.DATA || type == ReliablePacket.FIN) {
+            p.encode(this.out);
+        }
+    }
+
+    private boolean write(final long now) {
+        try {
+            if (this.channel.write(this.out) == 0) {
+                // The socket buffer is full. Wait until it drains.
+                this.writeBlocked = true;
+                this.key.interestOps(
+                    SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return false;
+            }
+        } catch (final PortUnreachableException e) {
+            // Treat it like any other lost datagram.
+            LOG.debug("Port unreachable writing to peer");
+        } catch (final IOException e) {
+            fail(e);
+            return false;
+        }
+        this.lastSendNanos = now;
+        return true;
+    }
+
+    private boolean serviceClose(final long now) {
+        if (!this.closeArmed) {
+            this.closeArmed = true;
+            this.closeDeadline = now + CLOSE_TIMEOUT_NANOS;
+        }
+        if (!this.finAcked && now - this.closeDeadline < 0) {
+            return false;
+        }
+        if (!this.peerFin && isInputDiscarded()) {
+            // The application isn't reading any more, so tell the peer to
+            // stop sending.
+            sendControl(ReliablePacket.RST, this.sndNxt, now);
+        }
+        finish(null);
+        return true;
+    }
+
+    private boolean isInputDiscarded() {
+        this.lock.lock();
+        try {
+            return this.inputDiscarded;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Shuts the connection down with an error the application will see.
+     *
+     * @param e The error.
+     */
+    void fail(final IOException e) {
+        if (this.state == State.CLOSED) {
+            return;
+        }
+        final boolean connected = this.state == State.ESTABLISHED;
+        LOG.debug("Reliable connection failed", e);
+        finish(e);
+        if (!connected) {
+            this.listener.onConnectFailed(e);
+        }
+    }
+
+    private void finish(final IOException e) {
+        this.state = State.CLOSED;
+        this.lock.lock();
+        try {
+            if (e != null) {
+                this.failure = e;
+            }
+            this.closed = true;
+            this.readable.signalAll();
+            this.writable.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+        if (this.key != null) {
+            this.key.cancel();
+        }
+        try {
+            this.channel.close();
+        } catch (final IOException ioe) {
+            LOG.debug("Exception closing channel", ioe);
+        }
+    }
+
+    private static int micros(final long nanos) {
+        // Zero means "nothing to echo".
+        return (int) (nanos / 1000) | 1;
+    }
+
+    // Application side.
+
+    /**
+     * Reads from the stream, blocking until there's something to read.
+     *
+     * @param b The buffer to read into.
+     * @param off The offset to read to.
+     * @param len The most bytes to read.
+     * @param timeoutMillis The longest to block, or zero to block forever.
+     * @return The number of bytes read, or -1 at the end of the stream.
+     * @throws IOException If the connection fails, times out or is closed.
+     */
+    int read(final byte[] b, final int off, final int len,
+        final int timeoutMillis) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int read = 0;
+        boolean update = false;
+        this.lock.lock();
+        try {
+            final IceClock clock = this.loop.getClock();
+            final long end = clock.currentTimeMillis() + timeoutMillis;
+            while (this.receiveQueue.isEmpty()) {
+                if (this.eof) {
+                    return -1;
+                }
+                if (this.failure != null) {
+                    throw this.failure;
+                }
+                if (this.closed) {
+                    throw new SocketException("Socket closed");
+                }
+                if (timeoutMillis <= 0) {
+                    this.readable.await();
+                } else {
+                    final long remaining = end - clock.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new SocketTimeoutException("Read timed out");
+                    }
+                    clock.await(this.lock, this.readable, remaining);
+                }
+            }
+            while (read < len && !this.receiveQueue.isEmpty()) {
+                final byte[] head = this.receiveQueue.peek();
+                final int n = Math.min(len - read,
+                    head.length - this.receiveOffset);
+                System.arraycopy(head, this.receiveOffset, b, off + read, n);
+                read += n;
+                this.receiveOffset += n;
+                if (this.receiveOffset == head.length) {
+                    this.receiveQueue.poll();
+                    this.receiveOffset = 0;
+                }
+            }
+            this.receiveQueued = this.receiveQueue.size();
+
+            // Tell the peer once we've made real room in a window we'd
+            // advertised as nearly shut.
+            update = this.lastAdvertised < WINDOW_SEGMENTS / 4 &&
+                this.receiveQueued <= WINDOW_SEGMENTS / 2;
+        } catch (final InterruptedException e) {
+            throw new SocketException("Interrupted waiting for data");
+        } finally {
+            this.lock.unlock();
+        }
+        if (update) {
+            this.windowUpdate = true;
+            this.loop.wakeup();
+        }
+        return read;
+    }
+
+    /**
+     * Accessor for the number of bytes we can read without blocking.
+     *
+     * @return The number of buffered bytes.
+     */
+    int available() {
+        this.lock.lock();
+        try {
+            int available = 0;
+            for (final byte[] data : this.receiveQueue) {
+                available += data.length;
+            }
+            return available - this.receiveOffset;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Writes to the stream, blocking while the send buffer is full.
+     *
+     * @param b The data.
+     * @param off The offset of the data.
+     * @param len The number of bytes to write.
+     * @throws IOException If the connection fails or is closed.
+     */
+    void write(final byte[] b, final int off, final int len)
+        throws IOException {
+        int written = 0;
+        this.lock.lock();
+        try {
+            while (written < len) {
+                if (this.failure != null) {
+                    throw this.failure;
+                }
+                if (this.closed || this.outputShutdown) {
+                    throw new SocketException("Socket output is shut down");
+                }
+                if (this.queuedBytes >= SEND_BUFFER) {
+                    // Let the loop get going on what we have so far.
+                    this.loop.wakeup();
+                    this.writable.await();
+                    continue;
+                }
+                final int n = Math.min(len - written,
+                    this.mss - this.partialLength);
+                System.arraycopy(b, off + written, this.partial,
+                    this.partialLength, n);
+                this.partialLength += n;
+                this.queuedBytes += n;
+                written += n;
+                if (this.partialLength == this.mss) {
+                    this.sendQueue.add(this.partial);
+                    this.partial = new byte[this.mss];
+                    this.partialLength = 0;
+                }
+            }
+        } catch (final InterruptedException e) {
+            throw new SocketException("Interrupted waiting to write");
+        } finally {
+            this.lock.unlock();
+        }
+        this.loop.wakeup();
+    }
+
+    /**
+     * Sends a FIN once everything written so far has gone out.
+     */
+    void shutdownOutput() {
+        this.lock.lock();
+        try {
+            this.outputShutdown = true;
+        } finally {
+            this.lock.unlock();
+        }
+        this.loop.wakeup();
+    }
+
+    /**
+     * Closes the connection. Data already written is still delivered, and
+     * the channel is closed once the peer acknowledges our FIN.
+     */
+    void close() {
+        this.lock.lock();
+        try {
+            if (this.closed) {
+                return;
+            }
+            this.outputShutdown = true;
+            this.closed = true;
+            if (!this.receiveQueue.isEmpty()) {
+                this.inputDiscarded = true;
+            }
+            this.receiveQueue.clear();
+            this.receiveQueued = 0;
+            this.readable.signalAll();
+            this.writable.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+        this.closeRequested = true;
+        this.loop.wakeup();
+    }
+
+    boolean isInputClosed() {
+        this.lock.lock();
+        try {
+            return this.eof || this.closed;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    boolean isOutputShutdown() {
+        this.lock.lock();
+        try {
+            return this.outputShutdown;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    boolean isAppClosed() {
+        this.lock.lock();
+        try {
+            return this.closed;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " [state=" + this.state
+            + ", mss=" + this.mss + ", srtt=" + this.rtt.getSrttMicros()
+            + "us, " + this.cc + ", retransmits=" + this.retransmits + "]";
+    }
+}
@@ -0,0 +1,255 @@
+package org.lastbamboo.common.ice.reliable;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.lastbamboo.common.ice.channel.IceMtu;
+import org.lastbamboo.common.ice.clock.IceClock;
+import org.lastbamboo.common.ice.clock.IceClocks;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single thread that drives any number of reliable connections from one
+ * selector. The thread reads every datagram, runs every timer and does all
+ * the sending, so connections need no threads or locks of their own beyond
+ * the queues they share with the application.
+ */
+public class ReliableEventLoop implements Runnable {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(ReliableEventLoop.class);
+
+    private static final int MAX_DATAGRAM = 65536;
+
+    private static ReliableEventLoop shared;
+
+    private final IceClock clock = IceClocks.get();
+
+    private final Selector selector;
+
+    private final Thread thread;
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+    private final List<ReliableConnection> connections =
+        new ArrayList<ReliableConnection>();
+
+    private final ByteBuffer in = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+
+    private final ByteBuffer out = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+
+    private volatile boolean running = true;
+
+    /**
+     * Accessor for the loop shared by everything that doesn't need its own,
+     * starting it if necessary.
+     *
+     * @return The shared loop.
+     * @throws IOException If we can't open a selector.
+     */
+    public static synchronized ReliableEventLoop getShared()
+        throws IOException {
+        if (shared == null || !shared.running) {
+            shared = new ReliableEventLoop("ICE-Reliable-Loop");
+        }
+        return shared;
+    }
+
+    /**
+     * Creates and starts a new loop on a daemon thread.
+     *
+     * @param name The name of the loop's thread.
+     * @throws IOException If we can't open a selector.
+     */
+    public ReliableEventLoop(final String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Starts a reliable connection over a connected datagram channel. One
+     * side has to be the initiator and the other not -- the initiator sends
+     * SYNs until the other side answers. The loop owns the channel from
+     * here on, and it's closed if the handshake fails.
+     *
+     * @param channel The channel, connected to the peer.
+     * @param initiator Whether or not we start the handshake.
+     * @param mtu The path MTU to size segments for.
+     * @param listener The listener for the outcome of the handshake. If
+     * the loop has shut down, it's told right away.
+     */
+    public void connect(final DatagramChannel channel,
+        final boolean initiator, final int mtu,
+        final ReliableConnectListener listener) {
+        final InetSocketAddress remote = (InetSocketAddress)
+            channel.socket().getRemoteSocketAddress();
+        final int mss = IceMtu.maxPayload(mtu, remote.getAddress()) -
+            ReliablePacket.HEADER_SIZE;
+        final ReliableConnection conn = new ReliableConnection(this, channel,
+            initiator, mss, this.out, listener);
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                register(conn);
+            }
+        };
+        // The loop runs whatever's queued when it stops, so anything we 
+        // get in before then is failed along with the other connections.
+        synchronized (this.tasks) {
+            if (this.running) {
+                execute(task);
+                return;
+            }
+        }
+        conn.fail(new IOException("Event loop shut down"));
+    }
+
+    private void register(final ReliableConnection conn) {
+        final DatagramChannel channel = conn.getChannel();
+        try {
+            channel.configureBlocking(false);
+            final SelectionKey key =
+                channel.register(this.selector, SelectionKey.OP_READ, conn);
+            conn.start(key, this.clock.nanoTime());
+            this.connections.add(conn);
+        } catch (final IOException e) {
+            conn.fail(e);
+        }
+    }
+
+    /**
+     * Accessor for the clock the loop runs its connections' timers on.
+     *
+     * @return The clock.
+     */
+    IceClock getClock() {
+        return this.clock;
+    }
+
+    /**
+     * Runs a task on the loop thread.
+     *
+     * @param task The task.
+     */
+    void execute(final Runnable task) {
+        this.tasks.add(task);
+        this.selector.wakeup();
+    }
+
+    /**
+     * Wakes the loop so it services its connections, for when application
+     * threads have queued data or freed up buffer space.
+     */
+    void wakeup() {
+        if (Thread.currentThread() == this.thread) {
+            return;
+        }
+        if (this.wakeupPending.compareAndSet(false, true)) {
+            this.selector.wakeup();
+        }
+    }
+
+    /**
+     * Stops the loop, failing any connections it's still running.
+     */
+    public void shutdown() {
+        this.running = false;
+        this.selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (this.running) {
+            try {
+                runOnce();
+            } catch (final Throwable t) {
+                LOG.error("Error in reliable event loop", t);
+            }
+        }
+        synchronized (this.tasks) {
+            Runnable task;
+            while ((task = this.tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (final Throwable t) {
+                    LOG.error("Error in reliable event loop", t);
+                }
+            }
+        }
+        for (final ReliableConnection conn : this.connections) {
+            conn.fail(new IOException("Event loop shut down"));
+        }
+        this.connections.clear();
+        try {
+            this.selector.close();
+        } catch (final IOException e) {
+            LOG.debug("Exception closing selector", e);
+        }
+    }
+
+    private void runOnce() throws IOException {
+        Runnable task;
+        while ((task = this.tasks.poll()) != null) {
+            task.run();
+        }
+
+        final long now = this.clock.nanoTime();
+        long wait = Long.MAX_VALUE;
+        for (final Iterator<ReliableConnection> iter =
+            this.connections.iterator(); iter.hasNext();) {
+            final ReliableConnection conn = iter.next();
+            final long next = conn.service(now);
+            if (conn.isClosed()) {
+                iter.remove();
+                continue;
+            }
+            if (next != Long.MAX_VALUE) {
+                wait = Math.min(wait, next - now);
+            }
+        }
+
+        // Any wakeup from here on makes the select below return at once.
+        this.wakeupPending.set(false);
+        if (!this.tasks.isEmpty() || wait <= 0) {
+            this.selector.selectNow();
+        } else if (wait == Long.MAX_VALUE) {
+            this.selector.select();
+        } else {
+            this.selector.select(Math.max(1L, (wait + 999999L) / 1000000L));
+        }
+
+        final long readTime = this.clock.nanoTime();
+        final Iterator<SelectionKey> keys =
+            this.selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            final SelectionKey key = keys.next();
+            keys.remove();
+            if (!key.isValid()) {
+                continue;
+            }
+            final ReliableConnection conn =
+                (ReliableConnection) key.attachment();
+            if (key.isWritable()) {
+                conn.onWritable();
+            }
+            if (key.isValid() && key.isReadable()) {
+                conn.onReadable(this.in, readTime);
+            }
+        }
+    }
+}
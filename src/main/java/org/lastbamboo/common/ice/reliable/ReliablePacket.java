@@ -0,0 +1,144 @@
+package org.lastbamboo.common.ice.reliable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Wire format for the reliable transport. Every packet carries the same
+ * fixed header, so acknowledgements ride along with data:
+ * <pre>
+ *  0       1       2               6              10
+ *  +-------+-------+---------------+---------------+
+ *  | magic | type  |      seq      |      ack      |
+ *  +-------+-------+---------------+---------------+
+ *  |    window     |     tsval     |     tsecr     | sacks | blocks...
+ *  +---------------+---------------+---------------+-------+
+ * </pre>
+ * Sequence numbers count segments rather than bytes, and a retransmitted
+ * segment keeps its number. The ack is the next segment the sender of the
+ * packet expects, the window is how many more segments it will buffer, and
+ * each SACK block is a half open range of segments received above the ack.
+ * The timestamps echo each other for RTT samples, which avoids having to
+ * work out which transmission of a segment an ack is for.
+ * <p>
+ * Instances hold a decoded header and are reused, so they aren't thread
+ * safe.
+ */
+final class ReliablePacket {
+
+    /**
+     * Marks our packets, so stray STUN checks still arriving on the port
+     * after nomination are dropped. STUN messages always start with the two
+     * zero bits, so they can never match.
+     */
+    static final byte MAGIC = (byte) 0xD7;
+
+    static final byte SYN = 1;
+
+    static final byte SYN_ACK = 2;
+
+    static final byte DATA = 3;
+
+    static final byte ACK = 4;
+
+    static final byte FIN = 5;
+
+    static final byte RST = 6;
+
+    /**
+     * The size of the fixed header.
+     */
+    static final int HEADER_SIZE = 23;
+
+    /**
+     * The most SACK blocks we put in a single acknowledgement.
+     */
+    static final int MAX_SACK_BLOCKS = 4;
+
+    /**
+     * The header size with the most SACK blocks.
+     */
+    static final int MAX_HEADER_SIZE = HEADER_SIZE + MAX_SACK_BLOCKS * 8;
+
+    byte type;
+
+    int seq;
+
+    int ack;
+
+    int window;
+
+    int tsVal;
+
+    int tsEcr;
+
+    int sackCount;
+
+    final int[] sackStart = new int[MAX_SACK_BLOCKS];
+
+    final int[] sackEnd = new int[MAX_SACK_BLOCKS];
+
+    /**
+     * Decodes the header of the packet in the buffer, leaving the buffer
+     * positioned at the payload.
+     *
+     * @param buf The received packet.
+     * @return <code>true</code> if the buffer holds one of our packets,
+     * otherwise <code>false</code>.
+     */
+    boolean decode(final ByteBuffer buf) {
+        if (buf.remaining() < HEADER_SIZE || buf.get() != MAGIC) {
+            return false;
+        }
+        this.type = buf.get();
+        if (this.type < SYN || this.type > RST) {
+            return false;
+        }
+        this.seq = buf.getInt();
+        this.ack = buf.getInt();
+        this.window = buf.getInt();
+        this.tsVal = buf.getInt();
+        this.tsEcr = buf.getInt();
+        final int count = buf.get() & 0xff;
+        if (count > MAX_SACK_BLOCKS || buf.remaining() < count * 8) {
+            return false;
+        }
+        this.sackCount = count;
+        for (int i = 0; i < count; i++) {
+            this.sackStart[i] = buf.getInt();
+            this.sackEnd[i] = buf.getInt();
+        }
+        return true;
+    }
+
+    /**
+     * Writes the header into the buffer, leaving it positioned for the
+     * payload.
+     *
+     * @param buf The buffer to write to.
+     */
+    void encode(final ByteBuffer buf) {
+        buf.put(MAGIC);
+        buf.put(this.type);
+        buf.putInt(this.seq);
+        buf.putInt(this.ack);
+        buf.putInt(this.window);
+        buf.putInt(this.tsVal);
+        buf.putInt(this.tsEcr);
+        buf.put((byte) this.sackCount);
+        for (int i = 0; i < this.sackCount; i++) {
+            buf.putInt(this.sackStart[i]);
+            buf.putInt(this.sackEnd[i]);
+        }
+    }
+
+    /**
+     * Compares sequence numbers, allowing for wrap around.
+     *
+     * @param a The first sequence number.
+     * @param b The second sequence number.
+     * @return <code>true</code> if a comes before b.
+     */
+    static boolean before(final int a, final int b) {
+        return a - b < 0;
+    }
+}
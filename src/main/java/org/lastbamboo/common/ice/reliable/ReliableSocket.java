@@ -0,0 +1,178 @@
+package org.lastbamboo.common.ice.reliable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+
+/**
+ * The application's view of a reliable connection, with the usual blocking
+ * socket streams. Reads and writes only touch the connection's queues --
+ * the event loop does the actual I/O.
+ */
+public class ReliableSocket extends Socket {
+
+    private final ReliableConnection connection;
+
+    private final InetSocketAddress local;
+
+    private final InetSocketAddress remote;
+
+    private final InputStream in;
+
+    private final OutputStream out;
+
+    private volatile int soTimeout;
+
+    ReliableSocket(final ReliableConnection connection,
+        final SocketAddress local, final SocketAddress remote) {
+        this.connection = connection;
+        this.local = (InetSocketAddress) local;
+        this.remote = (InetSocketAddress) remote;
+        this.in = new ReliableInputStream();
+        this.out = new ReliableOutputStream();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return this.in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return this.out;
+    }
+
+    @Override
+    public void setSoTimeout(final int timeout) {
+        this.soTimeout = timeout;
+    }
+
+    @Override
+    public int getSoTimeout() {
+        return this.soTimeout;
+    }
+
+    @Override
+    public void shutdownOutput() {
+        this.connection.shutdownOutput();
+    }
+
+    @Override
+    public boolean isOutputShutdown() {
+        return this.connection.isOutputShutdown();
+    }
+
+    @Override
+    public boolean isInputShutdown() {
+        return this.connection.isInputClosed();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    @Override
+    public boolean isBound() {
+        return true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return this.connection.isAppClosed();
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+        return this.remote.getAddress();
+    }
+
+    @Override
+    public int getPort() {
+        return this.remote.getPort();
+    }
+
+    @Override
+    public InetAddress getLocalAddress() {
+        return this.local.getAddress();
+    }
+
+    @Override
+    public int getLocalPort() {
+        return this.local.getPort();
+    }
+
+    @Override
+    public SocketAddress getRemoteSocketAddress() {
+        return this.remote;
+    }
+
+    @Override
+    public SocketAddress getLocalSocketAddress() {
+        return this.local;
+    }
+
+    @Override
+    public synchronized void close() {
+        this.connection.close();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " [local=" + this.local
+            + ", remote=" + this.remote + ", " + this.connection + "]";
+    }
+
+    private final class ReliableInputStream extends InputStream {
+
+        private final byte[] single = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            final int read = read(this.single, 0, 1);
+            if (read == -1) {
+                return -1;
+            }
+            return this.single[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+            throws IOException {
+            return connection.read(b, off, len, soTimeout);
+        }
+
+        @Override
+        public int available() {
+            return connection.available();
+        }
+
+        @Override
+        public void close() {
+            ReliableSocket.this.close();
+        }
+    }
+
+    private final class ReliableOutputStream extends OutputStream {
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len)
+            throws IOException {
+            connection.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            ReliableSocket.this.close();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package org.lastbamboo.common.ice.reliable;
+
+/**
+ * Round trip time estimator and retransmission timeout, as in RFC 6298.
+ * Not thread safe -- only the event loop touches it.
+ */
+final class RttEstimator {
+
+    private static final long INITIAL_RTO_MICROS = 1000000L;
+
+    private static final long MIN_RTO_MICROS = 200000L;
+
+    private static final long MAX_RTO_MICROS = 60000000L;
+
+    private static final long GRANULARITY_MICROS = 1000L;
+
+    private long srtt;
+
+    private long rttvar;
+
+    private long rto = INITIAL_RTO_MICROS;
+
+    private int backoff;
+
+    private boolean sampled;
+
+    /**
+     * Adds a round trip time sample.
+     *
+     * @param rttMicros The measured round trip time.
+     */
+    void sample(final long rttMicros) {
+        final long rtt = Math.max(rttMicros, 1L);
+        if (!this.sampled) {
+            this.srtt = rtt;
+            this.rttvar = rtt / 2;
+            this.sampled = true;
+        } else {
+            this.rttvar = (3 * this.rttvar + Math.abs(this.srtt - rtt)) / 4;
+            this.srtt = (7 * this.srtt + rtt) / 8;
+        }
+        this.rto = this.srtt + Math.max(GRANULARITY_MICROS, 4 * this.rttvar);
+        this.backoff = 0;
+    }
+
+    /**
+     * Doubles the timeout after it expires.
+     */
+    void backOff() {
+        if (this.backoff < 16) {
+            this.backoff++;
+        }
+    }
+
+    /**
+     * Clears any back off, for when the peer shows it's alive without 
+     * giving us a sample.
+     */
+    void resetBackoff() {
+        this.backoff = 0;
+    }
+
+    /**
+     * Accessor for the number of times in a row the timer has expired.
+     *
+     * @return The number of back offs since the last sample.
+     */
+    int getBackoff() {
+        return this.backoff;
+    }
+
+    /**
+     * Accessor for the current retransmission timeout, including back off.
+     *
+     * @return The timeout in microseconds.
+     */
+    long getRtoMicros() {
+        final long base = Math.max(MIN_RTO_MICROS, this.rto);
+        return Math.min(MAX_RTO_MICROS, base << this.backoff);
+    }
+
+    /**
+     * Accessor for the smoothed round trip time.
+     *
+     * @return The smoothed RTT in microseconds, or zero if we haven't had
+     * a sample yet.
+     */
+    long getSrttMicros() {
+        return this.srtt;
+    }
+
+    boolean hasSample() {
+        return this.sampled;
+    }
+}
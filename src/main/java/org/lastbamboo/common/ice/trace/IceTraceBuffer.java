@@ -0,0 +1,177 @@
+package org.lastbamboo.common.ice.trace;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed-size ring buffer of recent events for a single agent. All storage 
+ * is allocated up front and recording an event only writes references and 
+ * primitives into the preallocated slots, so tracing can stay on in 
+ * production. Nothing is formatted until the buffer is dumped, typically 
+ * when the negotiation fails.<p>
+ * 
+ * Concurrent writers each claim their own slot, but a dump taken while 
+ * events are being recorded can see a partially written entry. That's 
+ * fine for post-mortem debugging and avoids any locking on the hot path.
+ */
+public class IceTraceBuffer {
+
+    /**
+     * Buffer that records nothing.
+     */
+    public static final IceTraceBuffer DISABLED = new IceTraceBuffer(0);
+
+    /**
+     * The default number of events to keep, overridable with the 
+     * <code>ice.trace.size</code> system property. Zero disables tracing.
+     */
+    public static final int DEFAULT_SIZE = 256;
+
+    private final int mask;
+
+    private final long[] nanos;
+
+    private final IceTraceEvent[] events;
+
+    private final Object[] subjects;
+
+    private final Object[] details;
+
+    private final long[] values;
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final long created = System.nanoTime();
+
+    /**
+     * Creates a new buffer with the configured size.
+     * 
+     * @return The new buffer, or {@link #DISABLED} if tracing is off.
+     */
+    public static IceTraceBuffer newBuffer() {
+        final int size = Integer.getInteger("ice.trace.size", DEFAULT_SIZE);
+        if (size <= 0) {
+            return DISABLED;
+        }
+        return new IceTraceBuffer(size);
+    }
+
+    /**
+     * Creates a new buffer.
+     * 
+     * @param size The number of events to keep. This is rounded up to a
+     * power of two.
+     */
+    public IceTraceBuffer(final int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Negative size: " + size);
+        }
+        int capacity = size == 0 ? 0 : 1;
+        while (capacity < size) {
+            capacity <<= 1;
+        }
+        this.mask = capacity - 1;
+        this.nanos = new long[capacity];
+        this.events = new IceTraceEvent[capacity];
+        this.subjects = new Object[capacity];
+        this.details = new Object[capacity];
+        this.values = new long[capacity];
+    }
+
+    /**
+     * Records an event.
+     * 
+     * @param event The event.
+     * @param subject What the event applies to, typically the pair.
+     * @param detail Any further detail, such as the new state.
+     * @param value A value for the event, such as an elapsed time.
+     */
+    public void record(final IceTraceEvent event, final Object subject,
+        final Object detail, final long value) {
+        if (mask < 0) {
+            return;
+        }
+        final int slot = (int) (sequence.getAndIncrement() & mask);
+        nanos[slot] = System.nanoTime();
+        subjects[slot] = subject;
+        details[slot] = detail;
+        values[slot] = value;
+        // The event goes last since a dump treats slots with no event as 
+        // empty.
+        events[slot] = event;
+    }
+
+    public void record(final IceTraceEvent event, final Object subject,
+        final Object detail) {
+        record(event, subject, detail, 0L);
+    }
+
+    /**
+     * Accessor for the number of slots in the buffer.
+     * 
+     * @return The capacity.
+     */
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Accessor for the total number of events recorded, including those 
+     * since overwritten.
+     * 
+     * @return The number of events recorded.
+     */
+    public long getRecorded() {
+        return sequence.get();
+    }
+
+    /**
+     * Formats the events still in the buffer, oldest first, with times in
+     * milliseconds since the buffer was created.
+     * 
+     * @return The formatted events.
+     */
+    public String dump() {
+        final StringBuilder sb = new StringBuilder();
+        final long end = sequence.get();
+        final long start = Math.max(0L, end - getCapacity());
+        if (start > 0) {
+            sb.append("(");
+            sb.append(start);
+            sb.append(" earlier events dropped)\n");
+        }
+        for (long i = start; i < end; i++) {
+            final int slot = (int) (i & mask);
+            final IceTraceEvent event = events[slot];
+            if (event == null) {
+                continue;
+            }
+            final long micros = (nanos[slot] - created) / 1000L;
+            sb.append(micros / 1000L);
+            sb.append('.');
+            final long fraction = micros % 1000L;
+            if (fraction < 100L) {
+                sb.append('0');
+            }
+            if (fraction < 10L) {
+                sb.append('0');
+            }
+            sb.append(fraction);
+            sb.append("ms ");
+            sb.append(event);
+            if (subjects[slot] != null) {
+                sb.append(' ');
+                sb.append(subjects[slot]);
+            }
+            if (details[slot] != null) {
+                sb.append(' ');
+                sb.append(details[slot]);
+            }
+            if (values[slot] != 0L) {
+                sb.append(" value=");
+                sb.append(values[slot]);
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
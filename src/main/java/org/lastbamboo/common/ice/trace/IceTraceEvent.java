@@ -0,0 +1,52 @@
+package org.lastbamboo.common.ice.trace;
+
+/**
+ * The events recorded in an {@link IceTraceBuffer}.
+ */
+public enum IceTraceEvent {
+
+    /**
+     * A candidate pair changed state. The detail is the new state.
+     */
+    PAIR_STATE,
+
+    /**
+     * We sent the first Binding Request for a check. The value is the RTO
+     * in milliseconds.
+     */
+    REQUEST_SENT,
+
+    /**
+     * We resent a Binding Request because we hadn't received a response. 
+     * The value is the number of requests sent so far.
+     */
+    REQUEST_RETRANSMITTED,
+
+    /**
+     * A check finished. The detail is the response message and the value is
+     * the elapsed time in microseconds.
+     */
+    RESPONSE,
+
+    /**
+     * We received a role conflict error response. The detail is whether or
+     * not we're controlling after switching roles.
+     */
+    ROLE_CONFLICT,
+
+    /**
+     * A pair was nominated.
+     */
+    NOMINATED,
+
+    /**
+     * A path MTU probe finished. The value is the MTU found, or -1 if the
+     * probes went unanswered.
+     */
+    MTU_PROBED,
+
+    /**
+     * The agent changed state. The detail is the new state.
+     */
+    ICE_STATE;
+}
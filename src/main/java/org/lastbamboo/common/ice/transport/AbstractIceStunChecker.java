@@ -2,11 +2,18 @@ package org.lastbamboo.common.ice.transport;
 
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.id.uuid.UUID;
 import org.littleshoot.mina.common.CloseFuture;
 import org.littleshoot.mina.common.IoSession;
 import org.lastbamboo.common.ice.IceStunChecker;
+import org.lastbamboo.common.ice.clock.IceClock;
+import org.lastbamboo.common.ice.clock.IceClocks;
+import org.lastbamboo.common.ice.metrics.IceStunCounters;
+import org.lastbamboo.common.ice.trace.IceTraceBuffer;
 import org.littleshoot.stun.stack.message.BindingRequest;
 import org.littleshoot.stun.stack.message.CanceledStunMessage;
 import org.littleshoot.stun.stack.message.NullStunMessage;
@@ -36,7 +43,17 @@ public abstract class AbstractIceStunChecker implements IceStunChecker,
 
     protected final StunTransactionTracker<StunMessage> m_transactionTracker;
 
-    protected final Object m_requestLock = new Object();
+    /**
+     * Guards waiting for responses. This is an explicit lock rather than a
+     * monitor so threads blocked in checks don't pin virtual thread carriers.
+     */
+    protected final Lock m_requestLock = new ReentrantLock();
+    
+    /**
+     * Signaled when a response arrives or the transaction is canceled.
+     */
+    protected final Condition m_responseReceived = 
+        m_requestLock.newCondition();
     
     /**
      * TODO: Review if this works!!
@@ -44,6 +61,20 @@ public abstract class AbstractIceStunChecker implements IceStunChecker,
     protected volatile boolean m_transactionCanceled = false;
 
     protected volatile boolean m_closed = false;
+
+    protected volatile IceTraceBuffer m_trace = IceTraceBuffer.DISABLED;
+
+    protected volatile Object m_traceSubject;
+
+    /**
+     * The number of times the last request was sent.
+     */
+    protected volatile int m_requestCount = 0;
+
+    /**
+     * The clock retransmissions and response timeouts are measured on.
+     */
+    protected final IceClock m_clock = IceClocks.get();
     
     public AbstractIceStunChecker(final IoSession ioSession,
         final StunTransactionTracker<StunMessage> transactionTracker)
@@ -82,6 +113,7 @@ public abstract class AbstractIceStunChecker implements IceStunChecker,
             m_log.debug("Already closed");
             return new CanceledStunMessage();
             }
+        IceStunCounters.onTransactionStarted();
         try
             {
             return writeInternal(bindingRequest, rto);
@@ -91,11 +123,38 @@ public abstract class AbstractIceStunChecker implements IceStunChecker,
             m_log.error("Could not write Binding Request", t);
             return new NullStunMessage();
             }
+        finally
+            {
+            IceStunCounters.onTransactionFinished();
+            }
         }
     
     protected abstract StunMessage writeInternal(BindingRequest bindingRequest, 
         long rto);
+
+    public void setTrace(final IceTraceBuffer trace, final Object subject)
+        {
+        this.m_trace = trace;
+        this.m_traceSubject = subject;
+        }
+
+    public int getRequestCount()
+        {
+        return this.m_requestCount;
+        }
+
+    public IceClock getClock()
+        {
+        return this.m_clock;
+        }
     
+    /**
+     * Waits for up to the specified time for a response to the request. 
+     * Callers must hold {@link #m_requestLock}.
+     * 
+     * @param request The request we're waiting on a response to.
+     * @param waitTime The maximum time to wait in milliseconds.
+     */
     protected final void waitIfNoResponse(final BindingRequest request, 
         final long waitTime)
         {
@@ -104,7 +163,7 @@ public abstract class AbstractIceStunChecker implements IceStunChecker,
             {
             try
                 {
-                m_requestLock.wait(waitTime);
+                m_clock.await(m_requestLock, m_responseReceived, waitTime);
                 }
             catch (final InterruptedException e)
                 {
@@ -117,9 +176,14 @@ public abstract class AbstractIceStunChecker implements IceStunChecker,
         {
         m_log.debug("Cancelling transaction!!");
         this.m_transactionCanceled = true;
-        synchronized (m_requestLock)
+        m_requestLock.lock();
+        try
+            {
+            m_responseReceived.signalAll();
+            }
+        finally
             {
-            m_requestLock.notifyAll();
+            m_requestLock.unlock();
             }
         }
     
@@ -139,10 +203,15 @@ public abstract class AbstractIceStunChecker implements IceStunChecker,
     private Object notifyWaiters(final StunMessage request, 
         final StunMessage response)
         {
-        synchronized (m_requestLock)
+        m_requestLock.lock();
+        try
             {
             this.m_idsToResponses.put(request.getTransactionId(), response);
-            m_requestLock.notifyAll();
+            m_responseReceived.signalAll();
+            }
+        finally
+            {
+            m_requestLock.unlock();
             }
         return null;
         }
@@ -1,13 +1,22 @@
 package org.lastbamboo.common.ice.transport;
 
+import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 
 import org.apache.commons.id.uuid.UUID;
+import org.lastbamboo.common.ice.channel.IceMtu;
+import org.lastbamboo.common.ice.jfr.IceFlightRecorder;
+import org.lastbamboo.common.ice.jfr.IceJfrEventType;
+import org.lastbamboo.common.ice.metrics.IceStunCounters;
+import org.lastbamboo.common.ice.trace.IceTraceEvent;
+import org.littleshoot.mina.common.ByteBuffer;
 import org.littleshoot.mina.common.IoSession;
 import org.littleshoot.stun.stack.message.BindingRequest;
 import org.littleshoot.stun.stack.message.CanceledStunMessage;
 import org.littleshoot.stun.stack.message.NullStunMessage;
 import org.littleshoot.stun.stack.message.StunMessage;
+import org.littleshoot.stun.stack.message.attributes.StunAttribute;
 import org.littleshoot.stun.stack.transaction.StunTransactionTracker;
 import org.littleshoot.util.RuntimeIoException;
 import org.slf4j.Logger;
@@ -22,6 +31,33 @@ public class IceUdpStunChecker extends AbstractIceStunChecker {
     private static final Logger LOG = 
         LoggerFactory.getLogger(IceUdpStunChecker.class);
 
+    /**
+     * The largest MTU we probe for. Raise it on networks with jumbo frames.
+     */
+    private static final int MAX_PROBE_MTU = 
+        Integer.getInteger("ice.mtu.probe.max", IceMtu.ETHERNET_MTU);
+
+    /**
+     * How close the search gets to the real MTU before stopping.
+     */
+    private static final int PROBE_GRANULARITY = 16;
+
+    /**
+     * How many times we send each probe size before deciding it's too big.
+     */
+    private static final int PROBE_ATTEMPTS = 3;
+
+    /**
+     * The wait before resending a probe, doubled each time.
+     */
+    private static final long PROBE_RTO = 100L;
+
+    /**
+     * The most time a whole search takes, after which we settle for the 
+     * largest size that got through so far.
+     */
+    private static final long PROBE_BUDGET = 3000L;
+
     /**
      * Creates a new UDP STUN connectivity checker.
      * 
@@ -60,9 +96,12 @@ public class IceUdpStunChecker extends AbstractIceStunChecker {
         this.m_transactionTracker.addTransaction(bindingRequest, this,
                 localAddress, remoteAddress);
 
-        synchronized (m_requestLock) {
-            int requests = 0;
-
+        final Object event = 
+            IceFlightRecorder.begin(IceJfrEventType.STUN_TRANSACTION);
+        int requests = 0;
+        String outcome = "error";
+        m_requestLock.lock();
+        try {
             long waitTime = 0L;
 
             while (!m_idsToResponses.containsKey(id) && requests < 7
@@ -88,6 +127,12 @@ public class IceUdpStunChecker extends AbstractIceStunChecker {
                 if (this.m_ioSession.isConnected()) {
                     LOG.info("Writing binding request: {} on {}", 
                         bindingRequest, this.m_ioSession);
+                    if (requests > 0) {
+                        IceStunCounters.onRetransmission();
+                        this.m_trace.record(
+                            IceTraceEvent.REQUEST_RETRANSMITTED, 
+                            this.m_traceSubject, null, requests + 1);
+                    }
                     this.m_ioSession.write(bindingRequest);
                 }
 
@@ -111,12 +156,14 @@ public class IceUdpStunChecker extends AbstractIceStunChecker {
             if (m_idsToResponses.containsKey(id)) {
                 final StunMessage response = this.m_idsToResponses.remove(id);
                 LOG.debug("Received STUN response: {}", response);
+                outcome = "response";
                 return response;
             }
 
             if (this.m_transactionCanceled || this.m_closed
                     || this.m_ioSession.isClosing()) {
                 LOG.debug("The transaction was canceled!");
+                outcome = "canceled";
                 return new CanceledStunMessage();
             }
 
@@ -124,8 +171,108 @@ public class IceUdpStunChecker extends AbstractIceStunChecker {
                 // This will happen quite often, such as when we haven't
                 // yet successfully punched a hole in the firewall.
                 LOG.debug("Did not get response on: {}", this.m_ioSession);
+                outcome = "timeout";
                 return new NullStunMessage();
             }
+        } finally {
+            m_requestLock.unlock();
+            this.m_requestCount = requests;
+            if (event != null) {
+                IceFlightRecorder.commit(event, 
+                    IceFlightRecorder.str(localAddress), 
+                    IceFlightRecorder.str(remoteAddress), 
+                    Integer.valueOf(requests), outcome);
+            }
+        }
+    }
+
+    public int probeMtu(final StunAttribute priority, 
+        final StunAttribute role) {
+        final InetSocketAddress localAddress = 
+            (InetSocketAddress) this.m_ioSession.getLocalAddress();
+        final InetSocketAddress remoteAddress = 
+            (InetSocketAddress) this.m_ioSession.getRemoteAddress();
+        final InetAddress address = remoteAddress.getAddress();
+        final long deadline = m_clock.currentTimeMillis() + PROBE_BUDGET;
+
+        // This relies on the platform setting don't fragment on UDP 
+        // sockets, as Linux does by default. Otherwise fragments that make
+        // it through make every size look fine.
+        int lo = IceMtu.minimum(address);
+        int hi = Math.max(lo, MAX_PROBE_MTU);
+        if (!probe(lo, priority, role, localAddress, remoteAddress)) {
+            LOG.debug("No response to minimum size probe on {}", 
+                this.m_ioSession);
+            return -1;
+        }
+        if (probe(hi, priority, role, localAddress, remoteAddress)) {
+            return hi;
+        }
+        while (hi - lo > PROBE_GRANULARITY && 
+            m_clock.currentTimeMillis() < deadline) {
+            final int mid = ((lo + hi) / 2) & ~3;
+            if (probe(mid, priority, role, localAddress, remoteAddress)) {
+                lo = mid;
+            } else {
+                hi = mid;
+            }
+        }
+        LOG.debug("Found MTU of {} on {}", lo, this.m_ioSession);
+        return lo;
+    }
+
+    /**
+     * Sends a single probe size, retransmitting it a few times, and waits 
+     * for an answer. This is package-private so tests can stand in for the 
+     * network.
+     * 
+     * @param mtu The IP MTU to probe.
+     * @param priority The PRIORITY attribute to include.
+     * @param role The ICE-CONTROLLING or ICE-CONTROLLED attribute to 
+     * include.
+     * @param localAddress The local address of the session.
+     * @param remoteAddress The remote address of the session.
+     * @return <code>true</code> if the probe got any response, otherwise
+     * <code>false</code>.
+     */
+    boolean probe(final int mtu, final StunAttribute priority,
+        final StunAttribute role, final InetSocketAddress localAddress,
+        final InetSocketAddress remoteAddress) {
+        final int datagramSize = 
+            IceMtu.maxPayload(mtu, remoteAddress.getAddress());
+        final BindingRequest request = new BindingRequest(priority, role);
+        final UUID id = request.getTransactionId();
+        this.m_transactionTracker.addTransaction(request, this,
+            localAddress, remoteAddress);
+        m_requestLock.lock();
+        try {
+            long waitTime = PROBE_RTO;
+            for (int i = 0; i < PROBE_ATTEMPTS; i++) {
+                if (m_idsToResponses.containsKey(id) || 
+                    this.m_transactionCanceled || this.m_closed || 
+                    !this.m_ioSession.isConnected()) {
+                    break;
+                }
+                // MINA frees buffers once they're written, so each attempt 
+                // gets its own.
+                final ByteBuffer padded;
+                try {
+                    padded = StunPadding.pad(this.m_ioSession, request, 
+                        datagramSize);
+                } catch (final IOException e) {
+                    LOG.warn("Could not pad probe", e);
+                    return false;
+                }
+                this.m_ioSession.write(padded);
+                waitIfNoResponse(request, waitTime);
+                waitTime *= 2;
+            }
+            
+            // Error responses count too -- all that matters is that the 
+            // request got there.
+            return m_idsToResponses.remove(id) != null;
+        } finally {
+            m_requestLock.unlock();
         }
     }
 }
@@ -0,0 +1,105 @@
+package org.lastbamboo.common.ice.transport;
+
+import java.io.IOException;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.common.WriteFuture;
+import org.littleshoot.mina.filter.codec.ProtocolEncoder;
+import org.littleshoot.mina.filter.codec.ProtocolEncoderOutput;
+import org.littleshoot.stun.stack.StunProtocolCodecFactory;
+import org.littleshoot.stun.stack.message.StunMessage;
+
+/**
+ * Encodes STUN messages with a PADDING attribute (RFC 5780 section 7.6)
+ * appended, growing them to an exact datagram size for path MTU probes.
+ * The STUN stack doesn't know about PADDING, so we encode the message as
+ * usual, append the attribute ourselves and fix up the length in the
+ * header. The codec filter passes buffers straight through, so the result
+ * can be written to the session like any other message.
+ */
+final class StunPadding {
+
+    /**
+     * The PADDING attribute type.
+     */
+    static final int PADDING = 0x0026;
+
+    private static final int ATTRIBUTE_HEADER = 4;
+
+    private static final int LENGTH_OFFSET = 2;
+
+    private StunPadding() {
+        // Only static methods.
+    }
+
+    /**
+     * Encodes the message padded out to the specified size. Messages that
+     * are already at least that big are returned without padding.
+     *
+     * @param session The session the message will go out on.
+     * @param message The message to encode.
+     * @param datagramSize The UDP payload size to pad to.
+     * @return The encoded message, ready to write.
+     * @throws IOException If the message can't be encoded.
+     */
+    static ByteBuffer pad(final IoSession session, final StunMessage message,
+        final int datagramSize) throws IOException {
+        final ByteBuffer encoded = encode(session, message);
+        final int length = encoded.remaining();
+
+        // Attribute values are padded to four bytes in STUN, so round down
+        // to stay under the size we're probing.
+        final int padding =
+            ((datagramSize - length - ATTRIBUTE_HEADER) / 4) * 4;
+        if (padding <= 0) {
+            return encoded;
+        }
+        final ByteBuffer padded =
+            ByteBuffer.allocate(length + ATTRIBUTE_HEADER + padding);
+        padded.put(encoded);
+        padded.putShort((short) PADDING);
+        padded.putShort((short) padding);
+        padded.put(new byte[padding]);
+        final int bodyLength = padded.getUnsignedShort(LENGTH_OFFSET);
+        padded.putShort(LENGTH_OFFSET,
+            (short) (bodyLength + ATTRIBUTE_HEADER + padding));
+        padded.flip();
+        return padded;
+    }
+
+    private static ByteBuffer encode(final IoSession session,
+        final StunMessage message) throws IOException {
+        final CapturingOutput out = new CapturingOutput();
+        try {
+            final ProtocolEncoder encoder =
+                new StunProtocolCodecFactory().getEncoder();
+            encoder.encode(session, message, out);
+        } catch (final IOException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new IOException("Could not encode " + message + ": " + e);
+        }
+        if (out.buffer == null) {
+            throw new IOException("Nothing encoded for " + message);
+        }
+        return out.buffer;
+    }
+
+    private static final class CapturingOutput
+        implements ProtocolEncoderOutput {
+
+        private ByteBuffer buffer;
+
+        public void write(final ByteBuffer buf) {
+            this.buffer = buf;
+        }
+
+        public void mergeAll() {
+        }
+
+        public WriteFuture flush() {
+            return null;
+        }
+    }
+}
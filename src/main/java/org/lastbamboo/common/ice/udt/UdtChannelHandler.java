@@ -0,0 +1,28 @@
+package org.lastbamboo.common.ice.udt;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+
+/**
+ * Handler for a UDT channel serviced by a {@link UdtSelectorLoop}. Both
+ * methods are called from the loop thread, which every channel on the loop
+ * shares, so they must never block.
+ */
+public interface UdtChannelHandler {
+
+    /**
+     * Called when the channel is ready for any of its interest ops. The
+     * handler can change the interest ops or cancel the key directly.
+     *
+     * @param key The channel's key.
+     */
+    void onReady(SelectionKey key);
+
+    /**
+     * Called if the channel couldn't be registered, or when the loop shuts
+     * down under it.
+     *
+     * @param e The reason.
+     */
+    void onFailed(IOException e);
+}
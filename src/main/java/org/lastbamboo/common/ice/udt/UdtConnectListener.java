@@ -0,0 +1,32 @@
+package org.lastbamboo.common.ice.udt;
+
+import java.io.IOException;
+
+import com.barchart.udt.nio.SocketChannelUDT;
+
+/**
+ * Listener for the outcome of connecting or accepting a UDT channel through
+ * a {@link UdtSelectorLoop}. Called from the loop thread, so implementations
+ * should hand anything slow off to another thread.
+ */
+public interface UdtConnectListener {
+
+    /**
+     * Called when the channel is connected. The channel is in non-blocking
+     * mode and still registered with the loop's selector, with no interest
+     * ops, so it can go straight to
+     * {@link UdtSelectorLoop#register(java.nio.channels.SelectableChannel,
+     * int, UdtChannelHandler)}.
+     *
+     * @param channel The connected channel.
+     */
+    void onConnected(SocketChannelUDT channel);
+
+    /**
+     * Called when connecting or accepting fails or times out. The channel
+     * has been closed.
+     *
+     * @param e The reason for the failure.
+     */
+    void onConnectFailed(IOException e);
+}
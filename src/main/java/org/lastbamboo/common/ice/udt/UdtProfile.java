@@ -0,0 +1,258 @@
+package org.lastbamboo.common.ice.udt;
+
+import org.lastbamboo.common.ice.candidate.IcePathStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.barchart.udt.CCC;
+import com.barchart.udt.ExceptionUDT;
+import com.barchart.udt.FactoryUDT;
+import com.barchart.udt.OptionUDT;
+import com.barchart.udt.SocketUDT;
+
+/**
+ * A set of UDT socket options sized for a kind of path. UDT's defaults suit
+ * a fast LAN, but on a long fat path the buffers and the flight window cap
+ * the send rate well below what the path carries, so we size them from the
+ * bandwidth-delay product the connectivity checks let us estimate.
+ * <p>
+ * Options must be applied before connecting or listening, since UDT fixes
+ * most of them in the handshake. Sockets a server accepts inherit the
+ * options of the server socket. A size or bandwidth of 0 leaves UDT's
+ * default alone.
+ */
+public class UdtProfile {
+
+    private static final Logger LOG = LoggerFactory.getLogger(UdtProfile.class);
+
+    /**
+     * The bandwidth in bytes per second we size buffers to fill, 1 Gbit/s
+     * unless the "ice.udt.target.bandwidth" system property says otherwise.
+     */
+    private static final long TARGET_BANDWIDTH =
+        Long.getLong("ice.udt.target.bandwidth", 125000000L).longValue();
+
+    /**
+     * Loss above this during checks gets the lossy profile.
+     */
+    private static final double LOSSY_THRESHOLD = 
+        parseDouble(System.getProperty("ice.udt.lossy.threshold"), 0.05);
+
+    /**
+     * UDT's own buffers default to 8192 packets, which already covers the
+     * bandwidth-delay product of short paths.
+     */
+    private static final int DEFAULT_BUFFER_PACKETS = 8192;
+
+    /**
+     * UDT's default flight window, in packets.
+     */
+    private static final int DEFAULT_FLIGHT_PACKETS = 25600;
+
+    private static final int MAX_BUFFER = 64 * 1024 * 1024;
+
+    /**
+     * The kernel caps socket buffers anyway, so there's no point asking 
+     * for more than this.
+     */
+    private static final int MAX_SYSTEM_BUFFER = 8 * 1024 * 1024;
+
+    private static final int SYSTEM_BUFFER = 1024 * 1024;
+
+    /**
+     * Leaves every option at UDT's default.
+     */
+    public static final UdtProfile DEFAULT = 
+        new UdtProfile("default", 0, 0, 0, 0L, null);
+
+    /**
+     * UDT's defaults, with bigger kernel buffers so bursts at line rate 
+     * aren't dropped before UDT reads them.
+     */
+    public static final UdtProfile LAN = 
+        new UdtProfile("lan", 0, SYSTEM_BUFFER, 0, 0L, null);
+
+    private final String name;
+
+    private final int bufferSize;
+
+    private final int systemBufferSize;
+
+    private final int flightFlagSize;
+
+    private final long maxBandwidth;
+
+    private final Class<? extends CCC> congestionControl;
+
+    /**
+     * Creates a new profile.
+     * 
+     * @param name The name of the profile, for logging.
+     * @param bufferSize The size of UDT's send and receive buffers in bytes.
+     * @param systemBufferSize The size of the kernel's UDP send and receive
+     * buffers in bytes.
+     * @param flightFlagSize The most unacknowledged packets in flight.
+     * @param maxBandwidth The most bytes per second to send.
+     * @param congestionControl The congestion control class to use in 
+     * place of UDT's native one, or <code>null</code> for the native one.
+     */
+    public UdtProfile(final String name, final int bufferSize, 
+        final int systemBufferSize, final int flightFlagSize, 
+        final long maxBandwidth, 
+        final Class<? extends CCC> congestionControl) {
+        this.name = name;
+        this.bufferSize = bufferSize;
+        this.systemBufferSize = systemBufferSize;
+        this.flightFlagSize = flightFlagSize;
+        this.maxBandwidth = maxBandwidth;
+        this.congestionControl = congestionControl;
+    }
+
+    /**
+     * Chooses a profile for a path from what the checks saw of it. Paths
+     * whose bandwidth-delay product fits UDT's default buffers get 
+     * {@link #LAN}, and longer ones get buffers and a flight window of 
+     * twice the product at the target bandwidth, which the 
+     * "ice.udt.target.bandwidth" system property sets in bytes per second.
+     * <p>
+     * UDT's native congestion control reads random loss as congestion, so
+     * paths losing more than the "ice.udt.lossy.threshold" share of checks
+     * can use a different congestion control class, named by the 
+     * "ice.udt.lossy.cc" system property, and a rate cap from 
+     * "ice.udt.lossy.maxbw" in bytes per second.
+     * 
+     * @param stats What the checks saw of the path.
+     * @param mtu The path MTU.
+     * @return The profile.
+     */
+    public static UdtProfile forPath(final IcePathStats stats, 
+        final int mtu) {
+        if (stats.getRttMicros() < 0) {
+            return DEFAULT;
+        }
+        final long bdp = TARGET_BANDWIDTH * stats.getRttMicros() / 1000000L;
+        final long window = Math.min(MAX_BUFFER, 2 * bdp);
+        final boolean lossy = stats.getLossRate() > LOSSY_THRESHOLD;
+        if (window <= (long) DEFAULT_BUFFER_PACKETS * mtu && !lossy) {
+            return LAN;
+        }
+        final int buffer = 
+            (int) Math.max(window, (long) DEFAULT_BUFFER_PACKETS * mtu);
+        // UDT won't use more receive buffer than the flight window covers.
+        final int flight = 
+            Math.max(DEFAULT_FLIGHT_PACKETS, (buffer + mtu - 1) / mtu);
+        final int system = 
+            Math.max(SYSTEM_BUFFER, Math.min(MAX_SYSTEM_BUFFER, buffer));
+        if (!lossy) {
+            return new UdtProfile("high-bdp", buffer, system, flight, 0L, 
+                null);
+        }
+        return new UdtProfile("lossy", buffer, system, flight, 
+            Long.getLong("ice.udt.lossy.maxbw", 0L).longValue(),
+            lossyCongestionControl());
+    }
+
+    /**
+     * Sets the options of this profile on a socket. Options UDT won't take
+     * are logged and skipped, since UDT works either way.
+     * 
+     * @param socket The socket, before it connects or listens.
+     */
+    public void apply(final SocketUDT socket) {
+        LOG.debug("Applying UDT profile {}", this);
+        try {
+            if (this.congestionControl != null) {
+                socket.setOption(OptionUDT.Custom_Congestion_Control,
+                    factory(this.congestionControl));
+            }
+            if (this.flightFlagSize > 0) {
+                socket.setOption(OptionUDT.Flight_Window_Size, 
+                    Integer.valueOf(this.flightFlagSize));
+            }
+            if (this.bufferSize > 0) {
+                socket.setOption(OptionUDT.Protocol_Send_Buffer_Size, 
+                    Integer.valueOf(this.bufferSize));
+                socket.setOption(OptionUDT.Protocol_Receive_Buffer_Size, 
+                    Integer.valueOf(this.bufferSize));
+            }
+            if (this.systemBufferSize > 0) {
+                socket.setOption(OptionUDT.System_Send_Buffer_Size, 
+                    Integer.valueOf(this.systemBufferSize));
+                socket.setOption(OptionUDT.System_Receive_Buffer_Size, 
+                    Integer.valueOf(this.systemBufferSize));
+            }
+            if (this.maxBandwidth > 0) {
+                socket.setOption(OptionUDT.Maximum_Bandwidth, 
+                    Long.valueOf(this.maxBandwidth));
+            }
+        } catch (final ExceptionUDT e) {
+            LOG.warn("Could not apply UDT profile " + this, e);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getSystemBufferSize() {
+        return systemBufferSize;
+    }
+
+    public int getFlightFlagSize() {
+        return flightFlagSize;
+    }
+
+    public long getMaxBandwidth() {
+        return maxBandwidth;
+    }
+
+    public Class<? extends CCC> getCongestionControl() {
+        return congestionControl;
+    }
+
+    private static <C extends CCC> FactoryUDT<C> factory(
+        final Class<C> type) {
+        return new FactoryUDT<C>(type);
+    }
+
+    private static Class<? extends CCC> lossyCongestionControl() {
+        final String className = System.getProperty("ice.udt.lossy.cc");
+        if (className == null) {
+            return null;
+        }
+        try {
+            return Class.forName(className).asSubclass(CCC.class);
+        } catch (final ClassNotFoundException e) {
+            LOG.warn("No congestion control class: " + className, e);
+        } catch (final ClassCastException e) {
+            LOG.warn("Not a congestion control class: " + className, e);
+        }
+        return null;
+    }
+
+    private static double parseDouble(final String value, 
+        final double defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (final NumberFormatException e) {
+            LOG.warn("Bad number: " + value, e);
+            return defaultValue;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " [name=" + name 
+            + ", bufferSize=" + bufferSize + ", systemBufferSize=" 
+            + systemBufferSize + ", flightFlagSize=" + flightFlagSize 
+            + ", maxBandwidth=" + maxBandwidth + ", congestionControl=" 
+            + congestionControl + "]";
+    }
+}
@@ -0,0 +1,103 @@
+package org.lastbamboo.common.ice.udt;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.lastbamboo.common.ice.candidate.IcePathStats;
+import org.lastbamboo.common.offer.answer.IceMediaStreamDesc;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Chooses the {@link UdtProfile} for each UDT connection. Applications can
+ * pin a profile for a media stream description, for example to cap the
+ * bandwidth of bulk transfers, and everything else gets a profile chosen
+ * from what the checks saw of the nominated pair. Setting the
+ * "ice.udt.autotune.disabled" system property leaves unpinned streams on
+ * UDT's defaults.
+ */
+public final class UdtProfiles {
+
+    private static final Logger LOG = 
+        LoggerFactory.getLogger(UdtProfiles.class);
+
+    private static final boolean AUTOTUNE = 
+        !Boolean.getBoolean("ice.udt.autotune.disabled");
+
+    private static final Map<IceMediaStreamDesc, UdtProfile> pinned =
+        new WeakHashMap<IceMediaStreamDesc, UdtProfile>();
+
+    private UdtProfiles() {
+        // Only static methods.
+    }
+
+    /**
+     * Pins the profile for connections of a media stream. The pin lasts as
+     * long as the description does.
+     * 
+     * @param desc The media stream description.
+     * @param profile The profile to use.
+     */
+    public static void pin(final IceMediaStreamDesc desc, 
+        final UdtProfile profile) {
+        if (desc == null) {
+            throw new NullPointerException("Null desc");
+        }
+        if (profile == null) {
+            throw new NullPointerException("Null profile");
+        }
+        synchronized (pinned) {
+            pinned.put(desc, profile);
+        }
+    }
+
+    /**
+     * Goes back to choosing profiles automatically for a media stream.
+     * 
+     * @param desc The media stream description.
+     */
+    public static void unpin(final IceMediaStreamDesc desc) {
+        synchronized (pinned) {
+            pinned.remove(desc);
+        }
+    }
+
+    /**
+     * Accessor for the profile pinned for a media stream.
+     * 
+     * @param desc The media stream description.
+     * @return The pinned profile, or <code>null</code> if there isn't one.
+     */
+    public static UdtProfile getPinned(final IceMediaStreamDesc desc) {
+        if (desc == null) {
+            return null;
+        }
+        synchronized (pinned) {
+            return pinned.get(desc);
+        }
+    }
+
+    /**
+     * Chooses the profile for a connection.
+     * 
+     * @param desc The description of the connection's media stream, or 
+     * <code>null</code> if unknown.
+     * @param stats What the checks saw of the path.
+     * @param mtu The path MTU.
+     * @return The profile.
+     */
+    public static UdtProfile select(final IceMediaStreamDesc desc,
+        final IcePathStats stats, final int mtu) {
+        final UdtProfile pin = getPinned(desc);
+        final UdtProfile profile;
+        if (pin != null) {
+            profile = pin;
+        } else if (AUTOTUNE) {
+            profile = UdtProfile.forPath(stats, mtu);
+        } else {
+            profile = UdtProfile.DEFAULT;
+        }
+        LOG.debug("Using {} for path {}", profile, stats);
+        return profile;
+    }
+}
@@ -0,0 +1,469 @@
+package org.lastbamboo.common.ice.udt;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.lastbamboo.common.ice.clock.IceClock;
+import org.lastbamboo.common.ice.clock.IceClocks;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.barchart.udt.nio.SelectorProviderUDT;
+import com.barchart.udt.nio.ServerSocketChannelUDT;
+import com.barchart.udt.nio.SocketChannelUDT;
+
+/**
+ * A single thread that connects, accepts and services any number of UDT
+ * channels from one barchart UDT selector, in place of a blocked thread per
+ * connection. Connecting and accepting are non-blocking, and once a channel
+ * is up applications can register it with the same loop to get called when
+ * it's ready to read or write.
+ * <p>
+ * Everything the loop calls runs on the loop thread, which all of its
+ * channels share, so nothing it calls may block.
+ */
+public class UdtSelectorLoop implements Runnable {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(UdtSelectorLoop.class);
+
+    private static final int SHARED_LOOPS =
+        Math.max(1, Integer.getInteger("ice.udt.selectors", 1).intValue());
+
+    private static final long ESTABLISH_TIMEOUT_NANOS =
+        TimeUnit.MILLISECONDS.toNanos(
+            Integer.getInteger("ice.udt.establish.timeout", 30000).longValue());
+
+    private static final UdtSelectorLoop[] shared =
+        new UdtSelectorLoop[SHARED_LOOPS];
+
+    private static int nextShared;
+
+    private final IceClock clock = IceClocks.get();
+
+    private final Selector selector;
+
+    private final Thread thread;
+
+    private final long establishTimeoutNanos;
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    private final List<Establishment> establishing =
+        new ArrayList<Establishment>();
+
+    private volatile boolean running = true;
+
+    /**
+     * Accessor for one of the loops shared by everything that doesn't need
+     * its own, starting it if necessary. There's one shared loop unless the
+     * "ice.udt.selectors" system property asks for more, in which case
+     * callers get them in turn.
+     *
+     * @return A shared loop.
+     * @throws IOException If we can't open a selector.
+     */
+    public static synchronized UdtSelectorLoop next() throws IOException {
+        final int index = nextShared;
+        nextShared = (nextShared + 1) % SHARED_LOOPS;
+        if (shared[index] == null || !shared[index].running) {
+            shared[index] = new UdtSelectorLoop("ICE-UDT-Selector-" + index);
+        }
+        return shared[index];
+    }
+
+    /**
+     * Creates and starts a new loop on a daemon thread.
+     *
+     * @param name The name of the loop's thread.
+     * @throws IOException If we can't open a selector.
+     */
+    public UdtSelectorLoop(final String name) throws IOException {
+        this(name, ESTABLISH_TIMEOUT_NANOS);
+    }
+
+    /**
+     * Creates and starts a new loop with the specified timeout for
+     * connecting and accepting.
+     *
+     * @param name The name of the loop's thread.
+     * @param establishTimeoutNanos How long connecting or accepting may
+     * take before we give up.
+     * @throws IOException If we can't open a selector.
+     */
+    UdtSelectorLoop(final String name, final long establishTimeoutNanos)
+        throws IOException {
+        this.establishTimeoutNanos = establishTimeoutNanos;
+        this.selector = SelectorProviderUDT.STREAM.openSelector();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Connects a UDT channel without blocking. Options such as the MTU have
+     * to be set, and the channel bound, before calling this. The loop owns
+     * the channel until the listener hears about it, and closes it if
+     * connecting fails.
+     *
+     * @param channel The channel to connect.
+     * @param remote The address to connect to.
+     * @param listener The listener for the outcome.
+     */
+    public void connect(final SocketChannelUDT channel,
+        final InetSocketAddress remote, final UdtConnectListener listener) {
+        final boolean queued = enqueue(new Runnable() {
+            @Override
+            public void run() {
+                startConnect(channel, remote, listener);
+            }
+        });
+        if (!queued) {
+            refuse(channel, listener);
+        }
+    }
+
+    /**
+     * Accepts a single connection on a bound UDT server channel without
+     * blocking, closing the server channel once it has.
+     *
+     * @param server The bound server channel.
+     * @param listener The listener for the outcome.
+     */
+    public void accept(final ServerSocketChannelUDT server,
+        final UdtConnectListener listener) {
+        final boolean queued = enqueue(new Runnable() {
+            @Override
+            public void run() {
+                final Establishment est = new Establishment(server, listener,
+                    clock.nanoTime() + establishTimeoutNanos);
+                try {
+                    server.configureBlocking(false);
+                    est.key = server.register(selector, 
+                        SelectionKey.OP_ACCEPT, est);
+                    establishing.add(est);
+                } catch (final IOException e) {
+                    fail(est, e);
+                } catch (final ClosedSelectorException e) {
+                    fail(est, shutDown());
+                }
+            }
+        });
+        if (!queued) {
+            refuse(server, listener);
+        }
+    }
+
+    /**
+     * Registers a channel to be serviced by the loop. The channel is put in
+     * non-blocking mode, and the handler is called whenever it's ready for
+     * any of the specified ops. Channels this loop connected are already
+     * registered, and this just sets their ops and handler.
+     *
+     * @param channel The channel.
+     * @param ops The interest ops.
+     * @param handler The handler for the channel.
+     */
+    public void register(final SelectableChannel channel, final int ops,
+        final UdtChannelHandler handler) {
+        final boolean queued = enqueue(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channel.configureBlocking(false);
+                    final SelectionKey key = channel.keyFor(selector);
+                    if (key != null && key.isValid()) {
+                        key.interestOps(ops);
+                        key.attach(handler);
+                    } else {
+                        channel.register(selector, ops, handler);
+                    }
+                } catch (final IOException e) {
+                    handler.onFailed(e);
+                } catch (final CancelledKeyException e) {
+                    handler.onFailed(new IOException("Channel cancelled"));
+                } catch (final ClosedSelectorException e) {
+                    handler.onFailed(shutDown());
+                }
+            }
+        });
+        if (!queued) {
+            handler.onFailed(shutDown());
+        }
+    }
+
+    /**
+     * Runs a task on the loop thread, for example to change the interest
+     * ops of a channel from another thread. Tasks queued before the loop
+     * stops still run as it stops.
+     *
+     * @param task The task.
+     * @throws RejectedExecutionException If the loop has stopped.
+     */
+    public void execute(final Runnable task) {
+        if (!enqueue(task)) {
+            throw new RejectedExecutionException("Selector loop shut down");
+        }
+    }
+
+    /**
+     * Queues a task unless the loop has stopped. The loop drains the queue
+     * under the same lock when it stops, so every task we queue runs.
+     *
+     * @return <code>true</code> if the task was queued.
+     */
+    private boolean enqueue(final Runnable task) {
+        synchronized (this.tasks) {
+            if (!this.running) {
+                return false;
+            }
+            this.tasks.add(task);
+        }
+        this.selector.wakeup();
+        return true;
+    }
+
+    /**
+     * Stops the loop, failing anything still connecting and telling the
+     * handlers of registered channels.
+     */
+    public void shutdown() {
+        this.running = false;
+        this.selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (this.running) {
+            try {
+                runOnce();
+            } catch (final ClosedSelectorException e) {
+                // Nothing more we can select on, so retrying would just spin.
+                LOG.error("UDT selector closed under the loop", e);
+                this.running = false;
+            } catch (final Throwable t) {
+                LOG.error("Error in UDT selector loop", t);
+            }
+        }
+        synchronized (this.tasks) {
+            Runnable task;
+            while ((task = this.tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (final Throwable t) {
+                    LOG.error("Error in UDT selector loop", t);
+                }
+            }
+        }
+        final IOException e = shutDown();
+        for (final Establishment est : 
+            new ArrayList<Establishment>(this.establishing)) {
+            fail(est, e);
+        }
+        if (this.selector.isOpen()) {
+            for (final SelectionKey key : this.selector.keys()) {
+                final Object attachment = key.attachment();
+                if (attachment instanceof UdtChannelHandler) {
+                    ((UdtChannelHandler) attachment).onFailed(e);
+                }
+            }
+        }
+        try {
+            this.selector.close();
+        } catch (final IOException ioe) {
+            LOG.debug("Exception closing selector", ioe);
+        }
+    }
+
+    private void runOnce() throws IOException {
+        Runnable task;
+        while ((task = this.tasks.poll()) != null) {
+            task.run();
+        }
+
+        final long now = this.clock.nanoTime();
+        long wait = Long.MAX_VALUE;
+        for (final Establishment est : 
+            new ArrayList<Establishment>(this.establishing)) {
+            final long left = est.deadline - now;
+            if (left <= 0) {
+                fail(est, new SocketTimeoutException(
+                    "Timed out establishing UDT connection"));
+            } else {
+                wait = Math.min(wait, left);
+            }
+        }
+
+        if (!this.tasks.isEmpty()) {
+            this.selector.selectNow();
+        } else if (wait == Long.MAX_VALUE) {
+            this.selector.select();
+        } else {
+            this.selector.select(Math.max(1L, (wait + 999999L) / 1000000L));
+        }
+
+        final Iterator<SelectionKey> keys =
+            this.selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            final SelectionKey key = keys.next();
+            keys.remove();
+            if (!key.isValid()) {
+                continue;
+            }
+            final Object attachment = key.attachment();
+            if (attachment instanceof Establishment) {
+                onEstablishing(key, (Establishment) attachment);
+            } else if (attachment instanceof UdtChannelHandler) {
+                try {
+                    ((UdtChannelHandler) attachment).onReady(key);
+                } catch (final Throwable t) {
+                    LOG.error("Error in UDT channel handler", t);
+                }
+            }
+        }
+    }
+
+    private static IOException shutDown() {
+        return new IOException("Selector loop shut down");
+    }
+
+    private void startConnect(final SocketChannelUDT channel,
+        final InetSocketAddress remote, final UdtConnectListener listener) {
+        final Establishment est = new Establishment(channel, listener,
+            this.clock.nanoTime() + this.establishTimeoutNanos);
+        try {
+            channel.configureBlocking(false);
+            // Barchart won't connect a non-blocking channel that isn't 
+            // registered yet.
+            est.key = channel.register(this.selector,
+                SelectionKey.OP_CONNECT, est);
+            LOG.info("About to connect to {}", remote);
+            if (channel.connect(remote)) {
+                est.key.interestOps(0);
+                est.key.attach(null);
+                connected(est, channel);
+            } else {
+                this.establishing.add(est);
+            }
+        } catch (final IOException e) {
+            fail(est, e);
+        } catch (final ClosedSelectorException e) {
+            fail(est, shutDown());
+        }
+    }
+
+    private void onEstablishing(final SelectionKey key,
+        final Establishment est) {
+        try {
+            if (key.isConnectable()) {
+                final SocketChannelUDT channel =
+                    (SocketChannelUDT) est.channel;
+                if (channel.finishConnect()) {
+                    this.establishing.remove(est);
+                    key.interestOps(0);
+                    key.attach(null);
+                    connected(est, channel);
+                }
+            } else if (key.isAcceptable()) {
+                final ServerSocketChannelUDT server =
+                    (ServerSocketChannelUDT) est.channel;
+                final SocketChannelUDT channel = server.accept();
+                if (channel == null) {
+                    return;
+                }
+                // We only ever accept the single connection for the pair.
+                this.establishing.remove(est);
+                key.cancel();
+                close(server);
+                try {
+                    channel.configureBlocking(false);
+                    channel.register(this.selector, 0);
+                } catch (final IOException e) {
+                    close(channel);
+                    throw e;
+                }
+                connected(est, channel);
+            }
+        } catch (final IOException e) {
+            fail(est, e);
+        }
+    }
+
+    private void connected(final Establishment est,
+        final SocketChannelUDT channel) {
+        try {
+            est.listener.onConnected(channel);
+        } catch (final Throwable t) {
+            LOG.error("Error in UDT connect listener", t);
+        }
+    }
+
+    private void fail(final Establishment est, final IOException e) {
+        this.establishing.remove(est);
+        if (est.key != null) {
+            est.key.cancel();
+        }
+        close(est.channel);
+        try {
+            est.listener.onConnectFailed(e);
+        } catch (final Throwable t) {
+            LOG.error("Error in UDT connect listener", t);
+        }
+    }
+
+    /**
+     * Fails a connect or accept that came in after the loop stopped. This
+     * runs on the caller's thread, so it leaves the loop's state alone.
+     */
+    private static void refuse(final SelectableChannel channel,
+        final UdtConnectListener listener) {
+        close(channel);
+        try {
+            listener.onConnectFailed(shutDown());
+        } catch (final Throwable t) {
+            LOG.error("Error in UDT connect listener", t);
+        }
+    }
+
+    private static void close(final SelectableChannel channel) {
+        try {
+            channel.close();
+        } catch (final IOException e) {
+            LOG.debug("Exception closing channel", e);
+        }
+    }
+
+    /**
+     * A channel on its way to being connected.
+     */
+    private static final class Establishment {
+
+        private final SelectableChannel channel;
+
+        private final UdtConnectListener listener;
+
+        private final long deadline;
+
+        private SelectionKey key;
+
+        private Establishment(final SelectableChannel channel,
+            final UdtConnectListener listener, final long deadline) {
+            this.channel = channel;
+            this.listener = listener;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package org.lastbamboo.common.ice;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.lastbamboo.common.ice.candidate.IceCandidate;
+import org.lastbamboo.common.ice.candidate.IceCandidatePair;
+import org.lastbamboo.common.ice.candidate.IceCandidatePairFactory;
+import org.lastbamboo.common.ice.candidate.IceCandidatePairFactoryImpl;
+import org.lastbamboo.common.ice.candidate.IceCandidatePairState;
+import org.lastbamboo.common.ice.candidate.IceCandidateType;
+import org.lastbamboo.common.ice.metrics.IceMetrics;
+import org.lastbamboo.common.ice.metrics.IceNegotiationTimer;
+import org.lastbamboo.common.ice.metrics.IcePhase;
+import org.lastbamboo.common.ice.sdp.IceCandidateSdpDecoder;
+import org.lastbamboo.common.ice.sdp.IceCandidateSdpDecoderImpl;
+import org.lastbamboo.common.ice.sdp.IceCandidateSdpEncoder;
+import org.lastbamboo.common.ice.stubs.IceUdpConnectorStub;
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.stun.stack.message.StunMessage;
+import org.littleshoot.stun.stack.transaction.StunTransactionTracker;
+import org.littleshoot.stun.stack.transaction.StunTransactionTrackerImpl;
+import org.littleshoot.util.Predicate;
+
+/**
+ * Fails the build when a hot path allocates more per operation than its
+ * budget in <code>allocation-budgets.properties</code>. Allocation is
+ * measured with the per thread counters in {@link ThreadMXBean} after
+ * warming the path up, so it reflects the code after JIT compilation. 
+ * Everything measured runs on the test thread.
+ */
+public class AllocationBudgetTest {
+
+    private static final int WARMUP_OPS = 20000;
+
+    private static final int MEASURED_OPS = 20000;
+
+    private static final int ROUNDS = 3;
+
+    private com.sun.management.ThreadMXBean threads;
+
+    private Properties budgets;
+
+    @Before
+    public void setUp() throws IOException {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        budgets = new Properties();
+        final InputStream is = getClass().getClassLoader()
+            .getResourceAsStream("allocation-budgets.properties");
+        assertNotNull("No budgets file", is);
+        try {
+            budgets.load(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    @Test
+    public void testBindingRequests() throws Exception {
+        final String[] kinds = 
+            {"duplicate", "fresh", "roleConflict", "useCandidate"};
+        for (final String kind : kinds) {
+            final BindingRequestFixture fixture = 
+                new BindingRequestFixture(10);
+            assertWithinBudget("bindingRequest." + kind, new Runnable() {
+                public void run() {
+                    fixture.process(kind);
+                }
+            });
+        }
+    }
+
+    @Test
+    public void testCheckSchedulingTick() throws Exception {
+        final IceCheckList checkList = 
+            new IceCheckListImpl(newPairFactory(), 
+                BenchmarkCandidates.local(5, 0.0, true));
+        checkList.formCheckList(BenchmarkCandidates.remote(10, 0.0, false));
+        final Predicate<IceCandidatePair> waiting = 
+            new StatePredicate(IceCandidatePairState.WAITING);
+        final Predicate<IceCandidatePair> frozen = 
+            new StatePredicate(IceCandidatePairState.FROZEN);
+        assertWithinBudget("checkScheduling.tick", new Runnable() {
+            public void run() {
+                // The same search the scheduler makes on each tick.
+                if (checkList.removeTopTriggeredPair() != null) {
+                    return;
+                }
+                if (checkList.selectPair(waiting) != null) {
+                    return;
+                }
+                checkList.selectPair(frozen);
+            }
+        });
+    }
+
+    @Test
+    public void testSdp() throws Exception {
+        final List<IceCandidate> candidates = 
+            BenchmarkCandidates.local(4, 0.0, false);
+        final IceCandidateSdpEncoder encoder = 
+            new IceCandidateSdpEncoder("message", "http");
+        encoder.visitCandidates(candidates);
+        final byte[] sdp = encoder.getSdp();
+        assertWithinBudget("sdp.encode", new Runnable() {
+            public void run() {
+                final IceCandidateSdpEncoder enc = 
+                    new IceCandidateSdpEncoder("message", "http");
+                enc.visitCandidates(candidates);
+                enc.getSdp();
+            }
+        });
+        final IceCandidateSdpDecoder decoder = new IceCandidateSdpDecoderImpl();
+        assertWithinBudget("sdp.decode", new Runnable() {
+            public void run() {
+                try {
+                    decoder.decode(ByteBuffer.wrap(sdp), false);
+                } catch (final IOException e) {
+                    throw new IllegalStateException("Could not decode", e);
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testCandidatePairCreation() throws Exception {
+        final IceCandidatePairFactory factory = newPairFactory();
+        final IceCandidate local = 
+            BenchmarkCandidates.local(1, 0.0, true).get(0);
+        final IceCandidate remote = 
+            BenchmarkCandidates.remote(1, 0.0, false).get(0);
+        assertWithinBudget("candidatePair.create", new Runnable() {
+            public void run() {
+                factory.newPair(local, remote);
+            }
+        });
+    }
+
+    @Test
+    public void testMetricsRecord() throws Exception {
+        assertWithinBudget("metrics.record", new Runnable() {
+            public void run() {
+                // What each connectivity check records.
+                IceMetrics.record(IcePhase.CONNECTIVITY_CHECK, "udp", 
+                    IceNegotiationTimer.candidateTypes(IceCandidateType.HOST, 
+                        IceCandidateType.SERVER_REFLEXIVE), 1000000L);
+            }
+        });
+    }
+
+    private void assertWithinBudget(final String name, final Runnable op) {
+        final long budget = budget(name);
+        for (int i = 0; i < WARMUP_OPS; i++) {
+            op.run();
+        }
+        // Take the best of a few rounds so a stray allocation by the JIT or
+        // class loading during the first round doesn't fail the build.
+        long best = Long.MAX_VALUE;
+        final long id = Thread.currentThread().getId();
+        for (int round = 0; round < ROUNDS; round++) {
+            final long start = threads.getThreadAllocatedBytes(id);
+            for (int i = 0; i < MEASURED_OPS; i++) {
+                op.run();
+            }
+            final long bytes = threads.getThreadAllocatedBytes(id) - start;
+            best = Math.min(best, bytes / MEASURED_OPS);
+        }
+        if (Boolean.getBoolean("ice.alloc.report")) {
+            System.out.println(name + ": " + best + " bytes/op (budget " + 
+                budget + ")");
+        }
+        assertTrue(name + " allocated " + best + " bytes/op, over its " +
+            "budget of " + budget, best <= budget);
+    }
+
+    private long budget(final String name) {
+        final String value = System.getProperty("ice.alloc.budget." + name, 
+            budgets.getProperty(name));
+        assertNotNull("No budget for " + name, value);
+        return Long.parseLong(value.trim());
+    }
+
+    private static IceCandidatePairFactory newPairFactory() {
+        final StunTransactionTracker<StunMessage> tracker = 
+            new StunTransactionTrackerImpl();
+        return new IceCandidatePairFactoryImpl(
+            new IceStunCheckerFactoryImpl(tracker), new IceUdpConnectorStub());
+    }
+
+    private static final class StatePredicate 
+        implements Predicate<IceCandidatePair> {
+
+        private final IceCandidatePairState state;
+
+        private StatePredicate(final IceCandidatePairState state) {
+            this.state = state;
+        }
+
+        public boolean evaluate(final IceCandidatePair pair) {
+            return pair.getState() == state;
+        }
+    }
+}
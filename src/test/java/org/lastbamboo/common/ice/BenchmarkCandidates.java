@@ -0,0 +1,140 @@
+package org.lastbamboo.common.ice;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.lastbamboo.common.ice.candidate.IceCandidate;
+import org.lastbamboo.common.ice.candidate.IceTcpActiveCandidate;
+import org.lastbamboo.common.ice.candidate.IceTcpHostPassiveCandidate;
+import org.lastbamboo.common.ice.candidate.IceTcpRelayPassiveCandidate;
+import org.lastbamboo.common.ice.candidate.IceUdpHostCandidate;
+import org.lastbamboo.common.ice.candidate.IceUdpRelayCandidate;
+import org.lastbamboo.common.ice.candidate.IceUdpServerReflexiveCandidate;
+
+/**
+ * Builds repeatable sets of candidates for benchmarks and allocation 
+ * tests. Candidates cycle through the types we see in real offers, and a 
+ * configurable fraction of them use IPv6 addresses. No name lookups are 
+ * performed.
+ */
+public final class BenchmarkCandidates {
+
+    private BenchmarkCandidates() {
+        // Only static methods.
+    }
+
+    /**
+     * Creates local candidates: UDP host, UDP server reflexive and TCP 
+     * active.
+     * 
+     * @param count The number of candidates.
+     * @param ipv6Fraction The fraction of candidates with IPv6 addresses.
+     * @param controlling Whether or not the agent is controlling.
+     * @return The candidates.
+     */
+    public static List<IceCandidate> local(final int count, 
+        final double ipv6Fraction, final boolean controlling) {
+        final List<IceCandidate> candidates = new ArrayList<IceCandidate>();
+        final InetAddress stunServer = v4(35, 52, 3, 53);
+        for (int i = 0; i < count; i++) {
+            final boolean v6 = isV6(i, count, ipv6Fraction);
+            final InetSocketAddress host = 
+                new InetSocketAddress(v6 ? v6(0xfd00, i) : v4(192, 168, 1, i), 
+                    4000 + i);
+            switch (i % 3) {
+                case 0:
+                    candidates.add(new IceUdpHostCandidate(host, controlling));
+                    break;
+                case 1:
+                    final IceCandidate base = 
+                        new IceUdpHostCandidate(host, controlling);
+                    final InetSocketAddress mapped = new InetSocketAddress(
+                        v6 ? v6(0x2001, i) : v4(78, 2, 24, i), 5000 + i);
+                    candidates.add(new IceUdpServerReflexiveCandidate(mapped, 
+                        base, stunServer, controlling));
+                    break;
+                default:
+                    candidates.add(
+                        new IceTcpActiveCandidate(host, controlling));
+                    break;
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Creates remote candidates: UDP host, UDP server reflexive, TCP 
+     * passive, TCP relay and UDP relay.
+     * 
+     * @param count The number of candidates.
+     * @param ipv6Fraction The fraction of candidates with IPv6 addresses.
+     * @param controlling Whether or not the remote agent is controlling.
+     * @return The candidates.
+     */
+    public static List<IceCandidate> remote(final int count, 
+        final double ipv6Fraction, final boolean controlling) {
+        final List<IceCandidate> candidates = new ArrayList<IceCandidate>();
+        final InetAddress stunServer = v4(35, 52, 3, 53);
+        for (int i = 0; i < count; i++) {
+            final boolean v6 = isV6(i, count, ipv6Fraction);
+            final InetSocketAddress host = new InetSocketAddress(
+                v6 ? v6(0xfd01, i) : v4(10, 0, i / 250, i % 250), 6000 + i);
+            final InetSocketAddress pub = new InetSocketAddress(
+                v6 ? v6(0x2a00, i) : v4(81, 7, i / 250, i % 250), 7000 + i);
+            switch (i % 5) {
+                case 0:
+                    candidates.add(new IceUdpHostCandidate(host, controlling));
+                    break;
+                case 1:
+                    candidates.add(new IceUdpServerReflexiveCandidate(pub, 
+                        new IceUdpHostCandidate(host, controlling), 
+                        stunServer, controlling));
+                    break;
+                case 2:
+                    candidates.add(
+                        new IceTcpHostPassiveCandidate(pub, controlling));
+                    break;
+                case 3:
+                    candidates.add(new IceTcpRelayPassiveCandidate(pub, 
+                        stunServer, host.getAddress(), host.getPort(), 
+                        controlling));
+                    break;
+                default:
+                    candidates.add(new IceUdpRelayCandidate(pub, stunServer,
+                        host.getAddress(), host.getPort(), controlling));
+                    break;
+            }
+        }
+        return candidates;
+    }
+
+    private static boolean isV6(final int index, final int count, 
+        final double ipv6Fraction) {
+        return index < Math.round(count * ipv6Fraction);
+    }
+
+    private static InetAddress v4(final int a, final int b, final int c, 
+        final int d) {
+        return address(new byte[] {(byte) a, (byte) b, (byte) c, (byte) d});
+    }
+
+    private static InetAddress v6(final int prefix, final int index) {
+        final byte[] bytes = new byte[16];
+        bytes[0] = (byte) (prefix >>> 8);
+        bytes[1] = (byte) prefix;
+        bytes[14] = (byte) (index >>> 8);
+        bytes[15] = (byte) (index + 1);
+        return address(bytes);
+    }
+
+    private static InetAddress address(final byte[] bytes) {
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (final UnknownHostException e) {
+            throw new IllegalArgumentException("Bad address", e);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package org.lastbamboo.common.ice;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.List;
+
+import org.lastbamboo.common.ice.candidate.IceCandidate;
+import org.lastbamboo.common.ice.candidate.IceCandidatePair;
+import org.lastbamboo.common.ice.candidate.IceCandidatePairFactory;
+import org.lastbamboo.common.ice.candidate.IceCandidatePairFactoryImpl;
+import org.lastbamboo.common.ice.candidate.IceCandidatePairState;
+import org.lastbamboo.common.ice.candidate.IceCandidateType;
+import org.lastbamboo.common.ice.executor.DirectIceEventLoop;
+import org.lastbamboo.common.ice.executor.IceEventLoop;
+import org.lastbamboo.common.ice.stubs.IceAgentStub;
+import org.lastbamboo.common.ice.stubs.IceUdpConnectorStub;
+import org.lastbamboo.common.ice.stubs.IoSessionStub;
+import org.lastbamboo.common.offer.answer.IceMediaStreamDesc;
+import org.littleshoot.mina.common.TransportType;
+import org.littleshoot.mina.common.WriteFuture;
+import org.littleshoot.stun.stack.message.BindingRequest;
+import org.littleshoot.stun.stack.message.StunMessage;
+import org.littleshoot.stun.stack.message.attributes.StunAttribute;
+import org.littleshoot.stun.stack.message.attributes.ice.IceControlledAttribute;
+import org.littleshoot.stun.stack.message.attributes.ice.IceControllingAttribute;
+import org.littleshoot.stun.stack.message.attributes.ice.IcePriorityAttribute;
+import org.littleshoot.stun.stack.message.attributes.ice.IceUseCandidateAttribute;
+import org.littleshoot.stun.stack.transaction.StunTransactionTracker;
+import org.littleshoot.stun.stack.transaction.StunTransactionTrackerImpl;
+
+/**
+ * A controlled agent with a started media stream, ready to process inbound
+ * Binding Requests through {@link IceStunConnectivityCheckerImpl} on the
+ * calling thread. Shared by the binding request benchmark and the
+ * allocation budget tests.
+ * <p>
+ * The request kinds are:
+ * <ul>
+ * <li>duplicate -- a retransmission of a request we've already answered</li>
+ * <li>fresh -- a new request on a pair that has already succeeded</li>
+ * <li>roleConflict -- a new request from an agent that also thinks it's
+ * controlled and wins the tie-break, so we send a 487</li>
+ * <li>useCandidate -- a new request with USE-CANDIDATE, nominating the
+ * pair</li>
+ * </ul>
+ */
+public class BindingRequestFixture {
+
+    private static final int LOCAL_CANDIDATES = 5;
+
+    private final IceTieBreaker localTieBreaker = new IceTieBreaker();
+
+    private final byte[] winningTieBreaker =
+        {0x7f, -1, -1, -1, -1, -1, -1, -1};
+
+    private final IcePriorityAttribute priority = new IcePriorityAttribute(
+        IcePriorityCalculator.calculatePriority(
+            IceCandidateType.PEER_REFLEXIVE, IceTransportProtocol.UDP));
+
+    private final IceStunConnectivityCheckerImpl<StunMessage> checker;
+
+    private final BindingRequest duplicate;
+
+    /**
+     * Creates a new fixture.
+     *
+     * @param remoteCandidates The number of remote candidates, which sets
+     * the length of the candidate and pair scans.
+     */
+    public BindingRequestFixture(final int remoteCandidates) {
+        final FixtureAgent agent = new FixtureAgent(localTieBreaker);
+        final StunTransactionTracker<StunMessage> tracker =
+            new StunTransactionTrackerImpl();
+        final IceStunCheckerFactory checkerFactory =
+            new IceStunCheckerFactoryImpl(tracker);
+        final IceCandidatePairFactory pairFactory =
+            new IceCandidatePairFactoryImpl(checkerFactory,
+                new IceUdpConnectorStub());
+
+        final List<IceCandidate> local =
+            BenchmarkCandidates.local(LOCAL_CANDIDATES, 0.0, false);
+        final List<IceCandidate> remote =
+            BenchmarkCandidates.remote(remoteCandidates, 0.0, true);
+
+        // The session runs from our first candidate, a UDP host, to the 
+        // remote server reflexive candidate. The remote host candidate has a
+        // site local address, which we don't pair over UDP by default.
+        final InetSocketAddress localAddress =
+            local.get(0).getSocketAddress();
+        final InetSocketAddress remoteAddress =
+            remote.get(1).getSocketAddress();
+
+        final IceMediaStreamImpl stream = new IceMediaStreamImpl(agent,
+            new IceMediaStreamDesc(true, true, "message", "http", 1, false),
+            null, null);
+        stream.start(new IceCheckListImpl(pairFactory, local), local,
+            new NoOpScheduler());
+        stream.establishStream(remote);
+
+        // Keep the pair SUCCEEDED so repeated requests don't keep adding
+        // triggered checks.
+        final IceCandidatePair pair =
+            stream.getPair(localAddress, remoteAddress, true);
+        pair.setState(IceCandidatePairState.SUCCEEDED);
+
+        final FixtureSession session =
+            new FixtureSession(stream, localAddress, remoteAddress);
+        this.checker = new IceStunConnectivityCheckerImpl<StunMessage>(agent,
+            session, tracker, checkerFactory,
+            new IceBindingRequestTrackerImpl());
+
+        this.duplicate = controllingRequest();
+        this.checker.visitBindingRequest(duplicate);
+    }
+
+    /**
+     * Processes a Binding Request of the specified kind. Everything but
+     * duplicates includes creating the request, as decoding does for each
+     * packet.
+     *
+     * @param kind The kind of request.
+     * @return The request.
+     */
+    public BindingRequest process(final String kind) {
+        final BindingRequest request;
+        if ("duplicate".equals(kind)) {
+            request = duplicate;
+        } else if ("roleConflict".equals(kind)) {
+            request = new BindingRequest(priority,
+                new IceControlledAttribute(winningTieBreaker));
+        } else if ("useCandidate".equals(kind)) {
+            request = new BindingRequest(priority, remoteControlling(),
+                new IceUseCandidateAttribute());
+        } else if ("fresh".equals(kind)) {
+            request = controllingRequest();
+        } else {
+            throw new IllegalArgumentException("Unknown kind: " + kind);
+        }
+        this.checker.visitBindingRequest(request);
+        return request;
+    }
+
+    private BindingRequest controllingRequest() {
+        return new BindingRequest(priority, remoteControlling());
+    }
+
+    private StunAttribute remoteControlling() {
+        return new IceControllingAttribute(winningTieBreaker);
+    }
+
+    private static final class FixtureAgent extends IceAgentStub {
+
+        private final IceTieBreaker tieBreaker;
+
+        private final IceEventLoop eventLoop = new DirectIceEventLoop();
+
+        private FixtureAgent(final IceTieBreaker tieBreaker) {
+            this.tieBreaker = tieBreaker;
+        }
+
+        @Override
+        public IceTieBreaker getTieBreaker() {
+            return tieBreaker;
+        }
+
+        @Override
+        public IceEventLoop getEventLoop() {
+            return eventLoop;
+        }
+    }
+
+    private static final class FixtureSession extends IoSessionStub {
+
+        private final IceMediaStream stream;
+
+        private final SocketAddress localAddress;
+
+        private final SocketAddress remoteAddress;
+
+        private FixtureSession(final IceMediaStream stream,
+            final SocketAddress localAddress,
+            final SocketAddress remoteAddress) {
+            this.stream = stream;
+            this.localAddress = localAddress;
+            this.remoteAddress = remoteAddress;
+        }
+
+        @Override
+        public Object getAttribute(final String key) {
+            if (IceMediaStream.class.getSimpleName().equals(key)) {
+                return stream;
+            }
+            return null;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public SocketAddress getLocalAddress() {
+            return localAddress;
+        }
+
+        @Override
+        public SocketAddress getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        @Override
+        public TransportType getTransportType() {
+            return TransportType.DATAGRAM;
+        }
+
+        @Override
+        public WriteFuture write(final Object message) {
+            return null;
+        }
+    }
+
+    private static final class NoOpScheduler implements IceCheckScheduler {
+
+        public void scheduleChecks() {
+        }
+
+        public void onPair() {
+        }
+    }
+}
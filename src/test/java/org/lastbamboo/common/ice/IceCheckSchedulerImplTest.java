@@ -0,0 +1,65 @@
+package org.lastbamboo.common.ice;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.lastbamboo.common.ice.candidate.IceCandidate;
+import org.lastbamboo.common.ice.clock.IceTimer;
+import org.lastbamboo.common.ice.clock.VirtualIceClock;
+import org.lastbamboo.common.ice.stubs.IceAgentStub;
+
+/**
+ * Tests for the check scheduler's handling of an empty queue.
+ */
+public class IceCheckSchedulerImplTest {
+
+    @Test
+    public void testNoPairsWaitsShareOneTimer() throws Exception {
+        final CountingClock clock = new CountingClock();
+        final CountingAgent agent = new CountingAgent();
+        final IceCheckList checkList = new IceCheckListImpl(null,
+            Collections.<IceCandidate>emptyList());
+        final IceCheckScheduler scheduler =
+            new IceCheckSchedulerImpl(agent, null, checkList, null, clock);
+
+        // There are no pairs, so the queue runs dry right away. A pair
+        // arrives and the queue runs dry again before the first wait ends.
+        scheduler.scheduleChecks();
+        clock.advance(0L);
+        scheduler.onPair();
+        clock.advance(0L);
+        assertEquals(1, clock.noPairsTimers.get());
+        assertEquals(0, agent.noMorePairs.get());
+
+        // The first wait stands down and the second gives up.
+        clock.advance(10000L);
+        assertEquals(1, agent.noMorePairs.get());
+        assertEquals(1, clock.noPairsTimers.get());
+    }
+
+    private static final class CountingClock extends VirtualIceClock {
+
+        private final AtomicInteger noPairsTimers = new AtomicInteger();
+
+        @Override
+        public IceTimer newTimer(final String name) {
+            if (name.endsWith("-No-Pairs")) {
+                noPairsTimers.incrementAndGet();
+            }
+            return super.newTimer(name);
+        }
+    }
+
+    private static final class CountingAgent extends IceAgentStub {
+
+        private final AtomicInteger noMorePairs = new AtomicInteger();
+
+        @Override
+        public void onNoMorePairs() {
+            noMorePairs.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package org.lastbamboo.common.ice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.Socket;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.lastbamboo.common.ice.candidate.IceCandidate;
+import org.lastbamboo.common.ice.clock.IceClocks;
+import org.lastbamboo.common.ice.clock.VirtualIceClock;
+import org.lastbamboo.common.offer.answer.OfferAnswer;
+import org.lastbamboo.common.offer.answer.OfferAnswerListener;
+import org.littleshoot.mina.common.ByteBuffer;
+
+/**
+ * Tests for the connect deadline and relay head start policy.
+ */
+public class IceConnectDeadlineTest {
+
+    @Test
+    public void testRelayStartsAfterHeadStart() throws Exception {
+        final CountingOfferAnswer relay = new CountingOfferAnswer();
+        final IceConnectDeadline<Object> deadline = new IceConnectDeadline<Object>(
+            new IceConnectPolicy(0L, 50L, false), new CountingListener());
+        deadline.start(new CountingOfferAnswer(), relay);
+        assertTrue(relay.relayLatch.await(2, TimeUnit.SECONDS));
+        assertTrue(deadline.isRelayStarted());
+        assertEquals(1, relay.useRelayCalls.get());
+    }
+
+    @Test
+    public void testDirectSocketHoldsRelayBack() throws Exception {
+        final CountingOfferAnswer relay = new CountingOfferAnswer();
+        final IceConnectDeadline<Object> deadline = new IceConnectDeadline<Object>(
+            new IceConnectPolicy(0L, 100L, false), new CountingListener());
+        deadline.start(new CountingOfferAnswer(), relay);
+        deadline.getDirectListener().onTcpSocket(new Socket());
+        Thread.sleep(300);
+        assertFalse(deadline.isRelayStarted());
+        assertEquals(0, relay.useRelayCalls.get());
+    }
+
+    @Test
+    public void testDeadlineFailsSession() throws Exception {
+        final CountingListener listener = new CountingListener();
+        final CountingOfferAnswer session = new CountingOfferAnswer();
+        final IceConnectDeadline<Object> deadline = new IceConnectDeadline<Object>(
+            new IceConnectPolicy(50L, 0L, false), listener);
+        deadline.start(session, null);
+        assertTrue(listener.failedLatch.await(2, TimeUnit.SECONDS));
+        assertEquals(1, session.closeCalls.get());
+    }
+
+    @Test
+    public void testDirectReplacesRelay() throws Exception {
+        final CountingListener listener = new CountingListener();
+        final IceConnectDeadline<Object> deadline = new IceConnectDeadline<Object>(
+            new IceConnectPolicy(0L, 0L, true), listener);
+        final Socket relayed = new Socket();
+        deadline.getRelayListener().onTcpSocket(relayed);
+        deadline.getDirectListener().onTcpSocket(new Socket());
+        assertTrue(relayed.isClosed());
+        assertEquals(2, listener.tcpSockets.get());
+
+        // A relay socket arriving after the direct one is dropped.
+        final Socket late = new Socket();
+        deadline.getRelayListener().onTcpSocket(late);
+        assertTrue(late.isClosed());
+        assertEquals(2, listener.tcpSockets.get());
+    }
+
+    @Test
+    public void testDeadlineOnVirtualClock() throws Exception {
+        final VirtualIceClock clock = new VirtualIceClock();
+        IceClocks.set(clock);
+        final IceConnectDeadline<Object> deadline;
+        try {
+            deadline = new IceConnectDeadline<Object>(
+                new IceConnectPolicy(5000L, 1000L, false), 
+                new CountingListener());
+        } finally {
+            IceClocks.reset();
+        }
+        final CountingOfferAnswer relay = new CountingOfferAnswer();
+        final CountingOfferAnswer session = new CountingOfferAnswer();
+        deadline.start(session, relay);
+        clock.advance(999L);
+        assertEquals(0, relay.useRelayCalls.get());
+        clock.advance(1L);
+        assertEquals(1, relay.useRelayCalls.get());
+        clock.advance(3999L);
+        assertEquals(0, session.closeCalls.get());
+        clock.advance(1L);
+        assertEquals(1, session.closeCalls.get());
+    }
+
+    @Test
+    public void testRelayNotStartedBeforeCandidates() throws Exception {
+        final CountingOfferAnswer relay = new CountingOfferAnswer();
+        final IceConnectDeadline<Object> deadline = new IceConnectDeadline<Object>(
+            new IceConnectPolicy(0L, 50L, false), new CountingListener());
+        // An early request to use the relay can't do anything yet, and 
+        // mustn't stop the head start timer from starting it later.
+        deadline.startRelay();
+        assertFalse(deadline.isRelayStarted());
+        deadline.start(new CountingOfferAnswer(), relay);
+        assertTrue(relay.relayLatch.await(2, TimeUnit.SECONDS));
+        assertEquals(1, relay.useRelayCalls.get());
+    }
+
+    @Test
+    public void testLateSocketsAreClosed() throws Exception {
+        final CountingListener listener = new CountingListener();
+        final IceConnectDeadline<Object> deadline = new IceConnectDeadline<Object>(
+            new IceConnectPolicy(50L, 0L, false), listener);
+        deadline.start(new CountingOfferAnswer(), null);
+        assertTrue(listener.failedLatch.await(2, TimeUnit.SECONDS));
+        final Socket late = new Socket();
+        deadline.getDirectListener().onTcpSocket(late);
+        assertTrue(late.isClosed());
+        assertEquals(0, listener.tcpSockets.get());
+    }
+
+    private static final class CountingListener
+        implements OfferAnswerListener<Object> {
+
+        private final AtomicInteger tcpSockets = new AtomicInteger();
+        private final CountDownLatch failedLatch = new CountDownLatch(1);
+
+        public void onOfferAnswerFailed(final OfferAnswer offerAnswer) {
+            failedLatch.countDown();
+        }
+
+        public void onTcpSocket(final Socket sock) {
+            tcpSockets.incrementAndGet();
+        }
+
+        public void onUdpSocket(final Object sock) {
+        }
+    }
+
+    private static final class CountingOfferAnswer implements IceOfferAnswer {
+
+        private final AtomicInteger useRelayCalls = new AtomicInteger();
+        private final AtomicInteger closeCalls = new AtomicInteger();
+        private final CountDownLatch relayLatch = new CountDownLatch(1);
+
+        public Collection<? extends IceCandidate> gatherCandidates() {
+            return Collections.emptySet();
+        }
+
+        public byte[] generateOffer() {
+            return null;
+        }
+
+        public byte[] generateAnswer() {
+            return null;
+        }
+
+        public void processOffer(final ByteBuffer offer) {
+        }
+
+        public void processAnswer(final ByteBuffer answer) {
+        }
+
+        public void close() {
+            closeCalls.incrementAndGet();
+        }
+
+        public void closeTcp() {
+        }
+
+        public void closeUdp() {
+        }
+
+        public void useRelay() {
+            useRelayCalls.incrementAndGet();
+            relayLatch.countDown();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package org.lastbamboo.common.ice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import org.junit.Test;
+
+/**
+ * Tests for raw UDP "sockets."
+ */
+public class RawUdpSocketFactoryTest {
+
+    @Test
+    public void testLargeWritesSplitIntoDatagrams() throws Exception {
+        final InetAddress lh = InetAddress.getByName("127.0.0.1");
+        final DatagramChannel peer = DatagramChannel.open();
+        peer.socket().bind(new InetSocketAddress(lh, 0));
+        final Socket sock = RawUdpSocketFactory.newSocket(
+            new InetSocketAddress(lh, 0), 
+            peer.socket().getLocalSocketAddress());
+        try {
+            final byte[] data = new byte[4000];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) i;
+            }
+            final OutputStream os = sock.getOutputStream();
+            os.write(data, 100, 3900);
+
+            // Whatever the loopback MTU, nothing is lost or reordered and
+            // no datagram is bigger than an Ethernet frame allows.
+            final ByteBuffer dst = ByteBuffer.allocate(65536);
+            int offset = 100;
+            while (offset < data.length) {
+                dst.clear();
+                peer.receive(dst);
+                dst.flip();
+                assertTrue(dst.remaining() <= 1472);
+                assertTrue(dst.remaining() > 0);
+                while (dst.hasRemaining()) {
+                    assertEquals(data[offset++], dst.get());
+                }
+            }
+            assertEquals(data.length, offset);
+        } finally {
+            sock.close();
+            peer.close();
+        }
+    }
+}
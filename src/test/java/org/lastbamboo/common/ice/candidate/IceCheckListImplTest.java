@@ -6,11 +6,15 @@ import java.net.InetSocketAddress;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import junit.framework.TestCase;
 
 import org.lastbamboo.common.ice.IceCheckList;
 import org.lastbamboo.common.ice.IceCheckListImpl;
+import org.lastbamboo.common.ice.IceCheckListListener;
+import org.lastbamboo.common.ice.IceCheckListState;
 import org.lastbamboo.common.ice.IcePriorityCalculator;
 import org.lastbamboo.common.ice.IceStunCheckerFactory;
 import org.lastbamboo.common.ice.IceStunCheckerFactoryImpl;
@@ -93,6 +97,45 @@ public class IceCheckListImplTest extends TestCase
         //assertEquals(IceCandidateType.RELAYED, remote4.getType());
         }
 
+    /**
+     * Tests that listeners hear about the check list finishing exactly once,
+     * including listeners added after it's already done.
+     * 
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testListenerNotifiedWhenDone() throws Exception
+        {
+        final IceCheckList checkList = 
+            new IceCheckListImpl(null, new LinkedList<IceCandidate>());
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicReference<IceCheckListState> lastState =
+            new AtomicReference<IceCheckListState>();
+        final IceCheckListListener listener = new IceCheckListListener()
+            {
+            public void onCheckListDone(final IceCheckList list,
+                final IceCheckListState state)
+                {
+                calls.incrementAndGet();
+                lastState.set(state);
+                }
+            };
+        checkList.addListener(listener);
+        assertEquals(0, calls.get());
+        assertEquals(IceCheckListState.RUNNING, checkList.awaitDone(10));
+        
+        checkList.setState(IceCheckListState.COMPLETED);
+        assertEquals(1, calls.get());
+        assertEquals(IceCheckListState.COMPLETED, lastState.get());
+        assertEquals(IceCheckListState.COMPLETED, checkList.awaitDone(10));
+        
+        // Completed check lists don't change state again.
+        checkList.setState(IceCheckListState.FAILED);
+        assertEquals(1, calls.get());
+        
+        checkList.addListener(listener);
+        assertEquals(2, calls.get());
+        }
+
     private Collection<IceCandidate> createCandidates(
         final boolean controlling) throws Exception
         {
@@ -0,0 +1,121 @@
+package org.lastbamboo.common.ice.channel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the message-preserving datagram endpoint.
+ */
+public class DatagramChannelEndpointTest {
+
+    private DatagramChannel senderChannel;
+
+    private DatagramChannel receiverChannel;
+
+    private DatagramChannelEndpoint sender;
+
+    private DatagramChannelEndpoint receiver;
+
+    @Before
+    public void setUp() throws Exception {
+        final InetAddress lh = InetAddress.getByName("127.0.0.1");
+        senderChannel = DatagramChannel.open();
+        receiverChannel = DatagramChannel.open();
+        senderChannel.socket().bind(new InetSocketAddress(lh, 0));
+        receiverChannel.socket().bind(new InetSocketAddress(lh, 0));
+        senderChannel.connect(receiverChannel.socket().getLocalSocketAddress());
+        receiverChannel.connect(senderChannel.socket().getLocalSocketAddress());
+        sender = new DatagramChannelEndpoint(senderChannel, 1500);
+        receiver = new DatagramChannelEndpoint(receiverChannel, 1500);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sender.close();
+        receiver.close();
+    }
+
+    @Test
+    public void testMaxMessageSize() throws Exception {
+        assertEquals(1500, sender.getMtu());
+        assertEquals(1472, sender.getMaxMessageSize());
+        try {
+            sender.send(ByteBuffer.allocate(1473));
+            assertTrue("Should have thrown", false);
+        } catch (final IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testMessageBoundariesArePreserved() throws Exception {
+        final int[] sizes = {1472, 1, 700};
+        for (final int size : sizes) {
+            assertEquals(size, sender.send(message(size)));
+        }
+        final ByteBuffer dst = ByteBuffer.allocateDirect(2048);
+        for (final int size : sizes) {
+            dst.clear();
+            assertEquals(size, receiver.receive(dst));
+            dst.flip();
+            assertEquals(message(size), dst);
+        }
+    }
+
+    @Test
+    public void testBatchesInNonBlockingMode() throws Exception {
+        final ByteBuffer[] messages = new ByteBuffer[8];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = message(100 + i);
+        }
+        assertEquals(6, sender.send(messages, 1, 6));
+
+        receiverChannel.configureBlocking(false);
+        final ByteBuffer[] dsts = new ByteBuffer[10];
+        for (int i = 0; i < dsts.length; i++) {
+            dsts[i] = ByteBuffer.allocate(1472);
+        }
+        int received = 0;
+        final long end = System.currentTimeMillis() + 5000;
+        while (received < 6 && System.currentTimeMillis() < end) {
+            received += receiver.receive(dsts, received, dsts.length - received);
+        }
+        assertEquals(6, received);
+        for (int i = 0; i < 6; i++) {
+            dsts[i].flip();
+            assertEquals(message(101 + i), dsts[i]);
+        }
+        assertEquals(-1, receiver.receive(dsts[9]));
+    }
+
+    @Test
+    public void testBlockingBatchReturnsAfterFirst() throws Exception {
+        sender.send(message(10));
+        sender.send(message(20));
+        final ByteBuffer[] dsts = {
+            ByteBuffer.allocate(100), ByteBuffer.allocate(100)
+        };
+        assertEquals(1, receiver.receive(dsts, 0, 2));
+        assertEquals(10, dsts[0].position());
+        assertEquals(1, receiver.receive(dsts, 1, 1));
+        assertEquals(20, dsts[1].position());
+    }
+
+    private static ByteBuffer message(final int size) {
+        final ByteBuffer buf = ByteBuffer.allocate(size);
+        for (int i = 0; i < size; i++) {
+            buf.put((byte) (size + i));
+        }
+        buf.flip();
+        return buf;
+    }
+}
@@ -0,0 +1,240 @@
+package org.lastbamboo.common.ice.channel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests for forward error correction on datagram endpoints.
+ */
+public class FecDatagramEndpointTest {
+
+    @Test
+    public void testMaxMessageSize() throws Exception {
+        final LossyEndpoint inner = new LossyEndpoint();
+        final FecDatagramEndpoint fec = new FecDatagramEndpoint(inner, 4, 1);
+        assertEquals(1462, fec.getMaxMessageSize());
+        assertEquals(1500, fec.getMtu());
+    }
+
+    @Test
+    public void testRecoversUpToParityLosses() throws Exception {
+        final LossyEndpoint inner = new LossyEndpoint();
+        final FecDatagramEndpoint fec = new FecDatagramEndpoint(inner, 8, 2);
+        inner.drop(1);
+        inner.drop(5);
+        for (int i = 0; i < 8; i++) {
+            fec.send(message(i, 100 + i * 97));
+        }
+        assertEquals(8, receiveAll(fec).size());
+        final FecStats stats = fec.getStats();
+        assertEquals(8, stats.getDataSent());
+        assertEquals(2, stats.getParitySent());
+        assertEquals(6, stats.getDataReceived());
+        assertEquals(2, stats.getRecovered());
+        assertEquals(0, stats.getLost());
+        assertEquals(0.25, stats.getLossRate(), 0.0001);
+        assertEquals(0.0, stats.getResidualLossRate(), 0.0001);
+    }
+
+    @Test
+    public void testFlushProtectsPartialGroup() throws Exception {
+        final LossyEndpoint inner = new LossyEndpoint();
+        final FecDatagramEndpoint fec = new FecDatagramEndpoint(inner, 8, 1);
+        inner.drop(2);
+        for (int i = 0; i < 3; i++) {
+            fec.send(message(i, 50));
+        }
+        fec.flush();
+        final Set<Integer> received = receiveAll(fec);
+        assertEquals(3, received.size());
+        assertTrue(received.contains(Integer.valueOf(2)));
+        assertEquals(1, fec.getStats().getRecovered());
+    }
+
+    @Test
+    public void testLateDataAfterRebuildIsDropped() throws Exception {
+        final LossyEndpoint inner = new LossyEndpoint();
+        final FecDatagramEndpoint fec = new FecDatagramEndpoint(inner, 4, 1);
+        // The last message arrives after the parity, which already rebuilt
+        // it.
+        inner.delay(3);
+        for (int i = 0; i < 4; i++) {
+            fec.send(message(i, 100 + i));
+        }
+        final Set<Integer> received = receiveAll(fec);
+        assertEquals(4, received.size());
+        final FecStats stats = fec.getStats();
+        assertEquals(3, stats.getDataReceived());
+        assertEquals(1, stats.getRecovered());
+        assertEquals(0, stats.getLost());
+    }
+
+    @Test
+    public void testUnrecoverableLossesAreCounted() throws Exception {
+        final LossyEndpoint inner = new LossyEndpoint();
+        final FecDatagramEndpoint fec = new FecDatagramEndpoint(inner, 4, 1);
+        inner.drop(0);
+        inner.drop(1);
+        // Enough later groups to push the first one out of the window.
+        for (int i = 0; i < 4 * 20; i++) {
+            fec.send(message(i, 200));
+        }
+        final Set<Integer> received = receiveAll(fec);
+        assertEquals(78, received.size());
+        assertFalse(received.contains(Integer.valueOf(0)));
+        assertEquals(2, fec.getStats().getLost());
+        assertEquals(0, fec.getStats().getRecovered());
+    }
+
+    @Test
+    public void testRandomLoss() throws Exception {
+        final LossyEndpoint inner = new LossyEndpoint();
+        inner.random = new Random(7);
+        inner.loss = 0.05;
+        final FecDatagramEndpoint fec =
+            new FecDatagramEndpoint(inner, 10, 3);
+        final Random sizes = new Random(11);
+        final int count = 2000;
+        for (int i = 0; i < count; i++) {
+            fec.send(message(i, 4 + sizes.nextInt(1400)));
+        }
+        fec.flush();
+        final Set<Integer> received = receiveAll(fec);
+        final FecStats stats = fec.getStats();
+        assertTrue(stats.toString(), stats.getRecovered() > 50);
+        assertEquals(received.size(),
+            stats.getDataReceived() + stats.getRecovered());
+        // Three parity for ten data recovers nearly everything at 5% loss.
+        assertTrue(stats.toString(), received.size() > count * 0.99);
+    }
+
+    private static ByteBuffer message(final int seq, final int size) {
+        final ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putInt(seq);
+        while (buf.hasRemaining()) {
+            buf.put((byte) (seq + buf.position()));
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Receives everything waiting, checking each message is intact.
+     */
+    private static Set<Integer> receiveAll(final IceDatagramEndpoint endpoint)
+        throws Exception {
+        final Set<Integer> received = new HashSet<Integer>();
+        final ByteBuffer buf = ByteBuffer.allocate(2000);
+        while (true) {
+            buf.clear();
+            final int read = endpoint.receive(buf);
+            if (read == -1) {
+                return received;
+            }
+            buf.flip();
+            final int seq = buf.getInt();
+            while (buf.hasRemaining()) {
+                assertEquals((byte) (seq + buf.position()), buf.get());
+            }
+            assertTrue("Duplicate " + seq,
+                received.add(Integer.valueOf(seq)));
+        }
+    }
+
+    /**
+     * An in memory endpoint that loops back what it sends, dropping or
+     * delaying the datagrams we tell it to.
+     */
+    private static final class LossyEndpoint implements IceDatagramEndpoint {
+
+        private final LinkedList<byte[]> queue = new LinkedList<byte[]>();
+
+        private final LinkedList<byte[]> late = new LinkedList<byte[]>();
+
+        private final Set<Integer> drops = new HashSet<Integer>();
+
+        private final Set<Integer> delays = new HashSet<Integer>();
+
+        private Random random;
+
+        private double loss;
+
+        private int sent;
+
+        private void drop(final int index) {
+            drops.add(Integer.valueOf(index));
+        }
+
+        /**
+         * Holds a datagram back until everything else has been received.
+         */
+        private void delay(final int index) {
+            delays.add(Integer.valueOf(index));
+        }
+
+        public int send(final ByteBuffer message) {
+            final int length = message.remaining();
+            final byte[] data = new byte[length];
+            message.get(data);
+            final Integer index = Integer.valueOf(sent++);
+            final boolean drop = drops.contains(index) ||
+                (random != null && random.nextDouble() < loss);
+            if (delays.contains(index)) {
+                late.add(data);
+            } else if (!drop) {
+                queue.add(data);
+            }
+            return length;
+        }
+
+        public int send(final ByteBuffer[] messages, final int offset,
+            final int length) {
+            for (int i = offset; i < offset + length; i++) {
+                send(messages[i]);
+            }
+            return length;
+        }
+
+        public int receive(final ByteBuffer dst) {
+            byte[] data = queue.poll();
+            if (data == null) {
+                data = late.poll();
+            }
+            if (data == null) {
+                return -1;
+            }
+            dst.put(data);
+            return data.length;
+        }
+
+        public int receive(final ByteBuffer[] dsts, final int offset,
+            final int length) {
+            throw new UnsupportedOperationException();
+        }
+
+        public int getMtu() {
+            return 1500;
+        }
+
+        public int getMaxMessageSize() {
+            return 1472;
+        }
+
+        public DatagramChannel getChannel() {
+            return null;
+        }
+
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package org.lastbamboo.common.ice.channel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.lastbamboo.common.offer.answer.OfferAnswer;
+
+import com.barchart.udt.nio.SocketChannelUDT;
+
+/**
+ * Tests for adapting channel listeners to offer/answer listeners.
+ */
+public class IceChannelListenerAdapterTest {
+
+    @Test
+    public void testUdpChannel() throws Exception {
+        final RecordingListener listener = new RecordingListener();
+        final DatagramChannel dc = DatagramChannel.open();
+        try {
+            new IceChannelListenerAdapter(listener).onUdpSocket(dc);
+            assertEquals(1, listener.events.size());
+            assertSame(dc, listener.events.get(0));
+            assertFalse(dc.isBlocking());
+        } finally {
+            dc.close();
+        }
+    }
+
+    @Test
+    public void testTcpSocketsWithAndWithoutChannels() throws Exception {
+        final RecordingListener listener = new RecordingListener();
+        final IceChannelListenerAdapter adapter =
+            new IceChannelListenerAdapter(listener);
+        final InetAddress lh = InetAddress.getByName("127.0.0.1");
+        final ServerSocket ss =
+            new ChannelServerSocketFactory().createServerSocket(0, 50, lh);
+        final Socket client = new ChannelSocketFactory().createSocket(lh,
+            ss.getLocalPort());
+        final Socket accepted = ss.accept();
+        final Socket plain = new Socket();
+        try {
+            assertNotNull(accepted.getChannel());
+
+            adapter.onTcpSocket(client);
+            adapter.onTcpSocket(accepted);
+            adapter.onTcpSocket(plain);
+
+            assertEquals(3, listener.events.size());
+            assertSame(client.getChannel(), listener.events.get(0));
+            assertSame(accepted.getChannel(), listener.events.get(1));
+            assertSame(plain, listener.events.get(2));
+            assertFalse(client.getChannel().isBlocking());
+            assertFalse(accepted.getChannel().isBlocking());
+        } finally {
+            client.close();
+            accepted.close();
+            plain.close();
+            ss.close();
+        }
+    }
+
+    @Test
+    public void testChannelSocketFactoryConnects() throws Exception {
+        final InetAddress lh = InetAddress.getByName("127.0.0.1");
+        final ServerSocket ss = new ServerSocket(0, 50, lh);
+        final Socket sock = new ChannelSocketFactory().createSocket();
+        try {
+            assertNotNull(sock.getChannel());
+            sock.connect(new InetSocketAddress(lh, ss.getLocalPort()), 5000);
+            assertTrue(sock.isConnected());
+            ss.accept().close();
+        } finally {
+            sock.close();
+            ss.close();
+        }
+    }
+
+    private static final class RecordingListener
+        implements IceChannelListener {
+
+        private final List<Object> events = new ArrayList<Object>();
+
+        public void onTcpChannel(final SocketChannel channel) {
+            events.add(channel);
+        }
+
+        public void onUdpChannel(final DatagramChannel channel) {
+            events.add(channel);
+        }
+
+        public void onUdtChannel(final SocketChannelUDT channel) {
+            events.add(channel);
+        }
+
+        public void onSocket(final Socket sock) {
+            events.add(sock);
+        }
+
+        public void onOfferAnswerFailed(final OfferAnswer offerAnswer) {
+            events.add(offerAnswer);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package org.lastbamboo.common.ice.channel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for sending and receiving files over TCP endpoints.
+ */
+public class IceFileTransferTest {
+
+    @Test
+    public void testChannels() throws Exception {
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(
+            new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        final SocketChannel client = SocketChannel.open(
+            server.socket().getLocalSocketAddress());
+        final SocketChannel accepted = server.accept();
+        server.close();
+        try {
+            assertTrue(IceFileTransfer.isZeroCopy(client.socket()));
+            transfer(client.socket(), accepted.socket(), 3000000, 12345);
+        } finally {
+            client.close();
+            accepted.close();
+        }
+    }
+
+    @Test
+    public void testPlainSockets() throws Exception {
+        final ServerSocket server = 
+            new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        final Socket client = new Socket(InetAddress.getByName("127.0.0.1"),
+            server.getLocalPort());
+        final Socket accepted = server.accept();
+        server.close();
+        try {
+            assertFalse(IceFileTransfer.isZeroCopy(client));
+            transfer(client, accepted, 300000, 77);
+        } finally {
+            client.close();
+            accepted.close();
+        }
+    }
+
+    @Test
+    public void testEarlyClose() throws Exception {
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(
+            new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        final SocketChannel client = SocketChannel.open(
+            server.socket().getLocalSocketAddress());
+        final SocketChannel accepted = server.accept();
+        server.close();
+        final File dst = File.createTempFile("ice-receive", ".bin");
+        dst.deleteOnExit();
+        try {
+            client.write(ByteBuffer.wrap(new byte[100]));
+            client.close();
+            IceFileTransfer.receiveFile(accepted, dst, 0, 1000);
+            fail("Should have hit the end of the stream");
+        } catch (final EOFException e) {
+            // Expected.
+        } finally {
+            accepted.close();
+        }
+    }
+
+    @Test
+    public void testNonBlockingChannel() throws Exception {
+        final SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        try {
+            IceFileTransfer.sendFile(channel, new File("unused"), 0, 1);
+            fail("Should have refused a non-blocking channel");
+        } catch (final IllegalBlockingModeException e) {
+            // Expected.
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Sends part of a file from one socket and receives it into another
+     * file at a different offset.
+     */
+    private static void transfer(final Socket from, final Socket to,
+        final int size, final int offset) throws Exception {
+        final byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        final File src = File.createTempFile("ice-send", ".bin");
+        src.deleteOnExit();
+        final File dst = File.createTempFile("ice-receive", ".bin");
+        dst.deleteOnExit();
+        final FileOutputStream fos = new FileOutputStream(src);
+        fos.write(data);
+        fos.close();
+
+        final int length = size - offset;
+        final Exception[] error = new Exception[1];
+        final Thread sender = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    assertEquals(length, 
+                        IceFileTransfer.sendFile(from, src, offset, length));
+                } catch (final IOException e) {
+                    error[0] = e;
+                }
+            }
+        });
+        sender.start();
+        assertEquals(length, 
+            IceFileTransfer.receiveFile(to, dst, 1, length));
+        sender.join();
+        if (error[0] != null) {
+            throw error[0];
+        }
+
+        final byte[] received = new byte[length];
+        final RandomAccessFile raf = new RandomAccessFile(dst, "r");
+        assertEquals(length + 1, raf.length());
+        raf.seek(1);
+        raf.readFully(received);
+        raf.close();
+        final byte[] expected = new byte[length];
+        System.arraycopy(data, offset, expected, 0, length);
+        assertArrayEquals(expected, received);
+    }
+}
@@ -0,0 +1,214 @@
+package org.lastbamboo.common.ice.clock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.junit.Test;
+
+/**
+ * Tests for the virtual ICE clock.
+ */
+public class VirtualIceClockTest {
+
+    @Test
+    public void testTimerTasksRunInDeadlineOrder() throws Exception {
+        final VirtualIceClock clock = new VirtualIceClock();
+        final IceTimer timer = clock.newTimer("test");
+        final List<Long> runs =
+            Collections.synchronizedList(new ArrayList<Long>());
+        final long[] delays = {300L, 100L, 200L, 100L};
+        for (final long delay : delays) {
+            timer.schedule(new Runnable() {
+                public void run() {
+                    runs.add(clock.currentTimeMillis());
+                }
+            }, delay);
+        }
+
+        clock.advance(99L);
+        assertTrue(runs.isEmpty());
+        clock.advance(1L);
+        assertEquals(2, runs.size());
+        clock.advance(1000L);
+        assertEquals(4, runs.size());
+        assertEquals(Long.valueOf(100L), runs.get(0));
+        assertEquals(Long.valueOf(100L), runs.get(1));
+        assertEquals(Long.valueOf(200L), runs.get(2));
+        assertEquals(Long.valueOf(300L), runs.get(3));
+        assertEquals(1100L, clock.currentTimeMillis());
+    }
+
+    @Test
+    public void testTasksScheduledByTasksRunInSameAdvance() throws Exception {
+        final VirtualIceClock clock = new VirtualIceClock();
+        final IceTimer timer = clock.newTimer("test");
+        final AtomicLong count = new AtomicLong();
+        timer.schedule(new Runnable() {
+            public void run() {
+                if (count.incrementAndGet() < 10) {
+                    timer.schedule(this, 20L);
+                }
+            }
+        }, 20L);
+
+        // 10 runs at 20 ms intervals, with no real waiting.
+        clock.advance(200L);
+        assertEquals(10L, count.get());
+        assertFalse(clock.advanceToNext());
+    }
+
+    @Test
+    public void testCancelledTimer() throws Exception {
+        final VirtualIceClock clock = new VirtualIceClock();
+        final IceTimer timer = clock.newTimer("test");
+        final AtomicBoolean ran = new AtomicBoolean(false);
+        timer.schedule(new Runnable() {
+            public void run() {
+                ran.set(true);
+            }
+        }, 10L);
+        timer.cancel();
+        clock.advance(100L);
+        assertFalse(ran.get());
+        try {
+            timer.schedule(new Runnable() {
+                public void run() {
+                }
+            }, 10L);
+            assertTrue("Should have thrown", false);
+        } catch (final IllegalStateException e) {
+            // Expected, as with java.util.Timer.
+        }
+    }
+
+    @Test
+    public void testSleepWakesOnAdvance() throws Exception {
+        final VirtualIceClock clock = new VirtualIceClock();
+        final AtomicLong wokeAt = new AtomicLong(-1L);
+        final Thread sleeper = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    clock.sleep(1200L);
+                    wokeAt.set(clock.currentTimeMillis());
+                } catch (final InterruptedException e) {
+                    // Leave it at -1.
+                }
+            }
+        });
+        sleeper.start();
+        awaitWaiters(clock, 1);
+
+        clock.advance(1199L);
+        assertEquals(1, clock.getWaiterCount());
+        clock.advance(1L);
+        sleeper.join(5000);
+        assertFalse(sleeper.isAlive());
+        assertEquals(1200L, wokeAt.get());
+    }
+
+    @Test
+    public void testAwaitTimesOutInVirtualTime() throws Exception {
+        final VirtualIceClock clock = new VirtualIceClock();
+        final Lock lock = new ReentrantLock();
+        final Condition condition = lock.newCondition();
+        final AtomicBoolean signaled = new AtomicBoolean(true);
+        final Thread waiter = new Thread(new Runnable() {
+            public void run() {
+                lock.lock();
+                try {
+                    signaled.set(clock.await(lock, condition, 1600L));
+                } catch (final InterruptedException e) {
+                    // Leave it set.
+                } finally {
+                    lock.unlock();
+                }
+            }
+        });
+        waiter.start();
+        awaitWaiters(clock, 1);
+
+        assertTrue(clock.advanceToNext());
+        waiter.join(5000);
+        assertFalse(waiter.isAlive());
+        assertFalse(signaled.get());
+        assertEquals(1600L, clock.currentTimeMillis());
+        assertEquals(0, clock.getPendingCount());
+    }
+
+    @Test
+    public void testAwaitSignaledBeforeTimeout() throws Exception {
+        final VirtualIceClock clock = new VirtualIceClock();
+        final Lock lock = new ReentrantLock();
+        final Condition condition = lock.newCondition();
+        final AtomicBoolean signaled = new AtomicBoolean(false);
+        final Thread waiter = new Thread(new Runnable() {
+            public void run() {
+                lock.lock();
+                try {
+                    signaled.set(clock.await(lock, condition, 1600L));
+                } catch (final InterruptedException e) {
+                    // Leave it unset.
+                } finally {
+                    lock.unlock();
+                }
+            }
+        });
+        waiter.start();
+        awaitWaiters(clock, 1);
+
+        clock.advance(500L);
+        lock.lock();
+        try {
+            condition.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        waiter.join(5000);
+        assertFalse(waiter.isAlive());
+        assertTrue(signaled.get());
+        assertEquals(0, clock.getPendingCount());
+    }
+
+    @Test
+    public void testAwaitMonitor() throws Exception {
+        final VirtualIceClock clock = new VirtualIceClock();
+        final Object monitor = new Object();
+        final Thread waiter = new Thread(new Runnable() {
+            public void run() {
+                synchronized (monitor) {
+                    try {
+                        clock.awaitMonitor(monitor, 10000L);
+                    } catch (final InterruptedException e) {
+                        // Just exit.
+                    }
+                }
+            }
+        });
+        waiter.start();
+        awaitWaiters(clock, 1);
+
+        clock.advance(10000L);
+        waiter.join(5000);
+        assertFalse(waiter.isAlive());
+    }
+
+    private void awaitWaiters(final VirtualIceClock clock, final int count)
+        throws InterruptedException {
+        final long end = System.currentTimeMillis() + 5000;
+        while (clock.getWaiterCount() < count &&
+            System.currentTimeMillis() < end) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, clock.getWaiterCount());
+    }
+}
@@ -0,0 +1,101 @@
+package org.lastbamboo.common.ice.executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for the ICE event loops.
+ */
+public class IceEventLoopGroupTest {
+
+    @Test
+    public void testTasksRunInOrderOnOneThread() throws Exception {
+        final IceEventLoopGroup group = new IceEventLoopGroup(1);
+        final IceEventLoop loop = group.next();
+        final List<Integer> order = 
+            Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Thread> threads = 
+            Collections.synchronizedList(new ArrayList<Thread>());
+        final CountDownLatch done = new CountDownLatch(100);
+        for (int i = 0; i < 100; i++) {
+            final int num = i;
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    order.add(num);
+                    threads.add(Thread.currentThread());
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Integer.valueOf(i), order.get(i));
+            assertSame(threads.get(0), threads.get(i));
+        }
+        assertFalse(loop.inEventLoop());
+        group.shutdown();
+    }
+
+    @Test
+    public void testNestedTasksRunInline() throws Exception {
+        final IceEventLoopGroup group = new IceEventLoopGroup(1);
+        final IceEventLoop loop = group.next();
+        final List<String> events = 
+            Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(1);
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                events.add("outer-start");
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        events.add("inner");
+                    }
+                });
+                events.add("outer-end");
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals("inner", events.get(1));
+        group.shutdown();
+    }
+
+    @Test
+    public void testRoundRobin() throws Exception {
+        final IceEventLoopGroup group = new IceEventLoopGroup(2);
+        final IceEventLoop first = group.next();
+        final IceEventLoop second = group.next();
+        assertNotSame(first, second);
+        assertSame(first, group.next());
+        assertSame(second, group.next());
+        group.shutdown();
+    }
+
+    @Test
+    public void testDirectLoop() throws Exception {
+        final IceEventLoop loop = new DirectIceEventLoop();
+        final Thread[] thread = new Thread[1];
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                thread[0] = Thread.currentThread();
+            }
+        });
+        assertSame(Thread.currentThread(), thread[0]);
+        assertFalse(loop.inEventLoop());
+    }
+}
@@ -0,0 +1,123 @@
+package org.lastbamboo.common.ice.executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for the bounded ICE executors.
+ */
+public class IceThreadPoolExecutorTest {
+
+    @Test
+    public void testRejectsWhenSaturated() throws Exception {
+        final IceThreadPoolExecutor exec = 
+            new IceThreadPoolExecutor(IceExecutorRole.TCP_CONNECT, 1, 1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Runnable blocker = new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (final InterruptedException e) {
+                }
+            }
+        };
+        try {
+            exec.execute(blocker);
+            assertTrue(started.await(2, TimeUnit.SECONDS));
+            exec.execute(blocker);
+            assertEquals(1, exec.getPeakQueueDepth());
+            try {
+                exec.execute(blocker);
+                fail("Should have rejected task");
+            } catch (final RejectedExecutionException e) {
+                // Expected.
+            }
+        } finally {
+            release.countDown();
+            exec.shutdown();
+        }
+        assertTrue(exec.awaitTermination(2, TimeUnit.SECONDS));
+        assertEquals(2, exec.getCompletedTaskCount());
+    }
+
+    @Test
+    public void testDirectHandoffRejectsWhenBusy() throws Exception {
+        final IceThreadPoolExecutor exec = 
+            new IceThreadPoolExecutor(IceExecutorRole.TCP_ACCEPT, 1, 0);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Runnable blocker = new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (final InterruptedException e) {
+                }
+            }
+        };
+        try {
+            exec.execute(blocker);
+            assertTrue(started.await(2, TimeUnit.SECONDS));
+            // Nothing waits behind a blocked accept.
+            try {
+                exec.execute(blocker);
+                fail("Should have rejected task");
+            } catch (final RejectedExecutionException e) {
+                // Expected.
+            }
+            assertEquals(0, exec.getPeakQueueDepth());
+        } finally {
+            release.countDown();
+            exec.shutdown();
+        }
+        assertTrue(exec.awaitTermination(2, TimeUnit.SECONDS));
+        assertEquals(1, exec.getCompletedTaskCount());
+    }
+
+    @Test
+    public void testThreadNaming() throws Exception {
+        final IceThreadPoolExecutor exec = 
+            new IceThreadPoolExecutor(IceExecutorRole.TURN_CONNECT, 1, 1);
+        final String[] name = new String[1];
+        final boolean[] daemon = new boolean[1];
+        exec.submit(new Runnable() {
+            @Override
+            public void run() {
+                name[0] = Thread.currentThread().getName();
+                daemon[0] = Thread.currentThread().isDaemon();
+            }
+        }).get();
+        exec.shutdown();
+        assertTrue(name[0].startsWith("ICE-TURN-Connect-"));
+        assertTrue(daemon[0]);
+    }
+
+    @Test
+    public void testFactorySystemPropertyOverrides() throws Exception {
+        System.setProperty("ice.executor.server_socket_pool.maxThreads", "3");
+        System.setProperty("ice.executor.server_socket_pool.queueCapacity", "7");
+        try {
+            final ThreadPoolExecutor exec = (ThreadPoolExecutor) 
+                new BoundedIceExecutorFactory().newExecutor(
+                    IceExecutorRole.SERVER_SOCKET_POOL);
+            assertEquals(3, exec.getMaximumPoolSize());
+            assertEquals(7, exec.getQueue().remainingCapacity());
+            exec.shutdown();
+        } finally {
+            System.clearProperty("ice.executor.server_socket_pool.maxThreads");
+            System.clearProperty("ice.executor.server_socket_pool.queueCapacity");
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package org.lastbamboo.common.ice.executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Tests for running ICE work on virtual threads. These are skipped on JVMs
+ * without virtual thread support.
+ */
+public class VirtualThreadIceExecutorFactoryTest {
+
+    @Test
+    public void testRunsOnNamedThreads() throws Exception {
+        Assume.assumeTrue(VirtualThreadIceExecutorFactory.isSupported());
+        final ExecutorService exec = new VirtualThreadIceExecutorFactory(10)
+            .newExecutor(IceExecutorRole.TCP_ACCEPT);
+        final String[] name = new String[1];
+        exec.submit(new Runnable() {
+            @Override
+            public void run() {
+                name[0] = Thread.currentThread().getName();
+            }
+        }).get();
+        exec.shutdown();
+        assertTrue(exec.awaitTermination(2, TimeUnit.SECONDS));
+        assertTrue(name[0].startsWith("ICE-TCP-Accept-V-"));
+    }
+
+    @Test
+    public void testRejectsOverLimit() throws Exception {
+        Assume.assumeTrue(VirtualThreadIceExecutorFactory.isSupported());
+        final ExecutorService exec = new VirtualThreadIceExecutorFactory(2)
+            .newExecutor(IceExecutorRole.TCP_CONNECT);
+        final CountDownLatch started = new CountDownLatch(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Runnable blocker = new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (final InterruptedException e) {
+                }
+            }
+        };
+        try {
+            exec.execute(blocker);
+            exec.execute(blocker);
+            assertTrue(started.await(2, TimeUnit.SECONDS));
+            try {
+                exec.execute(blocker);
+                fail("Should have rejected task");
+            } catch (final RejectedExecutionException e) {
+                // Expected.
+            }
+        } finally {
+            release.countDown();
+            exec.shutdown();
+        }
+        assertTrue(exec.awaitTermination(2, TimeUnit.SECONDS));
+        assertEquals(true, exec.isTerminated());
+    }
+
+    @Test
+    public void testUdtStaysOnPlatformThreads() throws Exception {
+        Assume.assumeTrue(VirtualThreadIceExecutorFactory.isSupported());
+        final ExecutorService exec = new VirtualThreadIceExecutorFactory(10)
+            .newExecutor(IceExecutorRole.UDT_SOCKET);
+        final String[] name = new String[1];
+        exec.submit(new Runnable() {
+            @Override
+            public void run() {
+                name[0] = Thread.currentThread().getName();
+            }
+        }).get();
+        exec.shutdown();
+        assertTrue(exec instanceof IceThreadPoolExecutor);
+        assertTrue(name[0], name[0].startsWith("ICE-UDT-Socket"));
+        assertFalse(name[0], name[0].startsWith("ICE-UDT-Socket-V-"));
+    }
+}
@@ -0,0 +1,73 @@
+package org.lastbamboo.common.ice.jfr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.List;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Tests for the Flight Recorder events. These only run on JVMs with Flight
+ * Recorder, and since we build for older JVMs the recording is driven 
+ * through reflection.
+ */
+public class IceFlightRecorderTest {
+
+    @Test
+    public void testNoEventWithoutRecording() throws Exception {
+        Assume.assumeTrue(IceFlightRecorder.isAvailable());
+        assertNull(IceFlightRecorder.begin(IceJfrEventType.TCP_CONNECT));
+        
+        // Committing a null event is always safe.
+        IceFlightRecorder.commit(null, "ignored", Boolean.TRUE);
+    }
+
+    @Test
+    public void testEventRecorded() throws Exception {
+        Assume.assumeTrue(IceFlightRecorder.isAvailable());
+        final Class<?> recordingClass = Class.forName("jdk.jfr.Recording");
+        final Object recording = recordingClass.newInstance();
+        recordingClass.getMethod("enable", String.class).invoke(recording, 
+            IceJfrEventType.TCP_CONNECT.getEventName());
+        recordingClass.getMethod("start").invoke(recording);
+
+        final Object event = 
+            IceFlightRecorder.begin(IceJfrEventType.TCP_CONNECT);
+        assertNotNull(event);
+        IceFlightRecorder.commit(event, "10.0.0.1:4000", Boolean.TRUE);
+
+        recordingClass.getMethod("stop").invoke(recording);
+        final File file = File.createTempFile("ice-jfr-test", ".jfr");
+        file.deleteOnExit();
+        recordingClass.getMethod("dump", Class.forName("java.nio.file.Path"))
+            .invoke(recording, file.getClass().getMethod("toPath")
+                .invoke(file));
+        recordingClass.getMethod("close").invoke(recording);
+
+        final Method readAll = Class.forName("jdk.jfr.consumer.RecordingFile")
+            .getMethod("readAllEvents", Class.forName("java.nio.file.Path"));
+        final List<?> events = (List<?>) readAll.invoke(null, 
+            file.getClass().getMethod("toPath").invoke(file));
+        int matches = 0;
+        for (final Object recorded : events) {
+            final Object type = 
+                recorded.getClass().getMethod("getEventType").invoke(recorded);
+            final Object name = type.getClass().getMethod("getName").invoke(type);
+            if (IceJfrEventType.TCP_CONNECT.getEventName().equals(name)) {
+                final Method getValue = 
+                    recorded.getClass().getMethod("getValue", String.class);
+                assertEquals("10.0.0.1:4000", 
+                    getValue.invoke(recorded, "remote"));
+                assertEquals(Boolean.TRUE, 
+                    getValue.invoke(recorded, "success"));
+                matches++;
+            }
+        }
+        assertEquals(1, matches);
+    }
+}
@@ -0,0 +1,67 @@
+package org.lastbamboo.common.ice.management;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+import org.lastbamboo.common.ice.metrics.IceStunCounters;
+
+/**
+ * Tests for the ICE management beans.
+ */
+public class IceManagementTest {
+
+    @Test
+    public void testBeansRegistered() throws Exception {
+        IceManagement.register();
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName stun = 
+            new ObjectName(IceManagement.DOMAIN + ":type=Stun");
+        assertTrue(server.isRegistered(stun));
+        assertTrue(server.isRegistered(
+            new ObjectName(IceManagement.DOMAIN + ":type=Agents")));
+        assertTrue(server.isRegistered(
+            new ObjectName(IceManagement.DOMAIN + ":type=Executors")));
+
+        final long before = 
+            ((Long) server.getAttribute(stun, "DuplicateRequests")).longValue();
+        IceStunCounters.onDuplicateRequest();
+        assertEquals(before + 1, 
+            ((Long) server.getAttribute(stun, "DuplicateRequests")).longValue());
+    }
+
+    @Test
+    public void testInFlightTransactions() throws Exception {
+        final long before = IceStunCounters.getInFlightTransactions();
+        IceStunCounters.onTransactionStarted();
+        assertEquals(before + 1, IceStunCounters.getInFlightTransactions());
+        IceStunCounters.onTransactionFinished();
+        assertEquals(before, IceStunCounters.getInFlightTransactions());
+    }
+
+    @Test
+    public void testServerSocketPoolUnregistered() throws Exception {
+        final IceServerSocketPoolMXBean pool = 
+            new IceServerSocketPoolMXBean() {
+                public int getPooledServerSockets() {
+                    return 0;
+                }
+                public long getPoolMisses() {
+                    return 0;
+                }
+            };
+        final ObjectName name = IceManagement.registerServerSocketPool(pool);
+        assertNotNull(name);
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertTrue(server.isRegistered(name));
+        IceManagement.unregister(name);
+        assertFalse(server.isRegistered(name));
+    }
+}
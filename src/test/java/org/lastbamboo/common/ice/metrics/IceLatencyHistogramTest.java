@@ -0,0 +1,87 @@
+package org.lastbamboo.common.ice.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for the latency histograms and per-negotiation timer.
+ */
+public class IceLatencyHistogramTest {
+
+    @Test
+    public void testSmallValuesAreExact() throws Exception {
+        final IceLatencyHistogram histogram = new IceLatencyHistogram();
+        for (int i = 1; i <= 10; i++) {
+            histogram.recordMicros(i);
+        }
+        assertEquals(10, histogram.getCount());
+        assertEquals(1, histogram.getMinMicros());
+        assertEquals(10, histogram.getMaxMicros());
+        assertEquals(5, histogram.getValueAtPercentile(50.0));
+        assertEquals(10, histogram.getValueAtPercentile(100.0));
+    }
+
+    @Test
+    public void testLargeValuesWithinBucketError() throws Exception {
+        final IceLatencyHistogram histogram = new IceLatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.recordMicros(i * 1000L);
+        }
+        final long p99 = histogram.getValueAtPercentile(99.0);
+        // Buckets are 1/16th of a power of two wide.
+        assertTrue("Bad p99: " + p99, p99 >= 990000L && p99 <= 990000L * 17 / 16);
+        assertEquals(1000000L, histogram.getMaxMicros());
+    }
+
+    @Test
+    public void testBucketBoundaries() throws Exception {
+        for (long value = 0; value < 100000; value += 7) {
+            final int index = IceLatencyHistogram.bucketIndex(value);
+            assertTrue(IceLatencyHistogram.bucketUpperBound(index) >= value);
+            if (index > 0) {
+                assertTrue(IceLatencyHistogram.bucketUpperBound(index - 1) < value);
+            }
+        }
+    }
+
+    @Test
+    public void testTimerFlushesOnce() throws Exception {
+        IceMetrics.reset();
+        final IceNegotiationTimer timer = new IceNegotiationTimer();
+        timer.record(IcePhase.GATHER, IceNegotiationTimer.now());
+        timer.onChecksStarted();
+        timer.onFirstValidPair();
+        timer.onNominated();
+        timer.onSocket("udp", "host/srflx");
+        timer.onSocket("udp", "host/srflx");
+        timer.onFailed();
+
+        assertEquals(1, IceMetrics.histogram(IcePhase.NOMINATION).getCount());
+        assertEquals(1, IceMetrics.histogram(new IceMetricKey(
+            IcePhase.SOCKET_HANDOFF, "udp", "host/srflx")).getCount());
+        assertEquals(0, IceMetrics.histogram(new IceMetricKey(
+            IcePhase.GATHER, IceNegotiationTimer.FAILED, 
+            IceMetricKey.ALL)).getCount());
+    }
+
+    @Test
+    public void testFailuresKeptOutOfAggregate() throws Exception {
+        IceMetrics.reset();
+        final IceNegotiationTimer timer = new IceNegotiationTimer();
+        timer.record(IcePhase.GATHER, IceNegotiationTimer.now());
+        timer.onFailed();
+
+        assertEquals(0, IceMetrics.histogram(IcePhase.GATHER).getCount());
+        assertEquals(1, IceMetrics.histogram(new IceMetricKey(
+            IcePhase.GATHER, IceMetricKey.FAILED, 
+            IceMetricKey.ALL)).getCount());
+    }
+
+    @Test
+    public void testUnknownCandidateTypes() throws Exception {
+        assertEquals("unknown/unknown", 
+            IceNegotiationTimer.candidateTypes(null, null));
+    }
+}
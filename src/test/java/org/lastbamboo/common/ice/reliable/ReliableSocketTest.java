@@ -0,0 +1,355 @@
+package org.lastbamboo.common.ice.reliable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for reliable streams over datagram channels, on loopback and
+ * through a relay that drops packets.
+ */
+public class ReliableSocketTest {
+
+    private InetAddress lh;
+
+    private ReliableEventLoop loop;
+
+    @Before
+    public void setUp() throws Exception {
+        lh = InetAddress.getByName("127.0.0.1");
+        loop = new ReliableEventLoop("Reliable-Test-Loop");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        loop.shutdown();
+    }
+
+    @Test
+    public void testTransferBothWays() throws Exception {
+        final DatagramChannel a = bind();
+        final DatagramChannel b = bind();
+        a.connect(b.socket().getLocalSocketAddress());
+        b.connect(a.socket().getLocalSocketAddress());
+        final ReliableSocket[] socks = connect(a, b);
+
+        final int size = 1024 * 1024;
+        final Writer first = write(socks[0], size, false);
+        final Writer second = write(socks[1], size, false);
+        verify(socks[1].getInputStream(), size, false);
+        verify(socks[0].getInputStream(), size, false);
+        first.finish();
+        second.finish();
+        socks[0].close();
+        socks[1].close();
+    }
+
+    @Test
+    public void testTransferWithLoss() throws Exception {
+        final DatagramChannel a = bind();
+        final DatagramChannel b = bind();
+        final LossyRelay relay = new LossyRelay(lh,
+            a.socket().getLocalSocketAddress(),
+            b.socket().getLocalSocketAddress(), 0.05);
+        a.connect(relay.getAddress());
+        b.connect(relay.getAddress());
+        try {
+            final ReliableSocket[] socks = connect(a, b);
+            final int size = 512 * 1024;
+            final Writer writer = write(socks[0], size, true);
+            verify(socks[1].getInputStream(), size, true);
+            socks[1].close();
+            writer.finish();
+            assertTrue(relay.dropped > 0);
+        } finally {
+            relay.close();
+        }
+    }
+
+    @Test
+    public void testHandshakeWaitsForListener() throws Exception {
+        final DatagramChannel a = bind();
+        final DatagramChannel placeholder = bind();
+        final SocketAddress bAddress =
+            placeholder.socket().getLocalSocketAddress();
+        placeholder.close();
+        a.connect(bAddress);
+
+        final BlockingQueue<Object> results =
+            new LinkedBlockingQueue<Object>();
+        loop.connect(a, true, 1500, new QueueListener(results));
+
+        // Let the first few SYNs go unanswered.
+        Thread.sleep(700);
+        final DatagramChannel b = DatagramChannel.open();
+        b.socket().bind(bAddress);
+        b.connect(a.socket().getLocalSocketAddress());
+        loop.connect(b, false, 1500, new QueueListener(results));
+
+        final Object first = results.poll(10, TimeUnit.SECONDS);
+        final Object second = results.poll(10, TimeUnit.SECONDS);
+        assertTrue("Got " + first, first instanceof ReliableSocket);
+        assertTrue("Got " + second, second instanceof ReliableSocket);
+        ((ReliableSocket) first).close();
+        ((ReliableSocket) second).close();
+    }
+
+    @Test
+    public void testCloseDeliversEndOfStream() throws Exception {
+        final DatagramChannel a = bind();
+        final DatagramChannel b = bind();
+        a.connect(b.socket().getLocalSocketAddress());
+        b.connect(a.socket().getLocalSocketAddress());
+        final ReliableSocket[] socks = connect(a, b);
+
+        final OutputStream os = socks[0].getOutputStream();
+        os.write("hello".getBytes("US-ASCII"));
+        socks[0].close();
+        assertTrue(socks[0].isClosed());
+
+        final InputStream is = socks[1].getInputStream();
+        socks[1].setSoTimeout(5000);
+        final byte[] buf = new byte[16];
+        int total = 0;
+        int read;
+        while ((read = is.read(buf, total, buf.length - total)) != -1) {
+            total += read;
+        }
+        assertEquals("hello", new String(buf, 0, total, "US-ASCII"));
+        assertTrue(socks[1].isInputShutdown());
+        socks[1].close();
+    }
+
+    @Test
+    public void testReadTimeout() throws Exception {
+        final DatagramChannel a = bind();
+        final DatagramChannel b = bind();
+        a.connect(b.socket().getLocalSocketAddress());
+        b.connect(a.socket().getLocalSocketAddress());
+        final ReliableSocket[] socks = connect(a, b);
+        socks[1].setSoTimeout(100);
+        try {
+            socks[1].getInputStream().read();
+            assertTrue("Should have timed out", false);
+        } catch (final SocketTimeoutException e) {
+            // Expected.
+        }
+        socks[0].close();
+        socks[1].close();
+    }
+
+    @Test
+    public void testConnectAfterShutdownFails() throws Exception {
+        final DatagramChannel a = bind();
+        final DatagramChannel b = bind();
+        a.connect(b.socket().getLocalSocketAddress());
+        loop.shutdown();
+        final BlockingQueue<Object> results =
+            new LinkedBlockingQueue<Object>();
+        loop.connect(a, true, 1500, new QueueListener(results));
+        final Object result = results.poll(5, TimeUnit.SECONDS);
+        assertTrue("Got " + result, result instanceof IOException);
+        assertFalse(a.isOpen());
+        b.close();
+    }
+
+    private DatagramChannel bind() throws IOException {
+        final DatagramChannel dc = DatagramChannel.open();
+        dc.socket().bind(new InetSocketAddress(lh, 0));
+        return dc;
+    }
+
+    private ReliableSocket[] connect(final DatagramChannel initiator,
+        final DatagramChannel responder) throws Exception {
+        final BlockingQueue<Object> first = new LinkedBlockingQueue<Object>();
+        final BlockingQueue<Object> second =
+            new LinkedBlockingQueue<Object>();
+        loop.connect(initiator, true, 1500, new QueueListener(first));
+        loop.connect(responder, false, 1500, new QueueListener(second));
+        final Object a = first.poll(10, TimeUnit.SECONDS);
+        final Object b = second.poll(10, TimeUnit.SECONDS);
+        assertNotNull(a);
+        assertNotNull(b);
+        assertTrue("Got " + a, a instanceof ReliableSocket);
+        assertTrue("Got " + b, b instanceof ReliableSocket);
+        return new ReliableSocket[] {(ReliableSocket) a, (ReliableSocket) b};
+    }
+
+    private static Writer write(final ReliableSocket sock, final int size,
+        final boolean close) {
+        final Writer writer = new Writer(sock, size, close);
+        writer.setDaemon(true);
+        writer.start();
+        return writer;
+    }
+
+    private static void verify(final InputStream is, final int size,
+        final boolean expectEof) throws IOException {
+        final byte[] buf = new byte[3000];
+        int received = 0;
+        while (received < size) {
+            final int read = is.read(buf);
+            assertTrue("Stream ended after " + received, read > 0);
+            for (int i = 0; i < read; i++) {
+                assertEquals("At " + (received + i), pattern(received + i),
+                    buf[i]);
+            }
+            received += read;
+        }
+        assertEquals(size, received);
+        if (expectEof) {
+            assertEquals(-1, is.read());
+        }
+    }
+
+    private static byte pattern(final int index) {
+        return (byte) ((index * 31) % 251);
+    }
+
+    /**
+     * Writes the test pattern on its own thread, keeping any failure for
+     * the test to check.
+     */
+    private static final class Writer extends Thread {
+
+        private final ReliableSocket sock;
+
+        private final int size;
+
+        private final boolean close;
+
+        private volatile IOException failure;
+
+        private Writer(final ReliableSocket sock, final int size,
+            final boolean close) {
+            super("Reliable-Test-Writer");
+            this.sock = sock;
+            this.size = size;
+            this.close = close;
+        }
+
+        @Override
+        public void run() {
+            try {
+                final OutputStream os = sock.getOutputStream();
+                final byte[] chunk = new byte[5000];
+                int sent = 0;
+                while (sent < size) {
+                    final int n = Math.min(chunk.length, size - sent);
+                    for (int i = 0; i < n; i++) {
+                        chunk[i] = pattern(sent + i);
+                    }
+                    os.write(chunk, 0, n);
+                    sent += n;
+                }
+                if (close) {
+                    sock.close();
+                }
+            } catch (final IOException e) {
+                this.failure = e;
+            }
+        }
+
+        private void finish() throws InterruptedException {
+            join(30000);
+            assertFalse("Writer still running", isAlive());
+            assertNull("Writer failed: " + failure, failure);
+        }
+    }
+
+    private static final class QueueListener
+        implements ReliableConnectListener {
+
+        private final BlockingQueue<Object> results;
+
+        private QueueListener(final BlockingQueue<Object> results) {
+            this.results = results;
+        }
+
+        public void onConnected(final ReliableSocket sock) {
+            results.add(sock);
+        }
+
+        public void onConnectFailed(final IOException e) {
+            results.add(e);
+        }
+    }
+
+    /**
+     * Forwards datagrams between two addresses, dropping some at random.
+     */
+    private static final class LossyRelay implements Runnable {
+
+        private final DatagramSocket socket;
+
+        private final SocketAddress a;
+
+        private final SocketAddress b;
+
+        private final double loss;
+
+        private final Random random = new Random(42);
+
+        private volatile int dropped;
+
+        private LossyRelay(final InetAddress address, final SocketAddress a,
+            final SocketAddress b, final double loss) throws IOException {
+            this.socket = new DatagramSocket(new InetSocketAddress(address, 0));
+            this.a = a;
+            this.b = b;
+            this.loss = loss;
+            final Thread thread = new Thread(this, "Lossy-Relay");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private SocketAddress getAddress() {
+            return socket.getLocalSocketAddress();
+        }
+
+        public void run() {
+            final byte[] buf = new byte[65536];
+            final DatagramPacket packet = new DatagramPacket(buf, buf.length);
+            while (!socket.isClosed()) {
+                try {
+                    packet.setData(buf);
+                    socket.receive(packet);
+                    if (random.nextDouble() < loss) {
+                        dropped++;
+                        continue;
+                    }
+                    final SocketAddress from = packet.getSocketAddress();
+                    packet.setSocketAddress(from.equals(a) ? b : a);
+                    socket.send(packet);
+                } catch (final IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private void close() {
+            socket.close();
+        }
+    }
+}
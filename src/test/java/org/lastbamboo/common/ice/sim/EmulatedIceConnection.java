@@ -0,0 +1,167 @@
+package org.lastbamboo.common.ice.sim;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.lastbamboo.common.ice.GeneralIceMediaStreamFactory;
+import org.lastbamboo.common.ice.GeneralIceMediaStreamFactoryImpl;
+import org.lastbamboo.common.ice.IceAgent;
+import org.lastbamboo.common.ice.IceAgentImpl;
+import org.lastbamboo.common.ice.IceMediaStream;
+import org.lastbamboo.common.ice.IceMediaStreamFactory;
+import org.lastbamboo.common.ice.IceStunUdpPeer;
+import org.lastbamboo.common.ice.IceUdpConnectException;
+import org.lastbamboo.common.ice.UdpSocketFactory;
+import org.lastbamboo.common.offer.answer.IceMediaStreamDesc;
+import org.lastbamboo.common.offer.answer.OfferAnswer;
+import org.lastbamboo.common.offer.answer.OfferAnswerListener;
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.util.CandidateProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Drives a controlling and a controlled {@link IceAgentImpl} against each
+ * other over UDP across an {@link EmulatedNetwork}, each agent behind its
+ * own {@link EmulatedNat}, and measures the time to connect. The clock
+ * starts when the answerer is handed the offer, after both agents have
+ * gathered candidates, and stops once both agents have a socket.
+ */
+public class EmulatedIceConnection {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final EmulatedNat offererNat;
+
+    private final EmulatedNat answererNat;
+
+    private final InetSocketAddress stunServer;
+
+    /**
+     * Creates a new connection attempt.
+     *
+     * @param offererNat The NAT the controlling offerer sits behind.
+     * @param answererNat The NAT the controlled answerer sits behind.
+     * @param stunServer The public address of a STUN server on the network.
+     */
+    public EmulatedIceConnection(final EmulatedNat offererNat,
+        final EmulatedNat answererNat, final InetSocketAddress stunServer) {
+        this.offererNat = offererNat;
+        this.answererNat = answererNat;
+        this.stunServer = stunServer;
+    }
+
+    /**
+     * Runs ICE between the two agents.
+     *
+     * @param timeoutMillis How long to wait for both agents to connect.
+     * @return The time to connect in milliseconds, or -1 if the agents
+     * failed or didn't connect in time.
+     * @throws IOException If we can't bind the NATs' sockets.
+     * @throws IceUdpConnectException If an agent could not gather 
+     * candidates.
+     * @throws InterruptedException If we're interrupted while waiting.
+     */
+    public long connect(final long timeoutMillis) throws IOException, 
+        IceUdpConnectException, InterruptedException {
+        final IceMediaStreamDesc desc =
+            new IceMediaStreamDesc(false, true, "message", "http", 1, false);
+        final CountDownLatch connected = new CountDownLatch(2);
+        final CountDownLatch failed = new CountDownLatch(1);
+        final OfferAnswerListener<Socket> listener =
+            new OfferAnswerListener<Socket>() {
+            public void onOfferAnswerFailed(final OfferAnswer offerAnswer) {
+                failed.countDown();
+            }
+
+            public void onTcpSocket(final Socket sock) {
+                connected.countDown();
+            }
+
+            public void onUdpSocket(final Socket sock) {
+                connected.countDown();
+            }
+        };
+        final UdpSocketFactory<Socket> socketFactory =
+            new UdpSocketFactory<Socket>() {
+            public void newEndpoint(final IoSession session,
+                final boolean controlling,
+                final OfferAnswerListener<Socket> offerAnswerListener,
+                final IceStunUdpPeer stunUdpPeer, final IceAgent iceAgent) {
+                offerAnswerListener.onUdpSocket(new Socket());
+            }
+        };
+
+        final IceAgent offerer = new IceAgentImpl(streamFactory(offererNat),
+            true, listener, socketFactory, socketFactory, desc);
+        IceAgent answerer = null;
+        try {
+            final byte[] offer = offerer.generateOffer();
+            answerer = new IceAgentImpl(streamFactory(answererNat), false,
+                listener, socketFactory, socketFactory, desc);
+            final byte[] answer = answerer.generateAnswer();
+
+            final long start = System.nanoTime();
+            answerer.processOffer(
+                ByteBuffer.wrap(answererNat.rewriteSdp(offer)));
+            offerer.processAnswer(
+                ByteBuffer.wrap(offererNat.rewriteSdp(answer)));
+
+            final long deadline = start +
+                TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (connected.getCount() > 0 && failed.getCount() > 0) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+                connected.await(Math.min(remaining,
+                    TimeUnit.MILLISECONDS.toNanos(50)), TimeUnit.NANOSECONDS);
+            }
+            if (connected.getCount() > 0) {
+                log.info("No connection between {} and {}", offererNat,
+                    answererNat);
+                return -1L;
+            }
+            final long millis =
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            log.info("Connected {} to {} in {} ms",
+                new Object[] {offererNat, answererNat, millis});
+            return millis;
+        } finally {
+            offerer.close();
+            if (answerer != null) {
+                answerer.close();
+            }
+        }
+    }
+
+    private IceMediaStreamFactory streamFactory(final EmulatedNat nat)
+        throws IOException {
+        final InetSocketAddress shadow = nat.shadow(stunServer);
+        final CandidateProvider<InetSocketAddress> stunProvider =
+            new CandidateProvider<InetSocketAddress>() {
+            public Collection<InetSocketAddress> getCandidates() {
+                return Collections.singleton(shadow);
+            }
+
+            public InetSocketAddress getCandidate() {
+                return shadow;
+            }
+        };
+        final GeneralIceMediaStreamFactory factory =
+            new GeneralIceMediaStreamFactoryImpl(stunProvider);
+        return new IceMediaStreamFactory() {
+            public IceMediaStream newStream(final IceAgent iceAgent,
+                final IceMediaStreamDesc streamDesc)
+                throws IceUdpConnectException {
+                return factory.newIceMediaStream(streamDesc, iceAgent, null);
+            }
+        };
+    }
+}
@@ -0,0 +1,433 @@
+package org.lastbamboo.common.ice.sim;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A UDP NAT running inside the JVM on loopback addresses.
+ * <p>
+ * We can't intercept the packets a real socket sends, so hosts behind the
+ * NAT reach the outside world through "shadow" sockets on the NAT's inside
+ * address. Each shadow stands in for one external address: whatever an
+ * internal host sends to the shadow leaves through the host's public
+ * mapping towards that external address, and whatever comes back through
+ * the mapping from that address is delivered to the host from the shadow.
+ * Hosts therefore only ever talk to the NAT's inside address, and the
+ * addresses they learn through signaling are rewritten with
+ * {@link #rewriteSdp(byte[])}. Mappings live on the NAT's public address
+ * and follow the {@link NatType} rules.
+ * <p>
+ * The emulated Internet only routes to NAT public addresses and public
+ * servers registered with the {@link EmulatedNetwork}, so host candidates
+ * from another site are unreachable, as they would be in practice. NATs
+ * don't rewrite addresses inside STUN payloads, so a mapped address one
+ * agent reports to the other is the address of a shadow.
+ */
+public class EmulatedNat {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final EmulatedNetwork network;
+
+    private final NatType type;
+
+    private final LinkConditions link;
+
+    private final InetAddress insideAddress;
+
+    private final InetAddress publicAddress;
+
+    private final Random random;
+
+    private final Map<InetSocketAddress, Shadow> shadows =
+        new HashMap<InetSocketAddress, Shadow>();
+
+    private final Map<Object, Mapping> mappings = new HashMap<Object, Mapping>();
+
+    private final AtomicLong forwarded = new AtomicLong();
+
+    private final AtomicLong filtered = new AtomicLong();
+
+    private final AtomicLong unroutable = new AtomicLong();
+
+    private final AtomicLong lost = new AtomicLong();
+
+    private volatile boolean closed;
+
+    EmulatedNat(final EmulatedNetwork network, final NatType type,
+        final LinkConditions link, final InetAddress insideAddress,
+        final InetAddress publicAddress, final long seed) {
+        this.network = network;
+        this.type = type;
+        this.link = link;
+        this.insideAddress = insideAddress;
+        this.publicAddress = publicAddress;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Returns the address an internal host should send to in order to
+     * reach the specified external address through this NAT.
+     *
+     * @param external The external address.
+     * @return The shadow address on the NAT's inside address.
+     * @throws IOException If we can't bind the shadow socket.
+     */
+    public InetSocketAddress shadow(final InetSocketAddress external)
+        throws IOException {
+        return shadowFor(external).address;
+    }
+
+    /**
+     * Rewrites the UDP candidates in an offer or answer from the remote
+     * agent with shadow addresses, so the local agent sends its checks
+     * through this NAT. Other candidates are left alone.
+     *
+     * @param sdp The SDP from the remote agent.
+     * @return The rewritten SDP.
+     * @throws IOException If we can't bind a shadow socket.
+     */
+    public byte[] rewriteSdp(final byte[] sdp) throws IOException {
+        final String[] lines = new String(sdp, "US-ASCII").split("\r\n", -1);
+        final StringBuilder sb = new StringBuilder(sdp.length + 64);
+        for (int i = 0; i < lines.length; i++) {
+            if (i > 0) {
+                sb.append("\r\n");
+            }
+            sb.append(rewriteLine(lines[i]));
+        }
+        return sb.toString().getBytes("US-ASCII");
+    }
+
+    private String rewriteLine(final String line) throws IOException {
+        final String prefix = "a=candidate:";
+        if (!line.startsWith(prefix)) {
+            return line;
+        }
+        final String[] tokens = line.substring(prefix.length()).split(" ");
+        if (tokens.length < 6 || !"udp".equalsIgnoreCase(tokens[2])) {
+            return line;
+        }
+        final InetSocketAddress external = new InetSocketAddress(
+            InetAddress.getByName(tokens[4]), Integer.parseInt(tokens[5]));
+        final InetSocketAddress shadow = shadow(external);
+        tokens[4] = shadow.getAddress().getHostAddress();
+        tokens[5] = String.valueOf(shadow.getPort());
+        final StringBuilder sb = new StringBuilder(prefix);
+        for (int i = 0; i < tokens.length; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(tokens[i]);
+        }
+        return sb.toString();
+    }
+
+    public NatType getType() {
+        return type;
+    }
+
+    public LinkConditions getLink() {
+        return link;
+    }
+
+    public InetAddress getInsideAddress() {
+        return insideAddress;
+    }
+
+    public InetAddress getPublicAddress() {
+        return publicAddress;
+    }
+
+    /**
+     * Accessor for the public addresses the NAT has allocated so far.
+     *
+     * @return The public mapped addresses.
+     */
+    public Collection<InetSocketAddress> getMappedAddresses() {
+        final Collection<InetSocketAddress> addresses =
+            new HashSet<InetSocketAddress>();
+        synchronized (mappings) {
+            for (final Mapping mapping : mappings.values()) {
+                addresses.add(mapping.address);
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Accessor for the number of packets forwarded in either direction.
+     *
+     * @return The number of packets forwarded.
+     */
+    public long getForwarded() {
+        return forwarded.get();
+    }
+
+    /**
+     * Accessor for the number of inbound packets the NAT's filtering
+     * rules dropped.
+     *
+     * @return The number of filtered packets.
+     */
+    public long getFiltered() {
+        return filtered.get();
+    }
+
+    /**
+     * Accessor for the number of outbound packets dropped because the
+     * destination isn't reachable on the emulated Internet.
+     *
+     * @return The number of unroutable packets.
+     */
+    public long getUnroutable() {
+        return unroutable.get();
+    }
+
+    /**
+     * Accessor for the number of packets the link dropped.
+     *
+     * @return The number of lost packets.
+     */
+    public long getLost() {
+        return lost.get();
+    }
+
+    /**
+     * Closes all of the NAT's sockets.
+     */
+    public void close() {
+        closed = true;
+        synchronized (shadows) {
+            for (final Shadow shadow : shadows.values()) {
+                close(shadow.channel);
+            }
+            shadows.clear();
+        }
+        synchronized (mappings) {
+            for (final Mapping mapping : mappings.values()) {
+                close(mapping.channel);
+            }
+            mappings.clear();
+        }
+    }
+
+    private Shadow shadowFor(final InetSocketAddress external)
+        throws IOException {
+        synchronized (shadows) {
+            final Shadow existing = shadows.get(external);
+            if (existing != null) {
+                return existing;
+            }
+            final Shadow shadow = new Shadow(external, bind(insideAddress));
+            shadows.put(external, shadow);
+            network.receive(shadow.channel, new PacketHandler() {
+                public void onPacket(final ByteBuffer data,
+                    final InetSocketAddress from) {
+                    onOutbound(shadow, data, from);
+                }
+            });
+            return shadow;
+        }
+    }
+
+    private Mapping mappingFor(final InetSocketAddress internal,
+        final InetSocketAddress external) throws IOException {
+        final Object key;
+        if (type.isPerDestinationMapping()) {
+            key = Arrays.asList(internal, external);
+        } else {
+            key = internal;
+        }
+        synchronized (mappings) {
+            final Mapping existing = mappings.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            final Mapping mapping =
+                new Mapping(internal, bind(publicAddress));
+            mappings.put(key, mapping);
+            log.debug("{} NAT mapped {} to {}",
+                new Object[] {type, internal, mapping.address});
+            network.receive(mapping.channel, new PacketHandler() {
+                public void onPacket(final ByteBuffer data,
+                    final InetSocketAddress from) {
+                    onInbound(mapping, data, from);
+                }
+            });
+            return mapping;
+        }
+    }
+
+    private void onOutbound(final Shadow shadow, final ByteBuffer data,
+        final InetSocketAddress from) {
+        if (!network.isRoutable(shadow.external)) {
+            unroutable.incrementAndGet();
+            return;
+        }
+        final Mapping mapping;
+        try {
+            mapping = mappingFor(from, shadow.external);
+        } catch (final IOException e) {
+            log.warn("Could not create mapping for " + from, e);
+            return;
+        }
+        mapping.permit(shadow.external);
+        deliver(mapping.channel, data, shadow.external);
+    }
+
+    private void onInbound(final Mapping mapping, final ByteBuffer data,
+        final InetSocketAddress from) {
+        if (!mapping.admits(from)) {
+            filtered.incrementAndGet();
+            return;
+        }
+        final Shadow shadow;
+        try {
+            shadow = shadowFor(from);
+        } catch (final IOException e) {
+            log.warn("Could not create shadow for " + from, e);
+            return;
+        }
+        deliver(shadow.channel, data, mapping.internal);
+    }
+
+    private void deliver(final DatagramChannel channel,
+        final ByteBuffer data, final InetSocketAddress to) {
+        final long delay;
+        synchronized (random) {
+            delay = link.nextDelay(random);
+        }
+        if (delay < 0) {
+            lost.incrementAndGet();
+            return;
+        }
+        final Runnable send = new Runnable() {
+            public void run() {
+                if (closed) {
+                    return;
+                }
+                try {
+                    channel.send(data, to);
+                    forwarded.incrementAndGet();
+                } catch (final ClosedChannelException e) {
+                    // The NAT closed while the packet was in flight.
+                } catch (final IOException e) {
+                    log.debug("Could not forward packet to " + to, e);
+                }
+            }
+        };
+        if (delay == 0) {
+            send.run();
+        } else {
+            network.schedule(send, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static DatagramChannel bind(final InetAddress address)
+        throws IOException {
+        final DatagramChannel channel = DatagramChannel.open();
+        channel.socket().bind(new InetSocketAddress(address, 0));
+        return channel;
+    }
+
+    private void close(final DatagramChannel channel) {
+        try {
+            channel.close();
+        } catch (final IOException e) {
+            log.debug("Exception closing channel", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " " + type +
+            " inside: " + insideAddress.getHostAddress() +
+            " public: " + publicAddress.getHostAddress() + " " + link;
+    }
+
+    /**
+     * Callback for packets arriving on one of the NAT's sockets.
+     */
+    interface PacketHandler {
+
+        /**
+         * Called with each packet received.
+         *
+         * @param data The packet, which the handler now owns.
+         * @param from The address the packet came from.
+         */
+        void onPacket(ByteBuffer data, InetSocketAddress from);
+    }
+
+    private static final class Shadow {
+
+        private final InetSocketAddress external;
+
+        private final DatagramChannel channel;
+
+        private final InetSocketAddress address;
+
+        private Shadow(final InetSocketAddress external,
+            final DatagramChannel channel) {
+            this.external = external;
+            this.channel = channel;
+            this.address =
+                (InetSocketAddress) channel.socket().getLocalSocketAddress();
+        }
+    }
+
+    private final class Mapping {
+
+        private final InetSocketAddress internal;
+
+        private final DatagramChannel channel;
+
+        private final InetSocketAddress address;
+
+        private final Set<InetSocketAddress> permitted =
+            new HashSet<InetSocketAddress>();
+
+        private final Set<InetAddress> permittedAddresses =
+            new HashSet<InetAddress>();
+
+        private Mapping(final InetSocketAddress internal,
+            final DatagramChannel channel) {
+            this.internal = internal;
+            this.channel = channel;
+            this.address =
+                (InetSocketAddress) channel.socket().getLocalSocketAddress();
+        }
+
+        private synchronized void permit(final InetSocketAddress external) {
+            permitted.add(external);
+            permittedAddresses.add(external.getAddress());
+        }
+
+        private synchronized boolean admits(final InetSocketAddress from) {
+            if (type.isFiltersPort()) {
+                return permitted.contains(from);
+            }
+            if (type.isFiltersAddress()) {
+                return permittedAddresses.contains(from.getAddress());
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package org.lastbamboo.common.ice.sim;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the mapping, filtering and link behavior of emulated NATs. A
+ * host behind the NAT talks to two public "servers" that are plain 
+ * sockets on a public address of the network.
+ */
+public class EmulatedNatTest {
+
+    private EmulatedNetwork network;
+
+    private DatagramChannel host;
+
+    private DatagramChannel server1;
+
+    private DatagramChannel server2;
+
+    @Before
+    public void setUp() throws Exception {
+        this.network = new EmulatedNetwork(42L);
+        // The public address of a throwaway NAT stands in for a public 
+        // server machine.
+        final InetAddress serverAddress = 
+            network.newNat(NatType.FULL_CONE, LinkConditions.NONE)
+                .getPublicAddress();
+        this.server1 = bind(serverAddress);
+        this.server2 = bind(serverAddress);
+        this.host = bind(InetAddress.getByName("127.0.0.1"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        network.close();
+        host.close();
+        server1.close();
+        server2.close();
+    }
+
+    @Test
+    public void testConeNatReusesMapping() throws Exception {
+        final EmulatedNat nat = 
+            network.newNat(NatType.PORT_RESTRICTED, LinkConditions.NONE);
+        final InetSocketAddress mapped1 = send(nat, host, server1);
+        final InetSocketAddress mapped2 = send(nat, host, server2);
+        assertEquals(nat.getPublicAddress(), mapped1.getAddress());
+        assertEquals(mapped1, mapped2);
+        assertEquals(1, nat.getMappedAddresses().size());
+    }
+
+    @Test
+    public void testSymmetricNatMapsPerDestination() throws Exception {
+        final EmulatedNat nat = 
+            network.newNat(NatType.SYMMETRIC, LinkConditions.NONE);
+        final InetSocketAddress mapped1 = send(nat, host, server1);
+        final InetSocketAddress mapped2 = send(nat, host, server2);
+        assertFalse(mapped1.equals(mapped2));
+        assertEquals(2, nat.getMappedAddresses().size());
+    }
+
+    @Test
+    public void testFullConeAdmitsAnyone() throws Exception {
+        final EmulatedNat nat = 
+            network.newNat(NatType.FULL_CONE, LinkConditions.NONE);
+        final InetSocketAddress mapped = send(nat, host, server1);
+        server2.send(ByteBuffer.wrap(new byte[] {2}), mapped);
+        final InetSocketAddress from = receive(host);
+        assertEquals(nat.shadow(address(server2)), from);
+    }
+
+    @Test
+    public void testRestrictedNatFiltersOnAddress() throws Exception {
+        final EmulatedNat nat = 
+            network.newNat(NatType.RESTRICTED, LinkConditions.NONE);
+        final InetSocketAddress mapped = send(nat, host, server1);
+
+        // Same address, different port, so it's let through.
+        server2.send(ByteBuffer.wrap(new byte[] {2}), mapped);
+        assertNotNull(receive(host));
+
+        // A different address is dropped.
+        final DatagramChannel other = bind(
+            network.newNat(NatType.FULL_CONE, LinkConditions.NONE)
+                .getPublicAddress());
+        try {
+            other.send(ByteBuffer.wrap(new byte[] {3}), mapped);
+            assertNull(receive(host));
+            assertEquals(1, nat.getFiltered());
+        } finally {
+            other.close();
+        }
+    }
+
+    @Test
+    public void testPortRestrictedNatFiltersOnPort() throws Exception {
+        final EmulatedNat nat = 
+            network.newNat(NatType.PORT_RESTRICTED, LinkConditions.NONE);
+        final InetSocketAddress mapped = send(nat, host, server1);
+        server2.send(ByteBuffer.wrap(new byte[] {2}), mapped);
+        assertNull(receive(host));
+        assertEquals(1, nat.getFiltered());
+
+        server1.send(ByteBuffer.wrap(new byte[] {3}), mapped);
+        assertEquals(nat.shadow(address(server1)), receive(host));
+    }
+
+    @Test
+    public void testPrivateAddressesAreUnroutable() throws Exception {
+        final EmulatedNat nat = 
+            network.newNat(NatType.FULL_CONE, LinkConditions.NONE);
+        final DatagramChannel privateHost = 
+            bind(InetAddress.getByName("127.0.0.1"));
+        try {
+            host.send(ByteBuffer.wrap(new byte[] {1}), 
+                nat.shadow(address(privateHost)));
+            assertNull(receive(privateHost));
+            assertEquals(1, nat.getUnroutable());
+        } finally {
+            privateHost.close();
+        }
+    }
+
+    @Test
+    public void testLatency() throws Exception {
+        final EmulatedNat nat = 
+            network.newNat(NatType.FULL_CONE, new LinkConditions(150, 0, 0.0));
+        final long start = System.nanoTime();
+        send(nat, host, server1);
+        final long elapsedMillis = (System.nanoTime() - start) / 1000000L;
+        assertTrue("Only took " + elapsedMillis + " ms", elapsedMillis >= 150);
+    }
+
+    @Test
+    public void testLoss() throws Exception {
+        final EmulatedNat nat = 
+            network.newNat(NatType.FULL_CONE, new LinkConditions(0, 0, 1.0));
+        host.send(ByteBuffer.wrap(new byte[] {1}), 
+            nat.shadow(address(server1)));
+        assertNull(receive(server1));
+        assertEquals(1, nat.getLost());
+    }
+
+    @Test
+    public void testRewriteSdp() throws Exception {
+        final EmulatedNat nat = 
+            network.newNat(NatType.FULL_CONE, LinkConditions.NONE);
+        final InetSocketAddress shadow = nat.shadow(address(server1));
+        final String udp = "a=candidate:1 1 udp 2130706431 " + 
+            address(server1).getAddress().getHostAddress() + " " + 
+            address(server1).getPort() + " typ host";
+        final String tcp = 
+            "a=candidate:2 1 tcp-pass 2130706431 10.0.0.1 80 typ host";
+        final String sdp = "v=0\r\n" + udp + "\r\n" + tcp + "\r\n";
+        final String rewritten = 
+            new String(nat.rewriteSdp(sdp.getBytes("US-ASCII")), "US-ASCII");
+        assertEquals("v=0\r\na=candidate:1 1 udp 2130706431 " + 
+            shadow.getAddress().getHostAddress() + " " + shadow.getPort() + 
+            " typ host\r\n" + tcp + "\r\n", rewritten);
+    }
+
+    /**
+     * Sends a packet from the host through the NAT to the server and 
+     * returns the public address the server saw it come from.
+     */
+    private InetSocketAddress send(final EmulatedNat nat, 
+        final DatagramChannel from, final DatagramChannel to) 
+        throws IOException {
+        from.send(ByteBuffer.wrap(new byte[] {1}), nat.shadow(address(to)));
+        final InetSocketAddress mapped = receive(to);
+        assertNotNull("Packet never arrived", mapped);
+        return mapped;
+    }
+
+    private static InetSocketAddress receive(final DatagramChannel channel) 
+        throws IOException {
+        final DatagramPacket packet = 
+            new DatagramPacket(new byte[64], 64);
+        try {
+            channel.socket().receive(packet);
+        } catch (final SocketTimeoutException e) {
+            return null;
+        }
+        return (InetSocketAddress) packet.getSocketAddress();
+    }
+
+    private static InetSocketAddress address(final DatagramChannel channel) {
+        return (InetSocketAddress) channel.socket().getLocalSocketAddress();
+    }
+
+    private static DatagramChannel bind(final InetAddress address) 
+        throws IOException {
+        final DatagramChannel channel = DatagramChannel.open();
+        channel.socket().bind(new InetSocketAddress(address, 0));
+        channel.socket().setSoTimeout(500);
+        return channel;
+    }
+}
@@ -0,0 +1,244 @@
+package org.lastbamboo.common.ice.sim;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.lastbamboo.common.stun.server.StunServer;
+import org.lastbamboo.common.stun.server.UdpStunServer;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.stun.stack.StunConstants;
+import org.littleshoot.stun.stack.StunIoHandler;
+import org.littleshoot.stun.stack.StunProtocolCodecFactory;
+import org.littleshoot.stun.stack.message.BindingRequest;
+import org.littleshoot.stun.stack.message.BindingSuccessResponse;
+import org.littleshoot.stun.stack.message.StunMessage;
+import org.littleshoot.stun.stack.message.StunMessageVisitor;
+import org.littleshoot.stun.stack.message.StunMessageVisitorAdapter;
+import org.littleshoot.stun.stack.message.StunMessageVisitorFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An emulated Internet inside the JVM. The network hands out
+ * {@link EmulatedNat}s and runs STUN servers from the stun-server module,
+ * each on its own address in 127.0.0.0/8. Linux routes that whole block
+ * over loopback, so no interface aliases need to be configured. Other
+ * systems need the aliases added by hand.
+ * <p>
+ * Typical use is to put each agent behind its own NAT, give each agent's
+ * STUN client the NAT's shadow of the network's STUN server, and pass
+ * offers and answers through {@link EmulatedNat#rewriteSdp(byte[])} of the
+ * receiving agent's NAT. {@link EmulatedIceConnection} does all of that.
+ */
+public class EmulatedNetwork {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private static final int MAX_PACKET = 64 * 1024;
+
+    /**
+     * Addresses are unique across all networks in the JVM so networks in
+     * concurrent tests never collide.
+     */
+    private static final AtomicInteger nextAddress = new AtomicInteger();
+
+    private final long seed;
+
+    private final Collection<InetAddress> publicAddresses =
+        new HashSet<InetAddress>();
+
+    private final Collection<EmulatedNat> nats = new ArrayList<EmulatedNat>();
+
+    private final Collection<StunServer> stunServers =
+        new ArrayList<StunServer>();
+
+    private final ExecutorService readers =
+        Executors.newCachedThreadPool(new DaemonThreadFactory("Reader"));
+
+    private final ScheduledExecutorService scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            new DaemonThreadFactory("Link"));
+
+    /**
+     * Creates a new network.
+     *
+     * @param seed The seed for the link conditions on the network's NATs.
+     * Runs with the same seed see the same delays and losses for the same
+     * packets.
+     */
+    public EmulatedNetwork(final long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Creates a new NAT on the network.
+     *
+     * @param type The type of NAT.
+     * @param link The conditions of the NAT's link to the network.
+     * @return The new NAT.
+     */
+    public EmulatedNat newNat(final NatType type, final LinkConditions link) {
+        final InetAddress insideAddress = nextAddress();
+        final InetAddress publicAddress = nextAddress();
+        synchronized (nats) {
+            final EmulatedNat nat = new EmulatedNat(this, type, link,
+                insideAddress, publicAddress, seed + nats.size());
+            nats.add(nat);
+            addPublicAddress(publicAddress);
+            log.debug("Created {}", nat);
+            return nat;
+        }
+    }
+
+    /**
+     * Starts a STUN server on a public address of the network.
+     *
+     * @return The address of the server.
+     * @throws IOException If the server could not be started.
+     */
+    public InetSocketAddress startStunServer() throws IOException {
+        final StunMessageVisitorFactory<StunMessage> visitorFactory =
+            new StunMessageVisitorFactory<StunMessage>() {
+            public StunMessageVisitor<StunMessage> createVisitor(
+                final IoSession session) {
+                return new StunMessageVisitorAdapter<StunMessage>() {
+                    @Override
+                    public StunMessage visitBindingRequest(
+                        final BindingRequest request) {
+                        session.write(new BindingSuccessResponse(
+                            request.getTransactionId().getRawBytes(),
+                            (InetSocketAddress) session.getRemoteAddress()));
+                        return null;
+                    }
+                };
+            }
+        };
+        final StunServer server = new UdpStunServer(
+            new StunProtocolCodecFactory(),
+            new StunIoHandler<StunMessage>(visitorFactory), "-Emulated");
+        final InetSocketAddress address =
+            new InetSocketAddress(nextAddress(), StunConstants.STUN_PORT);
+        server.start(address);
+        synchronized (stunServers) {
+            stunServers.add(server);
+        }
+        addPublicAddress(address.getAddress());
+        return address;
+    }
+
+    /**
+     * Allocates a public address on the network for a server the caller
+     * runs itself. Packets from NATs on the network are routed to it.
+     *
+     * @return The new public address.
+     */
+    public InetAddress newPublicAddress() {
+        final InetAddress address = nextAddress();
+        addPublicAddress(address);
+        return address;
+    }
+
+    /**
+     * Closes all NATs and servers on the network.
+     */
+    public void close() {
+        synchronized (nats) {
+            for (final EmulatedNat nat : nats) {
+                nat.close();
+            }
+            nats.clear();
+        }
+        synchronized (stunServers) {
+            for (final StunServer server : stunServers) {
+                server.close();
+            }
+            stunServers.clear();
+        }
+        scheduler.shutdownNow();
+        readers.shutdownNow();
+    }
+
+    boolean isRoutable(final InetSocketAddress address) {
+        synchronized (publicAddresses) {
+            return publicAddresses.contains(address.getAddress());
+        }
+    }
+
+    void receive(final DatagramChannel channel,
+        final EmulatedNat.PacketHandler handler) {
+        readers.execute(new Runnable() {
+            public void run() {
+                while (channel.isOpen()) {
+                    final ByteBuffer data = ByteBuffer.allocate(MAX_PACKET);
+                    final InetSocketAddress from;
+                    try {
+                        from = (InetSocketAddress) channel.receive(data);
+                    } catch (final ClosedChannelException e) {
+                        return;
+                    } catch (final IOException e) {
+                        log.debug("Error reading from channel", e);
+                        return;
+                    }
+                    data.flip();
+                    handler.onPacket(data, from);
+                }
+            }
+        });
+    }
+
+    void schedule(final Runnable task, final long delay, final TimeUnit unit) {
+        if (!scheduler.isShutdown()) {
+            scheduler.schedule(task, delay, unit);
+        }
+    }
+
+    private void addPublicAddress(final InetAddress address) {
+        synchronized (publicAddresses) {
+            publicAddresses.add(address);
+        }
+    }
+
+    private static InetAddress nextAddress() {
+        final int index = nextAddress.incrementAndGet();
+        final byte[] bytes = {127, (byte) (100 + index / 250),
+            (byte) (index % 250 + 1), 1};
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (final UnknownHostException e) {
+            // Never happens with a four byte address.
+            throw new IllegalStateException("Bad address", e);
+        }
+    }
+
+    private static final class DaemonThreadFactory implements ThreadFactory {
+
+        private final String name;
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        private DaemonThreadFactory(final String name) {
+            this.name = name;
+        }
+
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable,
+                "Emulated-Network-" + name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package org.lastbamboo.common.ice.sim;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs ICE end to end between two agents behind emulated NATs, using a 
+ * local STUN server instead of the public ones {@link 
+ * org.lastbamboo.common.ice.IceAgentImplTest} needs. There's no relay, so
+ * agents behind two symmetric NATs can't connect.
+ * <p>
+ * This takes a while, so it only runs with the integration profile:
+ * <pre>
+ *     mvn -Pintegration verify
+ * </pre>
+ */
+public class IceNatTraversalIT {
+
+    private static final long TIMEOUT = 15 * 1000;
+
+    private EmulatedNetwork network;
+
+    private InetSocketAddress stunServer;
+
+    @Before
+    public void setUp() throws Exception {
+        this.network = new EmulatedNetwork(7L);
+        this.stunServer = network.startStunServer();
+    }
+
+    @After
+    public void tearDown() {
+        network.close();
+    }
+
+    @Test
+    public void testFullCone() throws Exception {
+        assertConnects(NatType.FULL_CONE, NatType.FULL_CONE, 
+            LinkConditions.NONE);
+    }
+
+    @Test
+    public void testPortRestrictedToRestricted() throws Exception {
+        assertConnects(NatType.PORT_RESTRICTED, NatType.RESTRICTED, 
+            LinkConditions.NONE);
+    }
+
+    @Test
+    public void testSymmetricToFullCone() throws Exception {
+        assertConnects(NatType.SYMMETRIC, NatType.FULL_CONE, 
+            LinkConditions.NONE);
+    }
+
+    @Test
+    public void testPortRestrictedWithLatencyAndLoss() throws Exception {
+        assertConnects(NatType.PORT_RESTRICTED, NatType.PORT_RESTRICTED, 
+            new LinkConditions(40, 10, 0.05));
+    }
+
+    @Test
+    public void testSymmetricToSymmetricFails() throws Exception {
+        final EmulatedIceConnection connection = new EmulatedIceConnection(
+            network.newNat(NatType.SYMMETRIC, LinkConditions.NONE), 
+            network.newNat(NatType.SYMMETRIC, LinkConditions.NONE), 
+            stunServer);
+        assertEquals(-1L, connection.connect(TIMEOUT));
+    }
+
+    private void assertConnects(final NatType offerer, final NatType answerer,
+        final LinkConditions link) throws Exception {
+        final EmulatedIceConnection connection = new EmulatedIceConnection(
+            network.newNat(offerer, link), network.newNat(answerer, link), 
+            stunServer);
+        final long millis = connection.connect(TIMEOUT);
+        assertTrue(offerer + " to " + answerer + " did not connect", 
+            millis >= 0);
+    }
+}
@@ -0,0 +1,335 @@
+package org.lastbamboo.common.ice.sim;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.SocketFactory;
+
+import org.lastbamboo.common.ice.IceAgent;
+import org.lastbamboo.common.ice.IceMediaStreamFactoryImpl;
+import org.lastbamboo.common.ice.IceOfferAnswerFactory;
+import org.lastbamboo.common.ice.IceStunUdpPeer;
+import org.lastbamboo.common.ice.MappedServerSocket;
+import org.lastbamboo.common.ice.UdpSocketFactory;
+import org.lastbamboo.common.ice.metrics.IceLatencyHistogram;
+import org.lastbamboo.common.offer.answer.IceMediaStreamDesc;
+import org.lastbamboo.common.offer.answer.OfferAnswer;
+import org.lastbamboo.common.offer.answer.OfferAnswerListener;
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.util.CandidateProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Load harness that runs many offerer/answerer pairs concurrently through
+ * a single {@link IceOfferAnswerFactory}, the way a busy node would, against
+ * a STUN server from {@link EmulatedNetwork}. It reports sustained
+ * negotiations per second, time-to-socket percentiles and the resources the
+ * live sessions hold. Run it from the command line with:
+ *
+ * <pre>
+ * java -cp ... org.lastbamboo.common.ice.sim.IceSoak sessions concurrency
+ * </pre>
+ *
+ * and compare the report across releases.
+ * <p>
+ * Offerers only use UDP and nobody uses the relay. There's no TURN server
+ * in the JVM, and an offerer using TCP needs the port mapping services
+ * behind {@link org.lastbamboo.common.ice.MappedTcpOffererServerPool}.
+ * Answerers still create their TCP side, as
+ * {@link IceOfferAnswerFactory#createAnswerer} always does, against a plain
+ * local server socket. Sockets are handed to the listener as soon as a pair
+ * is nominated, without a UDT handshake.
+ */
+public class IceSoak {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final int sessions;
+
+    private final int concurrency;
+
+    private final long sessionTimeoutMillis;
+
+    private final AtomicInteger live = new AtomicInteger();
+
+    private final AtomicInteger connected = new AtomicInteger();
+
+    private final AtomicInteger failed = new AtomicInteger();
+
+    private final IceLatencyHistogram timeToSocket = new IceLatencyHistogram();
+
+    private final Peaks peaks = new Peaks();
+
+    /**
+     * Creates a new soak run.
+     *
+     * @param sessions The total number of offerer/answerer pairs to run.
+     * @param concurrency The number of pairs to keep negotiating at once.
+     * @param sessionTimeoutMillis How long each pair gets to connect.
+     */
+    public IceSoak(final int sessions, final int concurrency,
+        final long sessionTimeoutMillis) {
+        this.sessions = sessions;
+        this.concurrency = concurrency;
+        this.sessionTimeoutMillis = sessionTimeoutMillis;
+    }
+
+    /**
+     * Runs all the sessions and waits for them to finish.
+     *
+     * @return The report for the run.
+     * @throws IOException If we could not start the local servers.
+     * @throws InterruptedException If we're interrupted while waiting.
+     */
+    public IceSoakReport run() throws IOException, InterruptedException {
+        final EmulatedNetwork network = new EmulatedNetwork(0L);
+        final ServerSocket answererSocket = new ServerSocket(0, 50,
+            InetAddress.getLocalHost());
+        final ExecutorService sessionPool =
+            Executors.newFixedThreadPool(concurrency);
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        try {
+            final InetSocketAddress stunServer = network.startStunServer();
+            final IceOfferAnswerFactory<Socket> factory =
+                newFactory(stunServer, answererSocket);
+
+            memory.gc();
+            final long baselineHeap = memory.getHeapMemoryUsage().getUsed();
+            threads.resetPeakThreadCount();
+
+            final Semaphore permits = new Semaphore(concurrency);
+            final CountDownLatch done = new CountDownLatch(sessions);
+            final Thread sampler = startSampler(baselineHeap);
+            final long start = System.nanoTime();
+            for (int i = 0; i < sessions; i++) {
+                permits.acquire();
+                sessionPool.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            runSession(factory);
+                        } finally {
+                            permits.release();
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+            done.await();
+            final long elapsed = System.nanoTime() - start;
+            sampler.interrupt();
+
+            return new IceSoakReport(sessions, concurrency, connected.get(),
+                failed.get(), elapsed, timeToSocket,
+                threads.getPeakThreadCount(), peaks.fileDescriptors.get(),
+                peaks.sockets.get(), peaks.live.get(),
+                peaks.heapPerSession.get());
+        } finally {
+            sessionPool.shutdownNow();
+            answererSocket.close();
+            network.close();
+        }
+    }
+
+    private void runSession(final IceOfferAnswerFactory<Socket> factory) {
+        final CountDownLatch sockets = new CountDownLatch(2);
+        final OfferAnswerListener<Socket> listener =
+            new OfferAnswerListener<Socket>() {
+            public void onOfferAnswerFailed(final OfferAnswer offerAnswer) {
+                // The session either connects in time or it doesn't.
+            }
+
+            public void onTcpSocket(final Socket sock) {
+                sockets.countDown();
+            }
+
+            public void onUdpSocket(final Socket sock) {
+                sockets.countDown();
+            }
+        };
+        final long start = System.nanoTime();
+        OfferAnswer offerer = null;
+        OfferAnswer answerer = null;
+        live.incrementAndGet();
+        try {
+            offerer = factory.createOfferer(listener, new IceMediaStreamDesc(
+                false, true, "message", "http", 1, false));
+            answerer = factory.createAnswerer(listener, false);
+            final byte[] offer = offerer.generateOffer();
+            answerer.processOffer(ByteBuffer.wrap(offer));
+            final byte[] answer = answerer.generateAnswer();
+            offerer.processAnswer(ByteBuffer.wrap(answer));
+            if (sockets.await(sessionTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                timeToSocket.recordNanos(System.nanoTime() - start);
+                connected.incrementAndGet();
+            } else {
+                failed.incrementAndGet();
+            }
+        } catch (final Exception e) {
+            log.warn("Session failed", e);
+            failed.incrementAndGet();
+        } finally {
+            if (offerer != null) {
+                offerer.close();
+            }
+            if (answerer != null) {
+                answerer.close();
+            }
+            live.decrementAndGet();
+        }
+    }
+
+    private IceOfferAnswerFactory<Socket> newFactory(
+        final InetSocketAddress stunServer, final ServerSocket answererSocket) {
+        final CandidateProvider<InetSocketAddress> stunProvider =
+            new CandidateProvider<InetSocketAddress>() {
+            public Collection<InetSocketAddress> getCandidates() {
+                return Collections.singleton(stunServer);
+            }
+
+            public InetSocketAddress getCandidate() {
+                return stunServer;
+            }
+        };
+        final MappedServerSocket answererServer = new MappedServerSocket() {
+            public boolean isPortMapped() {
+                return false;
+            }
+
+            public int getMappedPort() {
+                return answererSocket.getLocalPort();
+            }
+
+            public InetSocketAddress getHostAddress() {
+                return (InetSocketAddress)
+                    answererSocket.getLocalSocketAddress();
+            }
+        };
+        final UdpSocketFactory<Socket> udpSocketFactory =
+            new UdpSocketFactory<Socket>() {
+            public void newEndpoint(final IoSession session,
+                final boolean controlling,
+                final OfferAnswerListener<Socket> offerAnswerListener,
+                final IceStunUdpPeer stunUdpPeer, final IceAgent iceAgent) {
+                offerAnswerListener.onUdpSocket(new Socket());
+            }
+        };
+        return new IceOfferAnswerFactory<Socket>(
+            new IceMediaStreamFactoryImpl(stunProvider), udpSocketFactory,
+            null, answererServer, null, stunProvider, null,
+            SocketFactory.getDefault());
+    }
+
+    private Thread startSampler(final long baselineHeap) {
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        final Thread sampler = new Thread(new Runnable() {
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    final int liveNow = live.get();
+                    peaks.update(liveNow, openFileDescriptors(),
+                        openSockets(),
+                        memory.getHeapMemoryUsage().getUsed() - baselineHeap);
+                    try {
+                        Thread.sleep(100);
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "ICE-Soak-Sampler");
+        sampler.setDaemon(true);
+        sampler.start();
+        return sampler;
+    }
+
+    /**
+     * Returns the number of open file descriptors, or -1 if the JVM
+     * doesn't tell us.
+     */
+    private static long openFileDescriptors() {
+        final OperatingSystemMXBean os =
+            ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+            return ((com.sun.management.UnixOperatingSystemMXBean) os)
+                .getOpenFileDescriptorCount();
+        }
+        return -1L;
+    }
+
+    /**
+     * Returns the number of sockets the process holds, and so roughly the
+     * number of ephemeral ports in use, or -1 if there's no /proc.
+     */
+    private static long openSockets() {
+        final File[] fds = new File("/proc/self/fd").listFiles();
+        if (fds == null) {
+            return -1L;
+        }
+        long count = 0L;
+        for (final File fd : fds) {
+            try {
+                if (fd.getCanonicalPath().contains("socket:")) {
+                    count++;
+                }
+            } catch (final IOException e) {
+                // The descriptor closed while we were looking.
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Runs a soak from the command line and prints the report.
+     *
+     * @param args The number of sessions and the concurrency, defaulting
+     * to 1000 and 100.
+     * @throws Exception If the run fails.
+     */
+    public static void main(final String[] args) throws Exception {
+        final int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        final int concurrency =
+            args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        final IceSoak soak = new IceSoak(sessions, concurrency, 30 * 1000);
+        System.out.println(soak.run());
+    }
+
+    private static final class Peaks {
+
+        private final AtomicInteger live = new AtomicInteger();
+
+        private final AtomicLong fileDescriptors = new AtomicLong(-1L);
+
+        private final AtomicLong sockets = new AtomicLong(-1L);
+
+        private final AtomicLong heapPerSession = new AtomicLong();
+
+        private void update(final int liveNow, final long fds,
+            final long socks, final long heap) {
+            fileDescriptors.set(Math.max(fileDescriptors.get(), fds));
+            sockets.set(Math.max(sockets.get(), socks));
+            if (liveNow > 0 && liveNow >= live.get()) {
+                live.set(liveNow);
+                heapPerSession.set(Math.max(0L, heap / liveNow));
+            }
+        }
+    }
+}
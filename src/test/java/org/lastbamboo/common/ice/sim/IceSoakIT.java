@@ -0,0 +1,27 @@
+package org.lastbamboo.common.ice.sim;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A short soak to keep the harness working. Real runs use 
+ * {@link IceSoak#main(String[])} with thousands of sessions. Like 
+ * {@link IceNatTraversalIT}, this only runs with the integration profile.
+ */
+public class IceSoakIT {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    @Test
+    public void testShortSoak() throws Exception {
+        final IceSoakReport report = new IceSoak(20, 5, 15 * 1000).run();
+        log.info("Soak: {}", report);
+        assertEquals(20, report.getConnected() + report.getFailed());
+        assertTrue(report.getConnected() > 0);
+        assertTrue(report.getPeakThreads() > 0);
+    }
+}
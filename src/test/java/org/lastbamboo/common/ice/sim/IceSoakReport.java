@@ -0,0 +1,141 @@
+package org.lastbamboo.common.ice.sim;
+
+import org.lastbamboo.common.ice.metrics.IceLatencyHistogram;
+
+/**
+ * The results of an {@link IceSoak} run.
+ */
+public class IceSoakReport {
+
+    private final int sessions;
+
+    private final int concurrency;
+
+    private final int connected;
+
+    private final int failed;
+
+    private final long elapsedNanos;
+
+    private final IceLatencyHistogram timeToSocket;
+
+    private final int peakThreads;
+
+    private final long peakFileDescriptors;
+
+    private final long peakSockets;
+
+    private final int peakLiveSessions;
+
+    private final long heapPerLiveSession;
+
+    IceSoakReport(final int sessions, final int concurrency,
+        final int connected, final int failed, final long elapsedNanos,
+        final IceLatencyHistogram timeToSocket, final int peakThreads,
+        final long peakFileDescriptors, final long peakSockets,
+        final int peakLiveSessions, final long heapPerLiveSession) {
+        this.sessions = sessions;
+        this.concurrency = concurrency;
+        this.connected = connected;
+        this.failed = failed;
+        this.elapsedNanos = elapsedNanos;
+        this.timeToSocket = timeToSocket;
+        this.peakThreads = peakThreads;
+        this.peakFileDescriptors = peakFileDescriptors;
+        this.peakSockets = peakSockets;
+        this.peakLiveSessions = peakLiveSessions;
+        this.heapPerLiveSession = heapPerLiveSession;
+    }
+
+    public int getSessions() {
+        return sessions;
+    }
+
+    public int getConnected() {
+        return connected;
+    }
+
+    public int getFailed() {
+        return failed;
+    }
+
+    /**
+     * Accessor for the rate of successful negotiations over the whole run.
+     *
+     * @return Successful negotiations per second.
+     */
+    public double getNegotiationsPerSecond() {
+        if (elapsedNanos == 0L) {
+            return 0.0;
+        }
+        return connected * 1000000000.0 / elapsedNanos;
+    }
+
+    /**
+     * Accessor for a time-to-socket percentile, measured from creating the
+     * offerer until both sides have a socket.
+     *
+     * @param percentile The percentile, from 0 to 100.
+     * @return The time to socket in milliseconds.
+     */
+    public double getTimeToSocketMillis(final double percentile) {
+        return timeToSocket.getValueAtPercentile(percentile) / 1000.0;
+    }
+
+    public int getPeakThreads() {
+        return peakThreads;
+    }
+
+    /**
+     * Accessor for the most file descriptors open at once.
+     *
+     * @return The peak, or -1 if the platform doesn't report it.
+     */
+    public long getPeakFileDescriptors() {
+        return peakFileDescriptors;
+    }
+
+    /**
+     * Accessor for the most sockets open at once, which bounds the
+     * ephemeral ports in use.
+     *
+     * @return The peak, or -1 if the platform doesn't report it.
+     */
+    public long getPeakSockets() {
+        return peakSockets;
+    }
+
+    public int getPeakLiveSessions() {
+        return peakLiveSessions;
+    }
+
+    /**
+     * Accessor for the heap growth over the baseline divided by the number
+     * of live sessions, sampled when the most sessions were live. This
+     * includes garbage that hasn't been collected yet, so it's an upper
+     * bound.
+     *
+     * @return Bytes of heap per live session.
+     */
+    public long getHeapPerLiveSession() {
+        return heapPerLiveSession;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() +
+            " sessions: " + sessions +
+            " concurrency: " + concurrency +
+            " connected: " + connected +
+            " failed: " + failed +
+            String.format(" negotiations/sec: %.1f",
+                getNegotiationsPerSecond()) +
+            String.format(" time to socket p50: %.1f ms p99: %.1f ms",
+                getTimeToSocketMillis(50), getTimeToSocketMillis(99)) +
+            " peak threads: " + peakThreads +
+            " peak fds: " + peakFileDescriptors +
+            " peak sockets: " + peakSockets +
+            " peak live sessions: " + peakLiveSessions +
+            " heap per live session: " + heapPerLiveSession;
+    }
+}
@@ -0,0 +1,84 @@
+package org.lastbamboo.common.ice.sim;
+
+import java.util.Random;
+
+/**
+ * The latency, jitter and loss of an emulated access link. Each packet 
+ * crossing the link in either direction is dropped with probability
+ * <code>lossRate</code> and otherwise delayed by <code>latencyMillis</code>
+ * plus or minus up to <code>jitterMillis</code>. The random source is 
+ * seeded, so a given run of packets sees the same delays and drops.
+ */
+public class LinkConditions {
+
+    /**
+     * A perfect link with no delay and no loss.
+     */
+    public static final LinkConditions NONE = new LinkConditions(0, 0, 0.0);
+
+    private final long latencyMillis;
+
+    private final long jitterMillis;
+
+    private final double lossRate;
+
+    /**
+     * Creates new link conditions.
+     * 
+     * @param latencyMillis The one way delay in milliseconds.
+     * @param jitterMillis The maximum deviation from the delay in 
+     * milliseconds.
+     * @param lossRate The probability from 0.0 to 1.0 that a packet is 
+     * dropped.
+     */
+    public LinkConditions(final long latencyMillis, final long jitterMillis,
+        final double lossRate) {
+        if (latencyMillis < 0 || jitterMillis < 0) {
+            throw new IllegalArgumentException("Negative delay");
+        }
+        if (lossRate < 0.0 || lossRate > 1.0) {
+            throw new IllegalArgumentException("Bad loss rate: " + lossRate);
+        }
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        this.lossRate = lossRate;
+    }
+
+    public long getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    public long getJitterMillis() {
+        return jitterMillis;
+    }
+
+    public double getLossRate() {
+        return lossRate;
+    }
+
+    /**
+     * Decides the fate of a single packet.
+     * 
+     * @param random The random source for the link.
+     * @return The delay in milliseconds, or -1 if the packet is dropped.
+     */
+    long nextDelay(final Random random) {
+        if (lossRate > 0.0 && random.nextDouble() < lossRate) {
+            return -1L;
+        }
+        if (jitterMillis == 0) {
+            return latencyMillis;
+        }
+        final long deviation = 
+            (long) ((random.nextDouble() * 2.0 - 1.0) * jitterMillis);
+        return Math.max(0L, latencyMillis + deviation);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() +
+            " latency: " + latencyMillis +
+            " jitter: " + jitterMillis +
+            " loss: " + lossRate;
+    }
+}
@@ -0,0 +1,77 @@
+package org.lastbamboo.common.ice.sim;
+
+/**
+ * The NAT behaviors {@link EmulatedNat} can emulate, using the classic 
+ * RFC 3489 names. Cone NATs reuse one public mapping for everything an 
+ * internal endpoint sends, while symmetric NATs create a new mapping for 
+ * each destination. The NATs differ in which inbound packets they let 
+ * through a mapping.
+ */
+public enum NatType {
+
+    /**
+     * One mapping per internal endpoint, and anyone may send to it.
+     */
+    FULL_CONE(false, false, false),
+
+    /**
+     * One mapping per internal endpoint, and only addresses the internal
+     * endpoint has sent to may send to it.
+     */
+    RESTRICTED(false, true, false),
+
+    /**
+     * One mapping per internal endpoint, and only addresses and ports the
+     * internal endpoint has sent to may send to it.
+     */
+    PORT_RESTRICTED(false, true, true),
+
+    /**
+     * A new mapping for each destination, and only that destination may 
+     * send to it.
+     */
+    SYMMETRIC(true, true, true);
+
+    private final boolean perDestinationMapping;
+
+    private final boolean filtersAddress;
+
+    private final boolean filtersPort;
+
+    private NatType(final boolean perDestinationMapping, 
+        final boolean filtersAddress, final boolean filtersPort) {
+        this.perDestinationMapping = perDestinationMapping;
+        this.filtersAddress = filtersAddress;
+        this.filtersPort = filtersPort;
+    }
+
+    /**
+     * Whether or not the NAT allocates a separate mapping for each 
+     * destination.
+     * 
+     * @return <code>true</code> if mappings depend on the destination.
+     */
+    public boolean isPerDestinationMapping() {
+        return perDestinationMapping;
+    }
+
+    /**
+     * Whether or not inbound packets must come from an address the 
+     * internal endpoint has sent to.
+     * 
+     * @return <code>true</code> if the NAT filters on address.
+     */
+    public boolean isFiltersAddress() {
+        return filtersAddress;
+    }
+
+    /**
+     * Whether or not inbound packets must come from the exact address and
+     * port the internal endpoint has sent to.
+     * 
+     * @return <code>true</code> if the NAT filters on address and port.
+     */
+    public boolean isFiltersPort() {
+        return filtersPort;
+    }
+}
@@ -13,6 +13,11 @@ import org.lastbamboo.common.ice.IceState;
 import org.lastbamboo.common.ice.IceTieBreaker;
 import org.lastbamboo.common.ice.candidate.IceCandidate;
 import org.lastbamboo.common.ice.candidate.IceCandidatePair;
+import org.lastbamboo.common.ice.executor.DirectIceEventLoop;
+import org.lastbamboo.common.ice.executor.IceEventLoop;
+import org.lastbamboo.common.ice.metrics.IceNegotiationTimer;
+import org.lastbamboo.common.ice.trace.IceTraceBuffer;
+import org.lastbamboo.common.offer.answer.IceMediaStreamDesc;
 import org.lastbamboo.common.offer.answer.OfferAnswerListener;
 import org.lastbamboo.common.offer.answer.OfferAnswerMediaListener;
 
@@ -178,4 +183,20 @@ public class IceAgentStub implements IceAgent {
         return false;
     }
 
+    public IceEventLoop getEventLoop() {
+        return new DirectIceEventLoop();
+    }
+
+    public IceNegotiationTimer getNegotiationTimer() {
+        return new IceNegotiationTimer();
+    }
+
+    public IceTraceBuffer getTraceBuffer() {
+        return IceTraceBuffer.DISABLED;
+    }
+
+    public IceMediaStreamDesc getMediaStreamDesc() {
+        return null;
+    }
+
 }
@@ -4,6 +4,8 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
 import java.util.Queue;
 
 import org.littleshoot.mina.common.IoHandler;
@@ -12,12 +14,14 @@ import org.littleshoot.mina.common.IoServiceConfig;
 import org.littleshoot.mina.common.IoServiceListener;
 import org.littleshoot.mina.common.IoSession;
 import org.lastbamboo.common.ice.IceCheckList;
+import org.lastbamboo.common.ice.IceCheckListListener;
 import org.lastbamboo.common.ice.IceCheckListState;
 import org.lastbamboo.common.ice.IceCheckScheduler;
 import org.lastbamboo.common.ice.IceMediaStream;
 import org.lastbamboo.common.ice.IceStunUdpPeer;
 import org.lastbamboo.common.ice.candidate.IceCandidate;
 import org.lastbamboo.common.ice.candidate.IceCandidatePair;
+import org.lastbamboo.common.ice.candidate.IceCandidatePairState;
 import org.littleshoot.stun.stack.message.BindingRequest;
 
 public class IceMediaStreamImplStub implements IceMediaStream
@@ -101,6 +105,15 @@ public class IceMediaStreamImplStub implements IceMediaStream
         
         }
 
+    public void addCheckListListener(IceCheckListListener listener)
+        {
+        }
+
+    public Map<IceCandidatePairState, Integer> getPairCountsByState()
+        {
+        return Collections.emptyMap();
+        }
+
     public void updateCheckListAndTimerStates()
         {
         // TODO Auto-generated method stub
@@ -0,0 +1,41 @@
+package org.lastbamboo.common.ice.trace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for the per-agent trace buffer.
+ */
+public class IceTraceBufferTest {
+
+    @Test
+    public void testCapacityRoundsUp() throws Exception {
+        assertEquals(1, new IceTraceBuffer(1).getCapacity());
+        assertEquals(8, new IceTraceBuffer(5).getCapacity());
+        assertEquals(256, new IceTraceBuffer(256).getCapacity());
+    }
+
+    @Test
+    public void testDumpKeepsMostRecent() throws Exception {
+        final IceTraceBuffer trace = new IceTraceBuffer(4);
+        for (int i = 1; i <= 6; i++) {
+            trace.record(IceTraceEvent.REQUEST_RETRANSMITTED, "pair", null, i);
+        }
+        assertEquals(6, trace.getRecorded());
+        final String dump = trace.dump();
+        assertTrue(dump, dump.startsWith("(2 earlier events dropped)"));
+        assertFalse(dump, dump.contains("value=2\n"));
+        assertTrue(dump, dump.contains("value=3\n"));
+        assertTrue(dump, dump.contains("value=6\n"));
+    }
+
+    @Test
+    public void testDisabledRecordsNothing() throws Exception {
+        IceTraceBuffer.DISABLED.record(IceTraceEvent.NOMINATED, "pair", null);
+        assertEquals(0, IceTraceBuffer.DISABLED.getRecorded());
+        assertEquals("", IceTraceBuffer.DISABLED.dump());
+    }
+}
@@ -0,0 +1,111 @@
+package org.lastbamboo.common.ice.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+import org.lastbamboo.common.ice.clock.IceClocks;
+import org.lastbamboo.common.ice.clock.VirtualIceClock;
+import org.lastbamboo.common.ice.stubs.IoSessionStub;
+import org.littleshoot.stun.stack.message.attributes.StunAttribute;
+import org.littleshoot.stun.stack.transaction.StunTransactionTrackerImpl;
+
+/**
+ * Tests for the path MTU search in {@link IceUdpStunChecker}, with the
+ * network replaced by a path that drops anything bigger than its MTU.
+ */
+public class IceUdpStunCheckerMtuTest {
+
+    @After
+    public void tearDown() {
+        IceClocks.reset();
+    }
+
+    @Test
+    public void testFindsPathMtu() throws Exception {
+        final PathChecker checker = new PathChecker(1400, 0L, null);
+        final int mtu = checker.probeMtu(null, null);
+        assertTrue("Got " + mtu, mtu <= 1400);
+        assertTrue("Got " + mtu, mtu > 1400 - 16);
+    }
+
+    @Test
+    public void testFullSizePathStopsEarly() throws Exception {
+        final PathChecker checker = new PathChecker(1500, 0L, null);
+        assertEquals(1500, checker.probeMtu(null, null));
+        assertEquals(2, checker.probes.size());
+    }
+
+    @Test
+    public void testNoAnswerToMinimum() throws Exception {
+        final PathChecker checker = new PathChecker(500, 0L, null);
+        assertEquals(-1, checker.probeMtu(null, null));
+        assertEquals(1, checker.probes.size());
+    }
+
+    @Test
+    public void testSearchStopsAtBudget() throws Exception {
+        final VirtualIceClock clock = new VirtualIceClock();
+        IceClocks.set(clock);
+
+        // With each lost probe taking a second, the budget runs out after
+        // 1500, 1440 and 1412 all go unanswered, so we settle for the
+        // largest size that got through before finishing the search.
+        final PathChecker checker = new PathChecker(1400, 1000L, clock);
+        assertEquals(1384, checker.probeMtu(null, null));
+        assertEquals(Integer.valueOf(1412),
+            checker.probes.get(checker.probes.size() - 1));
+    }
+
+    private static final class PathChecker extends IceUdpStunChecker {
+
+        private final int pathMtu;
+
+        private final long lossMillis;
+
+        private final VirtualIceClock clock;
+
+        private final List<Integer> probes = new ArrayList<Integer>();
+
+        private PathChecker(final int pathMtu, final long lossMillis,
+            final VirtualIceClock clock) {
+            super(new Session(), new StunTransactionTrackerImpl());
+            this.pathMtu = pathMtu;
+            this.lossMillis = lossMillis;
+            this.clock = clock;
+        }
+
+        @Override
+        boolean probe(final int mtu, final StunAttribute priority,
+            final StunAttribute role, final InetSocketAddress localAddress,
+            final InetSocketAddress remoteAddress) {
+            probes.add(Integer.valueOf(mtu));
+            if (mtu <= pathMtu) {
+                return true;
+            }
+            if (clock != null) {
+                clock.advance(lossMillis);
+            }
+            return false;
+        }
+    }
+
+    private static final class Session extends IoSessionStub {
+
+        @Override
+        public SocketAddress getLocalAddress() {
+            return new InetSocketAddress("127.0.0.1", 4000);
+        }
+
+        @Override
+        public SocketAddress getRemoteAddress() {
+            return new InetSocketAddress("127.0.0.1", 5000);
+        }
+    }
+}
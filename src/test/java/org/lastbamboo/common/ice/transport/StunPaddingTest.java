@@ -0,0 +1,90 @@
+package org.lastbamboo.common.ice.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.lastbamboo.common.ice.stubs.IoSessionStub;
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.filter.codec.ProtocolDecoder;
+import org.littleshoot.mina.filter.codec.ProtocolDecoderOutput;
+import org.littleshoot.stun.stack.StunProtocolCodecFactory;
+import org.littleshoot.stun.stack.message.BindingRequest;
+
+/**
+ * Tests for padding STUN messages out to probe sizes.
+ */
+public class StunPaddingTest {
+
+    private static final int HEADER = 20;
+
+    @Test
+    public void testPadsToDatagramSize() throws Exception {
+        final IoSessionStub session = new IoSessionStub();
+        final BindingRequest request = new BindingRequest();
+        final int unpadded =
+            StunPadding.pad(session, request, 0).remaining();
+
+        final int[] sizes = {548, 1000, 1472, 1473};
+        for (final int size : sizes) {
+            final ByteBuffer padded = StunPadding.pad(session, request, size);
+            final int length = padded.remaining();
+            assertTrue(length <= size);
+            assertTrue(length > size - 4);
+            assertEquals(0, length % 4);
+
+            // The header length covers everything after the header, and the
+            // PADDING attribute follows the original attributes.
+            assertEquals(length - HEADER, padded.getUnsignedShort(2));
+            assertEquals(StunPadding.PADDING,
+                padded.getUnsignedShort(unpadded));
+            assertEquals(length - unpadded - 4,
+                padded.getUnsignedShort(unpadded + 2));
+        }
+    }
+
+    @Test
+    public void testSmallSizesAreNotPadded() throws Exception {
+        final IoSessionStub session = new IoSessionStub();
+        final BindingRequest request = new BindingRequest();
+        final int unpadded =
+            StunPadding.pad(session, request, 0).remaining();
+        assertEquals(unpadded,
+            StunPadding.pad(session, request, unpadded + 4).remaining());
+    }
+
+    /**
+     * PADDING is in the comprehension-required range, so this makes sure
+     * the STUN stack on the other side still decodes padded probes as 
+     * Binding Requests it can answer.
+     */
+    @Test
+    public void testPaddedRequestDecodes() throws Exception {
+        final IoSessionStub session = new IoSessionStub();
+        final BindingRequest request = new BindingRequest();
+        final ByteBuffer padded = StunPadding.pad(session, request, 1000);
+
+        final ProtocolDecoder decoder =
+            new StunProtocolCodecFactory().getDecoder();
+        final CapturingOutput out = new CapturingOutput();
+        decoder.decode(session, padded, out);
+
+        assertTrue("Got " + out.message, 
+            out.message instanceof BindingRequest);
+        assertEquals(request.getTransactionId(),
+            ((BindingRequest) out.message).getTransactionId());
+    }
+
+    private static final class CapturingOutput 
+        implements ProtocolDecoderOutput {
+
+        private Object message;
+
+        public void write(final Object msg) {
+            this.message = msg;
+        }
+
+        public void flush() {
+        }
+    }
+}
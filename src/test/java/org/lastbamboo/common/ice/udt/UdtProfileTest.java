@@ -0,0 +1,56 @@
+package org.lastbamboo.common.ice.udt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.lastbamboo.common.ice.candidate.IcePathStats;
+
+/**
+ * Tests for choosing UDT options from path stats.
+ */
+public class UdtProfileTest {
+
+    @Test
+    public void testUnknownPathKeepsDefaults() throws Exception {
+        assertSame(UdtProfile.DEFAULT, 
+            UdtProfile.forPath(IcePathStats.UNKNOWN, 1500));
+    }
+
+    @Test
+    public void testShortPath() throws Exception {
+        final UdtProfile profile = 
+            UdtProfile.forPath(new IcePathStats(1000L, 4L, 0L), 1500);
+        assertSame(UdtProfile.LAN, profile);
+        assertEquals(0, profile.getBufferSize());
+    }
+
+    @Test
+    public void testLongFatPath() throws Exception {
+        final UdtProfile profile = 
+            UdtProfile.forPath(new IcePathStats(150000L, 4L, 0L), 1500);
+        assertEquals("high-bdp", profile.getName());
+        // Twice the bandwidth-delay product at 1 Gbit/s.
+        assertEquals(37500000, profile.getBufferSize());
+        assertTrue(profile.getFlightFlagSize() * 1500 >= 
+            profile.getBufferSize() - 1500);
+        assertEquals(8 * 1024 * 1024, profile.getSystemBufferSize());
+    }
+
+    @Test
+    public void testBuffersAreCapped() throws Exception {
+        final UdtProfile profile = 
+            UdtProfile.forPath(new IcePathStats(2000000L, 4L, 0L), 1500);
+        assertEquals(64 * 1024 * 1024, profile.getBufferSize());
+        assertEquals((64 * 1024 * 1024 + 1499) / 1500, 
+            profile.getFlightFlagSize());
+    }
+
+    @Test
+    public void testLossyPath() throws Exception {
+        final UdtProfile profile = 
+            UdtProfile.forPath(new IcePathStats(1000L, 10L, 2L), 1500);
+        assertEquals("lossy", profile.getName());
+    }
+}
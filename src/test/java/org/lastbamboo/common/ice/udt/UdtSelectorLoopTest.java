@@ -0,0 +1,150 @@
+package org.lastbamboo.common.ice.udt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.barchart.udt.nio.SelectorProviderUDT;
+import com.barchart.udt.nio.ServerSocketChannelUDT;
+import com.barchart.udt.nio.SocketChannelUDT;
+
+/**
+ * Tests for establishing UDT connections through a selector loop.
+ */
+public class UdtSelectorLoopTest {
+
+    private UdtSelectorLoop loop;
+
+    @After
+    public void tearDown() {
+        if (loop != null) {
+            loop.shutdown();
+        }
+    }
+
+    @Test
+    public void testLoopbackConnectAndAccept() throws Exception {
+        loop = new UdtSelectorLoop("UDT-Selector-Test");
+        final ServerSocketChannelUDT server = bindServer();
+        final InetSocketAddress address = (InetSocketAddress)
+            server.socket().getLocalSocketAddress();
+
+        final BlockingQueue<Object> accepted =
+            new LinkedBlockingQueue<Object>();
+        final BlockingQueue<Object> connected =
+            new LinkedBlockingQueue<Object>();
+        loop.accept(server, new QueueListener(accepted));
+        final SocketChannelUDT client =
+            SelectorProviderUDT.STREAM.openSocketChannel();
+        client.socket().bind(
+            new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        loop.connect(client, address, new QueueListener(connected));
+
+        final Object in = accepted.poll(10, TimeUnit.SECONDS);
+        final Object out = connected.poll(10, TimeUnit.SECONDS);
+        assertTrue("Got " + in, in instanceof SocketChannelUDT);
+        assertTrue("Got " + out, out instanceof SocketChannelUDT);
+        assertFalse(((SocketChannelUDT) in).isBlocking());
+        assertFalse(((SocketChannelUDT) out).isBlocking());
+        // We only accept the one connection, so the server's done.
+        assertFalse(server.isOpen());
+        ((SocketChannelUDT) in).close();
+        ((SocketChannelUDT) out).close();
+    }
+
+    @Test
+    public void testEstablishmentTimesOut() throws Exception {
+        loop = new UdtSelectorLoop("UDT-Selector-Test",
+            TimeUnit.MILLISECONDS.toNanos(300));
+        final ServerSocketChannelUDT server = bindServer();
+        final BlockingQueue<Object> results =
+            new LinkedBlockingQueue<Object>();
+        final long start = System.nanoTime();
+
+        // Nobody connects.
+        loop.accept(server, new QueueListener(results));
+        final Object result = results.poll(10, TimeUnit.SECONDS);
+        assertTrue("Got " + result, result instanceof SocketTimeoutException);
+        assertTrue(System.nanoTime() - start >=
+            TimeUnit.MILLISECONDS.toNanos(300));
+        assertFalse(server.isOpen());
+    }
+
+    @Test
+    public void testShutdownFailsPendingEstablishments() throws Exception {
+        loop = new UdtSelectorLoop("UDT-Selector-Test");
+        final ServerSocketChannelUDT server = bindServer();
+        final BlockingQueue<Object> results =
+            new LinkedBlockingQueue<Object>();
+        loop.accept(server, new QueueListener(results));
+        loop.shutdown();
+        final Object result = results.poll(10, TimeUnit.SECONDS);
+        assertTrue("Got " + result, result instanceof IOException);
+        assertFalse(result instanceof SocketTimeoutException);
+        assertEquals("Selector loop shut down",
+            ((IOException) result).getMessage());
+        assertFalse(server.isOpen());
+    }
+
+    @Test
+    public void testStoppedLoopFailsRightAway() throws Exception {
+        loop = new UdtSelectorLoop("UDT-Selector-Test");
+        loop.shutdown();
+        final ServerSocketChannelUDT server = bindServer();
+        final BlockingQueue<Object> results =
+            new LinkedBlockingQueue<Object>();
+        loop.accept(server, new QueueListener(results));
+
+        // The listener hears on this thread, before accept returns.
+        final Object result = results.poll();
+        assertTrue("Got " + result, result instanceof IOException);
+        assertFalse(server.isOpen());
+        try {
+            loop.execute(new Runnable() {
+                public void run() {
+                }
+            });
+            fail("Should have rejected the task");
+        } catch (final RejectedExecutionException e) {
+            // Expected.
+        }
+    }
+
+    private static ServerSocketChannelUDT bindServer() throws IOException {
+        final ServerSocketChannelUDT server =
+            SelectorProviderUDT.STREAM.openServerSocketChannel();
+        server.socket().bind(
+            new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        return server;
+    }
+
+    private static final class QueueListener implements UdtConnectListener {
+
+        private final BlockingQueue<Object> results;
+
+        private QueueListener(final BlockingQueue<Object> results) {
+            this.results = results;
+        }
+
+        public void onConnected(final SocketChannelUDT channel) {
+            results.add(channel);
+        }
+
+        public void onConnectFailed(final IOException e) {
+            results.add(e);
+        }
+    }
+}